@@ -0,0 +1,72 @@
+package com.joyuiyeongl.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the previewview layout transform for every {@link ScaleType}.
+ *
+ * <p>A 1920x1080 back camera stream rotated by 90 degrees is laid out in a portrait
+ * 1080x2340 view, so the viewport and the view aspect ratios differ and the scale type matters.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class PreviewLayoutTransformBenchmark {
+    private static final int PREVIEW_VIEW_WIDTH = 1080;
+    private static final int PREVIEW_VIEW_HEIGHT = 2340;
+
+    @Param({"FILL_START", "FILL_CENTER", "FILL_END", "FIT_START", "FIT_CENTER", "FIT_END"})
+    public ScaleType scaleType;
+
+    @Param({"false", "true"})
+    public boolean frontCamera;
+
+    private PreviewLayoutTransform mTransform;
+    private FloatRect mSurfaceRect;
+    private FloatRect mViewRect;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mTransform = new PreviewLayoutTransform(1920, 1080, new FloatRect(0, 0, 1920, 1080),
+                /*previewRotationDegrees=*/90, frontCamera);
+        mTransform.setScaleType(scaleType);
+        mSurfaceRect = new FloatRect(0, 0, 1920, 1080);
+        mViewRect = new FloatRect(0, 0, PREVIEW_VIEW_WIDTH, PREVIEW_VIEW_HEIGHT);
+    }
+
+    /**
+     * Cost of {@code PreviewTransformation.getSurfaceToPreviewViewMatrix()}.
+     */
+    @Benchmark
+    public GraphicsMatrix surfaceToPreviewViewMatrix() {
+        return mTransform.getSurfaceToPreviewViewMatrix(PREVIEW_VIEW_WIDTH, PREVIEW_VIEW_HEIGHT,
+                /*isRtl=*/false);
+    }
+
+    /**
+     * Cost of the rect applied to the inner view in {@code PreviewTransformation.transformView()}.
+     */
+    @Benchmark
+    public FloatRect transformedSurfaceRect() {
+        return mTransform.getTransformedSurfaceRect(PREVIEW_VIEW_WIDTH, PREVIEW_VIEW_HEIGHT,
+                /*isRtl=*/false);
+    }
+
+    /**
+     * Cost of {@code TransformUtils.getRectToRect()} with a 90 degree rotation.
+     */
+    @Benchmark
+    public GraphicsMatrix rectToRect() {
+        return PreviewLayoutTransform.getRectToRect(mSurfaceRect, mViewRect, 90);
+    }
+}
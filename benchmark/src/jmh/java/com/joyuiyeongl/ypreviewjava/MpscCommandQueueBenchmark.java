@@ -0,0 +1,107 @@
+package com.joyuiyeongl.ypreviewjava;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Control;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the throughput of {@link MpscCommandQueue}, the render thread's command queue,
+ * with four producer threads and a consumer thread, next to that of a locked queue with a task
+ * object per command, as the Handler based executor has. The producer score is the number of
+ * commands queued, one in four superseding the previous one of its producer; the consumer
+ * score is the number of drains, including those finding the queue empty, since the consumer
+ * spins rather than waits to be woken up. Both need a core per thread to mean anything.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Group)
+public class MpscCommandQueueBenchmark {
+    private static final int CAPACITY = 256;
+    private static final int MAX_COMMANDS_PER_DRAIN = 32;
+    // One command in this many supersedes the previous one of its producer.
+    private static final int COALESCED_EVERY = 4;
+    private static final Runnable COMMAND = () -> {
+    };
+
+    // Commands waiting past which producers wait for the consumer: within the ring, or well
+    // past it, so that most commands go through the overflow list.
+    @Param({"128", "1024"})
+    public int backlog;
+
+    private MpscCommandQueue mCommandQueue;
+    private LinkedBlockingQueue<Runnable> mLockedQueue;
+
+    /** The coalescing key and command count of a producer thread. */
+    @State(Scope.Thread)
+    public static class Producer {
+        MpscCommandQueue.CoalescingKey mKey;
+        int mCommands;
+
+        @Setup(Level.Iteration)
+        public void setUp() {
+            // Keys are only meaningful to the queue they were used with.
+            mKey = new MpscCommandQueue.CoalescingKey();
+            mCommands = 0;
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        mCommandQueue = new MpscCommandQueue(CAPACITY);
+        mLockedQueue = new LinkedBlockingQueue<>();
+    }
+
+    @Benchmark
+    @Group("commandQueue")
+    @GroupThreads(4)
+    public boolean commandQueueOffer(Producer producer, Control control) {
+        while (mCommandQueue.size() > backlog && !control.stopMeasurement) {
+            Thread.yield();
+        }
+        return mCommandQueue.offer(
+                producer.mCommands++ % COALESCED_EVERY == 0 ? producer.mKey : null, COMMAND);
+    }
+
+    @Benchmark
+    @Group("commandQueue")
+    @GroupThreads(1)
+    public boolean commandQueueDrain() {
+        return mCommandQueue.drain(MAX_COMMANDS_PER_DRAIN);
+    }
+
+    /** Nothing is superseded: every command runs. */
+    @Benchmark
+    @Group("lockedQueue")
+    @GroupThreads(4)
+    public boolean lockedQueueOffer(Control control) {
+        while (mLockedQueue.size() > backlog && !control.stopMeasurement) {
+            Thread.yield();
+        }
+        return mLockedQueue.add(COMMAND);
+    }
+
+    @Benchmark
+    @Group("lockedQueue")
+    @GroupThreads(1)
+    public boolean lockedQueueDrain() {
+        int run = 0;
+        Runnable command;
+        while (run < MAX_COMMANDS_PER_DRAIN && (command = mLockedQueue.poll()) != null) {
+            command.run();
+            run++;
+        }
+        return run == MAX_COMMANDS_PER_DRAIN;
+    }
+}
@@ -0,0 +1,84 @@
+package com.joyuiyeongl.ypreviewjava;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the per-frame transform work of {@link OpenGLRenderer}, which lives in
+ * {@link RenderTransform}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class RenderTransformBenchmark {
+
+    // SurfaceTexture transforms for buffers rotated by 0, 90, 180 and 270 degrees. They all
+    // flip the t axis, since buffers are stored top-down.
+    private static final float[][] TEXTURE_TRANSFORMS = {
+            {1f, 0f, 0f, 0f, 0f, -1f, 0f, 0f, 0f, 0f, 1f, 0f, 0f, 1f, 0f, 1f},
+            {0f, -1f, 0f, 0f, -1f, 0f, 0f, 0f, 0f, 0f, 1f, 0f, 1f, 1f, 0f, 1f},
+            {-1f, 0f, 0f, 0f, 0f, 1f, 0f, 0f, 0f, 0f, 1f, 0f, 1f, 0f, 0f, 1f},
+            {0f, 1f, 0f, 0f, 1f, 0f, 0f, 0f, 0f, 0f, 1f, 0f, 0f, 0f, 0f, 1f}};
+
+    @Param({"0", "90", "180", "270"})
+    public int textureRotationDegrees;
+
+    @Param({"0", "90", "180", "270"})
+    public int surfaceRotationDegrees;
+
+    private RenderTransform mTransform;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mTransform = new RenderTransform();
+        mTransform.setPreviewSize(1920, 1080);
+        mTransform.setSurface(1080, 2340, surfaceRotationDegrees);
+        System.arraycopy(TEXTURE_TRANSFORMS[textureRotationDegrees / 90], 0,
+                mTransform.getTextureTransform(), 0, 16);
+        mTransform.updateTextureRotation();
+        if (mTransform.getTextureRotationDegrees() != textureRotationDegrees) {
+            throw new IllegalStateException("Unexpected texture rotation "
+                    + mTransform.getTextureRotationDegrees() + " for " + textureRotationDegrees);
+        }
+    }
+
+    /**
+     * Cost of {@code getTextureRotationDegrees()}, paid on every frame.
+     */
+    @Benchmark
+    public int textureRotation() {
+        return mTransform.getTextureRotationDegrees();
+    }
+
+    /**
+     * Cost of a full MVP rebuild, including the derived center-crop rect.
+     */
+    @Benchmark
+    public float[] updateMvpTransform() {
+        mTransform.updateMvpTransform();
+        return mTransform.getMvpTransform();
+    }
+
+    /**
+     * Cost of the transform work of a frame where nothing changed.
+     */
+    @Benchmark
+    public boolean steadyStateFrame() {
+        mTransform.updateTextureRotation();
+        boolean mvpDirty = mTransform.isMvpDirty();
+        if (mvpDirty) {
+            mTransform.updateMvpTransform();
+        }
+        mTransform.clearMvpDirty();
+        return mvpDirty;
+    }
+}
@@ -0,0 +1,63 @@
+package com.joyuiyeongl.benchmark;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Pure JVM stand-in for {@code android.graphics.RectF}, limited to what the transform code uses.
+ */
+public final class FloatRect {
+    public float left;
+    public float top;
+    public float right;
+    public float bottom;
+
+    public FloatRect() {
+    }
+
+    public FloatRect(float left, float top, float right, float bottom) {
+        this.left = left;
+        this.top = top;
+        this.right = right;
+        this.bottom = bottom;
+    }
+
+    public FloatRect(@NonNull FloatRect r) {
+        set(r);
+    }
+
+    public void set(float left, float top, float right, float bottom) {
+        this.left = left;
+        this.top = top;
+        this.right = right;
+        this.bottom = bottom;
+    }
+
+    public void set(@NonNull FloatRect src) {
+        set(src.left, src.top, src.right, src.bottom);
+    }
+
+    public boolean isEmpty() {
+        return left >= right || top >= bottom;
+    }
+
+    public float width() {
+        return right - left;
+    }
+
+    public float height() {
+        return bottom - top;
+    }
+
+    public float centerX() {
+        return (left + right) * 0.5f;
+    }
+
+    public float centerY() {
+        return (top + bottom) * 0.5f;
+    }
+
+    @Override
+    public String toString() {
+        return "FloatRect(" + left + ", " + top + ", " + right + ", " + bottom + ")";
+    }
+}
@@ -0,0 +1,315 @@
+package com.joyuiyeongl.benchmark;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Pure JVM stand-in for {@code android.graphics.Matrix}, limited to the affine operations used by
+ * the previewview transform code.
+ *
+ * <p>{@code android.graphics.Matrix} is backed by Skia's SkMatrix. This class follows SkMatrix's
+ * arithmetic for these operations: scale/translate fast paths in float, general concatenation
+ * with double precision products, inversion through a double precision determinant and
+ * rotation sines/cosines snapped to zero. For the 90 degree rotations and axis-aligned scales
+ * produced by the transform code this yields the same values as the framework.
+ */
+public final class GraphicsMatrix {
+
+    /**
+     * Mirrors {@code android.graphics.Matrix.ScaleToFit}.
+     */
+    public enum ScaleToFit {
+        FILL,
+        START,
+        CENTER,
+        END
+    }
+
+    private static final int MSCALE_X = 0;
+    private static final int MSKEW_X = 1;
+    private static final int MTRANS_X = 2;
+    private static final int MSKEW_Y = 3;
+    private static final int MSCALE_Y = 4;
+    private static final int MTRANS_Y = 5;
+
+    // SK_ScalarNearlyZero
+    private static final float NEARLY_ZERO = 1.0f / (1 << 12);
+
+    // Only affine matrices are supported, so the perspective row is implicitly [0, 0, 1].
+    private final float[] mValues = new float[6];
+    private final float[] mTemp = new float[6];
+
+    public GraphicsMatrix() {
+        reset();
+    }
+
+    public void reset() {
+        setScaleTranslate(1, 1, 0, 0);
+    }
+
+    public void set(@NonNull GraphicsMatrix src) {
+        System.arraycopy(src.mValues, 0, mValues, 0, 6);
+    }
+
+    /**
+     * Copies the values into the first 9 elements of the array, in the same order as
+     * {@code android.graphics.Matrix#getValues(float[])}.
+     */
+    public void getValues(@NonNull float[] values) {
+        System.arraycopy(mValues, 0, values, 0, 6);
+        values[6] = 0;
+        values[7] = 0;
+        values[8] = 1;
+    }
+
+    public void setScale(float sx, float sy, float px, float py) {
+        if (1 == sx && 1 == sy) {
+            reset();
+        } else {
+            setScaleTranslate(sx, sy, px - sx * px, py - sy * py);
+        }
+    }
+
+    public void setRotate(float degrees) {
+        float radians = degrees * ((float) Math.PI / 180);
+        float sinV = snapToZero((float) Math.sin(radians));
+        float cosV = snapToZero((float) Math.cos(radians));
+        mValues[MSCALE_X] = cosV;
+        mValues[MSKEW_X] = -sinV;
+        mValues[MTRANS_X] = 0;
+        mValues[MSKEW_Y] = sinV;
+        mValues[MSCALE_Y] = cosV;
+        mValues[MTRANS_Y] = 0;
+    }
+
+    public boolean setRectToRect(@NonNull FloatRect src, @NonNull FloatRect dst,
+            @NonNull ScaleToFit stf) {
+        if (src.isEmpty()) {
+            reset();
+            return false;
+        }
+
+        if (dst.isEmpty()) {
+            setScaleTranslate(0, 0, 0, 0);
+        } else {
+            float tx;
+            float sx = dst.width() / src.width();
+            float ty;
+            float sy = dst.height() / src.height();
+            boolean xLarger = false;
+
+            if (stf != ScaleToFit.FILL) {
+                if (sx > sy) {
+                    xLarger = true;
+                    sx = sy;
+                } else {
+                    sy = sx;
+                }
+            }
+
+            tx = dst.left - src.left * sx;
+            ty = dst.top - src.top * sy;
+            if (stf == ScaleToFit.CENTER || stf == ScaleToFit.END) {
+                float diff;
+
+                if (xLarger) {
+                    diff = dst.width() - src.width() * sy;
+                } else {
+                    diff = dst.height() - src.height() * sy;
+                }
+
+                if (stf == ScaleToFit.CENTER) {
+                    diff = diff * 0.5f;
+                }
+
+                if (xLarger) {
+                    tx += diff;
+                } else {
+                    ty += diff;
+                }
+            }
+
+            setScaleTranslate(sx, sy, tx, ty);
+        }
+        return true;
+    }
+
+    /**
+     * Post-concats the matrix with the specified rotation: M' = R(degrees) * M.
+     */
+    public void postRotate(float degrees) {
+        float radians = degrees * ((float) Math.PI / 180);
+        float sinV = snapToZero((float) Math.sin(radians));
+        float cosV = snapToZero((float) Math.cos(radians));
+        concat(cosV, -sinV, 0, sinV, cosV, 0, mValues);
+    }
+
+    /**
+     * Post-concats the matrix with the specified matrix: M' = other * M.
+     */
+    public void postConcat(@NonNull GraphicsMatrix other) {
+        float[] a = other.mValues;
+        concat(a[MSCALE_X], a[MSKEW_X], a[MTRANS_X], a[MSKEW_Y], a[MSCALE_Y], a[MTRANS_Y],
+                mValues);
+    }
+
+    /**
+     * Pre-concats the matrix with the specified scale around (px, py): M' = M * S(sx, sy, px, py).
+     */
+    public void preScale(float sx, float sy, float px, float py) {
+        if (1 == sx && 1 == sy) {
+            return;
+        }
+        float[] b = mTemp;
+        b[MSCALE_X] = sx;
+        b[MSKEW_X] = 0;
+        b[MTRANS_X] = px - sx * px;
+        b[MSKEW_Y] = 0;
+        b[MSCALE_Y] = sy;
+        b[MTRANS_Y] = py - sy * py;
+        float[] a = mValues;
+        concat(a[MSCALE_X], a[MSKEW_X], a[MTRANS_X], a[MSKEW_Y], a[MSCALE_Y], a[MTRANS_Y], b);
+    }
+
+    /**
+     * Inverts this matrix into the given matrix, which may be this one.
+     *
+     * @return false if the matrix cannot be inverted, in which case inverse is left unchanged.
+     */
+    public boolean invert(@NonNull GraphicsMatrix inverse) {
+        float[] src = mValues;
+        float[] dst = inverse.mValues;
+        if (isScaleTranslate()) {
+            float invX = 1.f / src[MSCALE_X];
+            float invY = 1.f / src[MSCALE_Y];
+            if (!isFinite(invX) || !isFinite(invY)) {
+                return false;
+            }
+            float transX = -src[MTRANS_X] * invX;
+            float transY = -src[MTRANS_Y] * invY;
+            inverse.setScaleTranslate(invX, invY, transX, transY);
+            return true;
+        }
+
+        double determinant = dcross(src[MSCALE_X], src[MSCALE_Y], src[MSKEW_X], src[MSKEW_Y]);
+        if (nearlyZeroDeterminant(determinant)) {
+            return false;
+        }
+        double invDet = 1.0 / determinant;
+        float scaleX = (float) (src[MSCALE_Y] * invDet);
+        float skewX = (float) (-src[MSKEW_X] * invDet);
+        float transX = (float) (dcross(src[MSKEW_X], src[MTRANS_Y], src[MSCALE_Y],
+                src[MTRANS_X]) * invDet);
+        float skewY = (float) (-src[MSKEW_Y] * invDet);
+        float scaleY = (float) (src[MSCALE_X] * invDet);
+        float transY = (float) (dcross(src[MSKEW_Y], src[MTRANS_X], src[MSCALE_X],
+                src[MTRANS_Y]) * invDet);
+        dst[MSCALE_X] = scaleX;
+        dst[MSKEW_X] = skewX;
+        dst[MTRANS_X] = transX;
+        dst[MSKEW_Y] = skewY;
+        dst[MSCALE_Y] = scaleY;
+        dst[MTRANS_Y] = transY;
+        return true;
+    }
+
+    /**
+     * Maps the rect in place to the bounds of its transformed corners.
+     *
+     * @return true if the result is still a rectangle, i.e. the matrix has no rotation other than
+     * multiples of 90 degrees.
+     */
+    public boolean mapRect(@NonNull FloatRect rect) {
+        float[] m = mValues;
+        if (isScaleTranslate()) {
+            float l = rect.left * m[MSCALE_X] + m[MTRANS_X];
+            float t = rect.top * m[MSCALE_Y] + m[MTRANS_Y];
+            float r = rect.right * m[MSCALE_X] + m[MTRANS_X];
+            float b = rect.bottom * m[MSCALE_Y] + m[MTRANS_Y];
+            rect.set(Math.min(l, r), Math.min(t, b), Math.max(l, r), Math.max(t, b));
+            return true;
+        }
+
+        float x0 = mapX(rect.left, rect.top);
+        float y0 = mapY(rect.left, rect.top);
+        float x1 = mapX(rect.right, rect.top);
+        float y1 = mapY(rect.right, rect.top);
+        float x2 = mapX(rect.right, rect.bottom);
+        float y2 = mapY(rect.right, rect.bottom);
+        float x3 = mapX(rect.left, rect.bottom);
+        float y3 = mapY(rect.left, rect.bottom);
+        rect.set(Math.min(Math.min(x0, x1), Math.min(x2, x3)),
+                Math.min(Math.min(y0, y1), Math.min(y2, y3)),
+                Math.max(Math.max(x0, x1), Math.max(x2, x3)),
+                Math.max(Math.max(y0, y1), Math.max(y2, y3)));
+        return (m[MSCALE_X] == 0 && m[MSCALE_Y] == 0) || (m[MSKEW_X] == 0 && m[MSKEW_Y] == 0);
+    }
+
+    private float mapX(float x, float y) {
+        return mValues[MSCALE_X] * x + mValues[MSKEW_X] * y + mValues[MTRANS_X];
+    }
+
+    private float mapY(float x, float y) {
+        return mValues[MSKEW_Y] * x + mValues[MSCALE_Y] * y + mValues[MTRANS_Y];
+    }
+
+    private boolean isScaleTranslate() {
+        return mValues[MSKEW_X] == 0 && mValues[MSKEW_Y] == 0;
+    }
+
+    private void setScaleTranslate(float sx, float sy, float tx, float ty) {
+        mValues[MSCALE_X] = sx;
+        mValues[MSKEW_X] = 0;
+        mValues[MTRANS_X] = tx;
+        mValues[MSKEW_Y] = 0;
+        mValues[MSCALE_Y] = sy;
+        mValues[MTRANS_Y] = ty;
+    }
+
+    /**
+     * Sets this matrix to A * B where A is given by its components. B may alias this matrix.
+     */
+    private void concat(float aScaleX, float aSkewX, float aTransX, float aSkewY, float aScaleY,
+            float aTransY, @NonNull float[] b) {
+        if (aSkewX == 0 && aSkewY == 0 && b[MSKEW_X] == 0 && b[MSKEW_Y] == 0) {
+            setScaleTranslate(aScaleX * b[MSCALE_X],
+                    aScaleY * b[MSCALE_Y],
+                    aScaleX * b[MTRANS_X] + aTransX,
+                    aScaleY * b[MTRANS_Y] + aTransY);
+            return;
+        }
+        float scaleX = mulAddMul(aScaleX, b[MSCALE_X], aSkewX, b[MSKEW_Y]);
+        float skewX = mulAddMul(aScaleX, b[MSKEW_X], aSkewX, b[MSCALE_Y]);
+        float transX = mulAddMul(aScaleX, b[MTRANS_X], aSkewX, b[MTRANS_Y]) + aTransX;
+        float skewY = mulAddMul(aSkewY, b[MSCALE_X], aScaleY, b[MSKEW_Y]);
+        float scaleY = mulAddMul(aSkewY, b[MSKEW_X], aScaleY, b[MSCALE_Y]);
+        float transY = mulAddMul(aSkewY, b[MTRANS_X], aScaleY, b[MTRANS_Y]) + aTransY;
+        mValues[MSCALE_X] = scaleX;
+        mValues[MSKEW_X] = skewX;
+        mValues[MTRANS_X] = transX;
+        mValues[MSKEW_Y] = skewY;
+        mValues[MSCALE_Y] = scaleY;
+        mValues[MTRANS_Y] = transY;
+    }
+
+    private static float mulAddMul(float a, float b, float c, float d) {
+        return (float) ((double) a * b + (double) c * d);
+    }
+
+    private static double dcross(double a, double b, double c, double d) {
+        return a * b - c * d;
+    }
+
+    private static boolean nearlyZeroDeterminant(double determinant) {
+        // Same tolerance as SkMatrix for an affine matrix: SK_ScalarNearlyZero cubed.
+        double tolerance = (double) NEARLY_ZERO * NEARLY_ZERO * NEARLY_ZERO;
+        return Math.abs(determinant) <= tolerance;
+    }
+
+    private static float snapToZero(float value) {
+        return Math.abs(value) <= NEARLY_ZERO ? 0.0f : value;
+    }
+
+    private static boolean isFinite(float value) {
+        return !Float.isNaN(value) && !Float.isInfinite(value);
+    }
+}
@@ -0,0 +1,219 @@
+package com.joyuiyeongl.benchmark;
+
+import androidx.annotation.NonNull;
+
+/**
+ * JVM mirror of the layout math in previewview's {@code PreviewTransformation} and
+ * {@code TransformUtils}, written against {@link GraphicsMatrix} and {@link FloatRect}.
+ *
+ * <p>The methods follow the originals statement by statement, including the objects they
+ * allocate, so that benchmark numbers reflect the cost of the Android code. Keep them in sync
+ * when the originals change; previewview's {@code PreviewLayoutTransformEquivalenceTest} checks
+ * that they compute the same values.
+ */
+public final class PreviewLayoutTransform {
+
+    // Normalized space (-1, -1) - (1, 1).
+    private static final FloatRect NORMALIZED_RECT = new FloatRect(-1, -1, 1, 1);
+
+    private final int mResolutionWidth;
+    private final int mResolutionHeight;
+    // TransformationInfo.getCropRect(), with no device quirk corrections applied.
+    private final FloatRect mSurfaceCropRect;
+    private final int mPreviewRotationDegrees;
+    private final boolean mIsFrontCamera;
+
+    private ScaleType mScaleType = ScaleType.FILL_CENTER;
+
+    public PreviewLayoutTransform(int resolutionWidth, int resolutionHeight,
+            @NonNull FloatRect cropRect, int previewRotationDegrees, boolean isFrontCamera) {
+        mResolutionWidth = resolutionWidth;
+        mResolutionHeight = resolutionHeight;
+        mSurfaceCropRect = new FloatRect(cropRect);
+        mPreviewRotationDegrees = previewRotationDegrees;
+        mIsFrontCamera = isFrontCamera;
+    }
+
+    public int getResolutionWidth() {
+        return mResolutionWidth;
+    }
+
+    public int getResolutionHeight() {
+        return mResolutionHeight;
+    }
+
+    public void setScaleType(@NonNull ScaleType scaleType) {
+        mScaleType = scaleType;
+    }
+
+    /**
+     * Mirrors {@code PreviewTransformation.getSurfaceToPreviewViewMatrix(Size, int)}.
+     */
+    @NonNull
+    public GraphicsMatrix getSurfaceToPreviewViewMatrix(int previewViewWidth,
+            int previewViewHeight, boolean isRtl) {
+        // Get the target of the mapping, the coordinates of the crop rect in PreviewView.
+        FloatRect previewViewCropRect;
+        if (isViewportAspectRatioMatchPreviewView(previewViewWidth, previewViewHeight)) {
+            previewViewCropRect = new FloatRect(0, 0, previewViewWidth, previewViewHeight);
+        } else {
+            previewViewCropRect = getPreviewViewViewportRectForMismatchedAspectRatios(
+                    previewViewWidth, previewViewHeight, isRtl);
+        }
+        GraphicsMatrix matrix = getRectToRect(new FloatRect(mSurfaceCropRect),
+                previewViewCropRect, mPreviewRotationDegrees);
+        if (mIsFrontCamera) {
+            if (is90or270(mPreviewRotationDegrees)) {
+                matrix.preScale(1F, -1F, mSurfaceCropRect.centerX(), mSurfaceCropRect.centerY());
+            } else {
+                matrix.preScale(-1F, 1F, mSurfaceCropRect.centerX(), mSurfaceCropRect.centerY());
+            }
+        }
+        return matrix;
+    }
+
+    /**
+     * Mirrors {@code PreviewTransformation.getTransformedSurfaceRect(Size, int)}.
+     */
+    @NonNull
+    public FloatRect getTransformedSurfaceRect(int previewViewWidth, int previewViewHeight,
+            boolean isRtl) {
+        GraphicsMatrix surfaceToPreviewView =
+                getSurfaceToPreviewViewMatrix(previewViewWidth, previewViewHeight, isRtl);
+        FloatRect rect = new FloatRect(0, 0, mResolutionWidth, mResolutionHeight);
+        surfaceToPreviewView.mapRect(rect);
+        return rect;
+    }
+
+    /**
+     * Mirrors {@code TransformUtils.getRectToRect(RectF, RectF, int)}.
+     */
+    @NonNull
+    public static GraphicsMatrix getRectToRect(@NonNull FloatRect source,
+            @NonNull FloatRect target, int rotationDegrees) {
+        // Map source to normalized space.
+        GraphicsMatrix matrix = new GraphicsMatrix();
+        matrix.setRectToRect(source, NORMALIZED_RECT, GraphicsMatrix.ScaleToFit.FILL);
+        // Add rotation.
+        matrix.postRotate(rotationDegrees);
+        // Restore the normalized space to target's coordinates.
+        matrix.postConcat(getNormalizedToBuffer(target));
+        return matrix;
+    }
+
+    @NonNull
+    private static GraphicsMatrix getNormalizedToBuffer(@NonNull FloatRect viewPortRect) {
+        GraphicsMatrix normalizedToBuffer = new GraphicsMatrix();
+        normalizedToBuffer.setRectToRect(NORMALIZED_RECT, viewPortRect,
+                GraphicsMatrix.ScaleToFit.FILL);
+        return normalizedToBuffer;
+    }
+
+    private boolean isViewportAspectRatioMatchPreviewView(int previewViewWidth,
+            int previewViewHeight) {
+        int viewportWidth = (int) mSurfaceCropRect.width();
+        int viewportHeight = (int) mSurfaceCropRect.height();
+        if (is90or270(mPreviewRotationDegrees)) {
+            int swap = viewportWidth;
+            viewportWidth = viewportHeight;
+            viewportHeight = swap;
+        }
+        return isAspectRatioMatchingWithRoundingError(previewViewWidth, previewViewHeight, true,
+                viewportWidth, viewportHeight, false);
+    }
+
+    @NonNull
+    private FloatRect getPreviewViewViewportRectForMismatchedAspectRatios(int previewViewWidth,
+            int previewViewHeight, boolean isRtl) {
+        FloatRect previewViewRect = new FloatRect(0, 0, previewViewWidth, previewViewHeight);
+        float rotatedViewportWidth = mSurfaceCropRect.width();
+        float rotatedViewportHeight = mSurfaceCropRect.height();
+        if (is90or270(mPreviewRotationDegrees)) {
+            rotatedViewportWidth = mSurfaceCropRect.height();
+            rotatedViewportHeight = mSurfaceCropRect.width();
+        }
+        FloatRect rotatedViewportRect =
+                new FloatRect(0, 0, rotatedViewportWidth, rotatedViewportHeight);
+
+        GraphicsMatrix matrix = new GraphicsMatrix();
+        setMatrixRectToRect(matrix, rotatedViewportRect, previewViewRect, mScaleType);
+        matrix.mapRect(rotatedViewportRect);
+
+        if (isRtl) {
+            float flipLineX = (float) previewViewWidth / 2;
+            return new FloatRect(
+                    flipLineX + flipLineX - rotatedViewportRect.right,
+                    rotatedViewportRect.top,
+                    flipLineX + flipLineX - rotatedViewportRect.left,
+                    rotatedViewportRect.bottom);
+        }
+        return rotatedViewportRect;
+    }
+
+    private static void setMatrixRectToRect(GraphicsMatrix matrix, FloatRect source,
+            FloatRect destination, ScaleType scaleType) {
+        GraphicsMatrix.ScaleToFit matrixScaleType;
+        switch (scaleType) {
+            case FIT_CENTER:
+                // Fallthrough.
+            case FILL_CENTER:
+                matrixScaleType = GraphicsMatrix.ScaleToFit.CENTER;
+                break;
+            case FIT_END:
+                // Fallthrough.
+            case FILL_END:
+                matrixScaleType = GraphicsMatrix.ScaleToFit.END;
+                break;
+            case FIT_START:
+                // Fallthrough.
+            case FILL_START:
+                matrixScaleType = GraphicsMatrix.ScaleToFit.START;
+                break;
+            default:
+                matrixScaleType = GraphicsMatrix.ScaleToFit.FILL;
+        }
+        boolean isFitTypes = scaleType == ScaleType.FIT_CENTER
+                || scaleType == ScaleType.FIT_START || scaleType == ScaleType.FIT_END;
+        if (isFitTypes) {
+            matrix.setRectToRect(source, destination, matrixScaleType);
+        } else {
+            // The fill scale types are mapped inversely from destination to source, then the
+            // matrix is inverted.
+            matrix.setRectToRect(destination, source, matrixScaleType);
+            matrix.invert(matrix);
+        }
+    }
+
+    private static boolean is90or270(int rotationDegrees) {
+        if (rotationDegrees == 90 || rotationDegrees == 270) {
+            return true;
+        }
+        if (rotationDegrees == 0 || rotationDegrees == 180) {
+            return false;
+        }
+        throw new IllegalArgumentException("Invalid rotation degrees: " + rotationDegrees);
+    }
+
+    private static boolean isAspectRatioMatchingWithRoundingError(int width1, int height1,
+            boolean isAccurate1, int width2, int height2, boolean isAccurate2) {
+        float ratio1UpperBound;
+        float ratio1LowerBound;
+        if (isAccurate1) {
+            ratio1UpperBound = (float) width1 / height1;
+            ratio1LowerBound = ratio1UpperBound;
+        } else {
+            ratio1UpperBound = (width1 + 1F) / (height1 - 1F);
+            ratio1LowerBound = (width1 - 1F) / (height1 + 1F);
+        }
+        float ratio2UpperBound;
+        float ratio2LowerBound;
+        if (isAccurate2) {
+            ratio2UpperBound = (float) width2 / height2;
+            ratio2LowerBound = ratio2UpperBound;
+        } else {
+            ratio2UpperBound = (width2 + 1F) / (height2 - 1F);
+            ratio2LowerBound = (width2 - 1F) / (height2 + 1F);
+        }
+        return ratio1UpperBound >= ratio2LowerBound && ratio2UpperBound >= ratio1LowerBound;
+    }
+}
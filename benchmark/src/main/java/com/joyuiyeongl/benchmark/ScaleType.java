@@ -0,0 +1,13 @@
+package com.joyuiyeongl.benchmark;
+
+/**
+ * Mirrors {@code androidx.camera.view.PreviewView.ScaleType}.
+ */
+public enum ScaleType {
+    FILL_START,
+    FILL_CENTER,
+    FILL_END,
+    FIT_START,
+    FIT_CENTER,
+    FIT_END
+}
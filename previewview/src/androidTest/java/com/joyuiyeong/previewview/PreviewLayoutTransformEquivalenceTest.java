@@ -0,0 +1,213 @@
+package com.joyuiyeong.previewview;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeFalse;
+
+import android.annotation.SuppressLint;
+import android.graphics.Matrix;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Build;
+import android.util.LayoutDirection;
+import android.util.Size;
+import android.view.Surface;
+
+import androidx.annotation.NonNull;
+import androidx.camera.core.SurfaceRequest;
+import androidx.camera.view.PreviewView;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.joyuiyeongl.benchmark.FloatRect;
+import com.joyuiyeongl.benchmark.GraphicsMatrix;
+import com.joyuiyeongl.benchmark.PreviewLayoutTransform;
+import com.joyuiyeongl.benchmark.ScaleType;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Checks that the JVM mirrors the benchmark module runs, {@link GraphicsMatrix},
+ * {@link FloatRect} and {@link PreviewLayoutTransform}, compute exactly what
+ * {@link Matrix}, {@link RectF} and {@link PreviewTransformation} compute on a device, so that
+ * the benchmark measures the same arithmetic. Values must be equal, the sign of zero aside.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PreviewLayoutTransformEquivalenceTest {
+    private static final RectF[] RECTS = {
+            new RectF(0, 0, 1920, 1080),
+            new RectF(0, 0, 1080, 2340),
+            new RectF(-1, -1, 1, 1),
+            new RectF(240, 0, 1680, 1080),
+            new RectF(0.5f, 3.25f, 641.75f, 479.5f)};
+    // The rotations the layout code uses. Others go through sinf/cosf, which the JVM does not
+    // round the same way.
+    private static final float[] ROTATIONS = {0, 90, 180, 270, -90};
+    private static final Size[] RESOLUTIONS = {new Size(1920, 1080), new Size(640, 480)};
+    private static final Size[] VIEW_SIZES = {new Size(1080, 2340), new Size(2340, 1080),
+            new Size(1000, 1000), new Size(1080, 1440), new Size(721, 333)};
+    private static final int[] ROTATION_DEGREES = {0, 90, 180, 270};
+
+    @Test
+    public void setRectToRectMatchesMatrix() {
+        for (RectF src : RECTS) {
+            for (RectF dst : RECTS) {
+                for (Matrix.ScaleToFit scaleToFit : Matrix.ScaleToFit.values()) {
+                    Matrix expected = new Matrix();
+                    boolean expectedResult = expected.setRectToRect(src, dst, scaleToFit);
+                    GraphicsMatrix actual = new GraphicsMatrix();
+                    boolean actualResult = actual.setRectToRect(toFloatRect(src), toFloatRect(dst),
+                            GraphicsMatrix.ScaleToFit.valueOf(scaleToFit.name()));
+
+                    String message = "setRectToRect " + src + " " + dst + " " + scaleToFit;
+                    assertTrue(message, expectedResult == actualResult);
+                    assertMatrixEquals(message, expected, actual);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void concatenationsMatchMatrix() {
+        for (RectF src : RECTS) {
+            for (float degrees : ROTATIONS) {
+                Matrix expected = new Matrix();
+                expected.setRectToRect(src, RECTS[2], Matrix.ScaleToFit.FILL);
+                expected.postRotate(degrees);
+                Matrix other = new Matrix();
+                other.setRectToRect(RECTS[2], RECTS[0], Matrix.ScaleToFit.FILL);
+                expected.postConcat(other);
+                expected.preScale(-1f, 1f, src.centerX(), src.centerY());
+
+                GraphicsMatrix actual = new GraphicsMatrix();
+                actual.setRectToRect(toFloatRect(src), toFloatRect(RECTS[2]),
+                        GraphicsMatrix.ScaleToFit.FILL);
+                actual.postRotate(degrees);
+                GraphicsMatrix actualOther = new GraphicsMatrix();
+                actualOther.setRectToRect(toFloatRect(RECTS[2]), toFloatRect(RECTS[0]),
+                        GraphicsMatrix.ScaleToFit.FILL);
+                actual.postConcat(actualOther);
+                actual.preScale(-1f, 1f, src.centerX(), src.centerY());
+
+                assertMatrixEquals("concat " + src + " " + degrees, expected, actual);
+            }
+        }
+    }
+
+    @Test
+    public void invertAndMapRectMatchMatrix() {
+        for (RectF src : RECTS) {
+            for (float degrees : ROTATIONS) {
+                Matrix expected = new Matrix();
+                expected.setScale(1.5f, 0.75f, src.centerX(), src.centerY());
+                expected.postRotate(degrees);
+                GraphicsMatrix actual = new GraphicsMatrix();
+                actual.setScale(1.5f, 0.75f, src.centerX(), src.centerY());
+                actual.postRotate(degrees);
+
+                String message = "invert " + src + " " + degrees;
+                Matrix expectedInverse = new Matrix();
+                GraphicsMatrix actualInverse = new GraphicsMatrix();
+                assertTrue(message,
+                        expected.invert(expectedInverse) == actual.invert(actualInverse));
+                assertMatrixEquals(message, expectedInverse, actualInverse);
+
+                RectF expectedRect = new RectF(src);
+                FloatRect actualRect = toFloatRect(src);
+                assertTrue(message, expected.mapRect(expectedRect) == actual.mapRect(actualRect));
+                assertRectEquals(message, expectedRect, actualRect);
+            }
+        }
+    }
+
+    @Test
+    public void layoutTransformMatchesPreviewTransformation() {
+        // PreviewTransformation corrects the crop rect on these devices, the mirror does not.
+        assumeFalse("A3Y17LTE".equalsIgnoreCase(Build.DEVICE)
+                || ("ON5XELTE".equalsIgnoreCase(Build.DEVICE) && Build.VERSION.SDK_INT >= 26));
+        for (Size resolution : RESOLUTIONS) {
+            Rect[] cropRects = {new Rect(0, 0, resolution.getWidth(), resolution.getHeight()),
+                    new Rect(resolution.getWidth() / 8, 0, resolution.getWidth() * 7 / 8,
+                            resolution.getHeight())};
+            for (Rect cropRect : cropRects) {
+                for (int rotationDegrees : ROTATION_DEGREES) {
+                    for (boolean isFrontCamera : new boolean[]{false, true}) {
+                        assertLayoutEquals(resolution, cropRect, rotationDegrees, isFrontCamera);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void assertLayoutEquals(@NonNull Size resolution, @NonNull Rect cropRect,
+            int rotationDegrees, boolean isFrontCamera) {
+        PreviewTransformation expected = newPreviewTransformation(resolution, cropRect,
+                rotationDegrees, isFrontCamera);
+        PreviewLayoutTransform actual = new PreviewLayoutTransform(resolution.getWidth(),
+                resolution.getHeight(), toFloatRect(new RectF(cropRect)), rotationDegrees,
+                isFrontCamera);
+        for (PreviewView.ScaleType scaleType : PreviewView.ScaleType.values()) {
+            expected.setScaleType(scaleType);
+            actual.setScaleType(ScaleType.valueOf(scaleType.name()));
+            for (Size viewSize : VIEW_SIZES) {
+                for (int layoutDirection : new int[]{LayoutDirection.LTR, LayoutDirection.RTL}) {
+                    String message = resolution + " crop " + cropRect + " rotation "
+                            + rotationDegrees + (isFrontCamera ? " front " : " back ") + scaleType
+                            + " view " + viewSize + " direction " + layoutDirection;
+                    Matrix expectedMatrix =
+                            expected.getSurfaceToPreviewViewMatrix(viewSize, layoutDirection);
+                    GraphicsMatrix actualMatrix = actual.getSurfaceToPreviewViewMatrix(
+                            viewSize.getWidth(), viewSize.getHeight(),
+                            layoutDirection == LayoutDirection.RTL);
+                    assertMatrixEquals(message, expectedMatrix, actualMatrix);
+
+                    RectF expectedRect =
+                            new RectF(0, 0, resolution.getWidth(), resolution.getHeight());
+                    expectedMatrix.mapRect(expectedRect);
+                    assertRectEquals(message, expectedRect, actual.getTransformedSurfaceRect(
+                            viewSize.getWidth(), viewSize.getHeight(),
+                            layoutDirection == LayoutDirection.RTL));
+                }
+            }
+        }
+    }
+
+    @SuppressLint("RestrictedApi")
+    @NonNull
+    private static PreviewTransformation newPreviewTransformation(@NonNull Size resolution,
+            @NonNull Rect cropRect, int rotationDegrees, boolean isFrontCamera) {
+        PreviewTransformation transformation = new PreviewTransformation();
+        transformation.setTransformationInfo(SurfaceRequest.TransformationInfo.of(cropRect,
+                rotationDegrees, Surface.ROTATION_0), resolution, isFrontCamera);
+        return transformation;
+    }
+
+    @NonNull
+    private static FloatRect toFloatRect(@NonNull RectF rect) {
+        return new FloatRect(rect.left, rect.top, rect.right, rect.bottom);
+    }
+
+    private static void assertMatrixEquals(@NonNull String message, @NonNull Matrix expected,
+            @NonNull GraphicsMatrix actual) {
+        float[] expectedValues = new float[9];
+        float[] actualValues = new float[9];
+        expected.getValues(expectedValues);
+        actual.getValues(actualValues);
+        for (int i = 0; i < 9; i++) {
+            assertFloatEquals(message + " value " + i, expectedValues[i], actualValues[i]);
+        }
+    }
+
+    private static void assertRectEquals(@NonNull String message, @NonNull RectF expected,
+            @NonNull FloatRect actual) {
+        assertFloatEquals(message + " left", expected.left, actual.left);
+        assertFloatEquals(message + " top", expected.top, actual.top);
+        assertFloatEquals(message + " right", expected.right, actual.right);
+        assertFloatEquals(message + " bottom", expected.bottom, actual.bottom);
+    }
+
+    private static void assertFloatEquals(@NonNull String message, float expected,
+            float actual) {
+        assertTrue(message + ": expected " + expected + " but was " + actual,
+                expected == actual || (Float.isNaN(expected) && Float.isNaN(actual)));
+    }
+}
@@ -0,0 +1,99 @@
+package com.joyuiyeongl.ypreviewjava;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.media.ImageReader;
+import android.util.Size;
+import android.view.Surface;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Invalidates the preview output of a renderer once a frame is drawn to it, the way
+ * {@link android.view.SurfaceHolder.Callback2#surfaceRedrawNeeded} and display changes do. A
+ * redraw of the same frame is skipped unless forced.
+ */
+@RunWith(AndroidJUnit4.class)
+public class InvalidateSurfaceTest {
+    private static final Size SURFACE_SIZE = new Size(320, 240);
+    private static final long TIMEOUT_MS = 5_000;
+
+    private RendererFixture mFixture;
+    private OpenGLRenderer mRenderer;
+    private ImageReader mReader;
+    private Surface mInput;
+
+    @Before
+    public void setUp() throws Exception {
+        mFixture = new RendererFixture("InvalidateSurfaceTest");
+        mRenderer = mFixture.getRenderer();
+        mReader = mFixture.newOutput(SURFACE_SIZE, null);
+
+        mInput = mRenderer.attachInputSurface(SURFACE_SIZE).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        mRenderer.attachOutputSurface(mReader.getSurface(), SURFACE_SIZE, 0);
+        Canvas canvas = mInput.lockCanvas(null);
+        canvas.drawColor(Color.GREEN);
+        mInput.unlockCanvasAndPost(canvas);
+        mFixture.awaitFramesDrawn(1);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mRenderer.detachOutputSurface().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        mFixture.release();
+        mReader.close();
+        mInput.release();
+    }
+
+    @Test
+    public void redrawOfSameFrameIsSkipped() throws Exception {
+        long redundantRedraws = getRedundantRedraws();
+
+        mRenderer.invalidateSurface(0);
+
+        awaitRedundantRedraws(redundantRedraws + 1);
+        assertEquals(1, mFixture.getFramesDrawn());
+    }
+
+    @Test
+    public void forcedRedrawDrawsSameFrameAgain() throws Exception {
+        long redundantRedraws = getRedundantRedraws();
+
+        mRenderer.invalidateSurface(0, /*forceRedraw=*/true);
+
+        mFixture.awaitFramesDrawn(2);
+        assertEquals(redundantRedraws, getRedundantRedraws());
+    }
+
+    @Test
+    public void redrawAfterForcedRedrawIsSkippedAgain() throws Exception {
+        mRenderer.invalidateSurface(0, /*forceRedraw=*/true);
+        mFixture.awaitFramesDrawn(2);
+        long redundantRedraws = getRedundantRedraws();
+
+        mRenderer.invalidateSurface(0);
+
+        awaitRedundantRedraws(redundantRedraws + 1);
+        assertEquals(2, mFixture.getFramesDrawn());
+    }
+
+    private long getRedundantRedraws() throws Exception {
+        return mRenderer.getFramePacingStats().get(TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                .getRedundantRedraws();
+    }
+
+    private void awaitRedundantRedraws(long redundantRedraws) throws Exception {
+        assertTrue("Redraw not skipped",
+                mFixture.waitFor(() -> getRedundantRedraws() >= redundantRedraws));
+    }
+}
@@ -0,0 +1,134 @@
+package com.joyuiyeongl.ypreviewjava;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Locale;
+
+/**
+ * Measures what handing the two matrices of a frame to the native renderer costs, the way
+ * {@code renderTexture()} used to, as float[] the native side pins with
+ * {@code Get/ReleaseFloatArrayElements}, and the way it does now, copying them into direct
+ * buffers whose addresses the native side keeps and crossing with primitives only. The natives
+ * copy the matrices where the uniform upload would, without drawing, so that only the crossing
+ * differs. Results are logged under the tag of this class.
+ *
+ * <pre>
+ * ./gradlew :ypreviewjava:connectedAndroidTest \
+ *     -Pandroid.testInstrumentationRunnerArguments.class=com.joyuiyeongl.ypreviewjava.JniCrossingBenchmark
+ * </pre>
+ */
+@RunWith(AndroidJUnit4.class)
+public class JniCrossingBenchmark {
+    private static final String TAG = "JniCrossing";
+    private static final int FRAMES = 100_000;
+    private static final int RUNS = 5;
+    private static final int FLOAT_SIZE_BYTES = 4;
+    private static final int PREVIEW_OUTPUT_MASK = 1;
+
+    private static final float[] MVP_TRANSFORM = {
+            0f, -1.2f, 0f, 0f,
+            1f, 0f, 0f, 0f,
+            0f, 0f, 1f, 0f,
+            0f, 0f, 0f, 1f};
+    private static final float[] TEXTURE_TRANSFORM = {
+            1f, 0f, 0f, 0f,
+            0f, -1f, 0f, 0f,
+            0f, 0f, 1f, 0f,
+            0f, 1f, 0f, 1f};
+
+    static {
+        System.loadLibrary("opengl_renderer_jni");
+    }
+
+    private final FloatBuffer mMvpTransformBuffer = allocateMatrixBuffer();
+    private final FloatBuffer mTextureTransformBuffer = allocateMatrixBuffer();
+
+    @Test
+    public void directBuffersCrossFasterThanArrays() {
+        assertTrue(setMatrixBuffers(mMvpTransformBuffer, mTextureTransformBuffer));
+        // Warm up the JIT and the first calls, which resolve the methods.
+        timeArrays();
+        timeBuffers();
+        long arraysMinNs = Long.MAX_VALUE;
+        long arraysTotalNs = 0;
+        long buffersMinNs = Long.MAX_VALUE;
+        long buffersTotalNs = 0;
+        for (int run = 0; run < RUNS; run++) {
+            long arraysNs = timeArrays();
+            arraysMinNs = Math.min(arraysMinNs, arraysNs);
+            arraysTotalNs += arraysNs;
+            long buffersNs = timeBuffers();
+            buffersMinNs = Math.min(buffersMinNs, buffersNs);
+            buffersTotalNs += buffersNs;
+        }
+
+        Log.i(TAG, String.format(Locale.US, "frames=%d runs=%d"
+                        + " arrays min=%.1fns/frame mean=%.1fns/frame"
+                        + " buffers min=%.1fns/frame mean=%.1fns/frame",
+                FRAMES, RUNS, (double) arraysMinNs / FRAMES,
+                (double) arraysTotalNs / RUNS / FRAMES, (double) buffersMinNs / FRAMES,
+                (double) buffersTotalNs / RUNS / FRAMES));
+        assertTrue("Direct buffers took " + buffersMinNs + "ns, arrays " + arraysMinNs + "ns",
+                buffersMinNs < arraysMinNs);
+    }
+
+    private static long timeArrays() {
+        int uploaded = 0;
+        long startNs = System.nanoTime();
+        for (int frame = 0; frame < FRAMES; frame++) {
+            if (uploadArrays(0, frame, MVP_TRANSFORM, true, TEXTURE_TRANSFORM)) {
+                uploaded++;
+            }
+        }
+        long elapsedNs = System.nanoTime() - startNs;
+        assertEquals(FRAMES, uploaded);
+        return elapsedNs;
+    }
+
+    // The renderer copies the matrices of each frame into the buffers before the call.
+    private long timeBuffers() {
+        int uploaded = 0;
+        long startNs = System.nanoTime();
+        for (int frame = 0; frame < FRAMES; frame++) {
+            copyMatrix(MVP_TRANSFORM, mMvpTransformBuffer);
+            copyMatrix(TEXTURE_TRANSFORM, mTextureTransformBuffer);
+            uploaded += uploadBuffers(0, PREVIEW_OUTPUT_MASK, PREVIEW_OUTPUT_MASK, frame);
+        }
+        long elapsedNs = System.nanoTime() - startNs;
+        assertEquals(FRAMES, uploaded);
+        return elapsedNs;
+    }
+
+    @NonNull
+    private static FloatBuffer allocateMatrixBuffer() {
+        return ByteBuffer.allocateDirect(16 * FLOAT_SIZE_BYTES).order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+    }
+
+    private static void copyMatrix(@NonNull float[] matrix, @NonNull FloatBuffer buffer) {
+        for (int i = 0; i < 16; i++) {
+            buffer.put(i, matrix[i]);
+        }
+    }
+
+    private static native boolean setMatrixBuffers(@NonNull FloatBuffer mvpTransform,
+            @NonNull FloatBuffer texTransform);
+
+    private static native boolean uploadArrays(long nativeContext, long timestampNs,
+            @NonNull float[] mvpTransform, boolean mvpDirty, @NonNull float[] texTransform);
+
+    private static native int uploadBuffers(long nativeContext, int outputMask,
+            int mvpDirtyMask, long presentationTimeNs);
+}
@@ -0,0 +1,114 @@
+package com.joyuiyeongl.ypreviewjava;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import android.util.Size;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Tests for {@link PreviewResolutionSelector}, on a device since it works with
+ * {@link Size}, whose methods the local unit tests' android.jar does not implement.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PreviewResolutionSelectorTest {
+    private static final Size[] SIZES = {new Size(1920, 1080), new Size(1280, 720),
+            new Size(640, 480), new Size(320, 240), new Size(4032, 3024)};
+
+    @Test
+    public void picksSmallestSizeCoveringView() {
+        PreviewResolutionSelector selector = new PreviewResolutionSelector(id -> SIZES);
+
+        assertEquals(new Size(640, 480), selector.select("0", 400, 300, 0));
+        assertEquals(new Size(1920, 1080), selector.select("0", 1600, 900, 0));
+    }
+
+    @Test
+    public void returnsSizeInFrameOfTargetRotation() {
+        PreviewResolutionSelector selector = new PreviewResolutionSelector(id -> SIZES);
+
+        assertEquals(new Size(480, 640), selector.select("0", 300, 400, 90));
+        assertEquals(new Size(640, 480), selector.select("0", 400, 300, 180));
+    }
+
+    @Test
+    public void landscapeViewOnPortraitDisplayIsCoveredByStreamWidth() {
+        PreviewResolutionSelector selector = new PreviewResolutionSelector(id -> SIZES);
+
+        // The stream is shown as 720 x 1280 on a portrait display: too narrow for the view,
+        // however long its long side.
+        assertEquals(new Size(1080, 1920), selector.select("0", 1000, 400, 90));
+    }
+
+    @Test
+    public void portraitViewOnLandscapeDisplayIsCoveredByStreamHeight() {
+        PreviewResolutionSelector selector = new PreviewResolutionSelector(id -> SIZES);
+
+        assertEquals(new Size(1920, 1080), selector.select("0", 400, 1000, 0));
+    }
+
+    @Test
+    public void cachesDecisionsPerOrientation() {
+        PreviewResolutionSelector selector = new PreviewResolutionSelector(id -> SIZES);
+
+        assertEquals(new Size(1280, 720), selector.select("0", 1000, 400, 0));
+        assertEquals(new Size(1080, 1920), selector.select("0", 1000, 400, 270));
+    }
+
+    @Test
+    public void sensorRotationFollowsLensFacing() {
+        assertEquals(90, PreviewResolutionSelector.getSensorRotationDegrees(90, 0, false));
+        assertEquals(0, PreviewResolutionSelector.getSensorRotationDegrees(90, 90, false));
+        assertEquals(180, PreviewResolutionSelector.getSensorRotationDegrees(90, 270, false));
+        assertEquals(270, PreviewResolutionSelector.getSensorRotationDegrees(270, 0, true));
+        assertEquals(0, PreviewResolutionSelector.getSensorRotationDegrees(270, 90, true));
+    }
+
+    @Test
+    public void qualityFactorScalesViewSize() {
+        PreviewResolutionSelector selector = new PreviewResolutionSelector(id -> SIZES);
+        assertEquals(new Size(640, 480), selector.select("0", 400, 300, 0));
+
+        selector.setQualityFactor(2f);
+        assertEquals(new Size(1280, 720), selector.select("0", 400, 300, 0));
+
+        selector.setQualityFactor(0.5f);
+        assertEquals(new Size(320, 240), selector.select("0", 400, 300, 0));
+    }
+
+    @Test
+    public void picksLargestSizeIfNoneCoversView() {
+        PreviewResolutionSelector selector = new PreviewResolutionSelector(id -> SIZES);
+
+        assertEquals(new Size(4032, 3024), selector.select("0", 5000, 4000, 0));
+    }
+
+    @Test
+    public void returnsNullWithoutViewSizeOrOutputSizes() {
+        PreviewResolutionSelector selector = new PreviewResolutionSelector(id -> null);
+
+        assertNull(selector.select("0", 0, 0, 0));
+        assertNull(selector.select("0", 400, 300, 0));
+    }
+
+    @Test
+    public void cachesOutputSizesAndDecisionsPerCamera() {
+        int[] queries = new int[1];
+        PreviewResolutionSelector selector = new PreviewResolutionSelector(id -> {
+            queries[0]++;
+            return id.equals("0") ? SIZES : new Size[]{new Size(800, 600)};
+        });
+
+        selector.select("0", 400, 300, 0);
+        selector.select("0", 400, 300, 0);
+        selector.select("0", 1000, 500, 0);
+        assertEquals(1, queries[0]);
+
+        assertEquals(new Size(800, 600), selector.select("1", 400, 300, 0));
+        assertEquals(2, queries[0]);
+    }
+}
@@ -0,0 +1,143 @@
+package com.joyuiyeongl.ypreviewjava;
+
+import static org.junit.Assert.assertEquals;
+
+import android.content.Context;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures what N previews cost with a renderer each and with renderers sharing a
+ * {@link RenderEngine}: render threads, memory and the time until all of them are ready to draw.
+ * Results are logged under the tag of this class, one line per configuration.
+ *
+ * <pre>
+ * ./gradlew :ypreviewjava:connectedAndroidTest \
+ *     -Pandroid.testInstrumentationRunnerArguments.class=com.joyuiyeongl.ypreviewjava.RenderEngineScalingBenchmark
+ * </pre>
+ */
+@RunWith(AndroidJUnit4.class)
+public class RenderEngineScalingBenchmark {
+    private static final String TAG = "RenderEngineScaling";
+    private static final int[] PREVIEW_COUNTS = {1, 2, 4, 8};
+    private static final long TIMEOUT_MS = 10_000;
+
+    @Test
+    public void dedicatedRenderers() throws Exception {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        // Warm up the library and the program cache, so that the first configuration is not
+        // charged for them.
+        measure(context, 1, false);
+        for (int count : PREVIEW_COUNTS) {
+            Result result = measure(context, count, false);
+            assertEquals(count, result.mThreads);
+        }
+    }
+
+    @Test
+    public void sharedEngine() throws Exception {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        measure(context, 1, true);
+        for (int count : PREVIEW_COUNTS) {
+            Result result = measure(context, count, true);
+            assertEquals(1, result.mThreads);
+        }
+    }
+
+    @NonNull
+    private static Result measure(@NonNull Context context, int previews, boolean shared)
+            throws Exception {
+        Runtime.getRuntime().gc();
+        long nativeHeapBefore = Debug.getNativeHeapAllocatedSize();
+        Debug.MemoryInfo memoryBefore = new Debug.MemoryInfo();
+        Debug.getMemoryInfo(memoryBefore);
+
+        long startNs = SystemClock.elapsedRealtimeNanos();
+        RenderEngine engine = shared ? RenderEngine.create(context) : null;
+        List<OpenGLRenderer> renderers = new ArrayList<>();
+        for (int i = 0; i < previews; i++) {
+            renderers.add(engine != null ? new OpenGLRenderer(engine)
+                    : new OpenGLRenderer(context.getCacheDir()));
+        }
+        long contextInitNs = 0;
+        for (OpenGLRenderer renderer : renderers) {
+            RendererStartupStats stats =
+                    renderer.getStartupStats().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            contextInitNs += stats.getContextInitNs();
+        }
+        long readyNs = SystemClock.elapsedRealtimeNanos() - startNs;
+
+        Result result = new Result();
+        result.mThreads = countRenderThreads();
+        result.mNativeHeapBytes = Debug.getNativeHeapAllocatedSize() - nativeHeapBefore;
+        Debug.MemoryInfo memoryAfter = new Debug.MemoryInfo();
+        Debug.getMemoryInfo(memoryAfter);
+        result.mGraphicsKb = getGraphicsKb(memoryAfter) - getGraphicsKb(memoryBefore);
+        result.mPssKb = memoryAfter.getTotalPss() - memoryBefore.getTotalPss();
+
+        for (OpenGLRenderer renderer : renderers) {
+            renderer.shutdown();
+        }
+        if (engine != null) {
+            engine.release();
+        }
+        awaitRenderThreadsEnded();
+
+        Log.i(TAG, String.format(Locale.US,
+                "%s previews=%d threads=%d ready=%.2fms contextInit=%.2fms nativeHeap=%dKB"
+                        + " graphics=%dKB pss=%dKB",
+                shared ? "shared" : "dedicated", previews, result.mThreads, readyNs / 1e6,
+                contextInitNs / 1e6, result.mNativeHeapBytes / 1024, result.mGraphicsKb,
+                result.mPssKb));
+        return result;
+    }
+
+    private static int countRenderThreads() {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.isAlive() && isRenderThread(thread.getName())) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static boolean isRenderThread(@Nullable String name) {
+        return name != null && (name.startsWith("GLRenderer-")
+                || name.startsWith("GLRenderEngine-"));
+    }
+
+    private static void awaitRenderThreadsEnded() throws InterruptedException {
+        long deadlineMs = SystemClock.elapsedRealtime() + TIMEOUT_MS;
+        while (countRenderThreads() > 0 && SystemClock.elapsedRealtime() < deadlineMs) {
+            Thread.sleep(10);
+        }
+        assertEquals("Render threads left running", 0, countRenderThreads());
+    }
+
+    private static int getGraphicsKb(@NonNull Debug.MemoryInfo memoryInfo) {
+        String graphics = memoryInfo.getMemoryStat("summary.graphics");
+        return graphics != null ? Integer.parseInt(graphics) : 0;
+    }
+
+    private static final class Result {
+        int mThreads;
+        long mNativeHeapBytes;
+        int mGraphicsKb;
+        int mPssKb;
+    }
+}
@@ -0,0 +1,126 @@
+package com.joyuiyeongl.ypreviewjava;
+
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.graphics.PixelFormat;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Size;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A renderer on an engine of its own for the instrumented tests, counting the frames it draws,
+ * with outputs backed by {@link ImageReader}s whose images are taken on a thread of the fixture
+ * as soon as they are drawn.
+ */
+final class RendererFixture {
+    private static final long WAIT_TIMEOUT_MS = 10_000;
+
+    private final RenderEngine mEngine;
+    private final OpenGLRenderer mRenderer;
+    private final HandlerThread mConsumerThread;
+    private final Handler mConsumerHandler;
+    private final AtomicLong mFramesDrawn = new AtomicLong();
+
+    /** Receives the images drawn to an output, which are closed once it returns. */
+    interface ImageListener {
+        void onImage(@NonNull Image image);
+    }
+
+    /** A condition polled until it holds. */
+    interface Condition {
+        boolean holds() throws Exception;
+    }
+
+    RendererFixture(@NonNull String name) {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        mEngine = RenderEngine.create(context);
+        mRenderer = new OpenGLRenderer(mEngine);
+        // Delivered on the render thread right after the draw, so the count is up to date as
+        // soon as a draw is presented.
+        mRenderer.subscribeToFrameEvents(Runnable::run, BackpressurePolicy.dropOldest(16),
+                (timestampNs, frameNumber, renderDurationNs) -> mFramesDrawn.incrementAndGet());
+        mConsumerThread = new HandlerThread(name);
+        mConsumerThread.start();
+        mConsumerHandler = new Handler(mConsumerThread.getLooper());
+    }
+
+    @NonNull
+    RenderEngine getEngine() {
+        return mEngine;
+    }
+
+    @NonNull
+    OpenGLRenderer getRenderer() {
+        return mRenderer;
+    }
+
+    long getFramesDrawn() {
+        return mFramesDrawn.get();
+    }
+
+    /**
+     * Returns an RGBA reader of the given size to draw to, whose images are handed to the given
+     * listener, if any, and closed. The caller closes the reader.
+     */
+    @NonNull
+    ImageReader newOutput(@NonNull Size size, @Nullable ImageListener listener) {
+        ImageReader reader = ImageReader.newInstance(size.getWidth(), size.getHeight(),
+                PixelFormat.RGBA_8888, 3);
+        reader.setOnImageAvailableListener(imageReader -> {
+            try {
+                Image image = imageReader.acquireLatestImage();
+                if (image != null) {
+                    if (listener != null) {
+                        listener.onImage(image);
+                    }
+                    image.close();
+                }
+            } catch (IllegalStateException e) {
+                // Closed by the test in the meantime.
+            }
+        }, mConsumerHandler);
+        return reader;
+    }
+
+    /**
+     * Waits until the renderer has drawn at least the given number of frames.
+     */
+    void awaitFramesDrawn(long frames) throws Exception {
+        assertTrue("No frame drawn", waitFor(() -> mFramesDrawn.get() >= frames));
+    }
+
+    /**
+     * Polls the given condition until it holds or the wait times out.
+     *
+     * @return Whether the condition held in time.
+     */
+    boolean waitFor(@NonNull Condition condition) throws Exception {
+        long deadlineMs = SystemClock.elapsedRealtime() + WAIT_TIMEOUT_MS;
+        while (!condition.holds()) {
+            if (SystemClock.elapsedRealtime() >= deadlineMs) {
+                return false;
+            }
+            Thread.sleep(1);
+        }
+        return true;
+    }
+
+    /**
+     * Shuts the renderer down and lets the engine and the consumer thread end.
+     */
+    void release() {
+        mRenderer.shutdown();
+        mEngine.release();
+        mConsumerThread.quitSafely();
+    }
+}
@@ -0,0 +1,191 @@
+package com.joyuiyeongl.ypreviewjava;
+
+import static org.junit.Assert.assertTrue;
+
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.media.Image;
+import android.media.ImageReader;
+import android.util.Size;
+import android.view.Surface;
+
+import androidx.annotation.NonNull;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs frames of a solid color through chains of {@link ShaderEffect}s on the GPU and checks
+ * the pixels drawn to the output. The effects do not commute, so a chain run in the wrong
+ * order, or with a stage left out, draws another color.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ShaderEffectChainTest {
+    private static final Size SURFACE_SIZE = new Size(320, 240);
+    private static final long TIMEOUT_MS = 5_000;
+    // Drawing through 8-bit offscreen targets rounds each stage's output.
+    private static final int TOLERANCE = 3;
+
+    private static final ShaderEffect INVERT = ShaderEffect.create(
+            "vec4 applyEffect(vec2 texCoord) {\n"
+                    + "  vec4 color = sampleInput(texCoord);\n"
+                    + "  return vec4(1.0 - color.rgb, color.a);\n"
+                    + "}\n");
+    private static final ShaderEffect TINT = ShaderEffect.create(
+            "uniform vec3 tint;\n"
+                    + "uniform float amount;\n"
+                    + "vec4 applyEffect(vec2 texCoord) {\n"
+                    + "  vec4 color = sampleInput(texCoord);\n"
+                    + "  return vec4(mix(color.rgb, tint, amount), color.a);\n"
+                    + "}\n")
+            .withUniform("tint", 0f, 0f, 1f)
+            .withUniform("amount", 0.5f);
+    private static final ShaderEffect ROTATE_CHANNELS = ShaderEffect.create(
+            "vec4 applyEffect(vec2 texCoord) {\n"
+                    + "  vec4 color = sampleInput(texCoord);\n"
+                    + "  return vec4(color.brg, color.a);\n"
+                    + "}\n");
+
+    private RendererFixture mFixture;
+    private OpenGLRenderer mRenderer;
+    private ImageReader mReader;
+    private Surface mInput;
+    // The pixels of the last image drawn to the output, at the center and the corners.
+    private final AtomicReference<int[]> mPixels = new AtomicReference<>();
+
+    @Before
+    public void setUp() throws Exception {
+        mFixture = new RendererFixture("ShaderEffectChainTest");
+        mRenderer = mFixture.getRenderer();
+        mReader = mFixture.newOutput(SURFACE_SIZE, image -> mPixels.set(readPixels(image)));
+
+        mInput = mRenderer.attachInputSurface(SURFACE_SIZE).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        mRenderer.attachOutputSurface(mReader.getSurface(), SURFACE_SIZE, 0);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mRenderer.detachOutputSurface().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        mFixture.release();
+        mReader.close();
+        mInput.release();
+    }
+
+    @Test
+    public void threeStageChainRunsEffectsInOrder() throws Exception {
+        setEffects(INVERT, TINT, ROTATE_CHANNELS);
+
+        drawFrame(Color.RED);
+
+        // Red inverted is cyan, halfway to blue is (0, 0.5, 1), and rotated is (1, 0, 0.5).
+        awaitColor(Color.rgb(255, 0, 128));
+    }
+
+    @Test
+    public void twoStageChainDrawsSecondStageOverFirst() throws Exception {
+        setEffects(TINT, INVERT);
+
+        drawFrame(Color.RED);
+
+        // Red halfway to blue is (0.5, 0, 0.5), and inverted is (0.5, 1, 0.5).
+        awaitColor(Color.rgb(128, 255, 128));
+    }
+
+    @Test
+    public void uniformChangeAppliesToNextFrame() throws Exception {
+        setEffects(INVERT, TINT);
+        drawFrame(Color.RED);
+        awaitColor(Color.rgb(0, 128, 255));
+
+        setEffects(INVERT, TINT.withUniform("amount", 1f));
+        drawFrame(Color.RED);
+
+        awaitColor(Color.BLUE);
+    }
+
+    @Test
+    public void emptyChainDrawsFramesAsTheyAre() throws Exception {
+        setEffects(INVERT, TINT, ROTATE_CHANNELS);
+        drawFrame(Color.RED);
+        awaitColor(Color.rgb(255, 0, 128));
+
+        mRenderer.setEffects(Collections.emptyList()).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        drawFrame(Color.RED);
+
+        awaitColor(Color.RED);
+    }
+
+    private void setEffects(@NonNull ShaderEffect... effects) throws Exception {
+        mRenderer.setEffects(Arrays.asList(effects)).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void drawFrame(int color) {
+        Canvas canvas = mInput.lockCanvas(null);
+        canvas.drawColor(color);
+        mInput.unlockCanvasAndPost(canvas);
+    }
+
+    // Frames drawn before the last change may still be on their way to the reader, so this
+    // waits for the color rather than for the next image.
+    private void awaitColor(int expected) throws Exception {
+        boolean drawn = mFixture.waitFor(() -> {
+            int[] pixels = mPixels.get();
+            return pixels != null && matches(expected, pixels);
+        });
+        int[] pixels = mPixels.get();
+        assertTrue("Expected " + toString(expected) + " but drew "
+                + (pixels == null ? "nothing" : toString(pixels)), drawn);
+    }
+
+    private static boolean matches(int expected, @NonNull int[] pixels) {
+        for (int pixel : pixels) {
+            if (Math.abs(Color.red(pixel) - Color.red(expected)) > TOLERANCE
+                    || Math.abs(Color.green(pixel) - Color.green(expected)) > TOLERANCE
+                    || Math.abs(Color.blue(pixel) - Color.blue(expected)) > TOLERANCE) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @NonNull
+    private static int[] readPixels(@NonNull Image image) {
+        Image.Plane plane = image.getPlanes()[0];
+        ByteBuffer buffer = plane.getBuffer();
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[][] points = {{width / 2, height / 2}, {0, 0}, {width - 1, 0}, {0, height - 1},
+                {width - 1, height - 1}};
+        int[] pixels = new int[points.length];
+        for (int i = 0; i < points.length; i++) {
+            int offset = points[i][1] * plane.getRowStride()
+                    + points[i][0] * plane.getPixelStride();
+            pixels[i] = Color.rgb(buffer.get(offset) & 0xFF, buffer.get(offset + 1) & 0xFF,
+                    buffer.get(offset + 2) & 0xFF);
+        }
+        return pixels;
+    }
+
+    @NonNull
+    private static String toString(int color) {
+        return "(" + Color.red(color) + ", " + Color.green(color) + ", " + Color.blue(color) + ")";
+    }
+
+    @NonNull
+    private static String toString(@NonNull int[] pixels) {
+        StringBuilder builder = new StringBuilder();
+        for (int pixel : pixels) {
+            builder.append(toString(pixel));
+        }
+        return builder.toString();
+    }
+}
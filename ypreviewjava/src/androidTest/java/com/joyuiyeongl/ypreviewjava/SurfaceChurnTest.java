@@ -0,0 +1,159 @@
+package com.joyuiyeongl.ypreviewjava;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.media.ImageReader;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.Size;
+import android.view.Surface;
+
+import androidx.annotation.NonNull;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Attaches output surfaces to a renderer drawing frames and releases them right after a
+ * detach, without waiting for it, the way a {@link android.view.SurfaceView} does in
+ * {@code surfaceDestroyed}, thousands of times. A detach must not wait for the render thread,
+ * and no draw to a window may start once its detach returned.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SurfaceChurnTest {
+    private static final String TAG = "SurfaceChurnTest";
+    private static final int CYCLES = 5_000;
+    // Every this many cycles, a frame is drawn to the output before the detach, so that the
+    // window gets an EGL surface which the render thread lets go of after the window is
+    // released. The other detaches mostly overtake their attach.
+    private static final int SETTLE_EVERY = 4;
+    private static final Size SURFACE_SIZE = new Size(640, 480);
+    private static final long TIMEOUT_MS = 10_000;
+    // A detach only bumps a counter and queues a task. Anything close to this means it waited.
+    private static final long DETACH_BUDGET_MS = 50;
+    // Draws presented after their detach returned: only the swap under way when it returned.
+    private static final long MAX_LATE_FRAMES = 1;
+
+    private RendererFixture mFixture;
+    private OpenGLRenderer mRenderer;
+
+    @Before
+    public void setUp() throws Exception {
+        mFixture = new RendererFixture(TAG);
+        mRenderer = mFixture.getRenderer();
+        mRenderer.getStartupStats().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    @After
+    public void tearDown() {
+        mFixture.release();
+    }
+
+    @Test
+    public void detachDoesNotWaitForRenderThread() throws Exception {
+        ImageReader reader = mFixture.newOutput(SURFACE_SIZE, null);
+        mRenderer.attachOutputSurface(reader.getSurface(), SURFACE_SIZE, 0);
+        mRenderer.getFramePacingStats().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+        CountDownLatch unblock = new CountDownLatch(1);
+        mFixture.getEngine().getExecutor().execute(() -> {
+            try {
+                unblock.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        long detachStartNs = SystemClock.elapsedRealtimeNanos();
+        ListenableFuture<Void> detach = mRenderer.detachOutputSurface();
+        long detachNs = SystemClock.elapsedRealtimeNanos() - detachStartNs;
+        reader.close();
+
+        assertTrue("Detach took " + detachNs / 1e6 + "ms",
+                detachNs < TimeUnit.MILLISECONDS.toNanos(DETACH_BUDGET_MS));
+        assertFalse(detach.isDone());
+        unblock.countDown();
+        detach.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void releasingSurfacesRightAfterDetachNeverDrawsToThem() throws Exception {
+        Surface input = mRenderer.attachInputSurface(SURFACE_SIZE)
+                .get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        FrameProducer producer = new FrameProducer(input);
+        producer.start();
+        long maxDetachNs = 0;
+        long maxLateFrames = 0;
+        try {
+            for (int cycle = 0; cycle < CYCLES; cycle++) {
+                ImageReader reader = mFixture.newOutput(SURFACE_SIZE, null);
+                // The preview is the only output drawn to.
+                long framesBefore = mFixture.getFramesDrawn();
+                mRenderer.attachOutputSurface(reader.getSurface(), SURFACE_SIZE, cycle % 4 * 90);
+                if (cycle % SETTLE_EVERY == 0) {
+                    mFixture.awaitFramesDrawn(framesBefore + 1);
+                }
+
+                long detachStartNs = SystemClock.elapsedRealtimeNanos();
+                ListenableFuture<Void> detach = mRenderer.detachOutputSurface();
+                maxDetachNs = Math.max(maxDetachNs,
+                        SystemClock.elapsedRealtimeNanos() - detachStartNs);
+                long framesAtDetach = mFixture.getFramesDrawn();
+                reader.close();
+
+                detach.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                maxLateFrames = Math.max(maxLateFrames,
+                        mFixture.getFramesDrawn() - framesAtDetach);
+            }
+        } finally {
+            producer.stopAndJoin();
+            input.release();
+        }
+
+        Log.i(TAG, String.format(Locale.US, "cycles=%d frames=%d maxDetach=%.3fms lateFrames=%d",
+                CYCLES, mFixture.getFramesDrawn(), maxDetachNs / 1e6, maxLateFrames));
+        assertTrue("Detach took " + maxDetachNs / 1e6 + "ms",
+                maxDetachNs < TimeUnit.MILLISECONDS.toNanos(DETACH_BUDGET_MS));
+        assertTrue(maxLateFrames + " frames drawn after their detach returned",
+                maxLateFrames <= MAX_LATE_FRAMES);
+        // The render thread is still alive and serving tasks.
+        mRenderer.getFramePacingStats().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // Stands in for the camera, drawing frames to the renderer's input as fast as it takes them.
+    private static final class FrameProducer extends Thread {
+        private final Surface mSurface;
+        private volatile boolean mStopped = false;
+
+        FrameProducer(@NonNull Surface surface) {
+            super(TAG + "-producer");
+            mSurface = surface;
+        }
+
+        @Override
+        public void run() {
+            int frame = 0;
+            while (!mStopped) {
+                Canvas canvas = mSurface.lockCanvas(null);
+                canvas.drawColor(frame++ % 2 == 0 ? Color.RED : Color.BLUE);
+                mSurface.unlockCanvasAndPost(canvas);
+            }
+        }
+
+        void stopAndJoin() throws InterruptedException {
+            mStopped = true;
+            join(TIMEOUT_MS);
+        }
+    }
+}
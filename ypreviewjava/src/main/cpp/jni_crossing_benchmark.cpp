@@ -0,0 +1,72 @@
+#include <jni.h>
+
+#include <cstring>
+#include <initializer_list>
+
+// Natives of JniCrossingBenchmark, comparing the two ways the renderer has handed its matrices
+// to the native side on every frame: as float[] pinned with Get/ReleaseFloatArrayElements, and
+// as direct buffers whose addresses are kept once, with a call taking only primitives. Both
+// copy the matrices where glUniformMatrix4fv() would, without a GL context, so that only the
+// crossing differs. Both are resolved by name.
+
+namespace {
+    constexpr size_t MATRIX_BYTES = 16 * sizeof(jfloat);
+
+    // Addresses of the direct buffers given to setMatrixBuffers().
+    const jfloat *gMvpTransform = nullptr;
+    const jfloat *gTexTransform = nullptr;
+    // Stands in for the uniforms of the output program.
+    jfloat gMvpUniform[16];
+    jfloat gTexUniform[16];
+}  // namespace
+
+extern "C" {
+
+JNIEXPORT jboolean JNICALL
+Java_com_joyuiyeongl_ypreviewjava_JniCrossingBenchmark_setMatrixBuffers(JNIEnv *env, jclass clazz,
+                                                                        jobject jmvpTransform,
+                                                                        jobject jtexTransform) {
+    for (jobject buffer : {jmvpTransform, jtexTransform}) {
+        if (buffer == nullptr || env->GetDirectBufferCapacity(buffer) < 16) {
+            return JNI_FALSE;
+        }
+    }
+    gMvpTransform = static_cast<const jfloat *>(env->GetDirectBufferAddress(jmvpTransform));
+    gTexTransform = static_cast<const jfloat *>(env->GetDirectBufferAddress(jtexTransform));
+    return JNI_TRUE;
+}
+
+// The matrix upload of renderTexture() before the direct buffers, with the same signature.
+JNIEXPORT jboolean JNICALL
+Java_com_joyuiyeongl_ypreviewjava_JniCrossingBenchmark_uploadArrays(JNIEnv *env, jclass clazz,
+                                                                    jlong context,
+                                                                    jlong timestampNs,
+                                                                    jfloatArray jmvpTransformArray,
+                                                                    jboolean mvpDirty,
+                                                                    jfloatArray jtexTransformArray) {
+    if (mvpDirty) {
+        jfloat *mvpTransformArray = env->GetFloatArrayElements(jmvpTransformArray, nullptr);
+        memcpy(gMvpUniform, mvpTransformArray, MATRIX_BYTES);
+        env->ReleaseFloatArrayElements(jmvpTransformArray, mvpTransformArray, JNI_ABORT);
+    }
+    jfloat *texTransformArray = env->GetFloatArrayElements(jtexTransformArray, nullptr);
+    memcpy(gTexUniform, texTransformArray, MATRIX_BYTES);
+    env->ReleaseFloatArrayElements(jtexTransformArray, texTransformArray, JNI_ABORT);
+    return JNI_TRUE;
+}
+
+// The matrix upload of renderTexture() with the direct buffers, with the same signature.
+JNIEXPORT jint JNICALL
+Java_com_joyuiyeongl_ypreviewjava_JniCrossingBenchmark_uploadBuffers(JNIEnv *env, jclass clazz,
+                                                                     jlong context,
+                                                                     jint outputMask,
+                                                                     jint mvpDirtyMask,
+                                                                     jlong presentationTimeNs) {
+    if (mvpDirtyMask & 1) {
+        memcpy(gMvpUniform, gMvpTransform, MATRIX_BYTES);
+    }
+    memcpy(gTexUniform, gTexTransform, MATRIX_BYTES);
+    return outputMask;
+}
+
+}  // extern "C"
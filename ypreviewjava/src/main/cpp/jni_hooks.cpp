@@ -1,7 +1,16 @@
 #include <jni.h>
 
+#include "opengl_renderer_jni.h"
+
 extern "C" {
-    JNIEXPORT jint JNICALL JNI_On_Load(JavaVM *jvm, void *reserved) {
+    JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *jvm, void *reserved) {
+        JNIEnv *env;
+        if (jvm->GetEnv(reinterpret_cast<void **>(&env), JNI_VERSION_1_6) != JNI_OK) {
+            return JNI_ERR;
+        }
+        if (RegisterOpenGLRendererNatives(env) != JNI_OK) {
+            return JNI_ERR;
+        }
         return JNI_VERSION_1_6;
     }
-}
\ No newline at end of file
+}
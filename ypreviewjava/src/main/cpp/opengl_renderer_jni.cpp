@@ -4,11 +4,20 @@
 #include <EGL/egl.h>
 #include <EGL/eglext.h>
 #include <EGL/eglplatform.h>
-#include <GLES2/gl2.h>
+#include <GLES3/gl3.h>
 #include <GLES2/gl2ext.h>
 #include <jni.h>
 
+#include "opengl_renderer_jni.h"
+
+#include <dirent.h>
+#include <unistd.h>
+
 #include <cassert>
+#include <cstdint>
+#include <cstdio>
+#include <cstring>
+#include <ctime>
 #include <iomanip>
 #include <sstream>
 #include <string>
@@ -146,11 +155,412 @@ namespace {
       }
 )SRC";
 
+    // Runs a stage of the effect chain. The fragment shaders are the effects' sources wrapped by
+    // the Java renderer, which sample their input at inputTransform * texCoord.
+    constexpr char EFFECT_VERTEX_SHADER_SRC[] = R"SRC(
+      attribute vec4 position;
+      attribute vec4 texCoords;
+      uniform mat4 mvpTransform;
+      varying vec2 texCoord;
+      void main() {
+        texCoord = texCoords.xy;
+        gl_Position = mvpTransform * position;
+      }
+)SRC";
+
+    // The tensor shaders draw a quad covering the whole target, each texel of which holds
+    // consecutive elements of the tensor, in rows of width * 3 channel values from the top of
+    // the image. For each element, the center of its pixel in the tensor is mapped to the camera
+    // texture by sampleTransform, which folds the inverse MVP, the quad's texture coordinates
+    // and the texture transform together, so the crop and rotation match the preview's.
+    constexpr char TENSOR_VERTEX_SHADER_SRC[] = R"SRC(
+      attribute vec4 position;
+      void main() {
+        gl_Position = position;
+      }
+)SRC";
+
+    // Packs 4 normalized uint8 elements per RGBA texel.
+    constexpr char TENSOR_UINT8_FRAGMENT_SHADER_SRC[] = R"SRC(
+      #extension GL_OES_EGL_image_external : require
+      #ifdef GL_FRAGMENT_PRECISION_HIGH
+      precision highp float;
+      #else
+      precision mediump float;
+      #endif
+      uniform samplerExternalOES sampler;
+      uniform mat4 sampleTransform;
+      uniform vec2 tensorSize;
+      uniform vec3 mean;
+      uniform vec3 invStd;
+      uniform float swapRedBlue;
+      float element(float index) {
+        float pixel = floor((index + 0.5) / 3.0);
+        float channel = index - 3.0 * pixel;
+        vec2 clip = vec2((pixel + 0.5) / tensorSize.x * 2.0 - 1.0,
+                         1.0 - (floor(gl_FragCoord.y) + 0.5) / tensorSize.y * 2.0);
+        vec3 rgb = texture2D(sampler, (sampleTransform * vec4(clip, 0.0, 1.0)).xy).rgb;
+        vec3 select = vec3(equal(vec3(mix(channel, 2.0 - channel, swapRedBlue)),
+                                 vec3(0.0, 1.0, 2.0)));
+        return (dot(rgb, select) - dot(mean, select)) * dot(invStd, select);
+      }
+      void main() {
+        float first = floor(gl_FragCoord.x) * 4.0;
+        gl_FragColor = vec4(element(first), element(first + 1.0), element(first + 2.0),
+                            element(first + 3.0));
+      }
+)SRC";
+
+    constexpr char TENSOR_FLOAT16_VERTEX_SHADER_SRC[] = R"SRC(#version 300 es
+      in vec4 position;
+      void main() {
+        gl_Position = position;
+      }
+)SRC";
+
+    // Packs 2 fp16 elements per RGBA texel, little endian.
+    constexpr char TENSOR_FLOAT16_FRAGMENT_SHADER_SRC[] = R"SRC(#version 300 es
+      #extension GL_OES_EGL_image_external_essl3 : require
+      precision highp float;
+      uniform samplerExternalOES sampler;
+      uniform mat4 sampleTransform;
+      uniform vec2 tensorSize;
+      uniform vec3 mean;
+      uniform vec3 invStd;
+      uniform float swapRedBlue;
+      out vec4 fragColor;
+      float element(float index) {
+        float pixel = floor((index + 0.5) / 3.0);
+        float channel = index - 3.0 * pixel;
+        vec2 clip = vec2((pixel + 0.5) / tensorSize.x * 2.0 - 1.0,
+                         1.0 - (floor(gl_FragCoord.y) + 0.5) / tensorSize.y * 2.0);
+        vec3 rgb = texture(sampler, (sampleTransform * vec4(clip, 0.0, 1.0)).xy).rgb;
+        vec3 select = vec3(equal(vec3(mix(channel, 2.0 - channel, swapRedBlue)),
+                                 vec3(0.0, 1.0, 2.0)));
+        return (dot(rgb, select) - dot(mean, select)) * dot(invStd, select);
+      }
+      void main() {
+        float first = floor(gl_FragCoord.x) * 2.0;
+        uint halves = packHalf2x16(vec2(element(first), element(first + 1.0)));
+        fragColor = vec4(uvec4(halves, halves >> 8u, halves >> 16u, halves >> 24u) & 0xffu)
+                / 255.0;
+      }
+)SRC";
+
+    // We use two triangles drawn with GL_TRIANGLE_STRIP to create the surface which will be
+    // textured with the camera frame. This could also be done with a quad (GL_QUADS) on a
+    // different version of OpenGL or with a scaled single triangle in which we would inscribe
+    // the camera texture.
+    //
+    //                       (-1,-1)         (1,-1)
+    //                          +---------------+
+    //                          | \_            |
+    //                          |    \_         |
+    //                          |       +       |
+    //                          |         \_    |
+    //                          |            \_ |
+    //                          +---------------+
+    //                       (-1,1)           (1,1)
+    //
+    // Positions and texture coordinates are interleaved and uploaded once to a vertex buffer.
+    constexpr GLfloat QUAD_VERTICES[] = {
+            // x,  y,     s,    t
+            -1.0f, 1.0f, 0.0f, 0.0f, // Lower-left
+            1.0f, 1.0f, 1.0f, 0.0f, // Lower-right
+            -1.0f, -1.0f, 0.0f, 1.0f, // Upper-left (notice order here. We're drawing triangles, not a quad.)
+            1.0f, -1.0f, 1.0f, 1.0f  // Upper-right
+    };
+    constexpr GLint QUAD_COMPONENTS = 2;
+    constexpr GLsizei QUAD_STRIDE = 4 * sizeof(GLfloat);
+    constexpr GLsizei QUAD_VERTEX_COUNT = 4;
+    const void *const QUAD_POSITION_OFFSET = nullptr;
+    const void *const QUAD_TEX_COORDS_OFFSET = reinterpret_cast<const void *>(2 * sizeof(GLfloat));
+
+    // Draws the quad over the whole of an offscreen target.
+    constexpr GLfloat IDENTITY_MATRIX[] = {
+            1.0f, 0.0f, 0.0f, 0.0f,
+            0.0f, 1.0f, 0.0f, 0.0f,
+            0.0f, 0.0f, 1.0f, 0.0f,
+            0.0f, 0.0f, 0.0f, 1.0f
+    };
+
+    // Texture coordinate t of the quad runs from the top of the target down, while rows of a
+    // texture start at the bottom, so a target drawn by one effect is read by the next one
+    // through t' = 1 - t.
+    constexpr GLfloat FLIP_ROWS_MATRIX[] = {
+            1.0f, 0.0f, 0.0f, 0.0f,
+            0.0f, -1.0f, 0.0f, 0.0f,
+            0.0f, 0.0f, 1.0f, 0.0f,
+            0.0f, 1.0f, 0.0f, 1.0f
+    };
+
+    // Maximum number of surfaces the camera texture is drawn to. Output 0 is the preview.
+    constexpr int MAX_OUTPUT_SURFACES = 4;
+
+    // A surface the camera texture is drawn to, with its own MVP.
+    struct OutputSurface {
+        ANativeWindow *window = nullptr;
+        EGLSurface surface = EGL_NO_SURFACE;
+        GLint width = 0;
+        GLint height = 0;
+        // Backed by a direct buffer owned by the Java renderer, which outlives the output.
+        const GLfloat *mvpTransform = nullptr;
+        // Detach generation of the output when the window was set. The window may no longer be
+        // used once the output's detach generation moves past it.
+        jint detachGeneration = 0;
+    };
+
+    // Mirrors the GL state last set on the context, so the draw path only issues calls for state
+    // that actually changed. All GL state is per context and the context is only used by the
+    // renderers sharing it, so the cache stays valid for the lifetime of the context. Outputs
+    // are identified by address, which tells apart the outputs of different renderers.
+    struct GlStateCache {
+        GLuint program = 0;
+        GLuint arrayBuffer = 0;
+        GLenum frontFace = GL_CCW;
+        GLint sampler = -1;
+        bool vertexAttribsSet = false;
+        // Output whose surface is current, with the viewport sized to it, or null for the
+        // pbuffer.
+        const OutputSurface *currentOutput = nullptr;
+        // Output whose MVP is loaded in the mvpTransform uniform of the output program, or null.
+        const OutputSurface *mvpOutput = nullptr;
+    };
+
+    // Layout of the startup timings shared with the Java renderer through a direct buffer.
+    constexpr int STARTUP_EGL_NS = 0;
+    constexpr int STARTUP_PROGRAM_NS = 1;
+    constexpr int STARTUP_PROGRAM_CACHE = 2;
+    constexpr jlong STARTUP_COUNT = 3;
+
+    // How the output program was loaded, matching RendererStartupStats.PROGRAM_CACHE_*.
+    constexpr jlong PROGRAM_CACHE_UNSUPPORTED = 0;
+    constexpr jlong PROGRAM_CACHE_HIT = 1;
+    constexpr jlong PROGRAM_CACHE_MISS = 2;
+
+    // Layout of the stage timings shared with the Java renderer through a direct buffer.
+    constexpr int TIMING_DRAW_CPU_NS = 0;
+    constexpr int TIMING_SWAP_CPU_NS = 1;
+    constexpr int TIMING_GPU_DRAW_NS = 2;
+    constexpr int TIMING_GPU_SUPPORTED = 3;
+    // GPU time of each stage of the effect chain, or -1.
+    constexpr int TIMING_EFFECT_GPU_NS = 4;
+
+    // Maximum number of stages of the effect chain, and of uniforms set by each stage.
+    constexpr int MAX_EFFECT_STAGES = 8;
+    constexpr int MAX_EFFECT_UNIFORMS = 8;
+    // Components of a vec4, the largest uniform an effect can set. The values of a stage's
+    // uniforms are stored this many floats apart.
+    constexpr int EFFECT_UNIFORM_STRIDE = 4;
+
+    constexpr jlong TIMING_COUNT = TIMING_EFFECT_GPU_NS + MAX_EFFECT_STAGES;
+
+    // Number of GPU timer queries that can be in flight. Results are read once the GPU has
+    // finished with them, a few frames later, so the draw never waits for the GPU. If all
+    // queries are still pending, the frame is not timed.
+    constexpr int GPU_TIMER_QUERIES = 4;
+
+    // Times the draw call on the GPU with GL_EXT_disjoint_timer_query, if the driver supports it.
+    // With an effect chain, each offscreen pass is timed by a query of its own, issued along
+    // with the draw's.
+    struct GpuTimer {
+        PFNGLGENQUERIESEXTPROC genQueries = nullptr;
+        PFNGLDELETEQUERIESEXTPROC deleteQueries = nullptr;
+        PFNGLBEGINQUERYEXTPROC beginQuery = nullptr;
+        PFNGLENDQUERYEXTPROC endQuery = nullptr;
+        PFNGLGETQUERYOBJECTIVEXTPROC getQueryObjectiv = nullptr;
+        PFNGLGETQUERYOBJECTUI64VEXTPROC getQueryObjectui64v = nullptr;
+        bool supported = false;
+        GLuint queries[GPU_TIMER_QUERIES] = {};
+        GLuint effectQueries[GPU_TIMER_QUERIES][MAX_EFFECT_STAGES - 1] = {};
+        // Number of stages of the effect chain when the query of the same index was issued.
+        int effectStageCounts[GPU_TIMER_QUERIES] = {};
+        // Index of the query issued next. The pending queries are the ones before it.
+        int next = 0;
+        int pending = 0;
+        // Value of SharedContext::gpuDisjointEvents when the results were last read.
+        int disjointEvents = 0;
+    };
+
+    // Number of captures that can be read back at the same time.
+    constexpr int CAPTURE_SLOTS = 3;
+    // Number of frames drawn before a capture is read back, giving the GPU time to finish it.
+    constexpr jlong CAPTURE_LATENCY_FRAMES = 2;
+
+    // Data types of the tensors, matching TensorFormat.DATA_TYPE_*.
+    constexpr jint TENSOR_UINT8 = 0;
+    constexpr jint TENSOR_FLOAT16 = 1;
+    constexpr int TENSOR_TYPE_COUNT = 2;
+
+    // Layout of the tensor parameters shared with the Java renderer through a direct buffer.
+    constexpr int TENSOR_PARAM_SAMPLE_TRANSFORM = 0;
+    constexpr int TENSOR_PARAM_MEAN = 16;
+    constexpr int TENSOR_PARAM_INV_STD = 19;
+    constexpr int TENSOR_PARAM_SWAP_RED_BLUE = 22;
+
+    // A program packing the camera frame into a tensor, compiled the first time it is used.
+    struct TensorProgram {
+        bool compiled = false;
+        GLuint program = 0;
+        GLint samplerHandle = -1;
+        GLint sampleTransformHandle = -1;
+        GLint tensorSizeHandle = -1;
+        GLint meanHandle = -1;
+        GLint invStdHandle = -1;
+        GLint swapRedBlueHandle = -1;
+    };
+
+    // An offscreen RGBA texture with a framebuffer to draw into it.
+    struct RenderTarget {
+        GLuint framebuffer = 0;
+        GLuint texture = 0;
+        GLsizei width = 0;
+        GLsizei height = 0;
+    };
+
+    struct CaptureSlot {
+        bool inFlight = false;
+        // Value of CaptureEngine::frame when the capture was issued.
+        jlong frame = 0;
+        // Direct buffer owned by the Java renderer until the capture is delivered.
+        void *destination = nullptr;
+        GLsizei width = 0;
+        GLsizei height = 0;
+        // OpenGL ES 3: pixel buffer glReadPixels copies into asynchronously, with a fence
+        // signaled once the copy is done.
+        GLuint pixelBuffer = 0;
+        GLsizeiptr pixelBufferSize = 0;
+        GLsync glFence = nullptr;
+        // OpenGL ES 2: the frame stays in a target of its own until it is read back, with a
+        // fence signaled once it is drawn if EGL_KHR_fence_sync is available.
+        RenderTarget target;
+        EGLSyncKHR eglFence = EGL_NO_SYNC_KHR;
+    };
+
+    // Draws frames offscreen and reads them back without waiting for the GPU. With OpenGL ES 3,
+    // glReadPixels into a pixel buffer only queues the copy. With OpenGL ES 2, glReadPixels is
+    // deferred until a fence, or the frame latency, says the frame is drawn.
+    struct CaptureEngine {
+        bool pixelBuffers = false;
+        // Whether fp16 tensors can be packed, which takes OpenGL ES 3 shaders.
+        bool float16Tensors = false;
+        PFNEGLCREATESYNCKHRPROC createSync = nullptr;
+        PFNEGLDESTROYSYNCKHRPROC destroySync = nullptr;
+        PFNEGLCLIENTWAITSYNCKHRPROC clientWaitSync = nullptr;
+        // Shared by all slots when pixel buffers hold the copies, one for frames and one for
+        // tensors so that alternating between them does not reallocate.
+        RenderTarget target;
+        RenderTarget tensorTarget;
+        TensorProgram tensorPrograms[TENSOR_TYPE_COUNT];
+        CaptureSlot slots[CAPTURE_SLOTS];
+        // Number of times the captures have been polled, once per drawn frame.
+        jlong frame = 0;
+    };
+
+    // Header of a program binary file, followed by the binary itself.
+    struct ProgramBinaryHeader {
+        uint32_t magic;
+        uint32_t version;
+        // Key of the program, see ProgramKey().
+        uint64_t key;
+        uint32_t format;
+        uint32_t length;
+        // FNV-1a hash of the binary, catching truncated or corrupt files.
+        uint64_t checksum;
+    };
+
+    constexpr uint32_t PROGRAM_BINARY_MAGIC = 0x42475059;  // "YPGB"
+    constexpr uint32_t PROGRAM_BINARY_VERSION = 1;
+    // Larger binaries are taken for corrupt files rather than loaded.
+    constexpr uint32_t MAX_PROGRAM_BINARY_LENGTH = 16 * 1024 * 1024;
+
+    // Keeps linked programs in files of the app's cache directory, so later contexts load them
+    // with glProgramBinary() instead of compiling and linking the shaders again. Binaries only
+    // work with the driver that produced them, so the GL vendor, renderer and version are part
+    // of every key, and files left by another driver are deleted when the cache is opened. A
+    // binary the driver rejects is deleted and the program rebuilt from source.
+    struct ProgramCache {
+        // Core in OpenGL ES 3, GL_OES_get_program_binary in OpenGL ES 2. Null if unsupported.
+        PFNGLGETPROGRAMBINARYOESPROC getProgramBinary = nullptr;
+        PFNGLPROGRAMBINARYOESPROC programBinary = nullptr;
+        // Whether programs must be linked with GL_PROGRAM_BINARY_RETRIEVABLE_HINT.
+        bool retrievableHint = false;
+        std::string directory;
+        // Hash of the GL vendor, renderer and version strings, prefixing the file names.
+        uint64_t deviceHash = 0;
+        std::string devicePrefix;
+        // How the last program was loaded, see PROGRAM_CACHE_*.
+        jlong lastResult = PROGRAM_CACHE_UNSUPPORTED;
+    };
+
+    // A compiled variant of an effect, reading either the camera texture or a 2D texture.
+    struct EffectProgram {
+        GLuint program = 0;
+        GLint mvpTransformHandle = -1;
+        GLint inputTransformHandle = -1;
+        GLint inputTexelSizeHandle = -1;
+        GLint uniformHandles[MAX_EFFECT_UNIFORMS] = {};
+    };
+
+    // A stage of the effect chain, created by the Java renderer and kept until it destroys it.
+    struct EffectStage {
+        // Run when the stage is first in the chain.
+        EffectProgram external;
+        // Run on the output of the previous stage otherwise.
+        EffectProgram texture2d;
+        int uniformCount = 0;
+        GLint uniformSizes[MAX_EFFECT_UNIFORMS] = {};
+        // Backed by a direct buffer owned by the Java renderer, which outlives the stage.
+        const GLfloat *uniformValues = nullptr;
+    };
+
+    // Stages the camera texture is drawn through before the outputs. All but the last stage draw
+    // offscreen, alternating between two targets, and the last one draws to the outputs. The
+    // targets are kept while the chain has offscreen passes and only reallocated when the size
+    // of the frame changes.
+    struct EffectChain {
+        EffectStage *stages[MAX_EFFECT_STAGES] = {};
+        int stageCount = 0;
+        RenderTarget targets[2];
+        // Size of the offscreen targets, that of the camera frame in the orientation of the quad.
+        GLsizei width = 1;
+        GLsizei height = 1;
+    };
+
+    // The EGL context, output program and quad of a render engine, shared by the renderers
+    // created in it. All of them run on the engine's thread, so the context stays current on it
+    // and only the surface changes between renderers.
+    struct SharedContext {
+        EGLDisplay display = EGL_NO_DISPLAY;
+        EGLConfig config = nullptr;
+        EGLContext context = EGL_NO_CONTEXT;
+        EGLSurface pbufferSurface = EGL_NO_SURFACE;
+        GLuint program = 0;
+        GLint positionHandle = -1;
+        GLint texCoordsHandle = -1;
+        GLint samplerHandle = -1;
+        GLint mvpTransformHandle = -1;
+        GLint texTransformHandle = -1;
+        GLuint vertexBuffer = 0;
+        // Major version of the OpenGL ES context, 2 or 3.
+        EGLint glesVersion = 2;
+        GlStateCache glState;
+        ProgramCache programCache;
+        // Number of times a renderer found GL_GPU_DISJOINT_EXT set. Reading the flag clears it,
+        // so the other renderers learn about the event from this count.
+        int gpuDisjointEvents = 0;
+        // Number of renderers created in the context and not closed yet.
+        int rendererCount = 0;
+    };
+
+    // A renderer drawing its own camera texture to its own outputs in a shared context. The
+    // context's handles are copied in, the shared context outliving its renderers.
     struct NativeContext {
+        SharedContext *shared;
         EGLDisplay display;
         EGLConfig config;
         EGLContext context;
-        std::pair<ANativeWindow *, EGLSurface> windowSurface;
+        OutputSurface outputs[MAX_OUTPUT_SURFACES];
         EGLSurface pbufferSurface;
         GLuint program;
         GLint positionHandle;
@@ -159,21 +569,46 @@ namespace {
         GLint mvpTransformHandle;
         GLint texTransformHandle;
         GLuint textureId;
-
-        NativeContext(EGLDisplay display, EGLConfig config, EGLContext context, ANativeWindow *window,
-                      EGLSurface surface, EGLSurface pbufferSurface)
-                : display(display),
-                  config(config),
-                  context(context),
-                  windowSurface(std::make_pair(window, surface)),
-                  pbufferSurface(pbufferSurface),
-                  program(0),
-                  positionHandle(-1),
-                  texCoordsHandle(1),
-                  samplerHandle(-1),
-                  mvpTransformHandle(-1),
-                  texTransformHandle(-1),
-                  textureId(0) {}
+        // Backed by a direct buffer owned by the Java renderer, which outlives this context.
+        const GLfloat *texTransform;
+        GLuint vertexBuffer;
+        GlStateCache &glState;
+        // Number of GL calls issued by the last call to RenderTexture().
+        jint lastFrameGlCalls;
+        jint glCalls;
+        // Backed by a direct buffer owned by the Java renderer. See TIMING_* for the layout.
+        jlong *stageTimings;
+        // Detach generation of each output, bumped by the Java renderer from any thread to stop
+        // the render thread from using the output's window. Backed by a direct buffer owned by
+        // the Java renderer, and only read atomically.
+        const jint *detachGenerations;
+        GpuTimer gpuTimer;
+        // Major version of the OpenGL ES context, 2 or 3.
+        EGLint glesVersion;
+        CaptureEngine capture;
+        EffectChain effects;
+
+        explicit NativeContext(SharedContext *shared)
+                : shared(shared),
+                  display(shared->display),
+                  config(shared->config),
+                  context(shared->context),
+                  pbufferSurface(shared->pbufferSurface),
+                  program(shared->program),
+                  positionHandle(shared->positionHandle),
+                  texCoordsHandle(shared->texCoordsHandle),
+                  samplerHandle(shared->samplerHandle),
+                  mvpTransformHandle(shared->mvpTransformHandle),
+                  texTransformHandle(shared->texTransformHandle),
+                  textureId(0),
+                  texTransform(nullptr),
+                  vertexBuffer(shared->vertexBuffer),
+                  glState(shared->glState),
+                  lastFrameGlCalls(0),
+                  glCalls(0),
+                  stageTimings(nullptr),
+                  detachGenerations(nullptr),
+                  glesVersion(shared->glesVersion) {}
     };
 
     const char *ShaderTypeString(GLenum shaderType) {
@@ -210,22 +645,40 @@ namespace {
             CHECK_GL(glDeleteShader(shader));
             shader = 0;
         }
-        assert(shader);
         return shader;
     }
 
-    // Returns a handle to the output program
-    GLuint CreateGlProgram() {
-        GLuint vertexShader = CompileShader(GL_VERTEX_SHADER, VERTEX_SHADER_SRC);
-        assert(vertexShader);
-
-        GLuint fragmentShader = CompileShader(GL_FRAGMENT_SHADER, FRAGMENT_SHADER_SRC);
-        assert(fragmentShader);
+    // Returns a handle to a program made of the given shaders, or 0 if they fail to compile or
+    // link. The position and texCoords attributes are bound to the given locations unless they
+    // are -1. If binaryRetrievable is set, the driver is told the binary will be retrieved.
+    GLuint BuildProgram(const char *vertexShaderSrc, const char *fragmentShaderSrc,
+                        GLint positionLocation, GLint texCoordsLocation,
+                        bool binaryRetrievable) {
+        GLuint vertexShader = CompileShader(GL_VERTEX_SHADER, vertexShaderSrc);
+        GLuint fragmentShader = CompileShader(GL_FRAGMENT_SHADER, fragmentShaderSrc);
+        if (!vertexShader || !fragmentShader) {
+            if (vertexShader) {
+                CHECK_GL(glDeleteShader(vertexShader));
+            }
+            if (fragmentShader) {
+                CHECK_GL(glDeleteShader(fragmentShader));
+            }
+            return 0;
+        }
 
         GLuint program = CHECK_GL(glCreateProgram());
         assert(program);
         CHECK_GL(glAttachShader(program, vertexShader));
         CHECK_GL(glAttachShader(program, fragmentShader));
+        if (positionLocation != -1) {
+            CHECK_GL(glBindAttribLocation(program, positionLocation, "position"));
+        }
+        if (texCoordsLocation != -1) {
+            CHECK_GL(glBindAttribLocation(program, texCoordsLocation, "texCoords"));
+        }
+        if (binaryRetrievable) {
+            CHECK_GL(glProgramParameteri(program, GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GL_TRUE));
+        }
         CHECK_GL(glLinkProgram(program));
         GLint linkStatus = 0;
         CHECK_GL(glGetProgramiv(program, GL_LINK_STATUS, &linkStatus));
@@ -243,20 +696,61 @@ namespace {
             CHECK_GL(glDeleteProgram(program));
             program = 0;
         }
-        assert(program);
         return program;
     }
 
-    void DestroySurface(NativeContext *nativeContext) {
-        if (nativeContext->windowSurface.first) {
-            eglMakeCurrent(nativeContext->display, nativeContext->pbufferSurface,
-                           nativeContext->pbufferSurface, nativeContext->context);
-            eglDestroySurface(nativeContext->display,
-                              nativeContext->windowSurface.second);
-            nativeContext->windowSurface.second = nullptr;
-            ANativeWindow_release(nativeContext->windowSurface.first);
-            nativeContext->windowSurface.first = nullptr;
+    void DestroyOutputSurface(NativeContext *nativeContext, int output) {
+        OutputSurface &outputSurface = nativeContext->outputs[output];
+        if (outputSurface.window) {
+            if (nativeContext->glState.currentOutput == &outputSurface) {
+                eglMakeCurrent(nativeContext->display, nativeContext->pbufferSurface,
+                               nativeContext->pbufferSurface, nativeContext->context);
+                nativeContext->glState.currentOutput = nullptr;
+            }
+            if (nativeContext->glState.mvpOutput == &outputSurface) {
+                nativeContext->glState.mvpOutput = nullptr;
+            }
+            eglDestroySurface(nativeContext->display, outputSurface.surface);
+            ANativeWindow_release(outputSurface.window);
+            outputSurface = OutputSurface();
+        }
+    }
+
+    // Returns whether the window of the output may still be used, that is whether no detach was
+    // signaled since it was set. Checked right before each use of the window, which narrows the
+    // time the render thread may still use it after the detach to a single EGL call.
+    bool IsOutputWindowUsable(const NativeContext *nativeContext, int output) {
+        return __atomic_load_n(&nativeContext->detachGenerations[output], __ATOMIC_ACQUIRE)
+               == nativeContext->outputs[output].detachGeneration;
+    }
+
+    // Returns the address of a direct buffer holding the detach generations of all outputs, or
+    // nullptr.
+    const jint *GetDetachGenerationsAddress(JNIEnv *env, jobject buffer) {
+        if (buffer == nullptr || env->GetDirectBufferCapacity(buffer) < MAX_OUTPUT_SURFACES) {
+            return nullptr;
+        }
+        return static_cast<const jint *>(env->GetDirectBufferAddress(buffer));
+    }
+
+    // Creates a context of the given OpenGL ES version with a config that can draw to windows,
+    // including recordable ones, and pbuffers. Returns EGL_NO_CONTEXT if there is none.
+    EGLContext CreateContext(EGLDisplay display, EGLint glesVersion, EGLConfig *config) {
+        EGLint renderableType = glesVersion >= 3 ? EGL_OPENGL_ES3_BIT_KHR : EGL_OPENGL_ES2_BIT;
+        EGLint configAttribs[] = {EGL_RENDERABLE_TYPE,
+                                  renderableType,
+                                  EGL_SURFACE_TYPE,
+                                  EGL_WINDOW_BIT | EGL_PBUFFER_BIT,
+                                  EGL_RECORDABLE_ANDROID,
+                                  EGL_TRUE,
+                                  EGL_NONE};
+        EGLint numConfigs = 0;
+        if (eglChooseConfig(display, configAttribs, config, /*config_size=*/1, &numConfigs) != EGL_TRUE
+            || numConfigs < 1) {
+            return EGL_NO_CONTEXT;
         }
+        EGLint contextAttribs[] = {EGL_CONTEXT_CLIENT_VERSION, glesVersion, EGL_NONE};
+        return eglCreateContext(display, *config, EGL_NO_CONTEXT, contextAttribs);
     }
 
     void ThrowException(JNIEnv *env, const char *exceptionName, const char *msg) {
@@ -267,12 +761,866 @@ namespace {
         assert(throwSuccess == JNI_OK);
     }
 
+    // Returns the address of a direct buffer holding at least one 4x4 matrix, or nullptr.
+    const GLfloat *GetMatrixAddress(JNIEnv *env, jobject buffer) {
+        constexpr jlong kMatrixSize = 16;
+        if (buffer == nullptr || env->GetDirectBufferCapacity(buffer) < kMatrixSize) {
+            return nullptr;
+        }
+        return static_cast<const GLfloat *>(env->GetDirectBufferAddress(buffer));
+    }
+
+    // Returns the address of a direct buffer holding the stage timings, or nullptr.
+    jlong *GetStageTimingsAddress(JNIEnv *env, jobject buffer) {
+        if (buffer == nullptr || env->GetDirectBufferCapacity(buffer) < TIMING_COUNT) {
+            return nullptr;
+        }
+        return static_cast<jlong *>(env->GetDirectBufferAddress(buffer));
+    }
+
+    // Same clock as System.nanoTime(), so the timings can be combined with the Java ones.
+    jlong NowNs() {
+        timespec now{};
+        clock_gettime(CLOCK_MONOTONIC, &now);
+        return static_cast<jlong>(now.tv_sec) * 1000000000LL + now.tv_nsec;
+    }
+
+    bool HasExtension(const char *extensions, const char *name) {
+        if (extensions == nullptr) {
+            return false;
+        }
+        size_t length = strlen(name);
+        for (const char *start = extensions; (start = strstr(start, name)) != nullptr;
+             start += length) {
+            // Only match whole names, not prefixes of longer ones.
+            if ((start == extensions || start[-1] == ' ')
+                && (start[length] == ' ' || start[length] == '\0')) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    constexpr uint64_t FNV_OFFSET_BASIS = 14695981039346656037ULL;
+    constexpr uint64_t FNV_PRIME = 1099511628211ULL;
+
+    uint64_t Fnv1a(const void *data, size_t length, uint64_t hash) {
+        const auto *bytes = static_cast<const uint8_t *>(data);
+        for (size_t i = 0; i < length; i++) {
+            hash = (hash ^ bytes[i]) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    // Hashes a string along with its terminating null, so consecutive strings can't run into
+    // each other.
+    uint64_t Fnv1a(const char *string, uint64_t hash) {
+        return Fnv1a(string, strlen(string) + 1, hash);
+    }
+
+    std::string HexString(uint64_t value) {
+        std::ostringstream oss;
+        oss << std::setfill('0') << std::setw(16) << std::hex << value;
+        return oss.str();
+    }
+
+    bool IsDecimalDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    bool IsHexDigits(const char *string, size_t count) {
+        for (size_t i = 0; i < count; i++) {
+            // Stops at the terminating null, which is not a digit.
+            if (!IsDecimalDigit(string[i]) && !(string[i] >= 'a' && string[i] <= 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Whether the file name is one the program cache writes: the driver hash, a dash, the
+    // program key and ".bin", each hash in 16 hex digits, followed while the file is being
+    // written by a dot, a thread id and ".tmp".
+    bool IsProgramCacheFile(const char *name) {
+        if (!IsHexDigits(name, 16) || name[16] != '-' || !IsHexDigits(name + 17, 16)
+            || strncmp(name + 33, ".bin", 4) != 0) {
+            return false;
+        }
+        const char *suffix = name + 37;
+        if (suffix[0] == '\0') {
+            return true;
+        }
+        if (suffix[0] != '.' || !IsDecimalDigit(suffix[1])) {
+            return false;
+        }
+        suffix++;
+        while (IsDecimalDigit(*suffix)) {
+            suffix++;
+        }
+        return strcmp(suffix, ".tmp") == 0;
+    }
+
+    // Opens the cache in the given directory if the driver can retrieve program binaries, and
+    // deletes the files left there by other drivers. Other files are left alone.
+    void InitProgramCache(SharedContext *sharedContext, const char *directory,
+                          const char *vendor, const char *renderer, const char *version) {
+        ProgramCache &cache = sharedContext->programCache;
+        if (directory == nullptr || directory[0] == '\0') {
+            return;
+        }
+        if (sharedContext->glesVersion >= 3) {
+            cache.getProgramBinary = glGetProgramBinary;
+            cache.programBinary = glProgramBinary;
+            cache.retrievableHint = true;
+        } else {
+            auto *extensions = reinterpret_cast<const char *>(CHECK_GL(glGetString(GL_EXTENSIONS)));
+            if (HasExtension(extensions, "GL_OES_get_program_binary")) {
+                cache.getProgramBinary = reinterpret_cast<PFNGLGETPROGRAMBINARYOESPROC>(
+                        eglGetProcAddress("glGetProgramBinaryOES"));
+                cache.programBinary = reinterpret_cast<PFNGLPROGRAMBINARYOESPROC>(
+                        eglGetProcAddress("glProgramBinaryOES"));
+            }
+        }
+        GLint formatCount = 0;
+        if (cache.getProgramBinary && cache.programBinary) {
+            CHECK_GL(glGetIntegerv(GL_NUM_PROGRAM_BINARY_FORMATS, &formatCount));
+        }
+        if (formatCount <= 0) {
+            cache = ProgramCache();
+            return;
+        }
+
+        cache.directory = directory;
+        cache.deviceHash = FNV_OFFSET_BASIS;
+        for (const char *string : {vendor, renderer, version}) {
+            cache.deviceHash = Fnv1a(string != nullptr ? string : "", cache.deviceHash);
+        }
+        cache.devicePrefix = HexString(cache.deviceHash) + "-";
+
+        DIR *dir = opendir(directory);
+        if (dir == nullptr) {
+            return;
+        }
+        while (dirent *entry = readdir(dir)) {
+            const char *name = entry->d_name;
+            if (IsProgramCacheFile(name) && strncmp(name, cache.devicePrefix.c_str(),
+                                                    cache.devicePrefix.size()) != 0) {
+                unlink((cache.directory + "/" + name).c_str());
+            }
+        }
+        closedir(dir);
+    }
+
+    // Returns the key of a program: its shaders and attribute locations, along with the driver.
+    uint64_t ProgramKey(const ProgramCache &cache, const char *vertexShaderSrc,
+                        const char *fragmentShaderSrc, GLint positionLocation,
+                        GLint texCoordsLocation) {
+        uint64_t key = Fnv1a(vertexShaderSrc, cache.deviceHash);
+        key = Fnv1a(fragmentShaderSrc, key);
+        key = Fnv1a(&positionLocation, sizeof(positionLocation), key);
+        return Fnv1a(&texCoordsLocation, sizeof(texCoordsLocation), key);
+    }
+
+    // Returns a program loaded from the binary in the file, or 0 if there is none or it is
+    // invalid, in which case the file is deleted.
+    GLuint LoadProgramBinary(const ProgramCache &cache, const std::string &path, uint64_t key) {
+        FILE *file = fopen(path.c_str(), "rb");
+        if (file == nullptr) {
+            return 0;
+        }
+        ProgramBinaryHeader header{};
+        std::vector<uint8_t> binary;
+        bool valid = fread(&header, sizeof(header), 1, file) == 1
+                     && header.magic == PROGRAM_BINARY_MAGIC
+                     && header.version == PROGRAM_BINARY_VERSION
+                     && header.key == key
+                     && header.length > 0 && header.length <= MAX_PROGRAM_BINARY_LENGTH;
+        if (valid) {
+            binary.resize(header.length);
+            valid = fread(binary.data(), 1, header.length, file) == header.length
+                    && fgetc(file) == EOF
+                    && Fnv1a(binary.data(), header.length, FNV_OFFSET_BASIS) == header.checksum;
+        }
+        fclose(file);
+
+        GLuint program = 0;
+        if (valid) {
+            program = CHECK_GL(glCreateProgram());
+            // Not checked: drivers reject binaries after an update, which is expected.
+            cache.programBinary(program, header.format, binary.data(),
+                                static_cast<GLint>(header.length));
+            glGetError();
+            GLint linkStatus = 0;
+            CHECK_GL(glGetProgramiv(program, GL_LINK_STATUS, &linkStatus));
+            if (!linkStatus) {
+                CHECK_GL(glDeleteProgram(program));
+                program = 0;
+            }
+        }
+        if (!program) {
+            __android_log_print(ANDROID_LOG_INFO, LOG_TAG, "Discarding stale program binary %s",
+                                path.c_str());
+            unlink(path.c_str());
+        }
+        return program;
+    }
+
+    // Writes the binary of a linked program to the file. Failures only cost a rebuild later.
+    void StoreProgramBinary(const ProgramCache &cache, const std::string &path, uint64_t key,
+                            GLuint program) {
+        GLint length = 0;
+        CHECK_GL(glGetProgramiv(program, GL_PROGRAM_BINARY_LENGTH, &length));
+        if (length <= 0 || static_cast<uint32_t>(length) > MAX_PROGRAM_BINARY_LENGTH) {
+            return;
+        }
+        std::vector<uint8_t> binary(length);
+        GLsizei written = 0;
+        GLenum format = 0;
+        CHECK_GL(cache.getProgramBinary(program, length, &written, &format, binary.data()));
+        if (written <= 0) {
+            return;
+        }
+        ProgramBinaryHeader header{};
+        header.magic = PROGRAM_BINARY_MAGIC;
+        header.version = PROGRAM_BINARY_VERSION;
+        header.key = key;
+        header.format = format;
+        header.length = static_cast<uint32_t>(written);
+        header.checksum = Fnv1a(binary.data(), header.length, FNV_OFFSET_BASIS);
+
+        // Written to a file of its own and renamed, so that a renderer starting at the same
+        // time never reads a partial binary.
+        std::string tempPath = path + "." + std::to_string(gettid()) + ".tmp";
+        FILE *file = fopen(tempPath.c_str(), "wb");
+        if (file == nullptr) {
+            return;
+        }
+        bool stored = fwrite(&header, sizeof(header), 1, file) == 1
+                      && fwrite(binary.data(), 1, header.length, file) == header.length;
+        stored = fclose(file) == 0 && stored;
+        if (!stored || rename(tempPath.c_str(), path.c_str()) != 0) {
+            unlink(tempPath.c_str());
+        }
+    }
+
+    // Returns a program made of the given shaders like BuildProgram(), loading it from the
+    // program cache if it holds a valid binary for it and storing it there otherwise.
+    GLuint LoadProgram(SharedContext *sharedContext, const char *vertexShaderSrc,
+                       const char *fragmentShaderSrc, GLint positionLocation,
+                       GLint texCoordsLocation) {
+        ProgramCache &cache = sharedContext->programCache;
+        if (!cache.programBinary) {
+            cache.lastResult = PROGRAM_CACHE_UNSUPPORTED;
+            return BuildProgram(vertexShaderSrc, fragmentShaderSrc, positionLocation,
+                                texCoordsLocation, /*binaryRetrievable=*/false);
+        }
+        uint64_t key = ProgramKey(cache, vertexShaderSrc, fragmentShaderSrc, positionLocation,
+                                  texCoordsLocation);
+        std::string path = cache.directory + "/" + cache.devicePrefix + HexString(key) + ".bin";
+        GLuint program = LoadProgramBinary(cache, path, key);
+        if (program) {
+            cache.lastResult = PROGRAM_CACHE_HIT;
+            return program;
+        }
+        cache.lastResult = PROGRAM_CACHE_MISS;
+        program = BuildProgram(vertexShaderSrc, fragmentShaderSrc, positionLocation,
+                               texCoordsLocation, cache.retrievableHint);
+        if (program) {
+            StoreProgramBinary(cache, path, key, program);
+        }
+        return program;
+    }
+
+    // Returns a handle to the output program
+    GLuint CreateGlProgram(SharedContext *sharedContext) {
+        GLuint program = LoadProgram(sharedContext, VERTEX_SHADER_SRC, FRAGMENT_SHADER_SRC,
+                                     /*positionLocation=*/-1, /*texCoordsLocation=*/-1);
+        assert(program);
+        return program;
+    }
+
+    void InitGpuTimer(GpuTimer *timer) {
+        auto *extensions = reinterpret_cast<const char *>(CHECK_GL(glGetString(GL_EXTENSIONS)));
+        if (!HasExtension(extensions, "GL_EXT_disjoint_timer_query")) {
+            return;
+        }
+        timer->genQueries = reinterpret_cast<PFNGLGENQUERIESEXTPROC>(
+                eglGetProcAddress("glGenQueriesEXT"));
+        timer->deleteQueries = reinterpret_cast<PFNGLDELETEQUERIESEXTPROC>(
+                eglGetProcAddress("glDeleteQueriesEXT"));
+        timer->beginQuery = reinterpret_cast<PFNGLBEGINQUERYEXTPROC>(
+                eglGetProcAddress("glBeginQueryEXT"));
+        timer->endQuery = reinterpret_cast<PFNGLENDQUERYEXTPROC>(
+                eglGetProcAddress("glEndQueryEXT"));
+        timer->getQueryObjectiv = reinterpret_cast<PFNGLGETQUERYOBJECTIVEXTPROC>(
+                eglGetProcAddress("glGetQueryObjectivEXT"));
+        timer->getQueryObjectui64v = reinterpret_cast<PFNGLGETQUERYOBJECTUI64VEXTPROC>(
+                eglGetProcAddress("glGetQueryObjectui64vEXT"));
+        if (!timer->genQueries || !timer->deleteQueries || !timer->beginQuery || !timer->endQuery
+            || !timer->getQueryObjectiv || !timer->getQueryObjectui64v) {
+            __android_log_print(ANDROID_LOG_WARN, LOG_TAG,
+                                "GL_EXT_disjoint_timer_query advertised but not loadable.");
+            *timer = GpuTimer();
+            return;
+        }
+        CHECK_GL(timer->genQueries(GPU_TIMER_QUERIES, timer->queries));
+        CHECK_GL(timer->genQueries(GPU_TIMER_QUERIES * (MAX_EFFECT_STAGES - 1),
+                                   &(timer->effectQueries[0][0])));
+        timer->supported = true;
+    }
+
+    void InitCaptureEngine(NativeContext *nativeContext) {
+        CaptureEngine &capture = nativeContext->capture;
+        capture.pixelBuffers = nativeContext->glesVersion >= 3;
+        if (capture.pixelBuffers) {
+            const char *glExtensions =
+                    reinterpret_cast<const char *>(CHECK_GL(glGetString(GL_EXTENSIONS)));
+            capture.float16Tensors =
+                    HasExtension(glExtensions, "GL_OES_EGL_image_external_essl3");
+            return;
+        }
+        const char *extensions = eglQueryString(nativeContext->display, EGL_EXTENSIONS);
+        if (!HasExtension(extensions, "EGL_KHR_fence_sync")) {
+            return;
+        }
+        capture.createSync = reinterpret_cast<PFNEGLCREATESYNCKHRPROC>(
+                eglGetProcAddress("eglCreateSyncKHR"));
+        capture.destroySync = reinterpret_cast<PFNEGLDESTROYSYNCKHRPROC>(
+                eglGetProcAddress("eglDestroySyncKHR"));
+        capture.clientWaitSync = reinterpret_cast<PFNEGLCLIENTWAITSYNCKHRPROC>(
+                eglGetProcAddress("eglClientWaitSyncKHR"));
+        if (!capture.createSync || !capture.destroySync || !capture.clientWaitSync) {
+            capture.createSync = nullptr;
+            capture.destroySync = nullptr;
+            capture.clientWaitSync = nullptr;
+        }
+    }
+
+    // Makes the target an RGBA texture of the given size, sampled with the given filter. Returns
+    // false if it can't be drawn to.
+    bool EnsureRenderTarget(RenderTarget *target, GLsizei width, GLsizei height, GLint filter) {
+        if (target->framebuffer && target->width == width && target->height == height) {
+            return true;
+        }
+        if (!target->framebuffer) {
+            CHECK_GL(glGenFramebuffers(1, &(target->framebuffer)));
+            CHECK_GL(glGenTextures(1, &(target->texture)));
+        }
+        CHECK_GL(glBindTexture(GL_TEXTURE_2D, target->texture));
+        CHECK_GL(glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, filter));
+        CHECK_GL(glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, filter));
+        // Non power of two textures can only be sampled when clamped in OpenGL ES 2.
+        CHECK_GL(glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE));
+        CHECK_GL(glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE));
+        CHECK_GL(glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA, width, height, 0, GL_RGBA,
+                              GL_UNSIGNED_BYTE, nullptr));
+        CHECK_GL(glBindTexture(GL_TEXTURE_2D, 0));
+        CHECK_GL(glBindFramebuffer(GL_FRAMEBUFFER, target->framebuffer));
+        CHECK_GL(glFramebufferTexture2D(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_TEXTURE_2D,
+                                        target->texture, 0));
+        GLenum status = CHECK_GL(glCheckFramebufferStatus(GL_FRAMEBUFFER));
+        CHECK_GL(glBindFramebuffer(GL_FRAMEBUFFER, 0));
+        target->width = width;
+        target->height = height;
+        if (status != GL_FRAMEBUFFER_COMPLETE) {
+            __android_log_print(ANDROID_LOG_ERROR, LOG_TAG,
+                                "Framebuffer of %dx%d incomplete: 0x%x", width, height,
+                                status);
+            target->width = 0;
+            target->height = 0;
+            return false;
+        }
+        return true;
+    }
+
+    void DestroyRenderTarget(RenderTarget *target) {
+        if (target->framebuffer) {
+            CHECK_GL(glDeleteFramebuffers(1, &(target->framebuffer)));
+            CHECK_GL(glDeleteTextures(1, &(target->texture)));
+        }
+        *target = RenderTarget();
+    }
+
+    void ReleaseCaptureFence(NativeContext *nativeContext, CaptureSlot *slot) {
+        if (slot->glFence) {
+            CHECK_GL(glDeleteSync(slot->glFence));
+            slot->glFence = nullptr;
+        }
+        if (slot->eglFence != EGL_NO_SYNC_KHR) {
+            nativeContext->capture.destroySync(nativeContext->display, slot->eglFence);
+            slot->eglFence = EGL_NO_SYNC_KHR;
+        }
+    }
+
+    // Returns whether the GPU is done with the capture, without waiting for it.
+    bool IsCaptureDone(NativeContext *nativeContext, const CaptureSlot &slot) {
+        if (slot.glFence) {
+            GLenum result = CHECK_GL(glClientWaitSync(slot.glFence, 0, /*timeout=*/0));
+            return result == GL_ALREADY_SIGNALED || result == GL_CONDITION_SATISFIED;
+        }
+        if (slot.eglFence != EGL_NO_SYNC_KHR) {
+            EGLint result = nativeContext->capture.clientWaitSync(nativeContext->display,
+                                                                  slot.eglFence, 0,
+                                                                  /*timeout=*/0);
+            return result == EGL_CONDITION_SATISFIED_KHR;
+        }
+        // Without fences, rely on the frame latency alone.
+        return true;
+    }
+
+    // Copies the pixels of a finished capture into its destination.
+    void ReadBackCapture(NativeContext *nativeContext, CaptureSlot *slot) {
+        if (slot->pixelBuffer) {
+            CHECK_GL(glBindBuffer(GL_PIXEL_PACK_BUFFER, slot->pixelBuffer));
+            void *pixels = CHECK_GL(glMapBufferRange(GL_PIXEL_PACK_BUFFER, 0,
+                                                     slot->pixelBufferSize, GL_MAP_READ_BIT));
+            if (pixels) {
+                memcpy(slot->destination, pixels, slot->pixelBufferSize);
+            }
+            CHECK_GL(glUnmapBuffer(GL_PIXEL_PACK_BUFFER));
+            CHECK_GL(glBindBuffer(GL_PIXEL_PACK_BUFFER, 0));
+        } else {
+            CHECK_GL(glBindFramebuffer(GL_FRAMEBUFFER, slot->target.framebuffer));
+            CHECK_GL(glReadPixels(0, 0, slot->width, slot->height, GL_RGBA, GL_UNSIGNED_BYTE,
+                                  slot->destination));
+            CHECK_GL(glBindFramebuffer(GL_FRAMEBUFFER, 0));
+        }
+        ReleaseCaptureFence(nativeContext, slot);
+        slot->inFlight = false;
+        slot->destination = nullptr;
+    }
+
+    // Returns the program packing tensors of the given data type, compiling it on first use, or
+    // nullptr if the type is not supported.
+    TensorProgram *GetTensorProgram(NativeContext *nativeContext, jint dataType) {
+        CaptureEngine &capture = nativeContext->capture;
+        if (dataType < 0 || dataType >= TENSOR_TYPE_COUNT
+            || (dataType == TENSOR_FLOAT16 && !capture.float16Tensors)) {
+            return nullptr;
+        }
+        TensorProgram &tensorProgram = capture.tensorPrograms[dataType];
+        if (!tensorProgram.compiled) {
+            tensorProgram.compiled = true;
+            // Bind the position to the location the output program uses, so the vertex
+            // attributes already set up for the quad are valid for both.
+            tensorProgram.program = dataType == TENSOR_FLOAT16
+                                    ? LoadProgram(nativeContext->shared,
+                                                  TENSOR_FLOAT16_VERTEX_SHADER_SRC,
+                                                  TENSOR_FLOAT16_FRAGMENT_SHADER_SRC,
+                                                  nativeContext->positionHandle,
+                                                  /*texCoordsLocation=*/-1)
+                                    : LoadProgram(nativeContext->shared,
+                                                  TENSOR_VERTEX_SHADER_SRC,
+                                                  TENSOR_UINT8_FRAGMENT_SHADER_SRC,
+                                                  nativeContext->positionHandle,
+                                                  /*texCoordsLocation=*/-1);
+            if (tensorProgram.program) {
+                GLuint program = tensorProgram.program;
+                tensorProgram.samplerHandle =
+                        CHECK_GL(glGetUniformLocation(program, "sampler"));
+                tensorProgram.sampleTransformHandle =
+                        CHECK_GL(glGetUniformLocation(program, "sampleTransform"));
+                tensorProgram.tensorSizeHandle =
+                        CHECK_GL(glGetUniformLocation(program, "tensorSize"));
+                tensorProgram.meanHandle = CHECK_GL(glGetUniformLocation(program, "mean"));
+                tensorProgram.invStdHandle = CHECK_GL(glGetUniformLocation(program, "invStd"));
+                tensorProgram.swapRedBlueHandle =
+                        CHECK_GL(glGetUniformLocation(program, "swapRedBlue"));
+            }
+        }
+        return tensorProgram.program ? &tensorProgram : nullptr;
+    }
+
+    int FindFreeCaptureSlot(const CaptureEngine &capture) {
+        for (int slotIndex = 0; slotIndex < CAPTURE_SLOTS; slotIndex++) {
+            if (!capture.slots[slotIndex].inFlight) {
+                return slotIndex;
+            }
+        }
+        return -1;
+    }
+
+    // Binds the framebuffer of the target to draw a capture into it. The pixel buffers keep
+    // the copies, so with them a single target per kind of capture is drawn over each time.
+    RenderTarget *BeginCaptureDraw(NativeContext *nativeContext, CaptureSlot *slot,
+                                   RenderTarget *sharedTarget, GLsizei width, GLsizei height) {
+        RenderTarget *target = nativeContext->capture.pixelBuffers ? sharedTarget
+                                                                   : &(slot->target);
+        if (!EnsureRenderTarget(target, width, height, GL_NEAREST)) {
+            return nullptr;
+        }
+        CHECK_GL(glBindFramebuffer(GL_FRAMEBUFFER, target->framebuffer));
+        CHECK_GL(glViewport(0, 0, width, height));
+        CHECK_GL(glScissor(0, 0, width, height));
+        return target;
+    }
+
+    // Starts reading back the capture drawn into the bound framebuffer, without waiting for
+    // the GPU, and restores the state of the current output. Returns false on failure.
+    bool EndCaptureDraw(NativeContext *nativeContext, CaptureSlot *slot, void *destination,
+                        GLsizei width, GLsizei height) {
+        CaptureEngine &capture = nativeContext->capture;
+        if (capture.pixelBuffers) {
+            // Only queues the copy, the pixels are mapped once the fence says it is done.
+            auto size = static_cast<GLsizeiptr>(width) * height * 4;
+            if (!slot->pixelBuffer) {
+                CHECK_GL(glGenBuffers(1, &(slot->pixelBuffer)));
+            }
+            CHECK_GL(glBindBuffer(GL_PIXEL_PACK_BUFFER, slot->pixelBuffer));
+            if (slot->pixelBufferSize != size) {
+                CHECK_GL(glBufferData(GL_PIXEL_PACK_BUFFER, size, nullptr, GL_STREAM_READ));
+                slot->pixelBufferSize = size;
+            }
+            CHECK_GL(glReadPixels(0, 0, width, height, GL_RGBA, GL_UNSIGNED_BYTE, nullptr));
+            CHECK_GL(glBindBuffer(GL_PIXEL_PACK_BUFFER, 0));
+            slot->glFence = CHECK_GL(glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0));
+        } else if (capture.createSync) {
+            slot->eglFence = capture.createSync(nativeContext->display, EGL_SYNC_FENCE_KHR,
+                                                nullptr);
+        }
+        CHECK_GL(glBindFramebuffer(GL_FRAMEBUFFER, 0));
+        // Submit the capture now, so the fence signals even if no output is swapped.
+        CHECK_GL(glFlush());
+
+        // Restore the viewport of the current output. The uniforms of the output program may
+        // have changed too.
+        nativeContext->glState.mvpOutput = nullptr;
+        const OutputSurface *output = nativeContext->glState.currentOutput;
+        if (output != nullptr) {
+            CHECK_GL(glViewport(0, 0, output->width, output->height));
+            CHECK_GL(glScissor(0, 0, output->width, output->height));
+        }
+
+        GLenum glError = CHECK_GL(glGetError());
+        if (glError != GL_NO_ERROR) {
+            __android_log_print(ANDROID_LOG_ERROR, LOG_TAG,
+                                "Failed to capture frame due to OpenGL error: %s",
+                                GLErrorString(glError).c_str());
+            ReleaseCaptureFence(nativeContext, slot);
+            return false;
+        }
+
+        slot->inFlight = true;
+        slot->frame = capture.frame;
+        slot->destination = destination;
+        slot->width = width;
+        slot->height = height;
+        return true;
+    }
+
+    void DestroyCaptureEngine(NativeContext *nativeContext) {
+        CaptureEngine &capture = nativeContext->capture;
+        for (CaptureSlot &slot : capture.slots) {
+            ReleaseCaptureFence(nativeContext, &slot);
+            if (slot.pixelBuffer) {
+                CHECK_GL(glDeleteBuffers(1, &(slot.pixelBuffer)));
+            }
+            DestroyRenderTarget(&(slot.target));
+            slot = CaptureSlot();
+        }
+        DestroyRenderTarget(&(capture.target));
+        DestroyRenderTarget(&(capture.tensorTarget));
+        for (TensorProgram &tensorProgram : capture.tensorPrograms) {
+            if (tensorProgram.program) {
+                if (nativeContext->glState.program == tensorProgram.program) {
+                    nativeContext->glState.program = 0;
+                }
+                CHECK_GL(glDeleteProgram(tensorProgram.program));
+            }
+            tensorProgram = TensorProgram();
+        }
+    }
+
+    // Compiles a variant of an effect, binding the attributes to the locations the output
+    // program uses so the vertex attributes set up for the quad are valid for all programs.
+    // Returns false if it fails to compile or link.
+    bool BuildEffectProgram(NativeContext *nativeContext, const char *fragmentShaderSrc,
+                            EffectProgram *effectProgram) {
+        GLuint program = LoadProgram(nativeContext->shared, EFFECT_VERTEX_SHADER_SRC,
+                                     fragmentShaderSrc,
+                                     nativeContext->positionHandle,
+                                     nativeContext->texCoordsHandle);
+        if (!program) {
+            return false;
+        }
+        effectProgram->program = program;
+        effectProgram->mvpTransformHandle =
+                CHECK_GL(glGetUniformLocation(program, "mvpTransform"));
+        effectProgram->inputTransformHandle =
+                CHECK_GL(glGetUniformLocation(program, "inputTransform"));
+        effectProgram->inputTexelSizeHandle =
+                CHECK_GL(glGetUniformLocation(program, "inputTexelSize"));
+        return true;
+    }
+
+    void DestroyEffectStage(NativeContext *nativeContext, EffectStage *stage) {
+        EffectChain &chain = nativeContext->effects;
+        int kept = 0;
+        for (int position = 0; position < chain.stageCount; position++) {
+            if (chain.stages[position] != stage) {
+                chain.stages[kept++] = chain.stages[position];
+            }
+        }
+        chain.stageCount = kept;
+        for (EffectProgram *effectProgram : {&(stage->external), &(stage->texture2d)}) {
+            if (effectProgram->program) {
+                if (nativeContext->glState.program == effectProgram->program) {
+                    nativeContext->glState.program = 0;
+                }
+                CHECK_GL(glDeleteProgram(effectProgram->program));
+            }
+        }
+        delete stage;
+    }
+
+}  // namespace
+
+// Issues a GL call from the draw path and counts it towards the calls made for the frame.
+#define DRAW_GL(nativeContext, glFunc) (++(nativeContext)->glCalls, CHECK_GL(glFunc))
+
+namespace {
+    void UseProgram(NativeContext *nativeContext, GLuint program) {
+        if (nativeContext->glState.program != program) {
+            DRAW_GL(nativeContext, glUseProgram(program));
+            nativeContext->glState.program = program;
+        }
+    }
+
+    void BindArrayBuffer(NativeContext *nativeContext, GLuint buffer) {
+        if (nativeContext->glState.arrayBuffer != buffer) {
+            DRAW_GL(nativeContext, glBindBuffer(GL_ARRAY_BUFFER, buffer));
+            nativeContext->glState.arrayBuffer = buffer;
+        }
+    }
+
+    void SetFrontFace(NativeContext *nativeContext, GLenum mode) {
+        if (nativeContext->glState.frontFace != mode) {
+            DRAW_GL(nativeContext, glFrontFace(mode));
+            nativeContext->glState.frontFace = mode;
+        }
+    }
+
+    void SetSamplerUnit(NativeContext *nativeContext, GLint unit) {
+        if (nativeContext->glState.sampler != unit) {
+            DRAW_GL(nativeContext, glUniform1i(nativeContext->samplerHandle, unit));
+            nativeContext->glState.sampler = unit;
+        }
+    }
+
+    // Puts the context in the state needed to draw the quad, whatever the program. Only the first
+    // frame issues any GL calls, later frames find everything already set.
+    void PrepareQuadDraw(NativeContext *nativeContext) {
+        BindArrayBuffer(nativeContext, nativeContext->vertexBuffer);
+        if (!nativeContext->glState.vertexAttribsSet) {
+            DRAW_GL(nativeContext,
+                    glVertexAttribPointer(nativeContext->positionHandle, QUAD_COMPONENTS, GL_FLOAT,
+                                          GL_FALSE, QUAD_STRIDE, QUAD_POSITION_OFFSET));
+            DRAW_GL(nativeContext, glEnableVertexAttribArray(nativeContext->positionHandle));
+            DRAW_GL(nativeContext,
+                    glVertexAttribPointer(nativeContext->texCoordsHandle, QUAD_COMPONENTS, GL_FLOAT,
+                                          GL_FALSE, QUAD_STRIDE, QUAD_TEX_COORDS_OFFSET));
+            DRAW_GL(nativeContext, glEnableVertexAttribArray(nativeContext->texCoordsHandle));
+            nativeContext->glState.vertexAttribsSet = true;
+        }
+        // Required to use a left-handed coordinate system in order to match our world-space
+        //
+        //                    ________+x
+        //                  /|
+        //                 / |
+        //              +z/  |
+        //                   | +y
+        //
+        SetFrontFace(nativeContext, GL_CW);
+    }
+
+    // Makes the output program, which draws the camera texture as it is, current.
+    void UseOutputProgram(NativeContext *nativeContext) {
+        UseProgram(nativeContext, nativeContext->program);
+        SetSamplerUnit(nativeContext, 0);
+    }
+
+    // Makes the variant of an effect for its position in the chain current, sets its uniforms
+    // and binds its input: the camera texture for the first stage, the target the previous
+    // stage drew into for the others. Returns the variant, whose MVP is left to the caller.
+    const EffectProgram &PrepareEffectStage(NativeContext *nativeContext, int position) {
+        const EffectChain &chain = nativeContext->effects;
+        const EffectStage &stage = *(chain.stages[position]);
+        const EffectProgram &effectProgram = position == 0 ? stage.external : stage.texture2d;
+        UseProgram(nativeContext, effectProgram.program);
+        if (position == 0) {
+            DRAW_GL(nativeContext,
+                    glUniformMatrix4fv(effectProgram.inputTransformHandle, /*count=*/1, GL_FALSE,
+                                       nativeContext->texTransform));
+            DRAW_GL(nativeContext,
+                    glBindTexture(GL_TEXTURE_EXTERNAL_OES, nativeContext->textureId));
+        } else {
+            DRAW_GL(nativeContext,
+                    glUniformMatrix4fv(effectProgram.inputTransformHandle, /*count=*/1, GL_FALSE,
+                                       FLIP_ROWS_MATRIX));
+            DRAW_GL(nativeContext,
+                    glBindTexture(GL_TEXTURE_2D, chain.targets[(position - 1) % 2].texture));
+        }
+        DRAW_GL(nativeContext,
+                glUniform2f(effectProgram.inputTexelSizeHandle,
+                            1.0f / static_cast<GLfloat>(chain.width),
+                            1.0f / static_cast<GLfloat>(chain.height)));
+        for (int uniform = 0; uniform < stage.uniformCount; uniform++) {
+            GLint handle = effectProgram.uniformHandles[uniform];
+            const GLfloat *value = stage.uniformValues + uniform * EFFECT_UNIFORM_STRIDE;
+            switch (stage.uniformSizes[uniform]) {
+                case 1:
+                    DRAW_GL(nativeContext, glUniform1fv(handle, /*count=*/1, value));
+                    break;
+                case 2:
+                    DRAW_GL(nativeContext, glUniform2fv(handle, /*count=*/1, value));
+                    break;
+                case 3:
+                    DRAW_GL(nativeContext, glUniform3fv(handle, /*count=*/1, value));
+                    break;
+                default:
+                    DRAW_GL(nativeContext, glUniform4fv(handle, /*count=*/1, value));
+                    break;
+            }
+        }
+        return effectProgram;
+    }
+
+    // Draws the camera texture through all but the last stage of the effect chain, each pass
+    // into the target the next one reads, then restores the viewport of the current output.
+    // Each pass is timed on the GPU along with the draw if gpuTimed is set. Returns false if
+    // the targets can't be drawn to.
+    bool DrawEffectPasses(NativeContext *nativeContext, bool gpuTimed) {
+        EffectChain &chain = nativeContext->effects;
+        GpuTimer &gpuTimer = nativeContext->gpuTimer;
+        int passCount = chain.stageCount - 1;
+        if (passCount == 0) {
+            return true;
+        }
+        for (RenderTarget &target : chain.targets) {
+            // Sampled with filtering by the last stage, which may scale the frame.
+            if (!EnsureRenderTarget(&target, chain.width, chain.height, GL_LINEAR)) {
+                return false;
+            }
+        }
+        DRAW_GL(nativeContext, glViewport(0, 0, chain.width, chain.height));
+        DRAW_GL(nativeContext, glScissor(0, 0, chain.width, chain.height));
+        for (int pass = 0; pass < passCount; pass++) {
+            DRAW_GL(nativeContext,
+                    glBindFramebuffer(GL_FRAMEBUFFER, chain.targets[pass % 2].framebuffer));
+            const EffectProgram &effectProgram = PrepareEffectStage(nativeContext, pass);
+            DRAW_GL(nativeContext,
+                    glUniformMatrix4fv(effectProgram.mvpTransformHandle, /*count=*/1, GL_FALSE,
+                                       IDENTITY_MATRIX));
+            if (gpuTimed) {
+                DRAW_GL(nativeContext,
+                        gpuTimer.beginQuery(GL_TIME_ELAPSED_EXT,
+                                            gpuTimer.effectQueries[gpuTimer.next][pass]));
+            }
+            DRAW_GL(nativeContext, glDrawArrays(GL_TRIANGLE_STRIP, 0, QUAD_VERTEX_COUNT));
+            if (gpuTimed) {
+                DRAW_GL(nativeContext, gpuTimer.endQuery(GL_TIME_ELAPSED_EXT));
+            }
+        }
+        DRAW_GL(nativeContext, glBindFramebuffer(GL_FRAMEBUFFER, 0));
+
+        const OutputSurface *output = nativeContext->glState.currentOutput;
+        if (output != nullptr) {
+            DRAW_GL(nativeContext, glViewport(0, 0, output->width, output->height));
+            DRAW_GL(nativeContext, glScissor(0, 0, output->width, output->height));
+        }
+        return true;
+    }
+
+    // Makes the surface of the output current and sizes the viewport to it. The viewport is
+    // context state, so it has to be set again whenever another output, of this renderer or of
+    // another one sharing the context, was drawn in between.
+    void MakeOutputCurrent(NativeContext *nativeContext, int output) {
+        const OutputSurface &outputSurface = nativeContext->outputs[output];
+        if (nativeContext->glState.currentOutput == &outputSurface) {
+            return;
+        }
+        eglMakeCurrent(nativeContext->display, outputSurface.surface, outputSurface.surface,
+                       nativeContext->context);
+        DRAW_GL(nativeContext, glViewport(0, 0, outputSurface.width, outputSurface.height));
+        DRAW_GL(nativeContext, glScissor(0, 0, outputSurface.width, outputSurface.height));
+        nativeContext->glState.currentOutput = &outputSurface;
+    }
+
+    // Reads the results of the timer queries the GPU has finished, oldest first, without waiting
+    // for the ones still in flight, and writes those of the newest finished frame to the stage
+    // timings: the draw and, with an effect chain, each stage. The last stage of the chain runs
+    // in the draw, so its time is the draw's. Timings with no new result, or unreliable ones,
+    // are set to -1.
+    void PollGpuTimer(NativeContext *nativeContext) {
+        GpuTimer &timer = nativeContext->gpuTimer;
+        jlong elapsedNs = -1;
+        int effectStageCount = 0;
+        jlong effectNs[MAX_EFFECT_STAGES] = {};
+        while (timer.pending > 0) {
+            int index = (timer.next - timer.pending + GPU_TIMER_QUERIES) % GPU_TIMER_QUERIES;
+            GLuint query = timer.queries[index];
+            GLint available = 0;
+            DRAW_GL(nativeContext,
+                    timer.getQueryObjectiv(query, GL_QUERY_RESULT_AVAILABLE_EXT, &available));
+            if (!available) {
+                break;
+            }
+            GLuint64 result = 0;
+            DRAW_GL(nativeContext, timer.getQueryObjectui64v(query, GL_QUERY_RESULT_EXT, &result));
+            timer.pending--;
+            elapsedNs = static_cast<jlong>(result);
+            // The offscreen passes were issued before the draw, so they are finished too.
+            effectStageCount = timer.effectStageCounts[index];
+            for (int pass = 0; pass < effectStageCount - 1; pass++) {
+                DRAW_GL(nativeContext,
+                        timer.getQueryObjectui64v(timer.effectQueries[index][pass],
+                                                  GL_QUERY_RESULT_EXT, &result));
+                effectNs[pass] = static_cast<jlong>(result);
+            }
+            if (effectStageCount > 0) {
+                effectNs[effectStageCount - 1] = elapsedNs;
+            }
+        }
+        if (elapsedNs >= 0) {
+            // Events such as a GPU frequency change make the results since the last check
+            // meaningless. Reading the flag clears it, so it may have been read by another
+            // renderer sharing the context.
+            GLint disjoint = 0;
+            DRAW_GL(nativeContext, glGetIntegerv(GL_GPU_DISJOINT_EXT, &disjoint));
+            SharedContext *shared = nativeContext->shared;
+            if (disjoint) {
+                shared->gpuDisjointEvents++;
+            }
+            if (timer.disjointEvents != shared->gpuDisjointEvents) {
+                timer.disjointEvents = shared->gpuDisjointEvents;
+                elapsedNs = -1;
+                effectStageCount = 0;
+            }
+        }
+        jlong *stageTimings = nativeContext->stageTimings;
+        stageTimings[TIMING_GPU_DRAW_NS] = elapsedNs;
+        for (int stage = 0; stage < MAX_EFFECT_STAGES; stage++) {
+            stageTimings[TIMING_EFFECT_GPU_NS + stage] = stage < effectStageCount ? effectNs[stage]
+                                                                                 : -1;
+        }
+    }
 }  // namespace
 
 extern "C" {
 
 JNIEXPORT jlong JNICALL
-Java_com_joyuiyeongl_ypreviewjava_OpenGLRenderer_initContext(JNIEnv *env, jclass clazz) {
+Java_com_joyuiyeongl_ypreviewjava_RenderEngine_createSharedContext(JNIEnv *env, jclass clazz,
+                                                                   jobject jstartupTimingsBuffer,
+                                                                   jstring jprogramCacheDir) {
+    auto *startupTimings = static_cast<jlong *>(env->GetDirectBufferAddress(jstartupTimingsBuffer));
+    if (startupTimings == nullptr
+        || env->GetDirectBufferCapacity(jstartupTimingsBuffer) < STARTUP_COUNT) {
+        ThrowException(env, "java/lang/IllegalArgumentException",
+                       "Startup timings must be a direct long buffer holding at least 3 longs.");
+        return 0;
+    }
+    jlong eglStartNs = NowNs();
+
     EGLDisplay eglDisplay = eglGetDisplay(EGL_DEFAULT_DISPLAY);
     assert(eglDisplay != EGL_NO_DISPLAY);
 
@@ -292,27 +1640,19 @@ Java_com_joyuiyeongl_ypreviewjava_OpenGLRenderer_initContext(JNIEnv *env, jclass
                         eglVersionString == nullptr
                         ? "Unknown" : eglVersionString);
 
-    int configAttribs[] = {EGL_RENDERABLE_TYPE,
-                           EGL_OPENGL_ES2_BIT,
-                           EGL_SURFACE_TYPE,
-                           EGL_WINDOW_BIT | EGL_PBUFFER_BIT,
-                           EGL_RECORDABLE_ANDROID,
-                           EGL_TRUE,
-                           EGL_NONE};
+    // The renderer only needs OpenGL ES 2, but OpenGL ES 3 lets captures be read back through
+    // pixel buffers.
     EGLConfig config;
-    EGLint numConfigs;
-    EGLint configSize = 1;
-    EGLBoolean chooseConfigSuccess = eglChooseConfig(eglDisplay, static_cast<EGLint *>(configAttribs), &config,
-                                                     configSize, &numConfigs);
-    if (chooseConfigSuccess != EGL_TRUE) {
+    EGLint glesVersion = 3;
+    EGLContext eglContext = CreateContext(eglDisplay, glesVersion, &config);
+    if (eglContext == EGL_NO_CONTEXT) {
+        glesVersion = 2;
+        eglContext = CreateContext(eglDisplay, glesVersion, &config);
+    }
+    if (eglContext == EGL_NO_CONTEXT) {
         ThrowException(env, "java/lang/IllegalArgumentException", "EGL Error: eglChooseConfig failed. ");
         return 0;
     }
-    assert(numConfigs > 0);
-
-    int contextAttribs[] = {EGL_CONTEXT_CLIENT_VERSION, 2, EGL_NONE};
-    EGLContext eglContext = eglCreateContext(eglDisplay, config, EGL_NO_CONTEXT, static_cast<EGLint *>(contextAttribs));
-    assert(eglContext != EGL_NO_CONTEXT);
 
     // Create 1x1 pixmap to use as a surface until one is set.
     int pbufferAttribs[] = {EGL_WIDTH, 1, EGL_HEIGHT, 1, EGL_NONE};
@@ -333,45 +1673,155 @@ Java_com_joyuiyeongl_ypreviewjava_OpenGLRenderer_initContext(JNIEnv *env, jclass
                         glslVersionString == nullptr ? "Unknown" : (const char *) glslVersionString,
                         glRendererString == nullptr ? "Unknown" : (const char *) glRendererString);
 
-    auto *nativeContext = new NativeContext(eglDisplay, config, eglContext, /*window=*/nullptr,   /*surface=*/nullptr,
-                                            eglPbuffer);
+    auto *sharedContext = new SharedContext();
+    sharedContext->display = eglDisplay;
+    sharedContext->config = config;
+    sharedContext->context = eglContext;
+    sharedContext->pbufferSurface = eglPbuffer;
+    sharedContext->glesVersion = glesVersion;
+
+    jlong programStartNs = NowNs();
+    startupTimings[STARTUP_EGL_NS] = programStartNs - eglStartNs;
+    const char *programCacheDir =
+            jprogramCacheDir != nullptr ? env->GetStringUTFChars(jprogramCacheDir, nullptr)
+                                        : nullptr;
+    InitProgramCache(sharedContext, programCacheDir,
+                     reinterpret_cast<const char *>(glVendorString),
+                     reinterpret_cast<const char *>(glRendererString),
+                     reinterpret_cast<const char *>(glVersionString));
+    if (programCacheDir != nullptr) {
+        env->ReleaseStringUTFChars(jprogramCacheDir, programCacheDir);
+    }
+
+    sharedContext->program = CreateGlProgram(sharedContext);
+    assert(sharedContext->program);
+    startupTimings[STARTUP_PROGRAM_NS] = NowNs() - programStartNs;
+    startupTimings[STARTUP_PROGRAM_CACHE] = sharedContext->programCache.lastResult;
+
+    sharedContext->positionHandle = CHECK_GL(glGetAttribLocation(sharedContext->program, "position"));
+    assert(sharedContext->positionHandle != -1);
+
+    sharedContext->texCoordsHandle = CHECK_GL(glGetAttribLocation(sharedContext->program, "texCoords"));
+    assert(sharedContext->texCoordsHandle != -1);
+
+    sharedContext->samplerHandle = CHECK_GL(glGetUniformLocation(sharedContext->program, "sampler"));
+    assert(sharedContext->samplerHandle != -1);
+
+    sharedContext->mvpTransformHandle = CHECK_GL(glGetUniformLocation(sharedContext->program, "mvpTransform"));
+    assert(sharedContext->mvpTransformHandle != -1);
+
+    sharedContext->texTransformHandle = CHECK_GL(glGetUniformLocation(sharedContext->program, "texTransform"));
+    assert(sharedContext->texTransformHandle != -1);
 
-    nativeContext->program = CreateGlProgram();
-    assert(nativeContext->program);
+    CHECK_GL(glGenBuffers(1, &(sharedContext->vertexBuffer)));
+    CHECK_GL(glBindBuffer(GL_ARRAY_BUFFER, sharedContext->vertexBuffer));
+    CHECK_GL(glBufferData(GL_ARRAY_BUFFER, sizeof(QUAD_VERTICES), QUAD_VERTICES, GL_STATIC_DRAW));
+    sharedContext->glState.arrayBuffer = sharedContext->vertexBuffer;
 
-    nativeContext->positionHandle = CHECK_GL(glGetAttribLocation(nativeContext->program, "position"));
-    assert(nativeContext->positionHandle != -1);
+    return reinterpret_cast<jlong>(sharedContext);
+}
 
-    nativeContext->texCoordsHandle = CHECK_GL(glGetAttribLocation(nativeContext->program, "texCoords"));
-    assert(nativeContext->texCoordsHandle != -1);
+JNIEXPORT void JNICALL
+Java_com_joyuiyeongl_ypreviewjava_RenderEngine_destroySharedContext(JNIEnv *env, jclass clazz,
+                                                                    jlong jsharedContext) {
+    auto *sharedContext = reinterpret_cast<SharedContext *>(jsharedContext);
+    assert(sharedContext->rendererCount == 0);
+
+    if (sharedContext->program) {
+        CHECK_GL(glDeleteProgram(sharedContext->program));
+        sharedContext->program = 0;
+    }
 
-    nativeContext->samplerHandle = CHECK_GL(glGetUniformLocation(nativeContext->program, "sampler"));
-    assert(nativeContext->samplerHandle != -1);
+    if (sharedContext->vertexBuffer) {
+        CHECK_GL(glDeleteBuffers(1, &(sharedContext->vertexBuffer)));
+        sharedContext->vertexBuffer = 0;
+    }
+
+    eglDestroySurface(sharedContext->display, sharedContext->pbufferSurface);
+
+    eglMakeCurrent(sharedContext->display, EGL_NO_SURFACE, EGL_NO_SURFACE,
+                   EGL_NO_CONTEXT);
 
-    nativeContext->mvpTransformHandle = CHECK_GL(glGetUniformLocation(nativeContext->program, "mvpTransform"));
-    assert(nativeContext->mvpTransformHandle != -1);
+    eglDestroyContext(sharedContext->display, sharedContext->context);
 
-    nativeContext->texTransformHandle = CHECK_GL(glGetUniformLocation(nativeContext->program, "texTransform"));
-    assert(nativeContext->texTransformHandle != -1);
+    eglTerminate(sharedContext->display);
+
+    delete sharedContext;
+}
+
+JNIEXPORT jlong JNICALL
+Java_com_joyuiyeongl_ypreviewjava_OpenGLRenderer_initContext(JNIEnv *env, jclass clazz,
+                                                             jlong jsharedContext,
+                                                             jobject jtexTransformBuffer,
+                                                             jobject jstageTimingsBuffer,
+                                                             jobject jdetachGenerationsBuffer) {
+    const GLfloat *texTransform = GetMatrixAddress(env, jtexTransformBuffer);
+    if (texTransform == nullptr) {
+        ThrowException(env, "java/lang/IllegalArgumentException",
+                       "Transforms must be direct float buffers holding at least 16 floats.");
+        return 0;
+    }
+    jlong *stageTimings = GetStageTimingsAddress(env, jstageTimingsBuffer);
+    if (stageTimings == nullptr) {
+        ThrowException(env, "java/lang/IllegalArgumentException",
+                       "Stage timings must be a direct long buffer holding at least 12 longs.");
+        return 0;
+    }
+    const jint *detachGenerations = GetDetachGenerationsAddress(env, jdetachGenerationsBuffer);
+    if (detachGenerations == nullptr) {
+        ThrowException(env, "java/lang/IllegalArgumentException",
+                       "Detach generations must be a direct int buffer holding 1 int per output.");
+        return 0;
+    }
+
+    auto *sharedContext = reinterpret_cast<SharedContext *>(jsharedContext);
+    auto *nativeContext = new NativeContext(sharedContext);
+    sharedContext->rendererCount++;
+
+    nativeContext->texTransform = texTransform;
+    nativeContext->stageTimings = stageTimings;
+    nativeContext->detachGenerations = detachGenerations;
 
     CHECK_GL(glGenTextures(1, &(nativeContext->textureId)));
 
+    InitGpuTimer(&(nativeContext->gpuTimer));
+    nativeContext->gpuTimer.disjointEvents = sharedContext->gpuDisjointEvents;
+    InitCaptureEngine(nativeContext);
+    stageTimings[TIMING_GPU_SUPPORTED] = nativeContext->gpuTimer.supported ? 1 : 0;
+    stageTimings[TIMING_GPU_DRAW_NS] = -1;
+    for (int stage = 0; stage < MAX_EFFECT_STAGES; stage++) {
+        stageTimings[TIMING_EFFECT_GPU_NS + stage] = -1;
+    }
+
     return reinterpret_cast<jlong>(nativeContext);
 }
 
 JNIEXPORT jboolean JNICALL
-Java_com_joyuiyeongl_ypreviewjava_OpenGLRenderer_setWindowSurface(JNIEnv *env, jclass clazz, jlong context,
-                                                                  jobject jsurface) {
+Java_com_joyuiyeongl_ypreviewjava_OpenGLRenderer_setOutputSurface(JNIEnv *env, jclass clazz, jlong context,
+                                                                  jint output, jobject jsurface,
+                                                                  jobject jmvpTransformBuffer,
+                                                                  jint detachGeneration) {
     auto *nativeContext = reinterpret_cast<NativeContext *>(context);
+    if (output < 0 || output >= MAX_OUTPUT_SURFACES) {
+        ThrowException(env, "java/lang/IllegalArgumentException", "Invalid output index.");
+        return JNI_FALSE;
+    }
 
     // Destroy previously connected surface
-    DestroySurface(nativeContext);
+    DestroyOutputSurface(nativeContext, output);
 
     // Null surface may have just been passed in to destroy previous surface.
     if (!jsurface) {
         return JNI_FALSE;
     }
 
+    const GLfloat *mvpTransform = GetMatrixAddress(env, jmvpTransformBuffer);
+    if (mvpTransform == nullptr) {
+        ThrowException(env, "java/lang/IllegalArgumentException",
+                       "Transforms must be direct float buffers holding at least 16 floats.");
+        return JNI_FALSE;
+    }
+
     ANativeWindow *nativeWindow = ANativeWindow_fromSurface(env, jsurface);
     if (nativeWindow == nullptr) {
         __android_log_print(ANDROID_LOG_ERROR, LOG_TAG, "Failed to set window surface: Unable to "
@@ -379,156 +1829,482 @@ Java_com_joyuiyeongl_ypreviewjava_OpenGLRenderer_setWindowSurface(JNIEnv *env, j
         return JNI_FALSE;
     }
 
+    // The window may already be going away if it was detached since this was queued, in which
+    // case creating a surface would connect to it.
+    OutputSurface &outputSurface = nativeContext->outputs[output];
+    outputSurface.detachGeneration = detachGeneration;
+    if (!IsOutputWindowUsable(nativeContext, output)) {
+        ANativeWindow_release(nativeWindow);
+        outputSurface = OutputSurface();
+        return JNI_FALSE;
+    }
     EGLSurface surface =
             eglCreateWindowSurface(nativeContext->display, nativeContext->config,
                                    nativeWindow, /*attrib_list=*/nullptr);
-    assert(surface != EGL_NO_SURFACE);
-
-    nativeContext->windowSurface = std::make_pair(nativeWindow, surface);
-
-    eglMakeCurrent(nativeContext->display, surface, surface,
-                   nativeContext->context);
+    if (surface == EGL_NO_SURFACE) {
+        __android_log_print(ANDROID_LOG_ERROR, LOG_TAG, "Failed to create window surface with EGL "
+                                                        "error: %s",
+                            EGLErrorString(eglGetError()).c_str());
+        ANativeWindow_release(nativeWindow);
+        outputSurface = OutputSurface();
+        return JNI_FALSE;
+    }
 
-    CHECK_GL(glViewport(0, 0, ANativeWindow_getWidth(nativeWindow), ANativeWindow_getHeight(nativeWindow)));
-    CHECK_GL(glScissor(0, 0, ANativeWindow_getWidth(nativeWindow), ANativeWindow_getHeight(nativeWindow)));
+    // The surface is made current and the viewport sized to it when the output is first drawn.
+    outputSurface.window = nativeWindow;
+    outputSurface.surface = surface;
+    outputSurface.width = ANativeWindow_getWidth(nativeWindow);
+    outputSurface.height = ANativeWindow_getHeight(nativeWindow);
+    outputSurface.mvpTransform = mvpTransform;
 
     return JNI_TRUE;
 }
 
 JNIEXPORT jint JNICALL
-Java_com_joyuiyeongl_ypreviewjava_OpenGLRenderer_getTexName(JNIEnv *env, jclass clazz, jlong context) {
-    auto *nativeContext = reinterpret_cast<NativeContext *>(context);
-    return nativeContext->textureId;
-}
-
-JNIEXPORT jboolean JNICALL
-Java_com_joyuiyeongl_ypreviewjava_OpenGLRenderer_renderTexture(JNIEnv *env, jclass clazz, jlong context,
-                                                               jlong timestampNs,
-                                                               jfloatArray jmvpTransformArray, jboolean mvpDirty,
-                                                               jfloatArray jtexTransformArray) {
+Java_com_joyuiyeongl_ypreviewjava_OpenGLRenderer_captureTexture(JNIEnv *env, jclass clazz, jlong context,
+                                                                jobject jmvpTransform,
+                                                                jobject jdestination, jint width,
+                                                                jint height) {
     auto *nativeContext = reinterpret_cast<NativeContext *>(context);
+    CaptureEngine &capture = nativeContext->capture;
+    int slotIndex = FindFreeCaptureSlot(capture);
+    if (slotIndex < 0) {
+        return -1;
+    }
+    CaptureSlot &slot = capture.slots[slotIndex];
 
-    // We use two triangles drawn with GL_TRIANGLE_STRIP to create the surface which will be
-    // textured with the camera frame. This could also be done with a quad (GL_QUADS) on a
-    // different version of OpenGL or with a scaled single triangle in which we would inscribe
-    // the camera texture.
-    //
-    //                       (-1,-1)         (1,-1)
-    //                          +---------------+
-    //                          | \_            |
-    //                          |    \_         |
-    //                          |       +       |
-    //                          |         \_    |
-    //                          |            \_ |
-    //                          +---------------+
-    //                       (-1,1)           (1,1)
-    constexpr GLfloat vertices[] = {
-            -1.0f, 1.0f, // Lower-left
-            1.0f, 1.0f, // Lower-right
-            -1.0f, -1.0f, // Upper-left (notice order here. We're drawing triangles, not a quad.)
-            1.0f, -1.0f  // Upper-right
-    };
-    constexpr GLfloat texCoords[] = {
-            0.0f, 0.0f, // Lower-left
-            1.0f, 0.0f, // Lower-right
-            0.0f, 1.0f, // Upper-left (order must match the vertices)
-            1.0f, 1.0f  // Upper-right
-    };
-
-    GLint vertexComponents = 2;
-    GLenum vertexType = GL_FLOAT;
-    GLboolean normalized = GL_FALSE;
-    GLsizei vertexStride = 0;
-    CHECK_GL(
-            glVertexAttribPointer(nativeContext->positionHandle, vertexComponents, vertexType, normalized, vertexStride,
-                                  vertices));
-    CHECK_GL(glEnableVertexAttribArray(nativeContext->positionHandle));
-    CHECK_GL(glVertexAttribPointer(nativeContext->texCoordsHandle, vertexComponents, vertexType, normalized,
-                                   vertexStride, texCoords));
-    CHECK_GL(glEnableVertexAttribArray(nativeContext->texCoordsHandle));
-    CHECK_GL(glUseProgram(nativeContext->program));
+    auto *mvpTransform = static_cast<GLfloat *>(env->GetDirectBufferAddress(jmvpTransform));
+    void *destination = env->GetDirectBufferAddress(jdestination);
+    if (mvpTransform == nullptr || destination == nullptr
+        || env->GetDirectBufferCapacity(jdestination) < static_cast<jlong>(width) * height * 4) {
+        return -1;
+    }
 
+    PrepareQuadDraw(nativeContext);
+    UseOutputProgram(nativeContext);
+    if (!BeginCaptureDraw(nativeContext, &slot, &(capture.target), width, height)) {
+        return -1;
+    }
     GLsizei numMatrices = 1;
     GLboolean transpose = GL_FALSE;
-    // Only re-upload MVP to GPU if it is dirty
-    if (mvpDirty) {
-        GLfloat *mvpTransformArray = env->GetFloatArrayElements(jmvpTransformArray, nullptr);
-        CHECK_GL(glUniformMatrix4fv(nativeContext->mvpTransformHandle, numMatrices, transpose, mvpTransformArray));
-        env->ReleaseFloatArrayElements(jmvpTransformArray, mvpTransformArray, JNI_ABORT);
-    }
+    CHECK_GL(glUniformMatrix4fv(nativeContext->texTransformHandle, numMatrices, transpose,
+                                nativeContext->texTransform));
+    CHECK_GL(glUniformMatrix4fv(nativeContext->mvpTransformHandle, numMatrices, transpose,
+                                mvpTransform));
+    CHECK_GL(glBindTexture(GL_TEXTURE_EXTERNAL_OES, nativeContext->textureId));
+    CHECK_GL(glDrawArrays(GL_TRIANGLE_STRIP, 0, QUAD_VERTEX_COUNT));
 
-    CHECK_GL(glUniform1i(nativeContext->samplerHandle, 0));
+    return EndCaptureDraw(nativeContext, &slot, destination, width, height) ? slotIndex : -1;
+}
 
-    numMatrices = 1;
-    transpose = GL_FALSE;
-    GLfloat *texTransformArray = env->GetFloatArrayElements(jtexTransformArray, nullptr);
-    CHECK_GL(glUniformMatrix4fv(nativeContext->texTransformHandle, numMatrices, transpose, texTransformArray));
-    env->ReleaseFloatArrayElements(jtexTransformArray, texTransformArray, JNI_ABORT);
+JNIEXPORT jint JNICALL
+Java_com_joyuiyeongl_ypreviewjava_OpenGLRenderer_captureTensor(JNIEnv *env, jclass clazz, jlong context,
+                                                               jobject jparams,
+                                                               jobject jdestination, jint width,
+                                                               jint height, jint dataType) {
+    auto *nativeContext = reinterpret_cast<NativeContext *>(context);
+    CaptureEngine &capture = nativeContext->capture;
+    int slotIndex = FindFreeCaptureSlot(capture);
+    TensorProgram *tensorProgram = GetTensorProgram(nativeContext, dataType);
+    if (slotIndex < 0 || tensorProgram == nullptr) {
+        return -1;
+    }
+    CaptureSlot &slot = capture.slots[slotIndex];
+
+    // Each RGBA texel of the target holds 4 bytes of the tensor.
+    GLsizei elementsPerTexel = dataType == TENSOR_FLOAT16 ? 2 : 4;
+    GLsizei texelWidth = width * 3 / elementsPerTexel;
+    auto *params = static_cast<GLfloat *>(env->GetDirectBufferAddress(jparams));
+    void *destination = env->GetDirectBufferAddress(jdestination);
+    if (params == nullptr || destination == nullptr || (width * 3) % elementsPerTexel != 0
+        || env->GetDirectBufferCapacity(jdestination)
+           < static_cast<jlong>(texelWidth) * height * 4) {
+        return -1;
+    }
 
+    PrepareQuadDraw(nativeContext);
+    if (!BeginCaptureDraw(nativeContext, &slot, &(capture.tensorTarget), texelWidth, height)) {
+        return -1;
+    }
+    UseProgram(nativeContext, tensorProgram->program);
+    CHECK_GL(glUniform1i(tensorProgram->samplerHandle, 0));
+    CHECK_GL(glUniformMatrix4fv(tensorProgram->sampleTransformHandle, /*count=*/1, GL_FALSE,
+                                params + TENSOR_PARAM_SAMPLE_TRANSFORM));
+    CHECK_GL(glUniform2f(tensorProgram->tensorSizeHandle, static_cast<GLfloat>(width),
+                         static_cast<GLfloat>(height)));
+    CHECK_GL(glUniform3fv(tensorProgram->meanHandle, /*count=*/1, params + TENSOR_PARAM_MEAN));
+    CHECK_GL(glUniform3fv(tensorProgram->invStdHandle, /*count=*/1,
+                          params + TENSOR_PARAM_INV_STD));
+    CHECK_GL(glUniform1f(tensorProgram->swapRedBlueHandle,
+                         params[TENSOR_PARAM_SWAP_RED_BLUE]));
     CHECK_GL(glBindTexture(GL_TEXTURE_EXTERNAL_OES, nativeContext->textureId));
+    CHECK_GL(glDrawArrays(GL_TRIANGLE_STRIP, 0, QUAD_VERTEX_COUNT));
 
-    // Required to use a left-handed coordinate system in order to match our world-space
-    //
-    //                    ________+x
-    //                  /|
-    //                 / |
-    //              +z/  |
-    //                   | +y
-    //
-    glFrontFace(GL_CW);
+    return EndCaptureDraw(nativeContext, &slot, destination, texelWidth, height) ? slotIndex
+                                                                                 : -1;
+}
 
-    // This will typically fail if the EGL surface has been detached abnormally. In that case we
-    // will return JNI_FALSE below.
-    glDrawArrays(GL_TRIANGLE_STRIP, 0, 4);
+JNIEXPORT jlong JNICALL
+Java_com_joyuiyeongl_ypreviewjava_OpenGLRenderer_createEffectStage(JNIEnv *env, jclass clazz,
+                                                                   jlong context,
+                                                                   jstring jexternalSource,
+                                                                   jstring jtexture2dSource,
+                                                                   jobjectArray juniformNames,
+                                                                   jintArray juniformSizes,
+                                                                   jobject juniformValues) {
+    auto *nativeContext = reinterpret_cast<NativeContext *>(context);
+    jsize uniformCount = env->GetArrayLength(juniformNames);
+    auto *uniformValues = static_cast<const GLfloat *>(env->GetDirectBufferAddress(juniformValues));
+    if (uniformCount > MAX_EFFECT_UNIFORMS || env->GetArrayLength(juniformSizes) != uniformCount
+        || uniformValues == nullptr || env->GetDirectBufferCapacity(juniformValues)
+                                       < static_cast<jlong>(uniformCount) * EFFECT_UNIFORM_STRIDE) {
+        ThrowException(env, "java/lang/IllegalArgumentException",
+                       "Invalid effect uniforms.");
+        return 0;
+    }
 
-    // Check that all GL operations completed successfully. If not, log an error and return.
-    GLenum glError = glGetError();
-    if (glError != GL_NO_ERROR) {
-        __android_log_print(ANDROID_LOG_ERROR, LOG_TAG, "Failed to draw frame due to OpenGL error: %s",
-                            GLErrorString(glError).c_str());
-        return JNI_FALSE;
+    auto *stage = new EffectStage();
+    stage->uniformValues = uniformValues;
+    const char *externalSource = env->GetStringUTFChars(jexternalSource, nullptr);
+    const char *texture2dSource = env->GetStringUTFChars(jtexture2dSource, nullptr);
+    bool built = BuildEffectProgram(nativeContext, externalSource, &(stage->external))
+                 && BuildEffectProgram(nativeContext, texture2dSource, &(stage->texture2d));
+    env->ReleaseStringUTFChars(jexternalSource, externalSource);
+    env->ReleaseStringUTFChars(jtexture2dSource, texture2dSource);
+    if (!built) {
+        DestroyEffectStage(nativeContext, stage);
+        return 0;
     }
 
-// Only attempt to set presentation time if EGL_EGLEXT_PROTOTYPES is defined.
-// Otherwise, we'll ignore the timestamp.
-#ifdef EGL_EGLEXT_PROTOTYPES
-    eglPresentationTimeANDROID(nativeContext->display,
-                               nativeContext->windowSurface.second, timestampNs);
-#endif  // EGL_EGLEXT_PROTOTYPES
-    EGLBoolean swapped = eglSwapBuffers(nativeContext->display,
-                                        nativeContext->windowSurface.second);
-    if (!swapped) {
-        EGLenum eglError = eglGetError();
-        __android_log_print(ANDROID_LOG_ERROR, LOG_TAG, "Failed to swap buffers with EGL error: %s",
-                            EGLErrorString(eglError).c_str());
-        return JNI_FALSE;
+    env->GetIntArrayRegion(juniformSizes, 0, uniformCount, stage->uniformSizes);
+    for (jsize uniform = 0; uniform < uniformCount; uniform++) {
+        auto jname = static_cast<jstring>(env->GetObjectArrayElement(juniformNames, uniform));
+        const char *name = env->GetStringUTFChars(jname, nullptr);
+        // -1 if the effect doesn't use the uniform, which glUniform*() then ignores.
+        stage->external.uniformHandles[uniform] =
+                CHECK_GL(glGetUniformLocation(stage->external.program, name));
+        stage->texture2d.uniformHandles[uniform] =
+                CHECK_GL(glGetUniformLocation(stage->texture2d.program, name));
+        env->ReleaseStringUTFChars(jname, name);
+        env->DeleteLocalRef(jname);
     }
+    stage->uniformCount = uniformCount;
+    return reinterpret_cast<jlong>(stage);
+}
 
-    return JNI_TRUE;
+JNIEXPORT void JNICALL
+Java_com_joyuiyeongl_ypreviewjava_OpenGLRenderer_setEffectChain(JNIEnv *env, jclass clazz,
+                                                                jlong context,
+                                                                jlongArray jstages,
+                                                                jint stageCount) {
+    auto *nativeContext = reinterpret_cast<NativeContext *>(context);
+    if (stageCount < 0 || stageCount > MAX_EFFECT_STAGES
+        || stageCount > env->GetArrayLength(jstages)) {
+        ThrowException(env, "java/lang/IllegalArgumentException", "Invalid effect stage count.");
+        return;
+    }
+    jlong stages[MAX_EFFECT_STAGES];
+    env->GetLongArrayRegion(jstages, 0, stageCount, stages);
+    EffectChain &chain = nativeContext->effects;
+    for (jint position = 0; position < stageCount; position++) {
+        chain.stages[position] = reinterpret_cast<EffectStage *>(stages[position]);
+    }
+    chain.stageCount = stageCount;
+    if (stageCount < 2) {
+        // No offscreen pass left to draw.
+        for (RenderTarget &target : chain.targets) {
+            DestroyRenderTarget(&target);
+        }
+    }
 }
 
 JNIEXPORT void JNICALL
 Java_com_joyuiyeongl_ypreviewjava_OpenGLRenderer_closeContext(JNIEnv *env, jclass clazz, jlong context) {
     auto *nativeContext = reinterpret_cast<NativeContext *>(context);
 
-    if (nativeContext->program) {
-        CHECK_GL(glDeleteProgram(nativeContext->program));
-        nativeContext->program = 0;
+    if (nativeContext->gpuTimer.supported) {
+        CHECK_GL(nativeContext->gpuTimer.deleteQueries(GPU_TIMER_QUERIES,
+                                                       nativeContext->gpuTimer.queries));
+        CHECK_GL(nativeContext->gpuTimer.deleteQueries(
+                GPU_TIMER_QUERIES * (MAX_EFFECT_STAGES - 1),
+                &(nativeContext->gpuTimer.effectQueries[0][0])));
+        nativeContext->gpuTimer = GpuTimer();
     }
 
-    DestroySurface(nativeContext);
-
-    eglDestroySurface(nativeContext->display, nativeContext->pbufferSurface);
+    DestroyCaptureEngine(nativeContext);
 
-    eglMakeCurrent(nativeContext->display, EGL_NO_SURFACE, EGL_NO_SURFACE,
-                   EGL_NO_CONTEXT);
+    // The stages are destroyed by the Java renderer, only the chain's targets are left.
+    for (RenderTarget &target : nativeContext->effects.targets) {
+        DestroyRenderTarget(&target);
+    }
+    nativeContext->effects = EffectChain();
 
-    eglDestroyContext(nativeContext->display, nativeContext->context);
+    for (int output = 0; output < MAX_OUTPUT_SURFACES; output++) {
+        DestroyOutputSurface(nativeContext, output);
+    }
 
-    eglTerminate(nativeContext->display);
+    // The context and the output program outlive the renderer, they belong to the shared
+    // context.
+    if (nativeContext->textureId) {
+        CHECK_GL(glDeleteTextures(1, &(nativeContext->textureId)));
+        nativeContext->textureId = 0;
+    }
+    nativeContext->shared->rendererCount--;
 
     delete nativeContext;
 }
 }  // extern "C"
 
+namespace {
+    // The per-frame natives take primitives only, so a call never pins or copies a Java array.
+    // They are registered in JNI_OnLoad, which only saves the lookup by name the runtime does
+    // on the first call of a method and caches afterwards; a call costs the same either way.
+    // JniCrossingBenchmark compares the matrix upload with pinning arrays on every frame.
+    jint GetTexName(JNIEnv *env, jclass clazz, jlong context) {
+        auto *nativeContext = reinterpret_cast<NativeContext *>(context);
+        return nativeContext->textureId;
+    }
+
+    // Draws the latest texture to each output in outputMask in a single pass, uploading the MVP
+    // of an output again if it is in mvpDirtyMask or another output was drawn in between. With
+    // an effect chain, the texture is first drawn through all but the last stage offscreen and
+    // the last stage draws to the outputs, so a single stage costs no offscreen pass at all.
+    // Returns the mask of the outputs that were drawn and presented.
+    jint RenderTexture(JNIEnv *env, jclass clazz, jlong context, jint outputMask,
+                       jint mvpDirtyMask, jlong presentationTimeNs) {
+        auto *nativeContext = reinterpret_cast<NativeContext *>(context);
+        jlong *stageTimings = nativeContext->stageTimings;
+        jlong drawStartNs = NowNs();
+        jlong drawNs = 0;
+        jlong swapNs = 0;
+        nativeContext->glCalls = 0;
+
+        GpuTimer &gpuTimer = nativeContext->gpuTimer;
+        if (gpuTimer.supported) {
+            PollGpuTimer(nativeContext);
+        }
+        // Only the draw to the first output is timed on the GPU. A query spanning a buffer swap
+        // would also count the time the GPU sits idle while the CPU is blocked in the swap.
+        bool gpuTimed = gpuTimer.supported && gpuTimer.pending < GPU_TIMER_QUERIES;
+
+        PrepareQuadDraw(nativeContext);
+
+        GLsizei numMatrices = 1;
+        GLboolean transpose = GL_FALSE;
+        int effectStageCount = nativeContext->effects.stageCount;
+        if (effectStageCount > 0 && !DrawEffectPasses(nativeContext, gpuTimed)) {
+            __android_log_print(ANDROID_LOG_ERROR, LOG_TAG,
+                                "Unable to draw effect passes, drawing the frame without them.");
+            effectStageCount = 0;
+        }
+        if (gpuTimed) {
+            gpuTimer.effectStageCounts[gpuTimer.next] = effectStageCount;
+        }
+        GLint mvpTransformHandle = nativeContext->mvpTransformHandle;
+        if (effectStageCount > 0) {
+            // The inputs and uniforms of the last stage are shared by all outputs.
+            mvpTransformHandle =
+                    PrepareEffectStage(nativeContext, effectStageCount - 1).mvpTransformHandle;
+        } else {
+            UseOutputProgram(nativeContext);
+            // The texture transform and the texture are shared by all outputs.
+            DRAW_GL(nativeContext,
+                    glUniformMatrix4fv(nativeContext->texTransformHandle, numMatrices, transpose,
+                                       nativeContext->texTransform));
+
+            DRAW_GL(nativeContext,
+                    glBindTexture(GL_TEXTURE_EXTERNAL_OES, nativeContext->textureId));
+        }
+
+        jint drawnMask = 0;
+        for (int output = 0; output < MAX_OUTPUT_SURFACES; output++) {
+            const OutputSurface &outputSurface = nativeContext->outputs[output];
+            if ((outputMask & (1 << output)) == 0 || outputSurface.window == nullptr) {
+                continue;
+            }
+            // The window is going away. Let go of it without drawing, the detach that follows
+            // finds the output already destroyed. Destroying the EGL surface after the view
+            // destroyed its Surface is safe with a conforming EGL: the EGL surface and the window
+            // reference keep the producer end of the buffer queue alive, and with its consumer
+            // gone it fails calls with NO_INIT rather than touching freed memory. Drivers that
+            // crash instead, such as swiftshader (b/74108717), get a blocking detach.
+            if (!IsOutputWindowUsable(nativeContext, output)) {
+                DestroyOutputSurface(nativeContext, output);
+                continue;
+            }
+            MakeOutputCurrent(nativeContext, output);
+
+            // Only re-upload MVP to GPU if it is dirty or belongs to another output. The cache
+            // only tracks the output program, an effect's MVP is always uploaded.
+            if (effectStageCount > 0) {
+                DRAW_GL(nativeContext,
+                        glUniformMatrix4fv(mvpTransformHandle, numMatrices, transpose,
+                                           outputSurface.mvpTransform));
+            } else if ((mvpDirtyMask & (1 << output)) != 0
+                       || nativeContext->glState.mvpOutput != &outputSurface) {
+                DRAW_GL(nativeContext,
+                        glUniformMatrix4fv(mvpTransformHandle, numMatrices,
+                                           transpose, outputSurface.mvpTransform));
+                nativeContext->glState.mvpOutput = &outputSurface;
+            }
+
+            if (gpuTimed) {
+                DRAW_GL(nativeContext,
+                        gpuTimer.beginQuery(GL_TIME_ELAPSED_EXT, gpuTimer.queries[gpuTimer.next]));
+            }
+
+            // This will typically fail if the EGL surface has been detached abnormally. In that
+            // case the output is left out of the returned mask.
+            DRAW_GL(nativeContext, glDrawArrays(GL_TRIANGLE_STRIP, 0, QUAD_VERTEX_COUNT));
+
+            if (gpuTimed) {
+                DRAW_GL(nativeContext, gpuTimer.endQuery(GL_TIME_ELAPSED_EXT));
+                gpuTimer.next = (gpuTimer.next + 1) % GPU_TIMER_QUERIES;
+                gpuTimer.pending++;
+                gpuTimed = false;
+            }
+
+            // Check that all GL operations completed successfully. If not, log an error and
+            // skip the output.
+            GLenum glError = DRAW_GL(nativeContext, glGetError());
+            jlong swapStartNs = NowNs();
+            drawNs += swapStartNs - drawStartNs;
+            if (glError != GL_NO_ERROR) {
+                __android_log_print(ANDROID_LOG_ERROR, LOG_TAG,
+                                    "Failed to draw frame to output %d due to OpenGL error: %s",
+                                    output, GLErrorString(glError).c_str());
+                drawStartNs = NowNs();
+                continue;
+            }
+
+            // Only attempt to set presentation time if EGL_EGLEXT_PROTOTYPES is defined.
+            // Otherwise, we'll ignore the timestamp.
+#ifdef EGL_EGLEXT_PROTOTYPES
+            eglPresentationTimeANDROID(nativeContext->display, outputSurface.surface,
+                                       presentationTimeNs);
+#endif  // EGL_EGLEXT_PROTOTYPES
+            // Checked again, a detach may have been signaled while drawing. The frame is then
+            // dropped rather than queued to a window that is going away.
+            if (!IsOutputWindowUsable(nativeContext, output)) {
+                DestroyOutputSurface(nativeContext, output);
+                drawStartNs = NowNs();
+                continue;
+            }
+            EGLBoolean swapped = eglSwapBuffers(nativeContext->display, outputSurface.surface);
+            drawStartNs = NowNs();
+            swapNs += drawStartNs - swapStartNs;
+            if (!swapped) {
+                EGLenum eglError = eglGetError();
+                __android_log_print(ANDROID_LOG_ERROR, LOG_TAG,
+                                    "Failed to swap buffers of output %d with EGL error: %s",
+                                    output, EGLErrorString(eglError).c_str());
+                continue;
+            }
+            drawnMask |= 1 << output;
+        }
+
+        nativeContext->lastFrameGlCalls = nativeContext->glCalls;
+        stageTimings[TIMING_DRAW_CPU_NS] = drawNs + (NowNs() - drawStartNs);
+        stageTimings[TIMING_SWAP_CPU_NS] = swapNs;
+        return drawnMask;
+    }
+
+    jint GetLastFrameGlCallCount(JNIEnv *env, jclass clazz, jlong context) {
+        auto *nativeContext = reinterpret_cast<NativeContext *>(context);
+        return nativeContext->lastFrameGlCalls;
+    }
+
+    // Counts a drawn frame and reads back the captures issued at least CAPTURE_LATENCY_FRAMES
+    // frames ago that the GPU has finished, without waiting for the others. Returns the mask of
+    // the capture slots that were delivered.
+    jint PollCaptures(JNIEnv *env, jclass clazz, jlong context) {
+        auto *nativeContext = reinterpret_cast<NativeContext *>(context);
+        CaptureEngine &capture = nativeContext->capture;
+        capture.frame++;
+        jint doneMask = 0;
+        for (int slotIndex = 0; slotIndex < CAPTURE_SLOTS; slotIndex++) {
+            CaptureSlot &slot = capture.slots[slotIndex];
+            if (!slot.inFlight || capture.frame - slot.frame < CAPTURE_LATENCY_FRAMES
+                || !IsCaptureDone(nativeContext, slot)) {
+                continue;
+            }
+            ReadBackCapture(nativeContext, &slot);
+            doneMask |= 1 << slotIndex;
+        }
+        return doneMask;
+    }
+
+    void DestroyEffectStageNative(JNIEnv *env, jclass clazz, jlong context, jlong stage) {
+        auto *nativeContext = reinterpret_cast<NativeContext *>(context);
+        DestroyEffectStage(nativeContext, reinterpret_cast<EffectStage *>(stage));
+    }
+
+    // Sets the size of the offscreen targets of the effect chain. The targets are reallocated
+    // when next drawn, only if the size changed.
+    void SetEffectTargetSize(JNIEnv *env, jclass clazz, jlong context, jint width, jint height) {
+        auto *nativeContext = reinterpret_cast<NativeContext *>(context);
+        nativeContext->effects.width = width > 0 ? width : 1;
+        nativeContext->effects.height = height > 0 ? height : 1;
+    }
+
+    // Sets the size of the buffers of an output, which the compositor scales to the window, or
+    // back to the window's size if width and height are 0. The EGL surface picks up the size
+    // with the next buffer it dequeues, and the viewport is sized to it on the next draw.
+    void SetOutputBufferSize(JNIEnv *env, jclass clazz, jlong context, jint output, jint width,
+                             jint height) {
+        auto *nativeContext = reinterpret_cast<NativeContext *>(context);
+        if (output < 0 || output >= MAX_OUTPUT_SURFACES) {
+            return;
+        }
+        OutputSurface &outputSurface = nativeContext->outputs[output];
+        if (outputSurface.window == nullptr) {
+            return;
+        }
+        if (!IsOutputWindowUsable(nativeContext, output)) {
+            DestroyOutputSurface(nativeContext, output);
+            return;
+        }
+        int32_t result = ANativeWindow_setBuffersGeometry(
+                outputSurface.window, width, height, ANativeWindow_getFormat(outputSurface.window));
+        if (result != 0) {
+            __android_log_print(ANDROID_LOG_ERROR, LOG_TAG,
+                                "Failed to set buffer geometry %dx%d: %d", width, height, result);
+            return;
+        }
+        outputSurface.width = width > 0 ? width : ANativeWindow_getWidth(outputSurface.window);
+        outputSurface.height = height > 0 ? height : ANativeWindow_getHeight(outputSurface.window);
+        if (nativeContext->glState.currentOutput == &outputSurface) {
+            nativeContext->glState.currentOutput = nullptr;
+        }
+    }
+
+    jboolean IsTensorTypeSupported(JNIEnv *env, jclass clazz, jlong context, jint dataType) {
+        auto *nativeContext = reinterpret_cast<NativeContext *>(context);
+        return GetTensorProgram(nativeContext, dataType) != nullptr ? JNI_TRUE : JNI_FALSE;
+    }
+
+    const JNINativeMethod kOpenGLRendererMethods[] = {
+            {"getTexName",              "(J)I",    reinterpret_cast<void *>(GetTexName)},
+            {"renderTexture",           "(JIIJ)I", reinterpret_cast<void *>(RenderTexture)},
+            {"getLastFrameGlCallCount", "(J)I",    reinterpret_cast<void *>(GetLastFrameGlCallCount)},
+            {"pollCaptures",            "(J)I",    reinterpret_cast<void *>(PollCaptures)},
+            {"isTensorTypeSupported",   "(JI)Z",   reinterpret_cast<void *>(IsTensorTypeSupported)},
+            {"destroyEffectStage",      "(JJ)V",   reinterpret_cast<void *>(DestroyEffectStageNative)},
+            {"setEffectTargetSize",     "(JII)V",  reinterpret_cast<void *>(SetEffectTargetSize)},
+            {"setOutputBufferSize",     "(JIII)V", reinterpret_cast<void *>(SetOutputBufferSize)},
+    };
+}  // namespace
+
+jint RegisterOpenGLRendererNatives(JNIEnv *env) {
+    jclass clazz = env->FindClass("com/joyuiyeongl/ypreviewjava/OpenGLRenderer");
+    if (clazz == nullptr) {
+        return JNI_ERR;
+    }
+    jint result = env->RegisterNatives(clazz, kOpenGLRendererMethods,
+                                       sizeof(kOpenGLRendererMethods) / sizeof(JNINativeMethod));
+    env->DeleteLocalRef(clazz);
+    return result;
+}
+
+#undef DRAW_GL
 #undef CHECK_GL
\ No newline at end of file
@@ -0,0 +1,10 @@
+#ifndef YPREVIEWJAVA_OPENGL_RENDERER_JNI_H
+#define YPREVIEWJAVA_OPENGL_RENDERER_JNI_H
+
+#include <jni.h>
+
+// Registers the OpenGLRenderer natives that are not resolved by symbol name.
+// Returns JNI_OK on success.
+jint RegisterOpenGLRendererNatives(JNIEnv *env);
+
+#endif  // YPREVIEWJAVA_OPENGL_RENDERER_JNI_H
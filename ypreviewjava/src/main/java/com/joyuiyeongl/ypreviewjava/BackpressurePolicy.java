@@ -0,0 +1,76 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joyuiyeongl.ypreviewjava;
+
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+
+/**
+ * Decides which frame events a subscriber receives when it cannot keep up with the renderer.
+ *
+ * <p>The renderer never waits for subscribers. Whatever the policy, a subscriber that falls
+ * further behind than the frame event bus can hold loses the oldest events.
+ */
+public final class BackpressurePolicy {
+    private static final BackpressurePolicy LATEST = new BackpressurePolicy(1, 1);
+
+    private final int mMaxBacklog;
+    private final int mSampleInterval;
+
+    private BackpressurePolicy(int maxBacklog, int sampleInterval) {
+        mMaxBacklog = maxBacklog;
+        mSampleInterval = sampleInterval;
+    }
+
+    /**
+     * Delivers every frame, dropping the oldest undelivered frames once more than
+     * {@code maxBacklog} are waiting.
+     */
+    @NonNull
+    public static BackpressurePolicy dropOldest(@IntRange(from = 1) int maxBacklog) {
+        if (maxBacklog < 1) {
+            throw new IllegalArgumentException("Invalid backlog. Must allow at least 1 frame.");
+        }
+        return new BackpressurePolicy(maxBacklog, 1);
+    }
+
+    /**
+     * Only delivers the latest frame. Equivalent to {@code dropOldest(1)}.
+     */
+    @NonNull
+    public static BackpressurePolicy latest() {
+        return LATEST;
+    }
+
+    /**
+     * Delivers every {@code interval}-th frame, based on the frame number.
+     */
+    @NonNull
+    public static BackpressurePolicy sampleEveryNth(@IntRange(from = 1) int interval) {
+        if (interval < 1) {
+            throw new IllegalArgumentException("Invalid interval. Must be at least 1.");
+        }
+        return new BackpressurePolicy(Integer.MAX_VALUE, interval);
+    }
+
+    int getMaxBacklog() {
+        return mMaxBacklog;
+    }
+
+    int getSampleInterval() {
+        return mSampleInterval;
+    }
+}
@@ -1,9 +1,19 @@
 package com.joyuiyeongl.ypreviewjava;
 
+import static java.lang.annotation.RetentionPolicy.SOURCE;
+
+import android.content.Context;
 import android.graphics.Rect;
+import android.graphics.SurfaceTexture;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.params.StreamConfigurationMap;
 import android.hardware.display.DisplayManager;
 import android.util.Log;
+import android.util.Size;
 
+import androidx.annotation.IntDef;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.appcompat.app.AppCompatActivity;
@@ -12,6 +22,7 @@ import androidx.camera.core.Camera;
 import androidx.camera.core.CameraInfoUnavailableException;
 import androidx.camera.core.CameraSelector;
 import androidx.camera.core.Preview;
+import androidx.camera.core.UseCase;
 import androidx.camera.lifecycle.ProcessCameraProvider;
 import androidx.core.content.ContextCompat;
 import androidx.lifecycle.Lifecycle;
@@ -22,7 +33,15 @@ import androidx.window.WindowManager;
 
 import com.google.common.util.concurrent.ListenableFuture;
 
+import java.lang.annotation.Retention;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 
 /**
  * Class that helps CustomPreview bind into lifecycle owner
@@ -33,6 +52,22 @@ public class Binder implements LifecycleObserver {
     private static final double RATIO_4_3_VALUE = 4.0 / 3.0;
     private static final double RATIO_16_9_VALUE = 16.0 / 9.0;
 
+    /** Nothing changed since the last reconfiguration. */
+    public static final int RECONFIGURATION_NONE = 0;
+    /** Only the target rotation of the preview changed, which needs no new session. */
+    public static final int RECONFIGURATION_ROTATION = 1;
+    /** Use cases were bound or unbound along with the preview, which was left bound. */
+    public static final int RECONFIGURATION_USE_CASES = 2;
+    /** The preview and use cases were rebound to another lens. */
+    public static final int RECONFIGURATION_LENS = 3;
+    /** A new preview was built and bound, from scratch or for a new aspect ratio. */
+    public static final int RECONFIGURATION_REBIND = 4;
+
+    @Retention(SOURCE)
+    @IntDef({RECONFIGURATION_NONE, RECONFIGURATION_ROTATION, RECONFIGURATION_USE_CASES,
+            RECONFIGURATION_LENS, RECONFIGURATION_REBIND})
+    public @interface Reconfiguration {}
+
     @Nullable
     private ProcessCameraProvider cameraProvider = null;
     @Nullable
@@ -51,12 +86,52 @@ public class Binder implements LifecycleObserver {
 
     private int lensFacing = CameraSelector.LENS_FACING_FRONT;
 
+    // Use cases bound along with the preview, as requested and as currently bound. The preview
+    // is kept across reconfigurations that don't change its resolution or aspect ratio.
+    private final List<UseCase> requestedUseCases = new ArrayList<>();
+    private final List<UseCase> boundUseCases = new ArrayList<>();
+    @Nullable
+    private Preview preview = null;
+    private int boundLensFacing = CameraSelector.LENS_FACING_FRONT;
+    private int boundAspectRatio = AspectRatio.RATIO_4_3;
+    // Resolution the preview was built for, in the frame of the target rotation it was built
+    // with, or null if it was built for an aspect ratio.
+    @Nullable
+    private Size boundResolution = null;
+
+    // Picks the preview resolution for the size of the view, and the ids of the cameras it is
+    // picked for, by lens facing.
+    @NonNull
+    private final PreviewResolutionSelector resolutionSelector;
+    private final Map<Integer, String> cameraIds = new HashMap<>();
+    private final Map<String, Integer> sensorOrientations = new HashMap<>();
+
+    @Nullable
+    private Executor reconfigurationExecutor = null;
+    @Nullable
+    private ReconfigurationListener reconfigurationListener = null;
+
+    @Nullable
+    private Executor startupTraceExecutor = null;
+    @Nullable
+    private StartupTraceListener startupTraceListener = null;
+    private boolean startupTraceSections = false;
+    // Trace of the last camera setup, while it is in progress.
+    @Nullable
+    private StartupTracer startupTracer = null;
+
+    @Nullable
+    private Executor reconfigurationTraceExecutor = null;
+    @Nullable
+    private StartupTraceListener reconfigurationTraceListener = null;
+    private boolean reconfigurationTraceSections = false;
 
     public Binder(@NonNull PreviewView view, @NonNull LifecycleOwner owner) {
         previewView = view;
         lifecycleOwner = owner;
         displayManager = (DisplayManager) previewView.getContext().getSystemService(AppCompatActivity.DISPLAY_SERVICE);
         windowManager = new WindowManager(previewView.getContext());
+        resolutionSelector = createResolutionSelector(previewView);
 
         lifecycleOwner.getLifecycle().addObserver(this);
         previewView.inflate(false);
@@ -67,12 +142,84 @@ public class Binder implements LifecycleObserver {
         lifecycleOwner = owner;
         displayManager = (DisplayManager) previewView.getContext().getSystemService(AppCompatActivity.DISPLAY_SERVICE);
         windowManager = new WindowManager(previewView.getContext());
+        resolutionSelector = createResolutionSelector(previewView);
 
         previewView.inflate(isTextureView);
         lifecycleOwner.getLifecycle().addObserver(this);
     }
 
+    @NonNull
+    private PreviewResolutionSelector createResolutionSelector(@NonNull PreviewView view) {
+        CameraManager cameraManager =
+                (CameraManager) view.getContext().getSystemService(Context.CAMERA_SERVICE);
+        // Re-evaluate the resolution when the view is resized.
+        view.addOnLayoutChangeListener((v, left, top, right, bottom, oldLeft, oldTop, oldRight,
+                oldBottom) -> {
+            if ((right - left != oldRight - oldLeft || bottom - top != oldBottom - oldTop)
+                    && isCameraXInitialized()) {
+                rebind();
+            }
+        });
+        return new PreviewResolutionSelector(cameraId -> {
+            try {
+                StreamConfigurationMap map = cameraManager.getCameraCharacteristics(cameraId)
+                        .get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+                return map != null ? map.getOutputSizes(SurfaceTexture.class) : null;
+            } catch (CameraAccessException | IllegalArgumentException e) {
+                Log.e(TAG, "Output sizes of camera " + cameraId + " unavailable", e);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Sets the factor the view's pixel size is multiplied by to pick the preview resolution:
+     * the smallest size the camera supports covering it is requested. 1 by default, above for
+     * oversampling, below for cheaper previews.
+     */
+    public void setResolutionQualityFactor(float qualityFactor) {
+        resolutionSelector.setQualityFactor(qualityFactor);
+        if (isCameraXInitialized()) {
+            rebind();
+        }
+    }
+
+    /**
+     * Sets a listener which receives a {@link StartupTrace} of each {@link #setUpCamera()}: the
+     * time from the call to the first frame drawn, broken down by milestone.
+     *
+     * <p>Must be called before {@link #setUpCamera()} to trace it.
+     *
+     * @param traceSections Whether to also trace each phase as an asynchronous
+     *                      {@link android.os.Trace} section, on API 29 and above.
+     */
+    public void setStartupTraceListener(@NonNull Executor executor,
+            @NonNull StartupTraceListener listener, boolean traceSections) {
+        startupTraceExecutor = executor;
+        startupTraceListener = listener;
+        startupTraceSections = traceSections;
+    }
+
+    /**
+     * Removes the listener set with
+     * {@link #setStartupTraceListener(Executor, StartupTraceListener, boolean)}. Camera setups
+     * in progress are still traced.
+     */
+    public void clearStartupTraceListener() {
+        startupTraceExecutor = null;
+        startupTraceListener = null;
+    }
+
     public void setUpCamera() {
+        if (startupTracer != null) {
+            startupTracer.abandon();
+            startupTracer = null;
+        }
+        if (startupTraceListener != null) {
+            startupTracer = new StartupTracer(startupTraceExecutor, startupTraceListener,
+                    startupTraceSections);
+            previewView.setStartupTracer(startupTracer);
+        }
         ListenableFuture<ProcessCameraProvider> cameraProviderFuture = ProcessCameraProvider.getInstance(previewView.getContext());
         cameraProviderFuture.addListener(() -> {
             try {
@@ -81,6 +228,7 @@ public class Binder implements LifecycleObserver {
                 e.printStackTrace();
                 cameraProvider = null;
             }
+            markStartup(StartupTrace.MILESTONE_CAMERA_PROVIDER_READY);
 
             setUpLensFacing();
 
@@ -88,29 +236,285 @@ public class Binder implements LifecycleObserver {
         }, ContextCompat.getMainExecutor(previewView.getContext()));
     }
 
+    /**
+     * Sets the lens the preview is taken from, one of the {@link CameraSelector} lens facings,
+     * switching to it if the camera is set up.
+     */
+    public void setLensFacing(int facing) {
+        lensFacing = facing;
+        if (isCameraXInitialized()) {
+            rebind();
+        }
+    }
+
+    /**
+     * Sets the use cases bound along with the preview, such as an image analysis, replacing the
+     * previous ones. Only the use cases added or removed are bound or unbound.
+     */
+    public void setUseCases(@NonNull UseCase... useCases) {
+        requestedUseCases.clear();
+        requestedUseCases.addAll(Arrays.asList(useCases));
+        if (isCameraXInitialized()) {
+            rebind();
+        }
+    }
+
+    /**
+     * Sets a listener which receives the path each reconfiguration took and how long it took.
+     */
+    public void setReconfigurationListener(@NonNull Executor executor,
+            @NonNull ReconfigurationListener listener) {
+        reconfigurationExecutor = executor;
+        reconfigurationListener = listener;
+    }
+
+    /**
+     * Sets a listener which receives a {@link StartupTrace} of each lens switch and preview
+     * rebuild after the camera is set up: the time from the reconfiguration to the first frame
+     * of the reconfigured stream drawn. The trace starts at
+     * {@link StartupTrace#MILESTONE_CAMERA_PROVIDER_READY}, reached when the reconfiguration
+     * does, and goes on with the milestones of a camera setup.
+     *
+     * @param traceSections Whether to also trace each phase as an asynchronous
+     *                      {@link android.os.Trace} section, on API 29 and above.
+     */
+    public void setReconfigurationTraceListener(@NonNull Executor executor,
+            @NonNull StartupTraceListener listener, boolean traceSections) {
+        reconfigurationTraceExecutor = executor;
+        reconfigurationTraceListener = listener;
+        reconfigurationTraceSections = traceSections;
+    }
+
+    /**
+     * Removes the listener set with
+     * {@link #setReconfigurationTraceListener(Executor, StartupTraceListener, boolean)}.
+     * Reconfigurations in progress are still traced.
+     */
+    public void clearReconfigurationTraceListener() {
+        reconfigurationTraceExecutor = null;
+        reconfigurationTraceListener = null;
+    }
+
+    /**
+     * Brings the bound use cases in line with the requested lens, use cases and the current
+     * window aspect ratio and display rotation, taking the cheapest path that gets there:
+     * <ul>
+     *     <li>a rotation change only updates the preview's target rotation;</li>
+     *     <li>use cases added or removed are bound or unbound on their own;</li>
+     *     <li>a lens switch rebinds the same preview to the other camera, so the renderer keeps
+     *     its input texture if the resolution doesn't change;</li>
+     *     <li>only a resolution or aspect ratio change, which can't be applied to a built
+     *     preview, replaces the preview.</li>
+     * </ul>
+     *
+     * <p>The preview resolution is picked for the size of the view, so nothing is bound until
+     * the view has a size: the first bind then happens when the view is laid out. If the
+     * camera's sizes are unknown, only the window's aspect ratio is requested.
+     *
+     * <p>The time reported to the {@link ReconfigurationListener} only covers the calls made
+     * here. The time until the reconfigured stream delivers a frame is traced with
+     * {@link #setReconfigurationTraceListener(Executor, StartupTraceListener, boolean)}.
+     */
     public void rebind() {
         if (!isCameraXInitialized()) throw new IllegalStateException("Camera initialization failed.");
+        if (preview == null && (previewView.getWidth() == 0 || previewView.getHeight() == 0)) {
+            // A preview bound now would be built for the aspect ratio only, and rebuilt for the
+            // view on its first layout, paying for a second capture session. The layout
+            // listener binds it once the view has a size.
+            Log.d(TAG, "Waiting for the view to be laid out to bind the preview");
+            return;
+        }
 
+        long startNs = System.nanoTime();
         Rect metrics = windowManager.getCurrentWindowMetrics().getBounds();
         Log.d(TAG, "Screen metrics: " + metrics.width() + " x " + metrics.height());
+        int targetAspectRatio = aspectRatio(metrics.width(), metrics.height());
+        int targetRotation = previewView.getDisplayRotation();
+        Size targetResolution = selectResolution(targetRotation);
         CameraSelector cameraSelector = new CameraSelector.Builder().requireLensFacing(lensFacing).build();
-        // Preview
-        Preview preview = new Preview.Builder()
-                // We request aspect ratio but no resolution
-                .setTargetAspectRatio(aspectRatio(metrics.width(), metrics.height()))
-                // Set initial target rotation
-                .setTargetRotation(previewView.getDisplayRotation())
-                .build();
 
-        cameraProvider.unbindAll();
+        boolean rebuildPreview = preview == null || targetAspectRatio != boundAspectRatio
+                || !isSameStreamSize(targetResolution, boundResolution);
+        // A new preview and a new lens both go through a new capture session, and the renderer
+        // a new surface request. The first bind is traced as part of the camera setup.
+        StartupTracer tracer = null;
+        if (reconfigurationTraceListener != null && preview != null
+                && (rebuildPreview || lensFacing != boundLensFacing)) {
+            tracer = new StartupTracer(reconfigurationTraceExecutor, reconfigurationTraceListener,
+                    reconfigurationTraceSections, startNs);
+            tracer.mark(StartupTrace.MILESTONE_CAMERA_PROVIDER_READY, startNs);
+            // Set before binding so that the renderer has it by the time the surface is
+            // requested.
+            previewView.setStartupTracer(tracer);
+        }
 
+        int reconfiguration;
         try {
-            // A variable number of use-cases can be passed here -
-            // camera provides access to CameraControl & CameraInfo
-            camera = cameraProvider.bindToLifecycle(lifecycleOwner, cameraSelector, preview);
-            previewView.setPreviewUseCase(preview);
+            if (rebuildPreview) {
+                reconfiguration = RECONFIGURATION_REBIND;
+                if (preview == null) {
+                    cameraProvider.unbindAll();
+                } else {
+                    unbindBoundUseCases();
+                }
+                // Preview
+                Preview.Builder builder = new Preview.Builder()
+                        // Set initial target rotation
+                        .setTargetRotation(targetRotation);
+                if (targetResolution != null) {
+                    builder.setTargetResolution(targetResolution);
+                } else {
+                    // We request aspect ratio but no resolution
+                    builder.setTargetAspectRatio(targetAspectRatio);
+                }
+                preview = builder.build();
+                bindRequestedUseCases(cameraSelector);
+                boundAspectRatio = targetAspectRatio;
+                boundResolution = targetResolution;
+                markStartup(StartupTrace.MILESTONE_CAMERA_BOUND);
+                previewView.setPreviewUseCase(preview);
+            } else if (lensFacing != boundLensFacing) {
+                reconfiguration = RECONFIGURATION_LENS;
+                unbindBoundUseCases();
+                preview.setTargetRotation(targetRotation);
+                bindRequestedUseCases(cameraSelector);
+            } else {
+                reconfiguration = RECONFIGURATION_NONE;
+                if (!boundUseCases.equals(requestedUseCases)) {
+                    reconfiguration = RECONFIGURATION_USE_CASES;
+                    updateBoundUseCases(cameraSelector);
+                }
+                if (preview.getTargetRotation() != targetRotation) {
+                    if (reconfiguration == RECONFIGURATION_NONE) {
+                        reconfiguration = RECONFIGURATION_ROTATION;
+                    }
+                    preview.setTargetRotation(targetRotation);
+                }
+            }
         } catch (Exception exc) {
             Log.e(TAG, "Use case binding failed", exc);
+            if (tracer != null) {
+                tracer.abandon();
+            }
+            // Start over on the next attempt.
+            cameraProvider.unbindAll();
+            boundUseCases.clear();
+            boundResolution = null;
+            preview = null;
+            camera = null;
+            return;
+        }
+
+        if (tracer != null) {
+            tracer.mark(StartupTrace.MILESTONE_CAMERA_BOUND);
+        }
+        long durationNs = System.nanoTime() - startNs;
+        Log.d(TAG, "Reconfiguration " + reconfiguration + " took " + durationNs / 1000 + "us");
+        Executor executor = reconfigurationExecutor;
+        ReconfigurationListener listener = reconfigurationListener;
+        if (listener != null) {
+            int result = reconfiguration;
+            executor.execute(() -> listener.onReconfigured(result, durationNs));
+        }
+    }
+
+    // Returns the resolution picked for the view and the requested lens, in the frame of the
+    // target rotation, or null if there is none to pick yet.
+    @Nullable
+    private Size selectResolution(int targetRotation) {
+        String cameraId = findCameraId(lensFacing);
+        Integer sensorOrientation = cameraId != null ? sensorOrientations.get(cameraId) : null;
+        if (sensorOrientation == null) {
+            return null;
+        }
+        int sensorRotationDegrees = PreviewResolutionSelector.getSensorRotationDegrees(
+                sensorOrientation, Surfaces.toSurfaceRotationDegrees(targetRotation),
+                lensFacing == CameraSelector.LENS_FACING_FRONT);
+        Size resolution = resolutionSelector.select(cameraId, previewView.getWidth(),
+                previewView.getHeight(), sensorRotationDegrees);
+        if (resolution != null) {
+            Log.d(TAG, "Preview resolution for " + previewView.getWidth() + " x "
+                    + previewView.getHeight() + " view at rotation " + sensorRotationDegrees
+                    + ": " + resolution);
+        }
+        return resolution;
+    }
+
+    // Whether a preview built for one resolution streams at the other, which is the case when
+    // they only differ by the target rotation they are expressed for.
+    private static boolean isSameStreamSize(@Nullable Size a, @Nullable Size b) {
+        return Objects.equals(a, b) || (a != null && b != null
+                && a.getWidth() == b.getHeight() && a.getHeight() == b.getWidth());
+    }
+
+    @Nullable
+    private String findCameraId(int facing) {
+        if (cameraIds.containsKey(facing)) {
+            return cameraIds.get(facing);
+        }
+        int cameraFacing = facing == CameraSelector.LENS_FACING_FRONT
+                ? CameraCharacteristics.LENS_FACING_FRONT : CameraCharacteristics.LENS_FACING_BACK;
+        CameraManager cameraManager = (CameraManager) previewView.getContext()
+                .getSystemService(Context.CAMERA_SERVICE);
+        try {
+            for (String cameraId : cameraManager.getCameraIdList()) {
+                CameraCharacteristics characteristics =
+                        cameraManager.getCameraCharacteristics(cameraId);
+                Integer lensFacing = characteristics.get(CameraCharacteristics.LENS_FACING);
+                if (lensFacing != null && lensFacing == cameraFacing) {
+                    Integer sensorOrientation =
+                            characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+                    if (sensorOrientation != null) {
+                        sensorOrientations.put(cameraId, sensorOrientation);
+                    }
+                    cameraIds.put(facing, cameraId);
+                    return cameraId;
+                }
+            }
+            cameraIds.put(facing, null);
+        } catch (CameraAccessException e) {
+            Log.e(TAG, "Camera ids unavailable", e);
+        }
+        return null;
+    }
+
+    // Binds the preview and the requested use cases to the selected camera.
+    private void bindRequestedUseCases(@NonNull CameraSelector cameraSelector) {
+        UseCase[] useCases = new UseCase[requestedUseCases.size() + 1];
+        useCases[0] = preview;
+        for (int i = 0; i < requestedUseCases.size(); i++) {
+            useCases[i + 1] = requestedUseCases.get(i);
+        }
+        // A variable number of use-cases can be passed here -
+        // camera provides access to CameraControl & CameraInfo
+        camera = cameraProvider.bindToLifecycle(lifecycleOwner, cameraSelector, useCases);
+        boundLensFacing = lensFacing;
+        boundUseCases.clear();
+        boundUseCases.addAll(requestedUseCases);
+    }
+
+    private void unbindBoundUseCases() {
+        UseCase[] useCases = boundUseCases.toArray(new UseCase[boundUseCases.size() + 1]);
+        useCases[boundUseCases.size()] = preview;
+        cameraProvider.unbind(useCases);
+        boundUseCases.clear();
+    }
+
+    // Binds the requested use cases that are not bound and unbinds those no longer requested,
+    // leaving the preview's session alone where the camera can run them side by side.
+    private void updateBoundUseCases(@NonNull CameraSelector cameraSelector) {
+        List<UseCase> removed = new ArrayList<>(boundUseCases);
+        removed.removeAll(requestedUseCases);
+        if (!removed.isEmpty()) {
+            cameraProvider.unbind(removed.toArray(new UseCase[0]));
+            boundUseCases.removeAll(removed);
+        }
+        List<UseCase> added = new ArrayList<>(requestedUseCases);
+        added.removeAll(boundUseCases);
+        if (!added.isEmpty()) {
+            camera = cameraProvider.bindToLifecycle(lifecycleOwner, cameraSelector,
+                    added.toArray(new UseCase[0]));
+            boundUseCases.addAll(added);
         }
     }
 
@@ -130,6 +534,12 @@ public class Binder implements LifecycleObserver {
     }
 
 
+    private void markStartup(@StartupTrace.Milestone int milestone) {
+        if (startupTracer != null) {
+            startupTracer.mark(milestone);
+        }
+    }
+
     private boolean isCameraXInitialized() {
         return cameraProvider != null;
     }
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joyuiyeongl.ypreviewjava;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of the direct buffers captured frames are read back into.
+ *
+ * <p>At most a fixed number of buffers are handed out at once, whether still being read back on
+ * the GL thread or held by the app, so capturing never grows memory without bound. Released
+ * buffers are reused for later captures of the same size or smaller. Buffers are acquired on the
+ * GL thread and can be released from any thread without locking.
+ */
+final class CaptureBufferPool {
+    private final int mMaxBuffers;
+    private final AtomicInteger mAcquiredCount = new AtomicInteger(0);
+    private final ConcurrentLinkedQueue<ByteBuffer> mFreeBuffers = new ConcurrentLinkedQueue<>();
+
+    CaptureBufferPool(int maxBuffers) {
+        if (maxBuffers <= 0) {
+            throw new IllegalArgumentException("maxBuffers must be positive: " + maxBuffers);
+        }
+        mMaxBuffers = maxBuffers;
+    }
+
+    /**
+     * Returns a direct buffer of at least the given capacity, with its limit set to the capacity
+     * asked for, or null if the maximum number of buffers is already handed out.
+     */
+    @Nullable
+    ByteBuffer acquire(int capacity) {
+        int acquired;
+        do {
+            acquired = mAcquiredCount.get();
+            if (acquired >= mMaxBuffers) {
+                return null;
+            }
+        } while (!mAcquiredCount.compareAndSet(acquired, acquired + 1));
+
+        ByteBuffer buffer = mFreeBuffers.poll();
+        if (buffer == null || buffer.capacity() < capacity) {
+            // A buffer too small for this capture is dropped, so the pool follows size changes.
+            buffer = ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+        }
+        buffer.clear();
+        buffer.limit(capacity);
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer obtained from {@link #acquire(int)} to the pool.
+     */
+    void release(@NonNull ByteBuffer buffer) {
+        mFreeBuffers.offer(buffer);
+        mAcquiredCount.decrementAndGet();
+    }
+
+    /**
+     * Returns the number of buffers currently handed out.
+     */
+    int getAcquiredCount() {
+        return mAcquiredCount.get();
+    }
+
+    /**
+     * Drops the free buffers, leaving the handed out ones to be released as usual.
+     */
+    void trim() {
+        mFreeBuffers.clear();
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joyuiyeongl.ypreviewjava;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A camera frame read back from the renderer.
+ *
+ * <p>The pixels are RGBA, 4 bytes per pixel, with rows tightly packed from the top of the image
+ * to the bottom. The frame is upright, like the preview on a display in its natural orientation.
+ *
+ * <p>The pixels live in a buffer borrowed from a bounded pool. Close the frame as soon as the
+ * pixels are no longer needed, otherwise later captures fail once the pool is exhausted.
+ */
+public final class CapturedFrame implements AutoCloseable {
+    private final CaptureBufferPool mPool;
+    private final ByteBuffer mPixels;
+    private final int mWidth;
+    private final int mHeight;
+    private final long mTimestampNs;
+    private final AtomicBoolean mClosed = new AtomicBoolean(false);
+
+    CapturedFrame(@NonNull CaptureBufferPool pool, @NonNull ByteBuffer pixels, int width,
+            int height, long timestampNs) {
+        mPool = pool;
+        mPixels = pixels;
+        mWidth = width;
+        mHeight = height;
+        mTimestampNs = timestampNs;
+    }
+
+    /**
+     * Returns the pixels of the frame, positioned at the first pixel with the limit after the
+     * last one.
+     *
+     * @throws IllegalStateException if the frame is closed.
+     */
+    @NonNull
+    public ByteBuffer getPixels() {
+        if (mClosed.get()) {
+            throw new IllegalStateException("Frame is closed.");
+        }
+        ByteBuffer pixels = mPixels.duplicate();
+        pixels.position(0);
+        pixels.limit(getRowStride() * mHeight);
+        return pixels;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Returns the number of bytes between the starts of two rows.
+     */
+    public int getRowStride() {
+        return mWidth * 4;
+    }
+
+    /**
+     * Returns the timestamp of the camera frame, in the time base of
+     * {@link android.graphics.SurfaceTexture#getTimestamp()}.
+     */
+    public long getTimestampNs() {
+        return mTimestampNs;
+    }
+
+    /**
+     * Returns the buffer of the frame to the pool. Closing a frame again has no effect.
+     */
+    @Override
+    public void close() {
+        if (mClosed.compareAndSet(false, true)) {
+            mPool.release(mPixels);
+        }
+    }
+}
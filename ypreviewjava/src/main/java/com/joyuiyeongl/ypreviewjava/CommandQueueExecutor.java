@@ -0,0 +1,106 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joyuiyeongl.ypreviewjava;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs tasks on a {@link HandlerThread} from a lock-free {@link MpscCommandQueue}.
+ *
+ * <p>Unlike {@link SingleThreadHandlerExecutor}, which posts a {@link android.os.Message} per
+ * task, tasks are queued in preallocated slots and a single message runs the tasks queued
+ * meanwhile, so a burst of calls costs one message. Tasks queued with a
+ * {@link MpscCommandQueue.CoalescingKey} supersede the earlier ones with the same key that
+ * have not run yet. A message runs a bounded number of tasks before letting the looper handle
+ * its other messages, such as vsync and frame available callbacks.
+ */
+final class CommandQueueExecutor implements RenderExecutor {
+    private static final int QUEUE_CAPACITY = 256;
+    private static final int MAX_TASKS_PER_MESSAGE = 32;
+
+    private final String mThreadName;
+    private final HandlerThread mHandlerThread;
+    private final Handler mHandler;
+    private final MpscCommandQueue mQueue = new MpscCommandQueue(QUEUE_CAPACITY);
+    private final Runnable mDrainTask = this::drain;
+    private volatile boolean mShutdown = false;
+
+    CommandQueueExecutor(@NonNull String threadName, int priority) {
+        mThreadName = threadName;
+        mHandlerThread = new HandlerThread(threadName, priority);
+        mHandlerThread.start();
+        mHandler = new Handler(mHandlerThread.getLooper());
+    }
+
+    @NonNull
+    @Override
+    public Handler getHandler() {
+        return mHandler;
+    }
+
+    @Override
+    public void execute(@NonNull Runnable command) {
+        enqueue(null, command);
+    }
+
+    @Override
+    public void execute(@NonNull MpscCommandQueue.CoalescingKey key,
+            @NonNull Runnable command) {
+        enqueue(key, command);
+    }
+
+    /**
+     * Returns a snapshot of the counters of the task queue. Must be called on the render
+     * thread.
+     */
+    @NonNull
+    @Override
+    public RenderQueueStats getQueueStats() {
+        return mQueue.getStats();
+    }
+
+    @Override
+    public boolean shutdown() {
+        mShutdown = true;
+        return mHandlerThread.quitSafely();
+    }
+
+    private void enqueue(@Nullable MpscCommandQueue.CoalescingKey key,
+            @NonNull Runnable command) {
+        if (mShutdown) {
+            throw new RejectedExecutionException(mThreadName + " is shutting down.");
+        }
+        if (mQueue.offer(key, command) && !mHandler.post(mDrainTask)) {
+            throw new RejectedExecutionException(mThreadName + " is shutting down.");
+        }
+    }
+
+    private void drain() {
+        while (mQueue.drain(MAX_TASKS_PER_MESSAGE)) {
+            if (!mShutdown && mHandler.post(mDrainTask)) {
+                return;
+            }
+            // The looper no longer takes messages, so run the tasks accepted before the
+            // shutdown now, as it would have run their messages.
+        }
+    }
+}
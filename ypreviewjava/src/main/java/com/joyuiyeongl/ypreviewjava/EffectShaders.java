@@ -0,0 +1,83 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joyuiyeongl.ypreviewjava;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Wraps the source of a {@link ShaderEffect} into complete fragment shaders for the native
+ * renderer.
+ *
+ * <p>Each effect is compiled twice: once reading the camera's external texture, for the first
+ * stage of a chain, and once reading the 2D texture the previous stage drew into. Both variants
+ * sample their input through {@code inputTransform}, the texture transform of the camera frame
+ * or the flip of the rows drawn offscreen, so the effect itself sees the same coordinates
+ * wherever it runs in the chain.
+ */
+final class EffectShaders {
+    // Names declared by the wrapper, which the effect's uniforms must not reuse.
+    private static final String[] RESERVED_NAMES = {"inputSampler", "inputTransform",
+            "inputTexelSize", "texCoord", "sampleInput", "applyEffect", "main"};
+
+    private static final String EXTERNAL_HEADER =
+            "#extension GL_OES_EGL_image_external : require\n"
+            + "precision mediump float;\n"
+            + "uniform samplerExternalOES inputSampler;\n";
+
+    private static final String TEXTURE_2D_HEADER = "precision mediump float;\n"
+            + "uniform sampler2D inputSampler;\n";
+
+    private static final String COMMON_HEADER = "uniform mat4 inputTransform;\n"
+            + "uniform vec2 inputTexelSize;\n"
+            + "varying vec2 texCoord;\n"
+            + "vec4 sampleInput(vec2 coord) {\n"
+            + "  return texture2D(inputSampler, (inputTransform * vec4(coord, 0.0, 1.0)).xy);\n"
+            + "}\n"
+            // Report errors at the line numbers of the effect's own source.
+            + "#line 1\n";
+
+    private static final String FOOTER = "\nvoid main() {\n"
+            + "  gl_FragColor = applyEffect(texCoord);\n"
+            + "}\n";
+
+    private EffectShaders() {
+    }
+
+    /**
+     * Returns the fragment shader running the effect on the camera's external texture.
+     */
+    @NonNull
+    static String externalSource(@NonNull ShaderEffect effect) {
+        return EXTERNAL_HEADER + COMMON_HEADER + effect.getSource() + FOOTER;
+    }
+
+    /**
+     * Returns the fragment shader running the effect on the output of a previous stage.
+     */
+    @NonNull
+    static String texture2dSource(@NonNull ShaderEffect effect) {
+        return TEXTURE_2D_HEADER + COMMON_HEADER + effect.getSource() + FOOTER;
+    }
+
+    static boolean isReservedName(@NonNull String name) {
+        for (String reserved : RESERVED_NAMES) {
+            if (reserved.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
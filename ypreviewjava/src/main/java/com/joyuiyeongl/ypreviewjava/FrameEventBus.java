@@ -0,0 +1,167 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joyuiyeongl.ypreviewjava;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Publishes a record for each drawn frame to any number of subscribers.
+ *
+ * <p>Records are written by a single producer, the render thread, into a preallocated ring
+ * buffer of primitives. Each subscriber reads them on its own executor with its own cursor, so
+ * the producer never waits for or allocates on behalf of a subscriber. A subscriber that falls
+ * more than the capacity of the ring behind loses the oldest records.
+ *
+ * <p>Every slot is guarded by a sequence stamp, like a seqlock: the producer marks the slot as
+ * busy, writes the record and then stamps it with its sequence number. A reader accepts a
+ * record only if it saw the expected stamp both before and after reading it.
+ */
+final class FrameEventBus {
+    static final int DEFAULT_CAPACITY = 64;
+
+    private static final int SLOT_SIZE = 4;
+    private static final int STAMP = 0;
+    private static final int TIMESTAMP = 1;
+    private static final int FRAME_NUMBER = 2;
+    private static final int RENDER_DURATION = 3;
+    private static final long BUSY = -1;
+
+    private final int mCapacity;
+    private final int mMask;
+    // Volatile accesses order the record writes with respect to the stamps, without fences.
+    private final AtomicLongArray mSlots;
+    // Sequence number of the next record to be published.
+    private final AtomicLong mPublished = new AtomicLong(0);
+
+    private final Object mLock = new Object();
+    // Copied on write, so the producer can iterate it without locking.
+    private volatile FrameSubscription[] mSubscriptions = new FrameSubscription[0];
+
+    FrameEventBus() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    FrameEventBus(int capacity) {
+        if (capacity < 1 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two.");
+        }
+        mCapacity = capacity;
+        mMask = capacity - 1;
+        mSlots = new AtomicLongArray(capacity * SLOT_SIZE);
+        for (int i = 0; i < capacity; i++) {
+            mSlots.set(i * SLOT_SIZE + STAMP, BUSY);
+        }
+    }
+
+    /**
+     * Adds a subscriber. Can be called from any thread.
+     *
+     * <p>The subscriber receives the frames published after this call.
+     */
+    @NonNull
+    FrameSubscription subscribe(@NonNull Executor executor, @NonNull BackpressurePolicy policy,
+            @NonNull FrameEventListener listener) {
+        FrameSubscription subscription = new FrameSubscription(this, executor, policy, listener,
+                mPublished.get());
+        synchronized (mLock) {
+            FrameSubscription[] current = mSubscriptions;
+            FrameSubscription[] updated = new FrameSubscription[current.length + 1];
+            System.arraycopy(current, 0, updated, 0, current.length);
+            updated[current.length] = subscription;
+            mSubscriptions = updated;
+        }
+        return subscription;
+    }
+
+    void unsubscribe(@NonNull FrameSubscription subscription) {
+        synchronized (mLock) {
+            FrameSubscription[] current = mSubscriptions;
+            int index = -1;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] == subscription) {
+                    index = i;
+                    break;
+                }
+            }
+            if (index < 0) {
+                return;
+            }
+            FrameSubscription[] updated = new FrameSubscription[current.length - 1];
+            System.arraycopy(current, 0, updated, 0, index);
+            System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+            mSubscriptions = updated;
+        }
+    }
+
+    void unsubscribeAll() {
+        synchronized (mLock) {
+            mSubscriptions = new FrameSubscription[0];
+        }
+    }
+
+    /**
+     * Publishes the record of a drawn frame and signals the subscribers. Must only be called
+     * from the producer thread. Does not allocate.
+     */
+    void publish(long timestampNs, long frameNumber, long renderDurationNs) {
+        long sequence = mPublished.get();
+        int base = (int) (sequence & mMask) * SLOT_SIZE;
+        mSlots.set(base + STAMP, BUSY);
+        mSlots.set(base + TIMESTAMP, timestampNs);
+        mSlots.set(base + FRAME_NUMBER, frameNumber);
+        mSlots.set(base + RENDER_DURATION, renderDurationNs);
+        mSlots.set(base + STAMP, sequence);
+        mPublished.set(sequence + 1);
+
+        FrameSubscription[] subscriptions = mSubscriptions;
+        for (FrameSubscription subscription : subscriptions) {
+            subscription.onPublished(frameNumber);
+        }
+    }
+
+    int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Returns the sequence number of the next record to be published, i.e. the number of
+     * records published so far.
+     */
+    long getPublishedSequence() {
+        return mPublished.get();
+    }
+
+    /**
+     * Reads the record with the given sequence number into {@code out}, as timestamp, frame
+     * number and render duration.
+     *
+     * @return false if the record has been overwritten, in which case {@code out} is undefined.
+     */
+    boolean read(long sequence, @NonNull long[] out) {
+        int base = (int) (sequence & mMask) * SLOT_SIZE;
+        if (mSlots.get(base + STAMP) != sequence) {
+            return false;
+        }
+        out[0] = mSlots.get(base + TIMESTAMP);
+        out[1] = mSlots.get(base + FRAME_NUMBER);
+        out[2] = mSlots.get(base + RENDER_DURATION);
+        return mSlots.get(base + STAMP) == sequence;
+    }
+}
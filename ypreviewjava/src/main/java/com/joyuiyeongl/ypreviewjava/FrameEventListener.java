@@ -0,0 +1,34 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joyuiyeongl.ypreviewjava;
+
+/**
+ * Listener which receives a record for each frame drawn to the output surface.
+ *
+ * <p>The record is passed as primitives so that delivering it does not allocate.
+ */
+public interface FrameEventListener {
+    /**
+     * Called for each delivered frame, in the order the frames were drawn.
+     *
+     * @param timestampNs      Camera timestamp of the frame, in nanoseconds.
+     * @param frameNumber      Number of the frame among all frames drawn by the renderer,
+     *                         starting at 0. Gaps mean frames were not delivered to this
+     *                         listener.
+     * @param renderDurationNs Time the render thread spent drawing and presenting the frame.
+     */
+    void onFrameEvent(long timestampNs, long frameNumber, long renderDurationNs);
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joyuiyeongl.ypreviewjava;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records histograms of frame intervals and render durations.
+ *
+ * <p>Values are counted in log-linear buckets: each power of two microseconds is split into
+ * {@value #SUB_BUCKETS} buckets, so a bucket is at most 1/{@value #SUB_BUCKETS} of its value
+ * wide. Values from 1 microsecond to about 16 seconds are resolved, larger ones fall in the
+ * last bucket. Maxima are tracked exactly.
+ *
+ * <p>Frames are recorded by a single writer, the render thread, without allocating or locking.
+ * Any thread can take a consistent {@link FrameIntervalStats} snapshot: like a seqlock, the
+ * writer makes the version odd while it updates the counters, and a reader retries until it
+ * copied all counters within a single even version.
+ */
+final class FrameIntervalRecorder {
+    static final long DEFAULT_EXPECTED_INTERVAL_NS = 1_000_000_000L / 30;
+
+    private static final int SUB_BUCKET_BITS = 4;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 24;
+    static final int BUCKET_COUNT =
+            SUB_BUCKETS + (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+    private static final long NANOS_PER_UNIT = 1000;
+
+    // Layout of the scalar counters.
+    private static final int FRAMES = 0;
+    private static final int INTERVALS = 1;
+    private static final int INTERVAL_SUM = 2;
+    private static final int INTERVAL_MAX = 3;
+    private static final int RENDER_DURATION_SUM = 4;
+    private static final int RENDER_DURATION_MAX = 5;
+    private static final int JANK_FRAMES = 6;
+    private static final int SEVERE_JANK_FRAMES = 7;
+    private static final int COUNTER_COUNT = 8;
+
+    private final AtomicLong mVersion = new AtomicLong(0);
+    // Volatile accesses order the counter updates with respect to the version.
+    private final AtomicLongArray mIntervalBuckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLongArray mRenderDurationBuckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLongArray mCounters = new AtomicLongArray(COUNTER_COUNT);
+    private volatile long mExpectedIntervalNs = DEFAULT_EXPECTED_INTERVAL_NS;
+
+    // Only accessed by the writer.
+    private long mLastFrameTimeNs = -1;
+
+    /**
+     * Sets the interval at which frames are expected, used to count janky frames. Can be called
+     * from any thread.
+     */
+    void setExpectedIntervalNs(long expectedIntervalNs) {
+        if (expectedIntervalNs <= 0) {
+            throw new IllegalArgumentException("Expected interval must be positive.");
+        }
+        mExpectedIntervalNs = expectedIntervalNs;
+    }
+
+    long getExpectedIntervalNs() {
+        return mExpectedIntervalNs;
+    }
+
+    /**
+     * Records a drawn frame. Writer thread only.
+     *
+     * @param frameTimeNs      Time at which the frame was drawn, in the {@link System#nanoTime()}
+     *                         time base.
+     * @param renderDurationNs Time spent drawing and presenting the frame.
+     */
+    void recordFrame(long frameTimeNs, long renderDurationNs) {
+        long lastFrameTimeNs = mLastFrameTimeNs;
+        mLastFrameTimeNs = frameTimeNs;
+
+        mVersion.incrementAndGet();
+        increment(mCounters, FRAMES, 1);
+        increment(mRenderDurationBuckets, bucketIndex(renderDurationNs), 1);
+        increment(mCounters, RENDER_DURATION_SUM, renderDurationNs);
+        updateMax(mCounters, RENDER_DURATION_MAX, renderDurationNs);
+        if (lastFrameTimeNs >= 0) {
+            long intervalNs = frameTimeNs - lastFrameTimeNs;
+            increment(mIntervalBuckets, bucketIndex(intervalNs), 1);
+            increment(mCounters, INTERVALS, 1);
+            increment(mCounters, INTERVAL_SUM, intervalNs);
+            updateMax(mCounters, INTERVAL_MAX, intervalNs);
+            long expectedIntervalNs = mExpectedIntervalNs;
+            if (intervalNs * 2 > expectedIntervalNs * 3) {
+                increment(mCounters, JANK_FRAMES, 1);
+            }
+            if (intervalNs > expectedIntervalNs * 2) {
+                increment(mCounters, SEVERE_JANK_FRAMES, 1);
+            }
+        }
+        mVersion.incrementAndGet();
+    }
+
+    /**
+     * Makes the next frame start a new sequence of intervals, for instance after the output was
+     * detached. Writer thread only.
+     */
+    void markDiscontinuity() {
+        mLastFrameTimeNs = -1;
+    }
+
+    /**
+     * Clears all recorded frames. Writer thread only.
+     */
+    void reset() {
+        mLastFrameTimeNs = -1;
+        mVersion.incrementAndGet();
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mIntervalBuckets.set(i, 0);
+            mRenderDurationBuckets.set(i, 0);
+        }
+        for (int i = 0; i < COUNTER_COUNT; i++) {
+            mCounters.set(i, 0);
+        }
+        mVersion.incrementAndGet();
+    }
+
+    /**
+     * Returns a consistent snapshot of the recorded frames. Can be called from any thread and
+     * never blocks the writer.
+     */
+    @NonNull
+    FrameIntervalStats getSnapshot() {
+        long[] intervalBuckets = new long[BUCKET_COUNT];
+        long[] renderDurationBuckets = new long[BUCKET_COUNT];
+        long[] counters = new long[COUNTER_COUNT];
+        while (true) {
+            long version = mVersion.get();
+            if ((version & 1) != 0) {
+                // The writer is in the middle of an update, which only takes a moment.
+                Thread.yield();
+                continue;
+            }
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                intervalBuckets[i] = mIntervalBuckets.get(i);
+                renderDurationBuckets[i] = mRenderDurationBuckets.get(i);
+            }
+            for (int i = 0; i < COUNTER_COUNT; i++) {
+                counters[i] = mCounters.get(i);
+            }
+            if (mVersion.get() == version) {
+                break;
+            }
+        }
+        long intervals = counters[INTERVALS];
+        long frames = counters[FRAMES];
+        return new FrameIntervalStats(frames,
+                mExpectedIntervalNs,
+                intervals == 0 ? 0 : counters[INTERVAL_SUM] / intervals,
+                percentileNs(intervalBuckets, intervals, 50, counters[INTERVAL_MAX]),
+                percentileNs(intervalBuckets, intervals, 90, counters[INTERVAL_MAX]),
+                percentileNs(intervalBuckets, intervals, 99, counters[INTERVAL_MAX]),
+                counters[INTERVAL_MAX],
+                frames == 0 ? 0 : counters[RENDER_DURATION_SUM] / frames,
+                percentileNs(renderDurationBuckets, frames, 50, counters[RENDER_DURATION_MAX]),
+                percentileNs(renderDurationBuckets, frames, 90, counters[RENDER_DURATION_MAX]),
+                percentileNs(renderDurationBuckets, frames, 99, counters[RENDER_DURATION_MAX]),
+                counters[RENDER_DURATION_MAX],
+                counters[JANK_FRAMES],
+                counters[SEVERE_JANK_FRAMES]);
+    }
+
+    /**
+     * Returns the bucket counting the given value.
+     */
+    static int bucketIndex(long valueNs) {
+        long units = Math.max(valueNs, 0) / NANOS_PER_UNIT;
+        if (units < SUB_BUCKETS) {
+            return (int) units;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(units);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+        int shift = exponent - SUB_BUCKET_BITS;
+        int subBucket = (int) (units >> shift) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS + shift * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Returns the smallest value counted in the bucket after the given one, i.e. the exclusive
+     * upper bound of the bucket.
+     */
+    static long bucketUpperBoundNs(int index) {
+        if (index < SUB_BUCKETS) {
+            return (index + 1) * NANOS_PER_UNIT;
+        }
+        int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+        int subBucket = (index - SUB_BUCKETS) % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + subBucket + 1) << shift) * NANOS_PER_UNIT;
+    }
+
+    /**
+     * Returns the upper bound of the bucket holding the given percentile, capped to the
+     * maximum value recorded.
+     */
+    static long percentileNs(@NonNull long[] buckets, long count, int percentile,
+            long maxNs) {
+        if (count == 0) {
+            return 0;
+        }
+        // Rank of the percentile value among the recorded values, starting at 1.
+        long rank = Math.max(1, (count * percentile + 99) / 100);
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                return Math.min(bucketUpperBoundNs(i), maxNs);
+            }
+        }
+        return maxNs;
+    }
+
+    static void increment(@NonNull AtomicLongArray array, int index, long delta) {
+        // Single writer, so a plain read-modify-write is enough.
+        array.set(index, array.get(index) + delta);
+    }
+
+    static void updateMax(@NonNull AtomicLongArray array, int index, long value) {
+        if (value > array.get(index)) {
+            array.set(index, value);
+        }
+    }
+}
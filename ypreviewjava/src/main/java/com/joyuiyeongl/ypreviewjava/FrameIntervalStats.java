@@ -0,0 +1,151 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joyuiyeongl.ypreviewjava;
+
+import androidx.annotation.NonNull;
+
+import java.util.Locale;
+
+/**
+ * Snapshot of the frame interval and render duration distributions of a preview renderer.
+ *
+ * <p>The frame interval is the time between drawing two consecutive frames. The render duration
+ * is the time the render thread spent drawing and presenting a frame. Percentiles are the upper
+ * bounds of histogram buckets, which are within about 6% of the exact values.
+ */
+public final class FrameIntervalStats {
+    private static final double NANOS_IN_SECOND = 1_000_000_000;
+
+    private final long mFrameCount;
+    private final long mExpectedIntervalNs;
+    private final long mMeanIntervalNs;
+    private final long mP50IntervalNs;
+    private final long mP90IntervalNs;
+    private final long mP99IntervalNs;
+    private final long mMaxIntervalNs;
+    private final long mMeanRenderDurationNs;
+    private final long mP50RenderDurationNs;
+    private final long mP90RenderDurationNs;
+    private final long mP99RenderDurationNs;
+    private final long mMaxRenderDurationNs;
+    private final long mJankFrameCount;
+    private final long mSevereJankFrameCount;
+
+    FrameIntervalStats(long frameCount, long expectedIntervalNs, long meanIntervalNs,
+            long p50IntervalNs, long p90IntervalNs, long p99IntervalNs, long maxIntervalNs,
+            long meanRenderDurationNs, long p50RenderDurationNs, long p90RenderDurationNs,
+            long p99RenderDurationNs, long maxRenderDurationNs, long jankFrameCount,
+            long severeJankFrameCount) {
+        mFrameCount = frameCount;
+        mExpectedIntervalNs = expectedIntervalNs;
+        mMeanIntervalNs = meanIntervalNs;
+        mP50IntervalNs = p50IntervalNs;
+        mP90IntervalNs = p90IntervalNs;
+        mP99IntervalNs = p99IntervalNs;
+        mMaxIntervalNs = maxIntervalNs;
+        mMeanRenderDurationNs = meanRenderDurationNs;
+        mP50RenderDurationNs = p50RenderDurationNs;
+        mP90RenderDurationNs = p90RenderDurationNs;
+        mP99RenderDurationNs = p99RenderDurationNs;
+        mMaxRenderDurationNs = maxRenderDurationNs;
+        mJankFrameCount = jankFrameCount;
+        mSevereJankFrameCount = severeJankFrameCount;
+    }
+
+    /** Returns the number of frames drawn. */
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    /** Returns the interval the jank counts are measured against. */
+    public long getExpectedIntervalNs() {
+        return mExpectedIntervalNs;
+    }
+
+    /** Returns the average frame rate, or NaN if fewer than two frames were drawn in a row. */
+    public double getAverageFps() {
+        return mMeanIntervalNs == 0 ? Double.NaN : NANOS_IN_SECOND / mMeanIntervalNs;
+    }
+
+    public long getMeanIntervalNs() {
+        return mMeanIntervalNs;
+    }
+
+    public long getP50IntervalNs() {
+        return mP50IntervalNs;
+    }
+
+    public long getP90IntervalNs() {
+        return mP90IntervalNs;
+    }
+
+    public long getP99IntervalNs() {
+        return mP99IntervalNs;
+    }
+
+    public long getMaxIntervalNs() {
+        return mMaxIntervalNs;
+    }
+
+    public long getMeanRenderDurationNs() {
+        return mMeanRenderDurationNs;
+    }
+
+    public long getP50RenderDurationNs() {
+        return mP50RenderDurationNs;
+    }
+
+    public long getP90RenderDurationNs() {
+        return mP90RenderDurationNs;
+    }
+
+    public long getP99RenderDurationNs() {
+        return mP99RenderDurationNs;
+    }
+
+    public long getMaxRenderDurationNs() {
+        return mMaxRenderDurationNs;
+    }
+
+    /** Returns the number of frames drawn more than 1.5x the expected interval after the last. */
+    public long getJankFrameCount() {
+        return mJankFrameCount;
+    }
+
+    /** Returns the number of frames drawn more than 2x the expected interval after the last. */
+    public long getSevereJankFrameCount() {
+        return mSevereJankFrameCount;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "FrameIntervalStats{frames=%d, fps=%.2f, "
+                        + "interval(p50=%.2fms, p90=%.2fms, p99=%.2fms, max=%.2fms), "
+                        + "render(p50=%.2fms, p90=%.2fms, p99=%.2fms, max=%.2fms), "
+                        + "jank(>1.5x=%d, >2x=%d)}",
+                mFrameCount, getAverageFps(),
+                toMillis(mP50IntervalNs), toMillis(mP90IntervalNs), toMillis(mP99IntervalNs),
+                toMillis(mMaxIntervalNs),
+                toMillis(mP50RenderDurationNs), toMillis(mP90RenderDurationNs),
+                toMillis(mP99RenderDurationNs), toMillis(mMaxRenderDurationNs),
+                mJankFrameCount, mSevereJankFrameCount);
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+}
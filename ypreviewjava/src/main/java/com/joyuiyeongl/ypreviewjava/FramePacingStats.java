@@ -0,0 +1,112 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joyuiyeongl.ypreviewjava;
+
+import androidx.annotation.NonNull;
+
+import java.util.Locale;
+
+/**
+ * Snapshot of the frame pacing counters of a preview renderer.
+ *
+ * <p>Every camera frame received is either rendered, coalesced, skipped or dropped. Frames are
+ * only coalesced when vsync pacing is enabled, and only skipped when the render thread falls
+ * behind the camera.
+ *
+ * <p>Redraws of the current frame, requested when the output surface or the display changes,
+ * are not counted as frames. Those that would present the same image again are not drawn.
+ */
+public final class FramePacingStats {
+    private final long mFramesReceived;
+    private final long mFramesRendered;
+    private final long mFramesCoalesced;
+    private final long mFramesSkipped;
+    private final long mFramesDropped;
+    private final long mMissedVsyncs;
+    private final long mRedundantRedraws;
+
+    FramePacingStats(long framesReceived, long framesRendered, long framesCoalesced,
+            long framesSkipped, long framesDropped, long missedVsyncs, long redundantRedraws) {
+        mFramesReceived = framesReceived;
+        mFramesRendered = framesRendered;
+        mFramesCoalesced = framesCoalesced;
+        mFramesSkipped = framesSkipped;
+        mFramesDropped = framesDropped;
+        mMissedVsyncs = missedVsyncs;
+        mRedundantRedraws = redundantRedraws;
+    }
+
+    /** Returns the number of camera frames received from the preview stream. */
+    public long getFramesReceived() {
+        return mFramesReceived;
+    }
+
+    /** Returns the number of frames drawn to the output surface. */
+    public long getFramesRendered() {
+        return mFramesRendered;
+    }
+
+    /**
+     * Returns the number of frames replaced by a newer camera frame before the vsync at which
+     * they would have been drawn.
+     */
+    public long getFramesCoalesced() {
+        return mFramesCoalesced;
+    }
+
+    /**
+     * Returns the number of frames that were still waiting to be latched when a newer frame was
+     * already available, because the render thread was busy. These are latched together and
+     * only the newest one is drawn.
+     */
+    public long getFramesSkipped() {
+        return mFramesSkipped;
+    }
+
+    /**
+     * Returns the number of frames that could not be drawn, either because there was no output
+     * surface or because drawing failed.
+     */
+    public long getFramesDropped() {
+        return mFramesDropped;
+    }
+
+    /**
+     * Returns the number of vsyncs at which a camera frame was waiting but was not drawn in
+     * time, so the display showed the previous frame again.
+     */
+    public long getMissedVsyncs() {
+        return mMissedVsyncs;
+    }
+
+    /**
+     * Returns the number of redraws that were not drawn because the camera frame, its transform
+     * and the output surface were all unchanged since the last frame drawn.
+     */
+    public long getRedundantRedraws() {
+        return mRedundantRedraws;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "FramePacingStats{received=%d, rendered=%d, "
+                        + "coalesced=%d, skipped=%d, dropped=%d, missedVsyncs=%d, "
+                        + "redundantRedraws=%d}",
+                mFramesReceived, mFramesRendered, mFramesCoalesced, mFramesSkipped,
+                mFramesDropped, mMissedVsyncs, mRedundantRedraws);
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joyuiyeongl.ypreviewjava;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A subscriber of the frame events published by a preview renderer.
+ *
+ * <p>When frames are published, the subscription posts a single drain task to its executor.
+ * While that task is pending or running, further frames only advance the bus, so a slow
+ * subscriber never grows a backlog of tasks. The drain task reads the records from the
+ * subscription's cursor up to the latest one and applies the {@link BackpressurePolicy}.
+ */
+public final class FrameSubscription {
+    private final FrameEventBus mBus;
+    private final Executor mExecutor;
+    private final FrameEventListener mListener;
+    private final int mMaxBacklog;
+    private final int mSampleInterval;
+    private final AtomicBoolean mPending = new AtomicBoolean(false);
+    private final AtomicLong mDroppedFrames = new AtomicLong(0);
+    private final Runnable mDrainTask = this::drain;
+    private volatile boolean mActive = true;
+
+    // Only accessed by the drain task, which never runs concurrently with itself. Handing over
+    // the pending flag orders the accesses of successive drain tasks.
+    private long mCursor;
+    private final long[] mRecord = new long[3];
+
+    FrameSubscription(@NonNull FrameEventBus bus, @NonNull Executor executor,
+            @NonNull BackpressurePolicy policy, @NonNull FrameEventListener listener,
+            long startSequence) {
+        mBus = bus;
+        mExecutor = executor;
+        mListener = listener;
+        mMaxBacklog = Math.min(policy.getMaxBacklog(), bus.getCapacity());
+        mSampleInterval = policy.getSampleInterval();
+        mCursor = startSequence;
+    }
+
+    /**
+     * Stops delivering frames to the listener. Frames may still be delivered by a drain task
+     * already running on the executor.
+     */
+    public void unsubscribe() {
+        mActive = false;
+        mBus.unsubscribe(this);
+    }
+
+    /**
+     * Returns the number of frames that were published but not delivered because the
+     * subscriber fell too far behind. Frames left out by sampling are not counted.
+     */
+    public long getDroppedFrameCount() {
+        return mDroppedFrames.get();
+    }
+
+    /**
+     * Called by the bus on the producer thread after a frame has been published.
+     */
+    void onPublished(long frameNumber) {
+        if (mSampleInterval > 1 && frameNumber % mSampleInterval != 0) {
+            // Wait for a frame this subscriber is interested in.
+            return;
+        }
+        if (!mPending.getAndSet(true)) {
+            try {
+                mExecutor.execute(mDrainTask);
+            } catch (RejectedExecutionException e) {
+                // Unable to deliver frame events. Ignore.
+                mPending.set(false);
+            }
+        }
+    }
+
+    private void drain() {
+        do {
+            deliverPublished();
+            // Clear the pending flag only after catching up, so at most one drain task runs at
+            // a time even on a multi-threaded executor. A frame published before the flag was
+            // cleared did not post a task, so check for one and keep draining if needed.
+            mPending.set(false);
+        } while (mActive && mBus.getPublishedSequence() != mCursor
+                && mPending.compareAndSet(false, true));
+    }
+
+    private void deliverPublished() {
+        if (!mActive) {
+            return;
+        }
+        long published = mBus.getPublishedSequence();
+        long next = mCursor;
+        long oldestAllowed = published - mMaxBacklog;
+        if (next < oldestAllowed) {
+            mDroppedFrames.addAndGet(oldestAllowed - next);
+            next = oldestAllowed;
+        }
+        long[] record = mRecord;
+        for (; next < published && mActive; next++) {
+            if (!mBus.read(next, record)) {
+                // Overwritten by the producer while we were behind.
+                mDroppedFrames.incrementAndGet();
+                continue;
+            }
+            long frameNumber = record[1];
+            if (frameNumber % mSampleInterval != 0) {
+                continue;
+            }
+            mListener.onFrameEvent(record[0], frameNumber, record[2]);
+        }
+        mCursor = next;
+    }
+}
@@ -0,0 +1,28 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joyuiyeongl.ypreviewjava;
+
+/**
+ * Listener which receives updates when a frame has been drawn to the output surface.
+ *
+ * <p>The timestamp is passed as a primitive so that notifying the listener does not box it.
+ */
+public interface FrameUpdateListener {
+    /**
+     * Called with the timestamp (in nanoseconds) of the latest drawn frame.
+     */
+    void onFrameUpdate(long timestampNs);
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joyuiyeongl.ypreviewjava;
+
+import android.view.Surface;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+
+/**
+ * Calls the natives of {@link RenderEngine} and {@link OpenGLRenderer}, loading the native
+ * library before the first context is set up.
+ */
+final class JniRenderer implements NativeRenderer {
+
+    @Override
+    public long createSharedContext(@NonNull LongBuffer startupTimings,
+            @Nullable String programCacheDir) {
+        NativeLibrary.load();
+        return RenderEngine.createSharedContext(startupTimings, programCacheDir);
+    }
+
+    @Override
+    public void destroySharedContext(long sharedContext) {
+        RenderEngine.destroySharedContext(sharedContext);
+    }
+
+    @Override
+    public long initContext(long sharedContext, @NonNull FloatBuffer textureTransform,
+            @NonNull LongBuffer stageTimings, @NonNull IntBuffer detachGenerations) {
+        return OpenGLRenderer.initContext(sharedContext, textureTransform, stageTimings,
+                detachGenerations);
+    }
+
+    @Override
+    public boolean setOutputSurface(long nativeContext, int output, @Nullable Surface surface,
+            @Nullable FloatBuffer mvpTransform, int detachGeneration) {
+        return OpenGLRenderer.setOutputSurface(nativeContext, output, surface, mvpTransform,
+                detachGeneration);
+    }
+
+    @Override
+    public void setOutputBufferSize(long nativeContext, int output, int width, int height) {
+        OpenGLRenderer.setOutputBufferSize(nativeContext, output, width, height);
+    }
+
+    @Override
+    public int renderTexture(long nativeContext, int outputMask, int mvpDirtyMask,
+            long presentationTimeNs) {
+        return OpenGLRenderer.renderTexture(nativeContext, outputMask, mvpDirtyMask,
+                presentationTimeNs);
+    }
+
+    @Override
+    public void closeContext(long nativeContext) {
+        OpenGLRenderer.closeContext(nativeContext);
+    }
+
+    // Loads the native library the first time a context is set up, on the GL thread, rather
+    // than when the classes using it are first touched, typically on the main thread.
+    private static final class NativeLibrary {
+        static {
+            System.loadLibrary("opengl_renderer_jni");
+        }
+
+        private NativeLibrary() {
+        }
+
+        static void load() {
+            // Loaded by the static initializer.
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joyuiyeongl.ypreviewjava;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Collapses camera frames that pile up while the render thread is busy into a single draw.
+ *
+ * <p>Frame available callbacks only count the frame and, for the first frame of a burst, post
+ * the coalescer to the render executor. Since it runs after every callback already queued
+ * ahead of it, it sees the whole burst at once: it latches all pending frames, which returns
+ * their buffers to the producer, and hands only the newest one on to be drawn. The work per
+ * burst is therefore one draw regardless of how far the render thread fell behind.
+ *
+ * <p>When disabled, every frame is latched and handed on as soon as it is available.
+ *
+ * <p>Not thread safe. All methods, and the executor, must use the render thread.
+ */
+final class LatestFrameCoalescer implements Runnable {
+
+    interface FrameSource {
+        /**
+         * Latches the next available frame.
+         *
+         * @return The timestamp of the latched frame.
+         */
+        long latchFrame();
+    }
+
+    interface FrameSink {
+        /**
+         * Called with the newest latched frame.
+         *
+         * @param timestampNs Timestamp of the frame.
+         * @param staleFrames Number of frames latched before this one that will not be drawn.
+         */
+        void onFrameLatched(long timestampNs, int staleFrames);
+    }
+
+    private final Executor mExecutor;
+    private final FrameSource mSource;
+    private final FrameSink mSink;
+
+    private boolean mEnabled = true;
+    private boolean mPosted = false;
+    private int mPendingFrames = 0;
+    private long mFramesSkipped = 0;
+
+    LatestFrameCoalescer(@NonNull Executor executor, @NonNull FrameSource source,
+            @NonNull FrameSink sink) {
+        mExecutor = executor;
+        mSource = source;
+        mSink = sink;
+    }
+
+    void setEnabled(boolean enabled) {
+        if (mEnabled == enabled) {
+            return;
+        }
+        mEnabled = enabled;
+        if (!enabled) {
+            // Don't leave the pending frames behind until the posted run.
+            run();
+        }
+    }
+
+    boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * Called when the source has a new frame available.
+     */
+    void onFrameAvailable() {
+        if (!mEnabled) {
+            mSink.onFrameLatched(mSource.latchFrame(), 0);
+            return;
+        }
+        mPendingFrames++;
+        if (mPosted) {
+            return;
+        }
+        try {
+            mExecutor.execute(this);
+            mPosted = true;
+        } catch (RejectedExecutionException e) {
+            // Render thread is shutting down. Nothing will be drawn.
+            mPendingFrames = 0;
+        }
+    }
+
+    /**
+     * Forgets about pending frames, for instance because the source they belong to was
+     * replaced.
+     */
+    void clear() {
+        mPendingFrames = 0;
+    }
+
+    /**
+     * Returns the number of frames that were latched but not drawn because a newer frame was
+     * already available.
+     */
+    long getFramesSkipped() {
+        return mFramesSkipped;
+    }
+
+    @Override
+    public void run() {
+        mPosted = false;
+        int pendingFrames = mPendingFrames;
+        if (pendingFrames == 0) {
+            return;
+        }
+        mPendingFrames = 0;
+        long timestampNs = 0;
+        for (int i = 0; i < pendingFrames; i++) {
+            timestampNs = mSource.latchFrame();
+        }
+        int staleFrames = pendingFrames - 1;
+        mFramesSkipped += staleFrames;
+        mSink.onFrameLatched(timestampNs, staleFrames);
+    }
+}
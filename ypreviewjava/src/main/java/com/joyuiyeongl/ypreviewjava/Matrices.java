@@ -0,0 +1,413 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joyuiyeongl.ypreviewjava;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Pure Java port of the subset of {@link android.opengl.Matrix} used by the renderer.
+ *
+ * <p>Matrices are 4x4 column-vector matrices stored in column-major order, exactly as in
+ * {@link android.opengl.Matrix}. The operations follow the framework implementation step by step
+ * (including the order of the floating point operations), so the results are the same as the
+ * framework's while being usable on a plain JVM. None of the methods allocate.
+ */
+final class Matrices {
+
+    /**
+     * Multiplies two 4x4 matrices together and stores the result in a third 4x4 matrix.
+     *
+     * <p>The result elements are undefined if they overlap either the lhs or rhs elements.
+     */
+    static void multiplyMM(@NonNull float[] result, int resultOffset,
+            @NonNull float[] lhs, int lhsOffset, @NonNull float[] rhs, int rhsOffset) {
+        for (int i = 0; i < 4; i++) {
+            final float rhsI0 = rhs[rhsOffset + 4 * i];
+            float ri0 = lhs[lhsOffset] * rhsI0;
+            float ri1 = lhs[lhsOffset + 1] * rhsI0;
+            float ri2 = lhs[lhsOffset + 2] * rhsI0;
+            float ri3 = lhs[lhsOffset + 3] * rhsI0;
+            for (int j = 1; j < 4; j++) {
+                final float rhsIJ = rhs[rhsOffset + j + 4 * i];
+                ri0 += lhs[lhsOffset + 4 * j] * rhsIJ;
+                ri1 += lhs[lhsOffset + 4 * j + 1] * rhsIJ;
+                ri2 += lhs[lhsOffset + 4 * j + 2] * rhsIJ;
+                ri3 += lhs[lhsOffset + 4 * j + 3] * rhsIJ;
+            }
+            result[resultOffset + 4 * i] = ri0;
+            result[resultOffset + 4 * i + 1] = ri1;
+            result[resultOffset + 4 * i + 2] = ri2;
+            result[resultOffset + 4 * i + 3] = ri3;
+        }
+    }
+
+    /**
+     * Multiplies a 4 element vector by a 4x4 matrix and stores the result in a 4-element vector.
+     *
+     * <p>The result elements are undefined if they overlap either the lhsMat or rhsVec elements.
+     */
+    static void multiplyMV(@NonNull float[] resultVec, int resultVecOffset,
+            @NonNull float[] lhsMat, int lhsMatOffset, @NonNull float[] rhsVec, int rhsVecOffset) {
+        final float x = rhsVec[rhsVecOffset];
+        final float y = rhsVec[rhsVecOffset + 1];
+        final float z = rhsVec[rhsVecOffset + 2];
+        final float w = rhsVec[rhsVecOffset + 3];
+        for (int i = 0; i < 4; i++) {
+            resultVec[resultVecOffset + i] = lhsMat[lhsMatOffset + i] * x
+                    + lhsMat[lhsMatOffset + 4 + i] * y
+                    + lhsMat[lhsMatOffset + 8 + i] * z
+                    + lhsMat[lhsMatOffset + 12 + i] * w;
+        }
+    }
+
+    /**
+     * Computes the length of a vector.
+     */
+    static float length(float x, float y, float z) {
+        return (float) Math.sqrt(x * x + y * y + z * z);
+    }
+
+    /**
+     * Sets matrix m to the identity matrix.
+     */
+    static void setIdentityM(@NonNull float[] sm, int smOffset) {
+        for (int i = 0; i < 16; i++) {
+            sm[smOffset + i] = 0;
+        }
+        for (int i = 0; i < 16; i += 5) {
+            sm[smOffset + i] = 1.0f;
+        }
+    }
+
+    /**
+     * Creates a matrix for rotation by angle a (in degrees) around the axis (x, y, z).
+     */
+    static void setRotateM(@NonNull float[] rm, int rmOffset, float a, float x, float y,
+            float z) {
+        rm[rmOffset + 3] = 0;
+        rm[rmOffset + 7] = 0;
+        rm[rmOffset + 11] = 0;
+        rm[rmOffset + 12] = 0;
+        rm[rmOffset + 13] = 0;
+        rm[rmOffset + 14] = 0;
+        rm[rmOffset + 15] = 1;
+        a *= (float) (Math.PI / 180.0f);
+        float s = (float) Math.sin(a);
+        float c = (float) Math.cos(a);
+        if (1.0f == x && 0.0f == y && 0.0f == z) {
+            rm[rmOffset + 5] = c;
+            rm[rmOffset + 10] = c;
+            rm[rmOffset + 6] = s;
+            rm[rmOffset + 9] = -s;
+            rm[rmOffset + 1] = 0;
+            rm[rmOffset + 2] = 0;
+            rm[rmOffset + 4] = 0;
+            rm[rmOffset + 8] = 0;
+            rm[rmOffset] = 1;
+        } else if (0.0f == x && 1.0f == y && 0.0f == z) {
+            rm[rmOffset] = c;
+            rm[rmOffset + 10] = c;
+            rm[rmOffset + 8] = s;
+            rm[rmOffset + 2] = -s;
+            rm[rmOffset + 1] = 0;
+            rm[rmOffset + 4] = 0;
+            rm[rmOffset + 6] = 0;
+            rm[rmOffset + 9] = 0;
+            rm[rmOffset + 5] = 1;
+        } else if (0.0f == x && 0.0f == y && 1.0f == z) {
+            rm[rmOffset] = c;
+            rm[rmOffset + 5] = c;
+            rm[rmOffset + 1] = s;
+            rm[rmOffset + 4] = -s;
+            rm[rmOffset + 2] = 0;
+            rm[rmOffset + 6] = 0;
+            rm[rmOffset + 8] = 0;
+            rm[rmOffset + 9] = 0;
+            rm[rmOffset + 10] = 1;
+        } else {
+            float len = length(x, y, z);
+            if (1.0f != len) {
+                float recipLen = 1.0f / len;
+                x *= recipLen;
+                y *= recipLen;
+                z *= recipLen;
+            }
+            float nc = 1.0f - c;
+            float xy = x * y;
+            float yz = y * z;
+            float zx = z * x;
+            float xs = x * s;
+            float ys = y * s;
+            float zs = z * s;
+            rm[rmOffset] = x * x * nc + c;
+            rm[rmOffset + 4] = xy * nc - zs;
+            rm[rmOffset + 8] = zx * nc + ys;
+            rm[rmOffset + 1] = xy * nc + zs;
+            rm[rmOffset + 5] = y * y * nc + c;
+            rm[rmOffset + 9] = yz * nc - xs;
+            rm[rmOffset + 2] = zx * nc - ys;
+            rm[rmOffset + 6] = yz * nc + xs;
+            rm[rmOffset + 10] = z * z * nc + c;
+        }
+    }
+
+    /**
+     * Translates matrix m by x, y, and z in place.
+     */
+    static void translateM(@NonNull float[] m, int mOffset, float x, float y, float z) {
+        for (int i = 0; i < 4; i++) {
+            int mi = mOffset + i;
+            m[12 + mi] += m[mi] * x + m[4 + mi] * y + m[8 + mi] * z;
+        }
+    }
+
+    /**
+     * Scales matrix m in place by sx, sy, and sz.
+     */
+    static void scaleM(@NonNull float[] m, int mOffset, float x, float y, float z) {
+        for (int i = 0; i < 4; i++) {
+            int mi = mOffset + i;
+            m[mi] *= x;
+            m[4 + mi] *= y;
+            m[8 + mi] *= z;
+        }
+    }
+
+    /**
+     * Inverts a 4 x 4 matrix using Cramer's rule.
+     *
+     * <p>The result elements are undefined if they overlap the m elements.
+     *
+     * @return true if the matrix could be inverted, false if it is singular.
+     */
+    static boolean invertM(@NonNull float[] mInv, int mInvOffset, @NonNull float[] m,
+            int mOffset) {
+        // Transpose the matrix.
+        final float src0 = m[mOffset];
+        final float src4 = m[mOffset + 1];
+        final float src8 = m[mOffset + 2];
+        final float src12 = m[mOffset + 3];
+
+        final float src1 = m[mOffset + 4];
+        final float src5 = m[mOffset + 5];
+        final float src9 = m[mOffset + 6];
+        final float src13 = m[mOffset + 7];
+
+        final float src2 = m[mOffset + 8];
+        final float src6 = m[mOffset + 9];
+        final float src10 = m[mOffset + 10];
+        final float src14 = m[mOffset + 11];
+
+        final float src3 = m[mOffset + 12];
+        final float src7 = m[mOffset + 13];
+        final float src11 = m[mOffset + 14];
+        final float src15 = m[mOffset + 15];
+
+        // Pairs for the first 8 cofactors.
+        final float atmp0 = src10 * src15;
+        final float atmp1 = src11 * src14;
+        final float atmp2 = src9 * src15;
+        final float atmp3 = src11 * src13;
+        final float atmp4 = src9 * src14;
+        final float atmp5 = src10 * src13;
+        final float atmp6 = src8 * src15;
+        final float atmp7 = src11 * src12;
+        final float atmp8 = src8 * src14;
+        final float atmp9 = src10 * src12;
+        final float atmp10 = src8 * src13;
+        final float atmp11 = src9 * src12;
+
+        // The first 8 cofactors.
+        final float dst0 = (atmp0 * src5 + atmp3 * src6 + atmp4 * src7)
+                - (atmp1 * src5 + atmp2 * src6 + atmp5 * src7);
+        final float dst1 = (atmp1 * src4 + atmp6 * src6 + atmp9 * src7)
+                - (atmp0 * src4 + atmp7 * src6 + atmp8 * src7);
+        final float dst2 = (atmp2 * src4 + atmp7 * src5 + atmp10 * src7)
+                - (atmp3 * src4 + atmp6 * src5 + atmp11 * src7);
+        final float dst3 = (atmp5 * src4 + atmp8 * src5 + atmp11 * src6)
+                - (atmp4 * src4 + atmp9 * src5 + atmp10 * src6);
+        final float dst4 = (atmp1 * src1 + atmp2 * src2 + atmp5 * src3)
+                - (atmp0 * src1 + atmp3 * src2 + atmp4 * src3);
+        final float dst5 = (atmp0 * src0 + atmp7 * src2 + atmp8 * src3)
+                - (atmp1 * src0 + atmp6 * src2 + atmp9 * src3);
+        final float dst6 = (atmp3 * src0 + atmp6 * src1 + atmp11 * src3)
+                - (atmp2 * src0 + atmp7 * src1 + atmp10 * src3);
+        final float dst7 = (atmp4 * src0 + atmp9 * src1 + atmp10 * src2)
+                - (atmp5 * src0 + atmp8 * src1 + atmp11 * src2);
+
+        // Pairs for the second 8 cofactors.
+        final float btmp0 = src2 * src7;
+        final float btmp1 = src3 * src6;
+        final float btmp2 = src1 * src7;
+        final float btmp3 = src3 * src5;
+        final float btmp4 = src1 * src6;
+        final float btmp5 = src2 * src5;
+        final float btmp6 = src0 * src7;
+        final float btmp7 = src3 * src4;
+        final float btmp8 = src0 * src6;
+        final float btmp9 = src2 * src4;
+        final float btmp10 = src0 * src5;
+        final float btmp11 = src1 * src4;
+
+        // The second 8 cofactors.
+        final float dst8 = (btmp0 * src13 + btmp3 * src14 + btmp4 * src15)
+                - (btmp1 * src13 + btmp2 * src14 + btmp5 * src15);
+        final float dst9 = (btmp1 * src12 + btmp6 * src14 + btmp9 * src15)
+                - (btmp0 * src12 + btmp7 * src14 + btmp8 * src15);
+        final float dst10 = (btmp2 * src12 + btmp7 * src13 + btmp10 * src15)
+                - (btmp3 * src12 + btmp6 * src13 + btmp11 * src15);
+        final float dst11 = (btmp5 * src12 + btmp8 * src13 + btmp11 * src14)
+                - (btmp4 * src12 + btmp9 * src13 + btmp10 * src14);
+        final float dst12 = (btmp2 * src10 + btmp5 * src11 + btmp1 * src9)
+                - (btmp4 * src11 + btmp0 * src9 + btmp3 * src10);
+        final float dst13 = (btmp8 * src11 + btmp0 * src8 + btmp7 * src10)
+                - (btmp6 * src10 + btmp9 * src11 + btmp1 * src8);
+        final float dst14 = (btmp6 * src9 + btmp11 * src11 + btmp3 * src8)
+                - (btmp10 * src11 + btmp2 * src8 + btmp7 * src9);
+        final float dst15 = (btmp10 * src10 + btmp4 * src8 + btmp9 * src9)
+                - (btmp8 * src9 + btmp11 * src10 + btmp5 * src8);
+
+        final float det = src0 * dst0 + src1 * dst1 + src2 * dst2 + src3 * dst3;
+        if (det == 0.0f) {
+            return false;
+        }
+
+        final float invdet = 1.0f / det;
+        mInv[mInvOffset] = dst0 * invdet;
+        mInv[mInvOffset + 1] = dst1 * invdet;
+        mInv[mInvOffset + 2] = dst2 * invdet;
+        mInv[mInvOffset + 3] = dst3 * invdet;
+
+        mInv[mInvOffset + 4] = dst4 * invdet;
+        mInv[mInvOffset + 5] = dst5 * invdet;
+        mInv[mInvOffset + 6] = dst6 * invdet;
+        mInv[mInvOffset + 7] = dst7 * invdet;
+
+        mInv[mInvOffset + 8] = dst8 * invdet;
+        mInv[mInvOffset + 9] = dst9 * invdet;
+        mInv[mInvOffset + 10] = dst10 * invdet;
+        mInv[mInvOffset + 11] = dst11 * invdet;
+
+        mInv[mInvOffset + 12] = dst12 * invdet;
+        mInv[mInvOffset + 13] = dst13 * invdet;
+        mInv[mInvOffset + 14] = dst14 * invdet;
+        mInv[mInvOffset + 15] = dst15 * invdet;
+        return true;
+    }
+
+    /**
+     * Computes an orthographic projection matrix.
+     */
+    static void orthoM(@NonNull float[] m, int mOffset, float left, float right, float bottom,
+            float top, float near, float far) {
+        if (left == right) {
+            throw new IllegalArgumentException("left == right");
+        }
+        if (bottom == top) {
+            throw new IllegalArgumentException("bottom == top");
+        }
+        if (near == far) {
+            throw new IllegalArgumentException("near == far");
+        }
+
+        final float rWidth = 1.0f / (right - left);
+        final float rHeight = 1.0f / (top - bottom);
+        final float rDepth = 1.0f / (far - near);
+        final float x = 2.0f * (rWidth);
+        final float y = 2.0f * (rHeight);
+        final float z = -2.0f * (rDepth);
+        final float tx = -(right + left) * rWidth;
+        final float ty = -(top + bottom) * rHeight;
+        final float tz = -(far + near) * rDepth;
+        m[mOffset] = x;
+        m[mOffset + 5] = y;
+        m[mOffset + 10] = z;
+        m[mOffset + 12] = tx;
+        m[mOffset + 13] = ty;
+        m[mOffset + 14] = tz;
+        m[mOffset + 15] = 1.0f;
+        m[mOffset + 1] = 0.0f;
+        m[mOffset + 2] = 0.0f;
+        m[mOffset + 3] = 0.0f;
+        m[mOffset + 4] = 0.0f;
+        m[mOffset + 6] = 0.0f;
+        m[mOffset + 7] = 0.0f;
+        m[mOffset + 8] = 0.0f;
+        m[mOffset + 9] = 0.0f;
+        m[mOffset + 11] = 0.0f;
+    }
+
+    /**
+     * Defines a viewing transformation in terms of an eye point, a center of view, and an up
+     * vector.
+     */
+    static void setLookAtM(@NonNull float[] rm, int rmOffset,
+            float eyeX, float eyeY, float eyeZ,
+            float centerX, float centerY, float centerZ,
+            float upX, float upY, float upZ) {
+        // See the OpenGL GLUT documentation for gluLookAt for a description of the algorithm.
+        float fx = centerX - eyeX;
+        float fy = centerY - eyeY;
+        float fz = centerZ - eyeZ;
+
+        // Normalize f
+        float rlf = 1.0f / length(fx, fy, fz);
+        fx *= rlf;
+        fy *= rlf;
+        fz *= rlf;
+
+        // compute s = f x up (x means "cross product")
+        float sx = fy * upZ - fz * upY;
+        float sy = fz * upX - fx * upZ;
+        float sz = fx * upY - fy * upX;
+
+        // and normalize s
+        float rls = 1.0f / length(sx, sy, sz);
+        sx *= rls;
+        sy *= rls;
+        sz *= rls;
+
+        // compute u = s x f
+        float ux = sy * fz - sz * fy;
+        float uy = sz * fx - sx * fz;
+        float uz = sx * fy - sy * fx;
+
+        rm[rmOffset] = sx;
+        rm[rmOffset + 1] = ux;
+        rm[rmOffset + 2] = -fx;
+        rm[rmOffset + 3] = 0.0f;
+
+        rm[rmOffset + 4] = sy;
+        rm[rmOffset + 5] = uy;
+        rm[rmOffset + 6] = -fy;
+        rm[rmOffset + 7] = 0.0f;
+
+        rm[rmOffset + 8] = sz;
+        rm[rmOffset + 9] = uz;
+        rm[rmOffset + 10] = -fz;
+        rm[rmOffset + 11] = 0.0f;
+
+        rm[rmOffset + 12] = 0.0f;
+        rm[rmOffset + 13] = 0.0f;
+        rm[rmOffset + 14] = 0.0f;
+        rm[rmOffset + 15] = 1.0f;
+
+        translateM(rm, rmOffset, -eyeX, -eyeY, -eyeZ);
+    }
+
+    // Should not be instantiated.
+    private Matrices() {}
+}
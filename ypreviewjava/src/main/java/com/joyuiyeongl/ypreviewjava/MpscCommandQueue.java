@@ -0,0 +1,296 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joyuiyeongl.ypreviewjava;
+
+import androidx.annotation.GuardedBy;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Queue of commands for a single consumer thread, filled by any number of producer threads
+ * without locks.
+ *
+ * <p>Commands are stored in a ring of preallocated slots: producers claim a slot with a CAS on
+ * the tail and publish it by advancing the slot's sequence, and the consumer frees it the same
+ * way, so enqueuing neither locks nor allocates. When the ring is full, commands go to an
+ * overflow list under a lock until the consumer has caught up. The commands of a producer run
+ * in the order it queued them.
+ *
+ * <p>A command queued with a {@link CoalescingKey} supersedes the commands queued earlier with
+ * the same key that have not run yet: those are dropped, and only the last one runs, at its own
+ * place in the queue. A burst of resizes or rotations thus ends up as a single state transition.
+ *
+ * <p>{@link #offer} returns true when the consumer has to be woken up to {@link #drain} the
+ * queue, which happens once per burst of commands rather than once per command.
+ */
+final class MpscCommandQueue {
+
+    /**
+     * Identifies commands that supersede each other. Owned by a producer, so that the commands
+     * of different producers sharing a queue never supersede each other.
+     */
+    static final class CoalescingKey {
+        // Coalescing sequence number of the last command queued with the key.
+        final AtomicLong mLatest = new AtomicLong(0);
+    }
+
+    private final int mCapacity;
+    private final int mMask;
+    // Sequence of each slot: its position when free, its position + 1 once published.
+    private final AtomicLongArray mSlotSequences;
+    // Contents of the slots, written before their sequence is published and read after.
+    private final Runnable[] mTasks;
+    private final CoalescingKey[] mKeys;
+    private final long[] mCoalescingSequences;
+    private final long[] mEnqueuedNs;
+    private final AtomicLong mTail = new AtomicLong(0);
+    // Written by the consumer only.
+    private volatile long mHead = 0;
+
+    private final AtomicLong mCoalescingSequence = new AtomicLong(0);
+    // Whether a drain is scheduled or running.
+    private final AtomicBoolean mDrainScheduled = new AtomicBoolean(false);
+
+    private final Object mOverflowLock = new Object();
+    @GuardedBy("mOverflowLock")
+    private final ArrayDeque<OverflowCommand> mOverflow = new ArrayDeque<>();
+    @GuardedBy("mOverflowLock")
+    private long mCommandsOverflowed = 0;
+    // Set while commands are in the overflow list, so that later commands queue behind them.
+    private volatile boolean mOverflowing = false;
+    // Overflow commands taken by the consumer. Only used by the consumer.
+    private final ArrayDeque<OverflowCommand> mOverflowDrained = new ArrayDeque<>();
+
+    // Only used by the consumer.
+    private long mCommandsRun = 0;
+    private long mCommandsCoalesced = 0;
+    private long mDrains = 0;
+    private long mMaxDepth = 0;
+    private long mTotalWaitNs = 0;
+    private long mMaxWaitNs = 0;
+
+    /**
+     * @param capacity Number of slots of the ring, rounded up to a power of two.
+     */
+    MpscCommandQueue(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        int rounded = 1;
+        while (rounded < capacity) {
+            rounded <<= 1;
+        }
+        mCapacity = rounded;
+        mMask = mCapacity - 1;
+        mSlotSequences = new AtomicLongArray(mCapacity);
+        for (int i = 0; i < mCapacity; i++) {
+            mSlotSequences.set(i, i);
+        }
+        mTasks = new Runnable[mCapacity];
+        mKeys = new CoalescingKey[mCapacity];
+        mCoalescingSequences = new long[mCapacity];
+        mEnqueuedNs = new long[mCapacity];
+    }
+
+    int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Queues a command.
+     *
+     * @param key Key of the commands the command supersedes, or null if it supersedes none.
+     * @return true if the consumer has to be woken up to drain the queue.
+     */
+    boolean offer(@Nullable CoalescingKey key, @NonNull Runnable task) {
+        long coalescingSequence = 0;
+        if (key != null) {
+            // Claimed before the command is published, so that the consumer never runs a
+            // command whose successor is already queued without seeing that it is superseded.
+            coalescingSequence = mCoalescingSequence.incrementAndGet();
+            long latest;
+            do {
+                latest = key.mLatest.get();
+            } while (latest < coalescingSequence
+                    && !key.mLatest.compareAndSet(latest, coalescingSequence));
+        }
+        long nowNs = System.nanoTime();
+        if (mOverflowing || !offerToRing(key, coalescingSequence, task, nowNs)) {
+            synchronized (mOverflowLock) {
+                mOverflowing = true;
+                mOverflow.add(new OverflowCommand(key, coalescingSequence, task, nowNs));
+                mCommandsOverflowed++;
+            }
+        }
+        return mDrainScheduled.compareAndSet(false, true);
+    }
+
+    /**
+     * Runs queued commands on the consumer thread, until the queue is empty or maxCommands
+     * have run. If a command throws, the drain ends with the exception and stays scheduled, so
+     * the consumer has to drain again.
+     *
+     * @return true if commands may be left and the consumer has to drain again, false if the
+     * queue is empty and the next {@link #offer} wakes up the consumer.
+     */
+    boolean drain(int maxCommands) {
+        mDrains++;
+        int run = 0;
+        while (true) {
+            // Commands taken from the overflow list were queued before those now in the ring.
+            while (run < maxCommands && !mOverflowDrained.isEmpty()) {
+                OverflowCommand command = mOverflowDrained.poll();
+                runCommand(command.mKey, command.mCoalescingSequence, command.mTask,
+                        command.mEnqueuedNs, mOverflowDrained.size() + 1);
+                run++;
+            }
+            while (run < maxCommands && pollRing()) {
+                run++;
+            }
+            if (run >= maxCommands) {
+                return true;
+            }
+            if (mOverflowing) {
+                // The ring is empty, so the commands in the overflow list are next.
+                synchronized (mOverflowLock) {
+                    mOverflowDrained.addAll(mOverflow);
+                    mOverflow.clear();
+                    mOverflowing = false;
+                }
+                continue;
+            }
+            mDrainScheduled.set(false);
+            // A command queued since the ring was found empty either sees the flag cleared and
+            // wakes up the consumer, or is found here.
+            if (isEmpty() || !mDrainScheduled.compareAndSet(false, true)) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of commands waiting, including those that will be dropped as
+     * superseded. Can be called from any thread.
+     */
+    int size() {
+        long ringSize = mTail.get() - mHead;
+        int overflowSize;
+        synchronized (mOverflowLock) {
+            overflowSize = mOverflow.size();
+        }
+        return (int) Math.max(0, ringSize) + overflowSize;
+    }
+
+    /**
+     * Returns a snapshot of the queue's counters. Must be called on the consumer thread.
+     */
+    @NonNull
+    RenderQueueStats getStats() {
+        long overflowed;
+        synchronized (mOverflowLock) {
+            overflowed = mCommandsOverflowed;
+        }
+        return new RenderQueueStats(mCommandsRun, mCommandsCoalesced, overflowed, mDrains,
+                size(), mMaxDepth, mCommandsRun > 0 ? mTotalWaitNs / mCommandsRun : 0,
+                mMaxWaitNs);
+    }
+
+    private boolean isEmpty() {
+        return mTail.get() == mHead && !mOverflowing && mOverflowDrained.isEmpty();
+    }
+
+    private boolean offerToRing(@Nullable CoalescingKey key, long coalescingSequence,
+            @NonNull Runnable task, long nowNs) {
+        while (true) {
+            long position = mTail.get();
+            int index = (int) position & mMask;
+            long available = mSlotSequences.get(index) - position;
+            if (available < 0) {
+                // The slot still holds the command from a lap ago: the ring is full.
+                return false;
+            }
+            if (available == 0 && mTail.compareAndSet(position, position + 1)) {
+                mTasks[index] = task;
+                mKeys[index] = key;
+                mCoalescingSequences[index] = coalescingSequence;
+                mEnqueuedNs[index] = nowNs;
+                mSlotSequences.set(index, position + 1);
+                return true;
+            }
+            // Another producer claimed the slot first.
+        }
+    }
+
+    private boolean pollRing() {
+        long head = mHead;
+        int index = (int) head & mMask;
+        while (mSlotSequences.get(index) != head + 1) {
+            if (mTail.get() == head) {
+                return false;
+            }
+            // A producer claimed the slot but has not published it yet. It is about to, and the
+            // commands behind it must not run first.
+            Thread.yield();
+        }
+        Runnable task = mTasks[index];
+        CoalescingKey key = mKeys[index];
+        long coalescingSequence = mCoalescingSequences[index];
+        long enqueuedNs = mEnqueuedNs[index];
+        mTasks[index] = null;
+        mKeys[index] = null;
+        long depth = mTail.get() - head;
+        mSlotSequences.set(index, head + mCapacity);
+        mHead = head + 1;
+        runCommand(key, coalescingSequence, task, enqueuedNs, depth);
+        return true;
+    }
+
+    private void runCommand(@Nullable CoalescingKey key, long coalescingSequence,
+            @NonNull Runnable task, long enqueuedNs, long depth) {
+        if (key != null && key.mLatest.get() != coalescingSequence) {
+            mCommandsCoalesced++;
+            return;
+        }
+        long waitNs = System.nanoTime() - enqueuedNs;
+        mTotalWaitNs += waitNs;
+        mMaxWaitNs = Math.max(mMaxWaitNs, waitNs);
+        mMaxDepth = Math.max(mMaxDepth, depth);
+        mCommandsRun++;
+        task.run();
+    }
+
+    private static final class OverflowCommand {
+        @Nullable
+        final CoalescingKey mKey;
+        final long mCoalescingSequence;
+        @NonNull
+        final Runnable mTask;
+        final long mEnqueuedNs;
+
+        OverflowCommand(@Nullable CoalescingKey key, long coalescingSequence,
+                @NonNull Runnable task, long enqueuedNs) {
+            mKey = key;
+            mCoalescingSequence = coalescingSequence;
+            mTask = task;
+            mEnqueuedNs = enqueuedNs;
+        }
+    }
+}
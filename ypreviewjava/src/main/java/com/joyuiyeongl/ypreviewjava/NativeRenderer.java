@@ -0,0 +1,76 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joyuiyeongl.ypreviewjava;
+
+import android.view.Surface;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+
+/**
+ * The calls a {@link RenderEngine} and its renderers make into the native renderer to set up
+ * their contexts, attach their outputs and draw frames, implemented by {@link JniRenderer}.
+ * Local tests stub it to run the render loop on the JVM.
+ *
+ * <p>Captures, tensors and the effect chain, which frames only go through when asked for, call
+ * the natives of {@link OpenGLRenderer} directly.
+ */
+@WorkerThread
+interface NativeRenderer {
+    /**
+     * Sets up the context shared by the renderers of an engine.
+     *
+     * @see RenderEngine#createSharedContext(LongBuffer, String)
+     */
+    long createSharedContext(@NonNull LongBuffer startupTimings,
+            @Nullable String programCacheDir);
+
+    void destroySharedContext(long sharedContext);
+
+    /**
+     * Creates the context of a renderer in the shared context.
+     *
+     * @see OpenGLRenderer#initContext(long, FloatBuffer, LongBuffer, IntBuffer)
+     */
+    long initContext(long sharedContext, @NonNull FloatBuffer textureTransform,
+            @NonNull LongBuffer stageTimings, @NonNull IntBuffer detachGenerations);
+
+    /**
+     * Draws an output to a surface, or stops drawing it if the surface is null.
+     *
+     * @see OpenGLRenderer#setOutputSurface(long, int, Surface, FloatBuffer, int)
+     */
+    boolean setOutputSurface(long nativeContext, int output, @Nullable Surface surface,
+            @Nullable FloatBuffer mvpTransform, int detachGeneration);
+
+    void setOutputBufferSize(long nativeContext, int output, int width, int height);
+
+    /**
+     * Draws the latest texture to the outputs in outputMask.
+     *
+     * @return The mask of the outputs that were drawn and presented.
+     * @see OpenGLRenderer#renderTexture(long, int, int, long)
+     */
+    int renderTexture(long nativeContext, int outputMask, int mvpDirtyMask,
+            long presentationTimeNs);
+
+    void closeContext(long nativeContext);
+}
@@ -17,10 +17,9 @@ package com.joyuiyeongl.ypreviewjava;
 
 import android.annotation.SuppressLint;
 import android.graphics.Rect;
-import android.graphics.RectF;
 import android.graphics.SurfaceTexture;
-import android.opengl.Matrix;
-import android.os.Process;
+import android.os.Build;
+import android.os.PowerManager;
 import android.util.Log;
 import android.util.Size;
 import android.view.Surface;
@@ -28,75 +27,236 @@ import android.view.Surface;
 import androidx.annotation.MainThread;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+import androidx.annotation.VisibleForTesting;
 import androidx.annotation.WorkerThread;
 import androidx.camera.core.Preview;
+import androidx.camera.core.SurfaceRequest;
 import androidx.concurrent.futures.CallbackToFutureAdapter;
-import androidx.core.util.Consumer;
-import androidx.core.util.Pair;
 
 import com.google.common.util.concurrent.ListenableFuture;
 
-import java.util.Locale;
-import java.util.Objects;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Executor;
 import java.util.concurrent.RejectedExecutionException;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 final class OpenGLRenderer {
     private static final String TAG = "OpenGLRenderer";
     private static final boolean DEBUG = false;
+    private static final int FLOAT_SIZE_BYTES = 4;
+    private static final int INT_SIZE_BYTES = 4;
+    private static final int LONG_SIZE_BYTES = 8;
 
-    static {
-        System.loadLibrary("opengl_renderer_jni");
-    }
-
-    private static final AtomicInteger RENDERER_COUNT = new AtomicInteger(0);
-    private final SingleThreadHandlerExecutor mExecutor =
-            new SingleThreadHandlerExecutor(
-                    String.format(Locale.US, "GLRenderer-%03d", RENDERER_COUNT.incrementAndGet()),
-                    Process.THREAD_PRIORITY_DEFAULT); // Use UI thread priority (DEFAULT)
+    // Number of surfaces the camera texture can be drawn to, including the preview.
+    private static final int MAX_OUTPUT_SURFACES = 4;
+    private static final int PREVIEW_OUTPUT = 0;
 
-    private SurfaceTexture mPreviewTexture;
-    private RectF mPreviewCropRect;
-    private Size mPreviewSize;
-    private int mTextureRotationDegrees;
-    // Transform retrieved by SurfaceTexture.getTransformMatrix
-    private final float[] mTextureTransform = new float[16];
+    // Layout of the stage timings written by the native renderer.
+    private static final int TIMING_DRAW_CPU_NS = 0;
+    private static final int TIMING_SWAP_CPU_NS = 1;
+    private static final int TIMING_GPU_DRAW_NS = 2;
+    private static final int TIMING_GPU_SUPPORTED = 3;
+    private static final int TIMING_EFFECT_GPU_NS = 4;
 
-    // The Model represent the surface we are drawing on. In 3D, it is a flat rectangle.
-    private final float[] mModelTransform = new float[16];
+    // Maximum number of stages of the effect chain.
+    static final int MAX_EFFECT_STAGES = 8;
 
-    private final float[] mViewTransform = new float[16];
+    private static final int TIMING_COUNT = TIMING_EFFECT_GPU_NS + MAX_EFFECT_STAGES;
 
-    private final float[] mProjectionTransform = new float[16];
+    // Number of captures the native renderer reads back at the same time.
+    private static final int CAPTURE_SLOTS = 3;
+    // Number of capture buffers in flight or held by the app at once.
+    private static final int MAX_CAPTURE_BUFFERS = 5;
 
-    // A combination of the model, view and projection transform matrices.
-    private final float[] mMvpTransform = new float[16];
-    private boolean mMvpDirty = true;
+    // Thread and EGL context the renderer runs on, either its own or shared with other
+    // renderers.
+    private final RenderEngine mEngine;
+    private final RenderExecutor mExecutor;
+    private final NativeRenderer mNativeRenderer;
+    // Keys of the commands a later one of the same kind supersedes before it runs, so that a
+    // burst of them applies only the last.
+    private final MpscCommandQueue.CoalescingKey mAttachOutputKey =
+            new MpscCommandQueue.CoalescingKey();
+    private final MpscCommandQueue.CoalescingKey mInvalidateSurfaceKey =
+            new MpscCommandQueue.CoalescingKey();
+    private final MpscCommandQueue.CoalescingKey mOutputRenderScaleKey =
+            new MpscCommandQueue.CoalescingKey();
 
-    private Size mSurfaceSize = null;
-    private int mSurfaceRotationDegrees = 0;
+    private SurfaceTexture mPreviewTexture;
+    // Frames the render loop draws, those of the preview texture unless a test feeds its own.
+    // Only used on the GL thread.
+    @Nullable
+    private InputFrames mInputFrames;
+    // Output surface, crop rect and rotation published from any thread, and the version last
+    // applied to the transforms, only used on the GL thread.
+    private final RenderConfig.Publisher mRenderConfig = new RenderConfig.Publisher();
+    @Nullable
+    private RenderConfig mAppliedRenderConfig;
+    // Surface attached as the preview output. Only used on the GL thread.
+    @Nullable
+    private Surface mPreviewSurface;
+    // Surface of the current preview texture, handed to every surface request of the same
+    // resolution until the camera is done with it. Only used on the GL thread.
+    @Nullable
+    private PreviewInput mPreviewInput;
+    // Surfaces the camera texture is drawn to, each with its own surface size, crop rect and
+    // matrices. Output 0 is the preview, the others are secondary outputs such as the input
+    // surface of an encoder. Preallocated so that the per-frame path does not allocate.
+    private final RenderOutput[] mOutputs = createOutputs();
+    // Transform retrieved by SurfaceTexture.getTransformMatrix, shared by all outputs.
+    private final float[] mTextureTransform = new float[16];
 
-    // Vectors defining the 'up' direction for the 4 angles we're interested in. These are based
-    // off our world-space coordinate system (sensor coordinates), where the origin (0, 0) is in
-    // the upper left of the image, and rotations are clockwise (left-handed coordinates).
-    private static final float[] DIRECTION_UP_ROT_0 = {0f, -1f, 0f, 0f};
-    private static final float[] DIRECTION_UP_ROT_90 = {1f, 0f, 0f, 0f};
-    private static final float[] DIRECTION_UP_ROT_180 = {0f, 1f, 0f, 0f};
-    private static final float[] DIRECTION_UP_ROT_270 = {-1f, 0f, 0f, 0f};
-    private final float[] mTempVec = new float[4];
-    private final float[] mTempMatrix = new float[32]; // 2 concatenated matrices for calculations
+    // Direct buffers shared with the native context. The matrices are copied into them before
+    // each draw and read in place by the native side, so the draw call does not need to access
+    // Java arrays. Each output has its own MVP buffer.
+    private final FloatBuffer mTextureTransformBuffer = allocateMatrixBuffer();
+    // Direct buffer the native renderer writes the timings of the stages it runs to on each
+    // draw, read back without another native call.
+    private final LongBuffer mStageTimingsBuffer = ByteBuffer.allocateDirect(
+            TIMING_COUNT * LONG_SIZE_BYTES).order(ByteOrder.nativeOrder()).asLongBuffer();
+    // Detach generation of each output, bumped on the thread detaching the output's surface to
+    // stop the render thread from using its window, without waiting for the render thread. The
+    // generations are mirrored to a direct buffer the native renderer reads before each use of
+    // a window, written under its own lock so that it always ends up with the latest ones.
+    private final AtomicIntegerArray mDetachGenerations =
+            new AtomicIntegerArray(MAX_OUTPUT_SURFACES);
+    private final IntBuffer mDetachGenerationsBuffer = ByteBuffer.allocateDirect(
+            MAX_OUTPUT_SURFACES * INT_SIZE_BYTES).order(ByteOrder.nativeOrder()).asIntBuffer();
 
     private long mNativeContext = 0;
 
+    // Time the renderer was created, and the startup timings measured since. Only used on the
+    // GL thread after construction.
+    private final long mCreatedNs = System.nanoTime();
+    private final LongBuffer mStartupTimingsBuffer =
+            ByteBuffer.allocateDirect(RenderEngine.STARTUP_COUNT * LONG_SIZE_BYTES)
+                    .order(ByteOrder.nativeOrder()).asLongBuffer();
+    private long mContextInitNs = 0;
+    private long mFirstFrameNs = -1;
+    // Trace of the current camera startup, until its first frame is drawn, and when the preview
+    // output was last attached. Only used on the GL thread.
+    @Nullable
+    private StartupTracer mStartupTracer;
+    private long mPreviewAttachedNs = -1;
+    // Frames only count towards the trace once the input surface went to a session since the
+    // tracer was set, so that frames of the previous session, such as before a lens switch, do
+    // not end it. Only used on the GL thread.
+    private boolean mStartupTracerSurfaceProvided = false;
+    private boolean mStartupTracerFrameAvailable = false;
+
     private boolean mIsShutdown = false;
     private int mNumOutstandingSurfaces = 0;
+    // Whether the renderer has let go of the engine, after which its executor may be shut down.
+    private boolean mDetached = false;
+
+    // Publishes a record of each drawn frame to the subscribers.
+    private final FrameEventBus mFrameEventBus = new FrameEventBus();
+    // Number of frames drawn so far. Only used on the GL thread.
+    private long mFrameNumber = 0;
+    // Histograms of frame intervals and render durations, written on the GL thread and readable
+    // from any thread.
+    private final FrameIntervalRecorder mFrameIntervalRecorder = new FrameIntervalRecorder();
+    // Histograms of the time spent in each stage of the render loop, written on the GL thread
+    // and readable from any thread.
+    private final RenderStageRecorder mRenderStageRecorder = new RenderStageRecorder();
+    // Histograms of the GPU time of each stage of the effect chain, by position in the chain.
+    private final RenderStageRecorder mEffectStageRecorder =
+            new RenderStageRecorder(createEffectStageNames());
 
-    private Pair<Executor, Consumer<Long>> mFrameUpdateListener;
+    // Lowers the scale of the preview's buffers and caps the effect chain while the renderer
+    // can't keep up, watching the thermal status where available. Only used on the GL thread.
+    private final RenderScaleGovernor mRenderScaleGovernor = new RenderScaleGovernor();
+    private boolean mRenderScaleGovernorEnabled = false;
+    @Nullable
+    private ThermalMonitor mThermalMonitor;
+    // Scale of the preview's buffers relative to the camera frames, or 0 to draw at the size of
+    // the surface, and the buffer size last set. Only used on the GL thread.
+    private float mOutputRenderScale = 0;
+    private int mPreviewBufferWidth = 0;
+    private int mPreviewBufferHeight = 0;
+    @Nullable
+    private BufferSizeSetter mPreviewBufferSizeSetter;
+
+    // Decides when frames are drawn, either immediately or on vsync. Only used on the GL thread.
+    private final VsyncFramePacer mFramePacer;
+    // Latches camera frames and collapses backlogs into a single frame handed to the pacer.
+    // Only used on the GL thread.
+    private final LatestFrameCoalescer mFrameCoalescer;
+
+    // Offscreen output frames are captured through, sized to the rotated preview.
+    private final RenderOutput mCaptureOutput = new RenderOutput();
+    private final CaptureBufferPool mCaptureBufferPool =
+            new CaptureBufferPool(MAX_CAPTURE_BUFFERS);
+    // Captures waiting for the next drawn frame, and the ones being read back, by native slot.
+    // Only used on the GL thread.
+    private final ArrayDeque<CallbackToFutureAdapter.Completer<CapturedFrame>> mCaptureRequests =
+            new ArrayDeque<>();
+    private final PendingCapture[] mPendingCaptures = new PendingCapture[CAPTURE_SLOTS];
+    private int mPendingCaptureCount = 0;
+
+    // Packs every n-th frame into a tensor for a model, or null. Only used on the GL thread.
+    @Nullable
+    private TensorConsumer mTensorConsumer;
+    // Offscreen output sized to the tensor, whose MVP gives the crop and rotation to pack with.
+    private final RenderOutput mTensorOutput = new RenderOutput();
+
+    // Stages of the effect chain, in order, each compiled by the native renderer. Only used on
+    // the GL thread.
+    private final ArrayList<CompiledEffect> mEffects = new ArrayList<>();
+    // Handles of the stages last handed to the native renderer, reused so that the render scale
+    // governor can change the chain without allocating.
+    private final long[] mEffectChainHandles = new long[MAX_EFFECT_STAGES];
+    // Size last given to the native renderer for the offscreen targets of the effect chain.
+    private int mEffectTargetWidth = 0;
+    private int mEffectTargetHeight = 0;
+
+    /**
+     * Creates a renderer with a thread and EGL context of its own.
+     *
+     * @param cacheDir Directory to cache the compiled shader programs under, in the
+     *                 {@link RenderEngine#PROGRAM_CACHE_DIR} subdirectory, so later renderers
+     *                 skip compiling them, or null to always compile them.
+     */
+    OpenGLRenderer(@Nullable File cacheDir) {
+        this(RenderEngine.obtainDedicated(cacheDir));
+        // The engine ends with this renderer.
+        mEngine.release();
+    }
 
-    OpenGLRenderer() {
+    /**
+     * Creates a renderer on the thread and in the EGL context of the given engine, along with
+     * the other renderers using it.
+     *
+     * @throws IllegalStateException if the engine has been released.
+     */
+    OpenGLRenderer(@NonNull RenderEngine engine) {
+        engine.attach();
+        mEngine = engine;
+        mExecutor = engine.getExecutor();
+        mNativeRenderer = engine.getNativeRenderer();
+        mFramePacer = new VsyncFramePacer(this::renderLatest, engine.getFrameScheduler());
+        mFrameCoalescer = new LatestFrameCoalescer(mExecutor, this::latchPreviewFrame,
+                mFramePacer);
         // Initialize the GL context on the GL thread
-        mExecutor.execute(() -> mNativeContext = initContext());
+        mExecutor.execute(() -> {
+            long initStartNs = System.nanoTime();
+            long sharedContext = mEngine.acquireSharedContext(mStartupTimingsBuffer);
+            mNativeContext = mNativeRenderer.initContext(sharedContext, mTextureTransformBuffer,
+                    mStageTimingsBuffer, mDetachGenerationsBuffer);
+            mContextInitNs = System.nanoTime() - initStartNs;
+            boolean gpuTimingSupported = mStageTimingsBuffer.get(TIMING_GPU_SUPPORTED) != 0;
+            mRenderStageRecorder.setGpuTimingSupported(gpuTimingSupported);
+            mEffectStageRecorder.setGpuTimingSupported(gpuTimingSupported);
+        });
     }
 
     /**
@@ -114,37 +274,51 @@ final class OpenGLRenderer {
         return CallbackToFutureAdapter.getFuture(completer -> {
             preview.setSurfaceProvider(mExecutor, surfaceRequest -> {
                 if (mIsShutdown) {
-                    Log.e(TAG, "    attachInputPreview.setSurfaceProvider, mIsShutdown is true");
+                    if (DEBUG) {
+                        Log.e(TAG, "    attachInputPreview.setSurfaceProvider, "
+                                + "mIsShutdown is true");
+                    }
                     surfaceRequest.willNotProvideSurface();
                     return;
                 }
 
-                SurfaceTexture surfaceTexture = resetPreviewTexture(surfaceRequest.getResolution());
-                Log.e(TAG, "    attachInputPreview.setSurfaceProvider, resetPreviewTexture");
-                Surface inputSurface = new Surface(surfaceTexture);
-                mNumOutstandingSurfaces++;
-
-                surfaceRequest.setTransformationInfoListener(mExecutor, transformationInfo -> {
-                    mMvpDirty = true;
-                    if (!isCropRectFullTexture(transformationInfo.getCropRect())) {
-                        // Crop rect is pre-calculated. Use it directly.
-                        mPreviewCropRect = new RectF(transformationInfo.getCropRect());
-                    } else {
-                        // Crop rect needs to be calculated before drawing.
-                        mPreviewCropRect = null;
+                if (mStartupTracer != null) {
+                    mStartupTracer.mark(StartupTrace.MILESTONE_SURFACE_REQUESTED);
+                }
+                Size resolution = surfaceRequest.getResolution();
+                PreviewInput input = mPreviewInput;
+                if (input == null || !input.mSize.equals(resolution)) {
+                    // A new session at another resolution needs a new texture. A session
+                    // rebuilt at the same one, such as for a lens switch, keeps drawing the
+                    // current texture and its surface.
+                    SurfaceTexture surfaceTexture = resetPreviewTexture(resolution);
+                    if (DEBUG) {
+                        Log.e(TAG, "    attachInputPreview.setSurfaceProvider, "
+                                + "resetPreviewTexture");
                     }
+                    input = new PreviewInput(surfaceTexture, new Surface(surfaceTexture),
+                            resolution);
+                    mPreviewInput = input;
+                }
+
+                // Published from CameraX's thread, for the next frame to pick up.
+                surfaceRequest.setTransformationInfoListener(Runnable::run, transformationInfo -> {
+                    Rect cropRect = transformationInfo.getCropRect();
+                    mRenderConfig.publishCropRect(cropRect.left, cropRect.top, cropRect.right,
+                            cropRect.bottom);
                 });
 
-                surfaceRequest.provideSurface(inputSurface, mExecutor, result -> {
-                    Log.e(TAG, "    attachInputPreview.setSurfaceProvider, provideSurface, onResult");
-                    inputSurface.release();
-                    surfaceTexture.release();
-                    if (surfaceTexture == mPreviewTexture) {
-                        mPreviewTexture = null;
+                if (input.mUses > 0) {
+                    // The previous session may still be connected to the surface, and a
+                    // BufferQueue takes a single producer. The surface goes to the new session
+                    // once the previous one is done with it.
+                    if (input.mWaitingRequest != null) {
+                        input.mWaitingRequest.willNotProvideSurface();
                     }
-                    mNumOutstandingSurfaces--;
-                    doShutdownExecutorIfNeeded();
-                });
+                    input.mWaitingRequest = surfaceRequest;
+                } else {
+                    provideInput(surfaceRequest, input);
+                }
                 // Make sure the renderer use the new surface for the input Preview.
                 completer.set(null);
 
@@ -153,23 +327,187 @@ final class OpenGLRenderer {
         });
     }
 
+    // Hands the input surface to a session. Once the session is done with it, the surface goes
+    // to the request waiting for it, if any, or is released with its texture.
+    private void provideInput(@NonNull SurfaceRequest surfaceRequest, @NonNull PreviewInput input) {
+        input.mUses++;
+        mNumOutstandingSurfaces++;
+        if (mStartupTracer != null) {
+            mStartupTracerSurfaceProvided = true;
+        }
+        surfaceRequest.provideSurface(input.mSurface, mExecutor, result -> {
+            if (DEBUG) {
+                Log.e(TAG, "    attachInputPreview.setSurfaceProvider, provideSurface, onResult");
+            }
+            mNumOutstandingSurfaces--;
+            if (--input.mUses == 0) {
+                SurfaceRequest waitingRequest = input.mWaitingRequest;
+                input.mWaitingRequest = null;
+                if (waitingRequest != null && !mIsShutdown && input == mPreviewInput) {
+                    provideInput(waitingRequest, input);
+                } else {
+                    if (waitingRequest != null) {
+                        waitingRequest.willNotProvideSurface();
+                    }
+                    input.mSurface.release();
+                    input.mTexture.release();
+                    if (input == mPreviewInput) {
+                        mPreviewInput = null;
+                        mPreviewTexture = null;
+                        mInputFrames = null;
+                        mFrameCoalescer.clear();
+                    }
+                }
+            }
+            releaseEngineIfNeeded();
+        });
+    }
+
+    /**
+     * Feeds the renderer from a surface of the given size rather than from a {@link Preview},
+     * for tests producing their own frames. The caller releases the surface once done.
+     */
+    @VisibleForTesting
+    @SuppressWarnings("ObjectToString")
+    @NonNull
+    ListenableFuture<Surface> attachInputSurface(@NonNull Size size) {
+        return CallbackToFutureAdapter.getFuture(completer -> {
+            try {
+                mExecutor.execute(() -> {
+                    if (mIsShutdown) {
+                        completer.setException(
+                                new IllegalStateException("Renderer is shut down."));
+                        return;
+                    }
+                    SurfaceTexture surfaceTexture = resetPreviewTexture(size);
+                    PreviewInput input = new PreviewInput(surfaceTexture,
+                            new Surface(surfaceTexture), size);
+                    mPreviewInput = input;
+                    completer.set(input.mSurface);
+                });
+            } catch (RejectedExecutionException e) {
+                completer.setException(e);
+            }
+            return "attachInputSurface [" + this + "]";
+        });
+    }
+
+    private static void applyCropRect(@NonNull RenderTransform transform,
+            @NonNull RenderConfig config) {
+        if (!config.hasCropRect()) {
+            return;
+        }
+        int left = config.getCropLeft();
+        int top = config.getCropTop();
+        int right = config.getCropRight();
+        int bottom = config.getCropBottom();
+        if (!transform.isCropRectFullTexture(left, top, right, bottom)) {
+            // Crop rect is pre-calculated. Use it directly.
+            transform.setCropRect(left, top, right, bottom);
+        } else {
+            // Crop rect needs to be calculated before drawing.
+            transform.clearCropRect();
+        }
+    }
+
+    /**
+     * Size of the buffers of an output surface, set on the renderer's behalf by the view owning
+     * the surface rather than on the native window, such as with
+     * {@link android.view.SurfaceHolder#setFixedSize(int, int)}.
+     */
+    interface BufferSizeSetter {
+        /**
+         * Sets the size of the buffers, or back to the size of the view if width and height are
+         * 0. Called on the GL thread.
+         */
+        void setBufferSize(int width, int height);
+    }
+
+    /**
+     * Frames of the renderer's input, as the render loop reads them from the preview's
+     * {@link SurfaceTexture}.
+     */
+    interface InputFrames {
+        /**
+         * Latches the next frame, handing the buffer of the previous one back to the producer.
+         */
+        void updateTexImage();
+
+        /**
+         * Returns the timestamp of the latched frame.
+         */
+        long getTimestamp();
+
+        /**
+         * Writes the transform of the texture coordinates of the latched frame.
+         */
+        void getTransformMatrix(@NonNull float[] matrix);
+    }
+
     void attachOutputSurface(@NonNull Surface surface, @NonNull Size surfaceSize, int surfaceRotationDegrees) {
+        attachOutputSurface(surface, surfaceSize, surfaceRotationDegrees, null);
+    }
+
+    /**
+     * Draws the preview to the surface, sized to the view, with buffers sized by the render
+     * scale.
+     *
+     * @param surfaceSize      Size of the view showing the surface, which the buffers are
+     *                         scaled to.
+     * @param bufferSizeSetter Sets the buffer size for the view, or null to set it on the
+     *                         native window.
+     */
+    void attachOutputSurface(@NonNull Surface surface, @NonNull Size surfaceSize,
+            int surfaceRotationDegrees, @Nullable BufferSizeSetter bufferSizeSetter) {
+        attachOutputSurface(surface, surfaceSize.getWidth(), surfaceSize.getHeight(),
+                surfaceRotationDegrees, bufferSizeSetter);
+    }
+
+    /**
+     * Like {@link #attachOutputSurface(Surface, Size, int, BufferSizeSetter)}, with the size of
+     * the view given in pixels.
+     */
+    void attachOutputSurface(@NonNull Surface surface, int surfaceWidth, int surfaceHeight,
+            int surfaceRotationDegrees, @Nullable BufferSizeSetter bufferSizeSetter) {
+        // A resize of the attached surface is drawn by the next frame, before the task runs.
+        mRenderConfig.publishSurface(surface, surfaceWidth, surfaceHeight, surfaceRotationDegrees);
+        // A detach from this thread before the task runs keeps it from using the surface.
+        int detachGeneration = getDetachGeneration(PREVIEW_OUTPUT);
         try {
-            mExecutor.execute(() -> {
+            mExecutor.execute(mAttachOutputKey, () -> {
                 if (mIsShutdown) {
-                    Log.e(TAG, "    attachOutputSurface, mIsShutdown is true");
+                    if (DEBUG) {
+                        Log.e(TAG, "    attachOutputSurface, mIsShutdown is true");
+                    }
                     return;
                 }
 
-                if (setWindowSurface(mNativeContext, surface)) {
-                    Log.e(TAG, "    attachOutputSurface, setWindowSurface is true");
-                    if (surfaceRotationDegrees != mSurfaceRotationDegrees  || !Objects.equals(surfaceSize, mSurfaceSize)) {
-                        mMvpDirty = true;
+                markFrameDiscontinuity();
+                RenderOutput preview = mOutputs[PREVIEW_OUTPUT];
+                if (mNativeRenderer.setOutputSurface(mNativeContext, PREVIEW_OUTPUT, surface,
+                        preview.getMvpTransformBuffer(), detachGeneration)) {
+                    if (DEBUG) {
+                        Log.e(TAG, "    attachOutputSurface, setOutputSurface is true");
+                    }
+                    preview.attach(null, surfaceWidth, surfaceHeight, surfaceRotationDegrees,
+                            0);
+                    mPreviewSurface = surface;
+                    // A later size or rotation may have been published since.
+                    mAppliedRenderConfig = null;
+                    mPreviewBufferSizeSetter = bufferSizeSetter;
+                    // The native window of a new surface has its own buffer size.
+                    mPreviewBufferWidth = 0;
+                    mPreviewBufferHeight = 0;
+                    updatePreviewBufferSize();
+                    mPreviewAttachedNs = System.nanoTime();
+                    if (mStartupTracer != null) {
+                        mStartupTracer.mark(StartupTrace.MILESTONE_OUTPUT_SURFACE_ATTACHED,
+                                mPreviewAttachedNs);
                     }
-                    mSurfaceRotationDegrees = surfaceRotationDegrees;
-                    mSurfaceSize = surfaceSize;
                 } else {
-                    mSurfaceSize = null;
+                    preview.detach();
+                    mPreviewSurface = null;
+                    mPreviewAttachedNs = -1;
                 }
             });
         } catch (RejectedExecutionException e) {
@@ -179,41 +517,81 @@ final class OpenGLRenderer {
 
 
     /**
-     * Sets a listener to receive updates when a frame has been drawn to the output {@link Surface}.
-     *
-     * <p>Frame updates include the timestamp of the latest drawn frame.
-     *
-     * @param executor Executor used to call the listener.
-     * @param listener Listener which receives updates in the form of a timestamp (in nanoseconds).
+     * Records the milestones of the camera startup the renderer goes through on the tracer,
+     * replacing the previous one, until the first frame is drawn. An output surface attached
+     * before counts as attached when it was. Frames only count once the input surface is provided
+     * to a session.
      */
-    void setFrameUpdateListener(@NonNull Executor executor, @NonNull Consumer<Long> listener) {
+    void setStartupTracer(@NonNull StartupTracer tracer) {
         try {
-            mExecutor.execute(() -> mFrameUpdateListener = new Pair<>(executor, listener));
+            mExecutor.execute(() -> {
+                if (mStartupTracer != null) {
+                    mStartupTracer.abandon();
+                }
+                mStartupTracer = tracer;
+                mStartupTracerSurfaceProvided = false;
+                mStartupTracerFrameAvailable = false;
+                if (mPreviewAttachedNs >= 0) {
+                    tracer.mark(StartupTrace.MILESTONE_OUTPUT_SURFACE_ATTACHED,
+                            mPreviewAttachedNs);
+                }
+            });
         } catch (RejectedExecutionException e) {
             // Renderer is shutting down. Ignore.
         }
     }
 
-    void clearFrameUpdateListener() {
-        try {
-            mExecutor.execute(() -> mFrameUpdateListener = null);
-        } catch (RejectedExecutionException e) {
-            // Renderer is shutting down. Ignore.
-        }
+    /**
+     * Subscribes a listener to the records of the frames drawn to the output {@link Surface}.
+     *
+     * <p>Any number of listeners can be subscribed. Each one is called on its own executor and
+     * falls behind independently; the GL thread never waits for a listener.
+     *
+     * @param executor Executor used to call the listener.
+     * @param policy   Decides which frames are delivered when the listener falls behind.
+     * @param listener Listener which receives the frame records.
+     * @return The subscription, which can be used to unsubscribe the listener.
+     */
+    @NonNull
+    FrameSubscription subscribeToFrameEvents(@NonNull Executor executor,
+            @NonNull BackpressurePolicy policy, @NonNull FrameEventListener listener) {
+        return mFrameEventBus.subscribe(executor, policy, listener);
     }
 
     void invalidateSurface(int surfaceRotationDegrees) {
+        invalidateSurface(surfaceRotationDegrees, /*forceRedraw=*/false);
+    }
+
+    /**
+     * Redraws the current frame to the output surface with the given rotation. Unless forced,
+     * the redraw is skipped if it would present the same image as the last frame drawn: the same
+     * camera frame, with the same MVP, to the same surface and buffers.
+     *
+     * @param forceRedraw Whether to draw even if nothing changed, for when the buffers the last
+     *                    frame was presented in were lost.
+     */
+    void invalidateSurface(int surfaceRotationDegrees, boolean forceRedraw) {
+        // The rotation is picked up by the next frame, whether or not it is the redraw.
+        mRenderConfig.publishSurfaceRotation(surfaceRotationDegrees);
+        Runnable invalidate = () -> {
+            if (DEBUG) {
+                Log.e(TAG, "    invalidateSurface, surfaceRotationDegrees: "
+                        + surfaceRotationDegrees);
+            }
+            if (forceRedraw) {
+                mOutputs[PREVIEW_OUTPUT].forceRedraw();
+            }
+            if (mInputFrames != null && !mIsShutdown) {
+                mFramePacer.requestRedraw(mInputFrames.getTimestamp());
+            }
+        };
         try {
-            mExecutor.execute(() -> {
-                Log.e(TAG, "    invalidateSurface, surfaceRotationDegrees: " + surfaceRotationDegrees);
-                if (surfaceRotationDegrees != mSurfaceRotationDegrees) {
-                    mMvpDirty = true;
-                }
-                mSurfaceRotationDegrees = surfaceRotationDegrees;
-                if (mPreviewTexture != null && !mIsShutdown) {
-                    renderLatest();
-                }
-            });
+            if (forceRedraw) {
+                // A later invalidation must not supersede the forced redraw.
+                mExecutor.execute(invalidate);
+            } else {
+                mExecutor.execute(mInvalidateSurfaceKey, invalidate);
+            }
         } catch (RejectedExecutionException e) {
             // Renderer is shutting down. Ignore.
         }
@@ -222,20 +600,31 @@ final class OpenGLRenderer {
     /**
      * Detach the current output surface from the renderer.
      *
-     * @return A {@link ListenableFuture} that signals detach from the renderer. Some devices may
-     * not be able to handle the surface being released while still attached to an EGL context.
-     * It should be safe to release resources associated with the output surface once this future
-     * has completed.
+     * <p>Returns without waiting for the render thread. No draw to the surface's window starts
+     * after this returns, only a swap already under way can still complete. The render thread
+     * lets go of its EGL surface and native window later, when it gets to the detach. Must be
+     * called on the thread attaching the surface.
+     *
+     * @return A {@link ListenableFuture} that signals the renderer let go of the surface. Some
+     * EGL implementations cannot handle the surface being released before it completes.
      */
     @SuppressWarnings("ObjectToString")
     ListenableFuture<Void> detachOutputSurface() {
+        signalOutputDetach(PREVIEW_OUTPUT);
         return CallbackToFutureAdapter.getFuture(completer -> {
             try {
                 mExecutor.execute(() -> {
                     if (!mIsShutdown) {
-                        Log.e(TAG, "    detachOutputSurface, not shutdown");
-                        setWindowSurface(mNativeContext, null);
-                        mSurfaceSize = null;
+                        if (DEBUG) {
+                            Log.e(TAG, "    detachOutputSurface, not shutdown");
+                        }
+                        mNativeRenderer.setOutputSurface(mNativeContext, PREVIEW_OUTPUT, null,
+                                null, 0);
+                        mOutputs[PREVIEW_OUTPUT].detach();
+                        mPreviewSurface = null;
+                        mPreviewBufferSizeSetter = null;
+                        mPreviewAttachedNs = -1;
+                        markFrameDiscontinuity();
                     }
                     completer.set(null);
                 });
@@ -247,407 +636,1161 @@ final class OpenGLRenderer {
         });
     }
 
-    void shutdown() {
+    /**
+     * Attaches a surface the camera frames are drawn to along with the preview, such as the input
+     * surface of a video encoder.
+     *
+     * <p>Each camera frame is latched once and drawn to the preview and all secondary surfaces in
+     * a single pass on the GL thread. Each surface has its own size, rotation and MVP. Secondary
+     * surfaces are only drawn new camera frames, never redraws of the same one. Up to
+     * {@code MAX_OUTPUT_SURFACES - 1} secondary surfaces can be attached. Attaching a surface
+     * again updates its size, rotation and frame rate cap.
+     *
+     * @param maxFrameRate Maximum rate at which the surface is drawn, or 0 to draw every frame.
+     * @return A {@link ListenableFuture} that signals the surface is attached. It fails if the
+     * surface cannot be drawn to or too many surfaces are attached.
+     */
+    @SuppressWarnings("ObjectToString")
+    @NonNull
+    ListenableFuture<Void> attachSecondaryOutputSurface(@NonNull Surface surface,
+            @NonNull Size surfaceSize, int surfaceRotationDegrees, float maxFrameRate) {
+        return CallbackToFutureAdapter.getFuture(completer -> {
+            try {
+                mExecutor.execute(() -> {
+                    if (mIsShutdown) {
+                        completer.setException(
+                                new IllegalStateException("Renderer is shut down."));
+                        return;
+                    }
+                    int slot = findSecondaryOutput(surface);
+                    if (slot < 0) {
+                        slot = findSecondaryOutput(null);
+                    }
+                    if (slot < 0) {
+                        completer.setException(new IllegalStateException(
+                                "Unable to attach more than " + (MAX_OUTPUT_SURFACES - 1)
+                                        + " secondary output surfaces."));
+                        return;
+                    }
+                    RenderOutput output = mOutputs[slot];
+                    if (mNativeRenderer.setOutputSurface(mNativeContext, slot, surface,
+                            output.getMvpTransformBuffer(), getDetachGeneration(slot))) {
+                        output.attach(surface, surfaceSize.getWidth(), surfaceSize.getHeight(),
+                                surfaceRotationDegrees, maxFrameRate);
+                        completer.set(null);
+                    } else {
+                        output.detach();
+                        completer.setException(new IllegalArgumentException(
+                                "Unable to draw to output surface."));
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                completer.setException(e);
+            }
+            return "attachSecondaryOutputSurface [" + this + "]";
+        });
+    }
+
+    /**
+     * Detaches a surface attached with
+     * {@link #attachSecondaryOutputSurface(Surface, Size, int, float)}.
+     *
+     * @return A {@link ListenableFuture} that signals detach from the renderer, after which the
+     * surface can be released.
+     */
+    @SuppressWarnings("ObjectToString")
+    @NonNull
+    ListenableFuture<Void> detachSecondaryOutputSurface(@NonNull Surface surface) {
+        return CallbackToFutureAdapter.getFuture(completer -> {
+            try {
+                mExecutor.execute(() -> {
+                    int slot = findSecondaryOutput(surface);
+                    if (!mIsShutdown && slot >= 0) {
+                        mNativeRenderer.setOutputSurface(mNativeContext, slot, null, null, 0);
+                        mOutputs[slot].detach();
+                    }
+                    completer.set(null);
+                });
+            } catch (RejectedExecutionException e) {
+                // Renderer is shutting down. Can notify that the surface is detached.
+                completer.set(null);
+            }
+            return "detachSecondaryOutputSurface [" + this + "]";
+        });
+    }
+
+    /**
+     * Returns the detach generation of an output.
+     */
+    private int getDetachGeneration(int output) {
+        return mDetachGenerations.get(output);
+    }
+
+    /**
+     * Tells the render thread to stop using the window of an output. Can be called on any
+     * thread, whatever the state of the renderer, and never waits for the render thread.
+     */
+    private void signalOutputDetach(int output) {
+        synchronized (mDetachGenerationsBuffer) {
+            mDetachGenerationsBuffer.put(output, mDetachGenerations.incrementAndGet(output));
+        }
+    }
+
+    /**
+     * Returns the slot of the secondary output drawing to the given surface, or of a free slot
+     * if the surface is null. Returns -1 if there is none.
+     */
+    @WorkerThread
+    private int findSecondaryOutput(@Nullable Surface surface) {
+        for (int slot = PREVIEW_OUTPUT + 1; slot < MAX_OUTPUT_SURFACES; slot++) {
+            RenderOutput output = mOutputs[slot];
+            if (surface == null ? !output.isAttached() : output.getSurface() == surface) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Enables or disables vsync frame pacing.
+     *
+     * <p>When enabled, frames are drawn from {@link android.view.Choreographer} callbacks on the
+     * GL thread. At most one frame is drawn per vsync, camera frames arriving in between replace
+     * the waiting one, and frames are presented at the vsync after the one they are drawn in.
+     * When disabled, every camera frame is drawn as soon as it is available.
+     *
+     * @param vsyncPeriodNs Refresh period of the display showing the preview. Ignored when
+     *                      pacing is disabled.
+     */
+    void setFramePacingEnabled(boolean enabled, long vsyncPeriodNs) {
         try {
             mExecutor.execute(() -> {
                 if (!mIsShutdown) {
-                    Log.e(TAG, "    shutdown");
-                    closeContext(mNativeContext);
-                    mNativeContext = 0;
-                    mIsShutdown = true;
+                    mFramePacer.setPacingEnabled(enabled, vsyncPeriodNs);
                 }
-                doShutdownExecutorIfNeeded();
             });
         } catch (RejectedExecutionException e) {
-            // Renderer already shutting down. Ignore.
+            // Renderer is shutting down. Ignore.
         }
     }
 
-    @WorkerThread
-    private void doShutdownExecutorIfNeeded() {
-        if (mIsShutdown && mNumOutstandingSurfaces == 0) {
-            mFrameUpdateListener = null;
-            mExecutor.shutdown();
+    /**
+     * Enables or disables coalescing of frames that pile up while the GL thread is busy.
+     *
+     * <p>When enabled, which is the default, camera frames that become available while the GL
+     * thread is behind are latched together and only the newest one is drawn, so the work per
+     * backlog is a single draw. When disabled, every camera frame is drawn.
+     */
+    void setFrameCoalescingEnabled(boolean enabled) {
+        try {
+            mExecutor.execute(() -> mFrameCoalescer.setEnabled(enabled));
+        } catch (RejectedExecutionException e) {
+            // Renderer is shutting down. Ignore.
         }
     }
 
-    @WorkerThread
-    @NonNull
-    private SurfaceTexture resetPreviewTexture(@NonNull Size size) {
-        Log.e(TAG, "    resetPreviewTexture, size: " + size.getWidth() + " | " + size.getHeight());
-        if (mPreviewTexture != null) {
-            mPreviewTexture.detachFromGLContext();
+    /**
+     * Enables or disables adapting the render scale to the load.
+     *
+     * <p>When enabled, the renderer watches how long frames take to render and whether they
+     * miss the expected frame interval, and the thermal status of the device where available.
+     * Under sustained pressure, it draws the preview into smaller buffers, which the compositor
+     * scales up to the surface, and runs fewer stages of the effect chain. Quality is restored
+     * step by step once there is headroom again. When disabled, which is the default, the
+     * preview is drawn at full scale with the whole chain.
+     *
+     * @param powerManager Source of the thermal status, on API 29 and above, or null.
+     */
+    void setRenderScaleGovernorEnabled(boolean enabled, @Nullable PowerManager powerManager) {
+        try {
+            mExecutor.execute(() -> {
+                if (mIsShutdown || enabled == mRenderScaleGovernorEnabled) {
+                    return;
+                }
+                mRenderScaleGovernorEnabled = enabled;
+                mRenderScaleGovernor.reset();
+                if (enabled && powerManager != null
+                        && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                    mThermalMonitor = new ThermalMonitor(powerManager, mExecutor,
+                            this::onThermalStatusChanged);
+                    mRenderScaleGovernor.onThermalStatus(mThermalMonitor.getCurrentStatus());
+                } else {
+                    stopThermalMonitor();
+                }
+                applyRenderScaleLevel();
+            });
+        } catch (RejectedExecutionException e) {
+            // Renderer is shutting down. Ignore.
         }
+    }
 
-        mPreviewTexture = new SurfaceTexture(getTexName(mNativeContext));
-        mPreviewTexture.setDefaultBufferSize(size.getWidth(), size.getHeight());
-        mPreviewTexture.setOnFrameAvailableListener(surfaceTexture -> {
-            if (surfaceTexture == mPreviewTexture && !mIsShutdown) {
-                surfaceTexture.updateTexImage();
-                renderLatest();
-            }
-        }, mExecutor.getHandler());
-        if (!Objects.equals(size, mPreviewSize)) {
-            mMvpDirty = true;
+    @WorkerThread
+    private void onThermalStatusChanged(int status) {
+        if (mRenderScaleGovernorEnabled && mRenderScaleGovernor.onThermalStatus(status)) {
+            applyRenderScaleLevel();
         }
-        mPreviewSize = size;
-        return mPreviewTexture;
     }
 
     @WorkerThread
-    private void renderLatest() {
-        // Get the timestamp so we can pass it along to the output surface (not strictly necessary)
-        long timestampNs = mPreviewTexture.getTimestamp();
-
-        // Get texture transform from surface texture (transform to natural orientation).
-        // This will be used to transform texture coordinates in the fragment shader.
-        mPreviewTexture.getTransformMatrix(mTextureTransform);
-        // Check whether the texture's rotation has changed so we can update the MVP matrix.
-        int textureRotationDegrees = getTextureRotationDegrees();
-        if (textureRotationDegrees != mTextureRotationDegrees) {
-            mMvpDirty = true;
-        }
-        mTextureRotationDegrees = textureRotationDegrees;
-        if (mSurfaceSize != null) {
-            if (mMvpDirty) {
-                updateMvpTransform();
-            }
-            boolean success = renderTexture(mNativeContext, timestampNs, mMvpTransform, mMvpDirty, mTextureTransform);
-            mMvpDirty = false;
-            if (success && mFrameUpdateListener != null) {
-                Executor executor = Objects.requireNonNull(mFrameUpdateListener.first);
-                Consumer<Long> listener = Objects.requireNonNull(mFrameUpdateListener.second);
-                try {
-                    executor.execute(() -> listener.accept(timestampNs));
-                } catch (RejectedExecutionException e) {
-                    // Unable to send frame update. Ignore.
-                }
-            }
+    private void stopThermalMonitor() {
+        if (mThermalMonitor != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            mThermalMonitor.stop();
         }
+        mThermalMonitor = null;
     }
 
     /**
-     * Calculates the rotation of the source texture between the sensor coordinate space and
-     * the device's 'natural' orientation.
-     *
-     * <p>A required transform matrix is passed along with each texture update and is retrieved by
-     * {@link SurfaceTexture#getTransformMatrix(float[])}.
-     *
-     * <pre>{@code
-     *        TEXTURE FROM SENSOR:
-     * ^
-     * |                  +-----------+
-     * |          .#######|###        |
-     * |           *******|***        |
-     * |   ....###########|## ####. / |         Sensor may be rotated relative
-     * |  ################|## #( )#.  |         to the device's 'natural'
-     * |       ###########|## ######  |         orientation.
-     * |  ################|## #( )#*  |
-     * |   ****###########|## ####* \ |
-     * |           .......|...        |
-     * |          *#######|###        |
-     * |                  +-----------+
-     * +-------------------------------->
-     *                                               TRANSFORMED IMAGE:
-     *                 | |                   ^
-     *                 | |                   |         .            .
-     *                 | |                   |         \\ ........ //
-     *   Transform matrix from               |         ##############
-     *   SurfaceTexture#getTransformMatrix() |       ###(  )####(  )###
-     *   performs scale/crop/rotate on       |      ####################
-     *   image from sensor to produce        |     ######################
-     *   image in 'natural' orientation.     | ..  ......................  ..
-     *                 | |                   |#### ###################### ####
-     *                 | +-------\           |#### ###################### ####
-     *                 +---------/           |#### ###################### ####
-     *                                       +-------------------------------->
-     * }</pre>
-     *
-     * <p>The transform matrix is a 4x4 affine transform matrix that operates on standard normalized
-     * texture coordinates which are in the range of [0,1] for both s and t dimensions. Before
-     * the transform is applied, the texture may have dimensions that are larger than the
-     * dimensions of the SurfaceTexture we provided in order to accommodate hardware limitations.
-     *
-     * <p>For this method we are only interested in the rotation component of the transform
-     * matrix, so the calculations avoid the scaling and translation components.
-     */
-    @WorkerThread
-    private int getTextureRotationDegrees() {
-        // The final output image should have the requested dimensions AFTER applying the
-        // transform matrix, but width and height may be swapped. We know that the transform
-        // matrix from SurfaceTexture#getTransformMatrix() is an affine transform matrix that
-        // will only rotate in 90 degree increments, so we only need to worry about the rotation
-        // component.
-        //
-        // We can test this by using an test vector of [s, t, p, q] = [0, 1, 0, 0]. Using 'q = 0'
-        // will ignore the translation component of the matrix. We will only need to check if the
-        // 's' component becomes a scaled version of the 't' component and the 't' component
-        // becomes 0.
-        Matrix.multiplyMV(mTempVec, 0, mTextureTransform, 0, DIRECTION_UP_ROT_0, 0);
-
-        // Calculate the normalized vector and round to integers so we can do integer comparison.
-        // Normalizing the vector removes the effects of the scaling component of the
-        // transform matrix. Once normalized, we can round and do integer comparison.
-        float length = Matrix.length(mTempVec[0], mTempVec[1], 0);
-        int s = Math.round(mTempVec[0] / length);
-        int t = Math.round(mTempVec[1] / length);
-        if (s == 0 && t == 1) {
-            //       (0,1)                               (0,1)
-            //    +----^----+          0 deg          +----^----+
-            //    |    |    |        Rotation         |    |    |
-            //    |    +    |         +----->         |    +    |
-            //    |  (0,0)  |                         |  (0,0)  |
-            //    +---------+                         +---------+
-            return 0;
-        } else if (s == 1 && t == 0) {
-            //       (0,1)
-            //    +----^----+         90 deg          +---------+
-            //    |    |    |        Rotation         |         |
-            //    |    +    |         +----->         |    +---->(1,0)
-            //    |  (0,0)  |                         |  (0,0)  |
-            //    +---------+                         +---------+
-            return 90;
-        } else if (s == 0 && t == -1) {
-            //       (0,1)
-            //    +----^----+         180 deg         +---------+
-            //    |    |    |        Rotation         |  (0,0)  |
-            //    |    +    |         +----->         |    +    |
-            //    |  (0,0)  |                         |    |    |
-            //    +---------+                         +----v----+
-            //                                           (0,-1)
-            return 180;
-        } else if (s == -1 && t == 0) {
-            //       (0,1)
-            //    +----^----+         270 deg         +---------+
-            //    |    |    |        Rotation         |         |
-            //    |    +    |         +----->   (-1,0)<----+    |
-            //    |  (0,0)  |                         |  (0,0)  |
-            //    +---------+                         +---------+
-            return 270;
-        }
-
-        throw new RuntimeException(String.format("Unexpected texture transform matrix. Expected "
-                + "test vector [0, 1] to rotate to [0,1], [1, 0], [0, -1] or [-1, 0], but instead "
-                + "was [%d, %d].", s, t));
-    }
-
-
-    /**
-     * Returns true if the crop rect dimensions match the entire texture dimensions.
-     */
-    @WorkerThread
-    private boolean isCropRectFullTexture(@NonNull Rect cropRect) {
-        return cropRect.left == 0 && cropRect.top == 0
-                && cropRect.width() == mPreviewSize.getWidth()
-                && cropRect.height() == mPreviewSize.getHeight();
-    }
-
-    /**
-     * Derives the model crop rect from the texture and output surface dimensions, applying a
-     * 'center-crop' transform.
-     *
-     * <p>Because the camera sensor (or crop of the camera sensor) may have a different
-     * aspect ratio than the ViewPort that is meant to display it, we want to fit the image
-     * from the camera so the entire ViewPort is filled. This generally requires scaling the input
-     * texture and cropping pixels from either the width or height. We call this transform
-     * 'center-crop' and is equivalent to {@link android.widget.ImageView.ScaleType#CENTER_CROP}.
-     */
-    @WorkerThread
-    private void extractPreviewCropFromPreviewSizeAndSurface() {
-        // Swap the dimensions of the surface we are drawing the texture onto if rotating the
-        // texture to the surface orientation requires a 90 degree or 270 degree rotation.
-        int viewPortRotation = getViewPortRotation();
-        if (viewPortRotation == 90 || viewPortRotation == 270) {
-            // Width and height swapped
-            mPreviewCropRect = new RectF(0, 0, mSurfaceSize.getHeight(), mSurfaceSize.getWidth());
-        } else {
-            mPreviewCropRect = new RectF(0, 0, mSurfaceSize.getWidth(), mSurfaceSize.getHeight());
-        }
-
-        android.graphics.Matrix centerCropMatrix = new android.graphics.Matrix();
-        RectF previewSize = new RectF(0, 0, mPreviewSize.getWidth(), mPreviewSize.getHeight());
-        centerCropMatrix.setRectToRect(mPreviewCropRect, previewSize,
-                android.graphics.Matrix.ScaleToFit.CENTER);
-        centerCropMatrix.mapRect(mPreviewCropRect);
-    }
-
-    /**
-     * Returns the relative rotation between the sensor coordinates and the ViewPort in
-     * world-space coordinates.
-     *
-     * <p>This is the angle the sensor needs to be rotated, clockwise, in order to be upright in
-     * the viewport coordinates.
-     */
-    @WorkerThread
-    private int getViewPortRotation() {
-        // Note that since the rotation defined by Surface#ROTATION_*** are positive when the
-        // device is rotated in a counter-clockwise direction and our world-space coordinates
-        // define positive angles in the clockwise direction, we add the two together to get the
-        // total angle required.
-        return (mTextureRotationDegrees + mSurfaceRotationDegrees) % 360;
-    }
-
-    /**
-     * Updates the matrix used to transform the model into the correct dimensions within the
-     * world-space.
-     *
-     * <p>In order to draw the camera frames to screen, we use a flat rectangle in our
-     * world-coordinate space. The world coordinates match the preview buffer coordinates with
-     * the origin (0,0) in the upper left corner of the image. Defining the world space in this
-     * way allows subsequent models to be positioned according to buffer coordinates.
-     * Note this different than standard OpenGL coordinates; this is a left-handed coordinate
-     * system, and requires using glFrontFace(GL_CW) before drawing.
-     * <pre>{@code
-     *             Standard coordinates:                   Our coordinate system:
-     *
-     *                      | +y                                  ________+x
-     *                      |                                   /|
-     *                      |                                  / |
-     *                      |________+x                     +z/  |
-     *                     /                                     | +y
-     *                    /
-     *                   /+z
-     * }</pre>
-     * <p>Our model is initially a square with vertices in the range (-1,-1 - 1,1). It is
-     * rotated, scaled and translated to match the dimensions of preview with the origin in the
-     * upper left corner.
-     *
-     * <p>Example for a preview with dimensions 1920x1080:
-     * <pre>{@code
-     *                (-1,-1)    (1,-1)
-     *                   +---------+        Model
-     *                   |         |        Transform          (0,0)         (1920,0)
-     * Unscaled Model -> |    +    |         ---\                +----------------+
-     *                   |         |         ---/                |                |      Scaled/
-     *                   +---------+                             |                | <-- Translated
-     *                (-1,1)     (1,1)                           |                |       Model
-     *                                                           +----------------+
-     *                                                         (0,1080)      (1920,1080)
-     * }</pre>
-     */
-    @WorkerThread
-    private void updateModelTransform() {
-        // Remove the rotation to the device 'natural' orientation so our world space will be in
-        // sensor coordinates.
-        Matrix.setRotateM(mTempMatrix, 0, -mTextureRotationDegrees, 0.0f, 0.0f, 1.0f);
-
-        Matrix.setIdentityM(mTempMatrix, 16);
-        // Translate to the upper left corner of the quad so we are in buffer space
-        Matrix.translateM(mTempMatrix, 16, mPreviewSize.getWidth() / 2f,
-                mPreviewSize.getHeight() / 2f, 0);
-        // Scale the vertices so that our world space units are pixels equal in size to the
-        // pixels of the buffer sent from the camera.
-        Matrix.scaleM(mTempMatrix, 16, mPreviewSize.getWidth() / 2f, mPreviewSize.getHeight() / 2f,
-                1f);
-        Matrix.multiplyMM(mModelTransform, 0, mTempMatrix, 16, mTempMatrix, 0);
+     * Applies the render scale and effect cap of the governor's current level.
+     */
+    @WorkerThread
+    private void applyRenderScaleLevel() {
         if (DEBUG) {
-            printMatrix("ModelTransform", mModelTransform, 0);
+            Log.d(TAG, "Render scale level " + mRenderScaleGovernor.getLevel() + ": scale "
+                    + mRenderScaleGovernor.getRenderScale() + ", effect stages "
+                    + Math.min(mEffects.size(), mRenderScaleGovernor.getMaxEffectStages()));
+        }
+        updatePreviewBufferSize();
+        applyEffectChain();
+        if (mInputFrames != null) {
+            mFramePacer.requestRedraw(mInputFrames.getTimestamp());
         }
     }
 
     /**
-     * The view transform defines the position and orientation of the camera within our world-space.
-     *
-     * <p>This brings us from world-space coordinates to view (camera) space.
-     *
-     * <p>This matrix is defined by a camera position, a gaze point, and a vector that represents
-     * the "up" direction. Because we are using an orthogonal projection, we always place the
-     * camera directly in front of the gaze point and 1 unit away on the z-axis for convenience.
-     * We have defined our world coordinates in a way where we will be looking at the front of
-     * the model rectangle if our camera is placed on the positive z-axis and we gaze towards
-     * the negative z-axis.
+     * Sets the scale of the preview's buffers relative to the camera frames: the preview is
+     * drawn at the camera resolution times the scale where that is smaller than the view, and
+     * the compositor scales it up to the view. 0, the default, draws at the size of the view.
      */
-    @WorkerThread
-    private void updateViewTransform() {
-        // Apply the rotation of the ViewPort and look at the center of the image
-        float[] upVec = DIRECTION_UP_ROT_0;
-        switch (getViewPortRotation()) {
-            case 0:
-                upVec = DIRECTION_UP_ROT_0;
-                break;
-            case 90:
-                upVec = DIRECTION_UP_ROT_90;
-                break;
-            case 180:
-                upVec = DIRECTION_UP_ROT_180;
-                break;
-            case 270:
-                upVec = DIRECTION_UP_ROT_270;
-                break;
+    void setOutputRenderScale(float renderScale) {
+        if (renderScale < 0) {
+            throw new IllegalArgumentException("Render scale must not be negative: "
+                    + renderScale);
         }
-        Matrix.setLookAtM(mViewTransform, 0,
-                mPreviewCropRect.centerX(), mPreviewCropRect.centerY(), 1, // Camera position
-                mPreviewCropRect.centerX(), mPreviewCropRect.centerY(), 0, // Point to look at
-                upVec[0], upVec[1], upVec[2] // Up direction
-        );
-        if (DEBUG) {
-            printMatrix("ViewTransform", mViewTransform, 0);
+        try {
+            mExecutor.execute(mOutputRenderScaleKey, () -> {
+                if (!mIsShutdown) {
+                    mOutputRenderScale = renderScale;
+                    updatePreviewBufferSize();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Renderer is shutting down. Ignore.
         }
     }
 
     /**
-     * The projection matrix will map from the view space to normalized device coordinates (NDC)
-     * which OpenGL is expecting.
+     * Returns the size of the preview's surface and of the buffers it is drawn into, with the
+     * render scale they result from.
      *
-     * <p>Our view is meant to only show the pixels defined by the model crop rect, so our
-     * orthogonal projection matrix will depend on the preview crop rect dimensions.
-     *
-     * <p>The projection matrix can be thought of as a cube which has sides that align with the
-     * edges of the ViewPort and the near/far sides can be adjusted as needed. In our case, we
-     * set the near side to match the camera position and the far side to match the model's
-     * position on the z-axis, 1 unit away.
+     * @return A {@link ListenableFuture} with the snapshot, taken on the GL thread.
      */
-    @WorkerThread
-    private void updateProjectionTransform() {
-        float viewPortWidth = mPreviewCropRect.width();
-        float viewPortHeight = mPreviewCropRect.height();
-        // Since projection occurs after rotation of the camera, in order to map directly to model
-        // coordinates we need to take into account the surface rotation.
-        int viewPortRotation = getViewPortRotation();
-        if (viewPortRotation == 90 || viewPortRotation == 270) {
-            viewPortWidth = mPreviewCropRect.height();
-            viewPortHeight = mPreviewCropRect.width();
-        }
-
-        Matrix.orthoM(mProjectionTransform, 0,
-                /*left=*/-viewPortWidth / 2f, /*right=*/viewPortWidth / 2f,
-                /*bottom=*/viewPortHeight / 2f, /*top=*/-viewPortHeight / 2f,
-                /*near=*/0, /*far=*/1);
-        if (DEBUG) {
-            printMatrix("ProjectionTransform", mProjectionTransform, 0);
-        }
+    @SuppressWarnings("ObjectToString")
+    @NonNull
+    ListenableFuture<RenderScaleStats> getRenderScaleStats() {
+        return CallbackToFutureAdapter.getFuture(completer -> {
+            try {
+                mExecutor.execute(() -> {
+                    RenderTransform transform = mOutputs[PREVIEW_OUTPUT].getTransform();
+                    boolean attached = mOutputs[PREVIEW_OUTPUT].isAttached();
+                    int effectStages = mEffects.size();
+                    if (mRenderScaleGovernorEnabled) {
+                        effectStages = Math.min(effectStages,
+                                mRenderScaleGovernor.getMaxEffectStages());
+                    }
+                    completer.set(new RenderScaleStats(
+                            attached ? transform.getSurfaceWidth() : 0,
+                            attached ? transform.getSurfaceHeight() : 0,
+                            attached ? mPreviewBufferWidth : 0,
+                            attached ? mPreviewBufferHeight : 0,
+                            mOutputRenderScale,
+                            mRenderScaleGovernorEnabled ? mRenderScaleGovernor.getLevel() : 0,
+                            effectStages));
+                });
+            } catch (RejectedExecutionException e) {
+                completer.setException(e);
+            }
+            return "getRenderScaleStats [" + this + "]";
+        });
     }
 
     /**
-     * The MVP is the combination of model, view and projection transforms that take us from the
-     * world space to normalized device coordinates (NDC) which OpenGL uses to display images
-     * with the correct dimensions on an EGL surface.
+     * Sizes the buffers of the preview output to the smaller of its surface and the camera
+     * frame times the render scale, further scaled down by the governor, keeping the aspect
+     * ratio of the surface. Only sets the size when it changes.
      */
     @WorkerThread
-    private void updateMvpTransform() {
-        if (mPreviewCropRect == null) {
-            extractPreviewCropFromPreviewSizeAndSurface();
+    private void updatePreviewBufferSize() {
+        RenderOutput preview = mOutputs[PREVIEW_OUTPUT];
+        if (!preview.isAttached()) {
+            return;
         }
-
-        if (DEBUG) {
-            Log.d(TAG, String.format("Model dimensions: %s, Crop rect: %s", mPreviewSize,
-                    mPreviewCropRect));
+        RenderTransform transform = preview.getTransform();
+        int surfaceWidth = transform.getSurfaceWidth();
+        int surfaceHeight = transform.getSurfaceHeight();
+        float scale = mRenderScaleGovernorEnabled ? mRenderScaleGovernor.getRenderScale() : 1f;
+        int previewWidth = transform.getPreviewWidth();
+        int previewHeight = transform.getPreviewHeight();
+        if (mOutputRenderScale > 0 && previewWidth > 0 && previewHeight > 0) {
+            // The camera frame fills the surface, so this many surface pixels show one of its
+            // pixels.
+            float fill = Math.max(
+                    (float) Math.max(surfaceWidth, surfaceHeight)
+                            / Math.max(previewWidth, previewHeight),
+                    (float) Math.min(surfaceWidth, surfaceHeight)
+                            / Math.min(previewWidth, previewHeight));
+            scale *= Math.min(1f, mOutputRenderScale / fill);
         }
-
-        updateModelTransform();
-        updateViewTransform();
-        updateProjectionTransform();
-
-        Matrix.multiplyMM(mTempMatrix, 0, mViewTransform, 0, mModelTransform, 0);
-
-        if (DEBUG) {
-            // Print the model-view matrix (without projection)
-            printMatrix("MVTransform", mTempMatrix, 0);
+        int width = surfaceWidth;
+        int height = surfaceHeight;
+        if (scale < 1f) {
+            width = Math.max(1, Math.round(surfaceWidth * scale));
+            height = Math.max(1, Math.round(surfaceHeight * scale));
         }
-
-        Matrix.multiplyMM(mMvpTransform, 0, mProjectionTransform, 0, mTempMatrix, 0);
-        if (DEBUG) {
-            printMatrix("MVPTransform", mMvpTransform, 0);
+        if (width == mPreviewBufferWidth && height == mPreviewBufferHeight) {
+            return;
+        }
+        mPreviewBufferWidth = width;
+        mPreviewBufferHeight = height;
+        preview.invalidate();
+        boolean fullSize = width == surfaceWidth && height == surfaceHeight;
+        if (mPreviewBufferSizeSetter != null) {
+            mPreviewBufferSizeSetter.setBufferSize(fullSize ? 0 : width, fullSize ? 0 : height);
+        } else {
+            mNativeRenderer.setOutputBufferSize(mNativeContext, PREVIEW_OUTPUT,
+                    fullSize ? 0 : width, fullSize ? 0 : height);
+        }
+    }
+
+    @WorkerThread
+    private void markFrameDiscontinuity() {
+        mFrameIntervalRecorder.markDiscontinuity();
+        mRenderScaleGovernor.markDiscontinuity();
+    }
+
+    /**
+     * Returns a snapshot of the frame pacing counters.
+     *
+     * @return A {@link ListenableFuture} with the counters, which keep their final values once
+     * the renderer has been shut down.
+     */
+    @SuppressWarnings("ObjectToString")
+    @NonNull
+    ListenableFuture<FramePacingStats> getFramePacingStats() {
+        return CallbackToFutureAdapter.getFuture(completer -> {
+            try {
+                mExecutor.execute(() -> completer.set(mFramePacer.getStats()));
+            } catch (RejectedExecutionException e) {
+                completer.setException(e);
+            }
+            return "getFramePacingStats [" + this + "]";
+        });
+    }
+
+    /**
+     * Returns a snapshot of the counters of the render thread's command queue, shared with the
+     * other renderers of the engine.
+     *
+     * @return A {@link ListenableFuture} with the counters, or with null if the render thread
+     * runs every task as a message of its own.
+     */
+    @SuppressWarnings("ObjectToString")
+    @NonNull
+    ListenableFuture<RenderQueueStats> getRenderQueueStats() {
+        return CallbackToFutureAdapter.getFuture(completer -> {
+            try {
+                mExecutor.execute(() -> completer.set(mExecutor.getQueueStats()));
+            } catch (RejectedExecutionException e) {
+                completer.setException(e);
+            }
+            return "getRenderQueueStats [" + this + "]";
+        });
+    }
+
+    /**
+     * Returns the distributions of frame intervals and render durations of the frames drawn so
+     * far. Can be called from any thread and does not wait for the GL thread.
+     */
+    @NonNull
+    FrameIntervalStats getFrameIntervalStats() {
+        return mFrameIntervalRecorder.getSnapshot();
+    }
+
+    /**
+     * Sets the frame interval the preview is expected to run at, used to count janky frames.
+     */
+    void setExpectedFrameIntervalNs(long expectedIntervalNs) {
+        mFrameIntervalRecorder.setExpectedIntervalNs(expectedIntervalNs);
+    }
+
+    /**
+     * Clears the recorded frame intervals and render durations.
+     */
+    void resetFrameIntervalStats() {
+        try {
+            mExecutor.execute(mFrameIntervalRecorder::reset);
+        } catch (RejectedExecutionException e) {
+            // Renderer is shutting down. Ignore.
+        }
+    }
+
+    /**
+     * Returns the time spent in each stage of the render loop so far. Can be called from any
+     * thread and does not wait for the GL thread.
+     */
+    @NonNull
+    RenderStageStats getRenderStageStats() {
+        return mRenderStageRecorder.getSnapshot();
+    }
+
+    /**
+     * Clears the recorded stage timings.
+     */
+    void resetRenderStageStats() {
+        try {
+            mExecutor.execute(mRenderStageRecorder::reset);
+        } catch (RejectedExecutionException e) {
+            // Renderer is shutting down. Ignore.
+        }
+    }
+
+    /**
+     * Returns the time the renderer took to set up its context, load its program and draw its
+     * first frame.
+     *
+     * @return A {@link ListenableFuture} with the timings, which keep their final values once
+     * the renderer has been shut down.
+     */
+    @SuppressWarnings("ObjectToString")
+    @NonNull
+    ListenableFuture<RendererStartupStats> getStartupStats() {
+        return CallbackToFutureAdapter.getFuture(completer -> {
+            try {
+                mExecutor.execute(() -> completer.set(new RendererStartupStats(mContextInitNs,
+                        mStartupTimingsBuffer.get(RenderEngine.STARTUP_EGL_NS),
+                        mStartupTimingsBuffer.get(RenderEngine.STARTUP_PROGRAM_NS),
+                        (int) mStartupTimingsBuffer.get(RenderEngine.STARTUP_PROGRAM_CACHE),
+                        mStartupTimingsBuffer.get(RenderEngine.STARTUP_PREWARMED) != 0,
+                        mFirstFrameNs)));
+            } catch (RejectedExecutionException e) {
+                completer.setException(e);
+            }
+            return "getStartupStats [" + this + "]";
+        });
+    }
+
+    /**
+     * Returns the number of GL calls issued to draw the last frame.
+     *
+     * <p>Once the draw state has been set up on the first frame, a frame only uploads the
+     * matrices, binds the texture, draws and checks for errors. With several outputs, switching
+     * to another output's surface also sets the viewport. Where GPU timer queries are
+     * supported, a few more calls issue and poll the query timing the draw. With an effect
+     * chain, each stage also switches programs and sets its uniforms, and each offscreen pass
+     * binds its target. This is meant for
+     * verifying that no redundant state changes creep into the draw path.
+     *
+     * @return A {@link ListenableFuture} with the count, or 0 if no frame has been drawn yet or
+     * the renderer has been shut down.
+     */
+    @SuppressWarnings("ObjectToString")
+    @NonNull
+    ListenableFuture<Integer> getLastFrameGlCallCount() {
+        return CallbackToFutureAdapter.getFuture(completer -> {
+            try {
+                mExecutor.execute(() -> completer.set(
+                        mIsShutdown ? 0 : getLastFrameGlCallCount(mNativeContext)));
+            } catch (RejectedExecutionException e) {
+                completer.set(0);
+            }
+            return "getLastFrameGlCallCount [" + this + "]";
+        });
+    }
+
+    /**
+     * Captures the next drawn camera frame at the full resolution of the preview.
+     *
+     * <p>The frame is drawn offscreen on the GL thread and read back asynchronously, through
+     * pixel buffers where OpenGL ES 3 is available. It is delivered two drawn frames later, once
+     * the GPU has finished with it, so the GL thread never waits for the read back. Up to
+     * {@code CAPTURE_SLOTS} captures are read back at once, later requests wait for a slot.
+     *
+     * @return A {@link ListenableFuture} with the frame, which must be closed once its pixels are
+     * no longer needed. It fails if too many captured frames are open or the renderer is shut
+     * down.
+     */
+    @SuppressWarnings("ObjectToString")
+    @NonNull
+    ListenableFuture<CapturedFrame> captureFrame() {
+        return CallbackToFutureAdapter.getFuture(completer -> {
+            try {
+                mExecutor.execute(() -> {
+                    if (mIsShutdown) {
+                        completer.setException(
+                                new IllegalStateException("Renderer is shut down."));
+                        return;
+                    }
+                    mCaptureRequests.add(completer);
+                });
+            } catch (RejectedExecutionException e) {
+                completer.setException(e);
+            }
+            return "captureFrame [" + this + "]";
+        });
+    }
+
+    /**
+     * Packs every {@code frameInterval}-th drawn camera frame into a tensor for a model and
+     * hands it to the listener, replacing any previous listener.
+     *
+     * <p>The frame is sampled on the GPU straight into a small target the size of the tensor,
+     * with the crop and rotation of the preview, and normalized and packed in the shader. The
+     * tensor is read back asynchronously like {@link #captureFrame()}, so no second camera
+     * stream and no CPU color conversion are needed.
+     *
+     * @return A {@link ListenableFuture} that signals the listener is set. It fails if the data
+     * type is not supported on this device or the renderer is shut down.
+     */
+    @SuppressWarnings("ObjectToString")
+    @NonNull
+    ListenableFuture<Void> setTensorListener(@NonNull TensorFormat format, int frameInterval,
+            @NonNull Executor executor, @NonNull TensorListener listener) {
+        TensorConsumer consumer = new TensorConsumer(format, frameInterval, executor, listener);
+        return CallbackToFutureAdapter.getFuture(completer -> {
+            try {
+                mExecutor.execute(() -> {
+                    if (mIsShutdown) {
+                        completer.setException(
+                                new IllegalStateException("Renderer is shut down."));
+                        return;
+                    }
+                    if (!isTensorTypeSupported(mNativeContext, format.getDataType())) {
+                        completer.setException(new IllegalArgumentException(
+                                "Unsupported tensor data type: " + format));
+                        return;
+                    }
+                    mTensorConsumer = consumer;
+                    mTensorOutput.attach(null, format.getWidth(), format.getHeight(), 0, 0);
+                    completer.set(null);
+                });
+            } catch (RejectedExecutionException e) {
+                completer.setException(e);
+            }
+            return "setTensorListener [" + this + "]";
+        });
+    }
+
+    /**
+     * Stops packing frames into tensors. Tensors being read back are dropped.
+     */
+    void clearTensorListener() {
+        try {
+            mExecutor.execute(() -> {
+                mTensorConsumer = null;
+                mTensorOutput.detach();
+            });
+        } catch (RejectedExecutionException e) {
+            // Renderer is shutting down. Ignore.
+        }
+    }
+
+    /**
+     * Runs the camera frames through the given effects, in order, before drawing them to the
+     * outputs, replacing any previous chain. An empty list draws the frames as they are.
+     *
+     * <p>All effects but the last draw offscreen into one of two targets the size of the camera
+     * frame, which the next effect reads, and the last one draws to the outputs. A single effect
+     * is drawn straight to the outputs. Effects already in the chain with the same source and
+     * uniforms are reused without compiling them again, so changing only uniform values is
+     * cheap. Captures and tensors are taken from the frames without the effects. The GPU time
+     * of each effect is recorded in {@link #getEffectStageStats()}, which is cleared.
+     *
+     * @return A {@link ListenableFuture} that signals the chain is set. It fails with an
+     * {@link IllegalArgumentException} if an effect does not compile, in which case the
+     * previous chain is kept.
+     */
+    @SuppressWarnings("ObjectToString")
+    @NonNull
+    ListenableFuture<Void> setEffects(@NonNull List<ShaderEffect> effects) {
+        if (effects.size() > MAX_EFFECT_STAGES) {
+            throw new IllegalArgumentException("Unable to chain more than " + MAX_EFFECT_STAGES
+                    + " effects.");
+        }
+        ShaderEffect[] chain = effects.toArray(new ShaderEffect[0]);
+        return CallbackToFutureAdapter.getFuture(completer -> {
+            try {
+                mExecutor.execute(() -> {
+                    if (mIsShutdown) {
+                        completer.setException(
+                                new IllegalStateException("Renderer is shut down."));
+                        return;
+                    }
+                    int failed = updateEffects(chain);
+                    if (failed >= 0) {
+                        completer.setException(new IllegalArgumentException(
+                                "Unable to compile effect " + failed + ": " + chain[failed]));
+                        return;
+                    }
+                    completer.set(null);
+                });
+            } catch (RejectedExecutionException e) {
+                completer.setException(e);
+            }
+            return "setEffects [" + this + "]";
+        });
+    }
+
+    /**
+     * Returns the GPU time of each stage of the effect chain, by position in the chain. Stage
+     * names are "effect0", "effect1" and so on. Can be called from any thread and does not wait
+     * for the GL thread.
+     */
+    @NonNull
+    RenderStageStats getEffectStageStats() {
+        return mEffectStageRecorder.getSnapshot();
+    }
+
+    /**
+     * Makes the given effects the chain, reusing the compiled stages of the current chain with
+     * the same program key and compiling the others. Stages left unused are destroyed.
+     *
+     * @return -1 on success, otherwise the index of the effect that failed to compile, in which
+     * case the current chain is kept.
+     */
+    @WorkerThread
+    private int updateEffects(@NonNull ShaderEffect[] chain) {
+        ArrayList<CompiledEffect> unused = new ArrayList<>(mEffects);
+        ArrayList<CompiledEffect> compiled = new ArrayList<>(chain.length);
+        for (int i = 0; i < chain.length; i++) {
+            ShaderEffect effect = chain[i];
+            String key = effect.getProgramKey();
+            CompiledEffect stage = null;
+            for (int j = 0; j < unused.size(); j++) {
+                if (unused.get(j).mKey.equals(key)) {
+                    stage = unused.remove(j);
+                    break;
+                }
+            }
+            if (stage == null) {
+                stage = CompiledEffect.compile(mNativeContext, effect, key);
+            }
+            if (stage == null) {
+                // Only destroy the stages compiled for this chain.
+                for (CompiledEffect created : compiled) {
+                    if (!mEffects.contains(created)) {
+                        destroyEffectStage(mNativeContext, created.mHandle);
+                    }
+                }
+                return i;
+            }
+            compiled.add(stage);
+        }
+
+        for (int i = 0; i < compiled.size(); i++) {
+            compiled.get(i).setUniformValues(chain[i]);
+        }
+        mEffects.clear();
+        mEffects.addAll(compiled);
+        applyEffectChain();
+        for (CompiledEffect stage : unused) {
+            destroyEffectStage(mNativeContext, stage.mHandle);
+        }
+        mEffectStageRecorder.reset();
+        if (mInputFrames != null && !mIsShutdown) {
+            mFramePacer.requestRedraw(mInputFrames.getTimestamp());
+        }
+        return -1;
+    }
+
+    /**
+     * Hands the effect chain to the native renderer, capped to the stages the render scale
+     * governor lets run.
+     */
+    @WorkerThread
+    private void applyEffectChain() {
+        int stageCount = mEffects.size();
+        if (mRenderScaleGovernorEnabled) {
+            stageCount = Math.min(stageCount, mRenderScaleGovernor.getMaxEffectStages());
+        }
+        for (int i = 0; i < stageCount; i++) {
+            mEffectChainHandles[i] = mEffects.get(i).mHandle;
+        }
+        setEffectChain(mNativeContext, mEffectChainHandles, stageCount);
+        mOutputs[PREVIEW_OUTPUT].invalidate();
+    }
+
+    /**
+     * Sizes the offscreen targets of the effect chain to the camera frame as the quad samples
+     * it, which is rotated by the texture rotation.
+     */
+    @WorkerThread
+    private void updateEffectTargetSize(@NonNull RenderTransform transform) {
+        int rotationDegrees = transform.getTextureRotationDegrees();
+        boolean swapSides = rotationDegrees == 90 || rotationDegrees == 270;
+        int width = swapSides ? transform.getPreviewHeight() : transform.getPreviewWidth();
+        int height = swapSides ? transform.getPreviewWidth() : transform.getPreviewHeight();
+        if (width != mEffectTargetWidth || height != mEffectTargetHeight) {
+            mEffectTargetWidth = width;
+            mEffectTargetHeight = height;
+            setEffectTargetSize(mNativeContext, width, height);
+        }
+    }
+
+    void shutdown() {
+        try {
+            mExecutor.execute(() -> {
+                if (!mIsShutdown) {
+                    if (DEBUG) {
+                        Log.e(TAG, "    shutdown");
+                    }
+                    mFrameCoalescer.clear();
+                    mFramePacer.stop();
+                    stopThermalMonitor();
+                    cancelCaptures();
+                    setEffectChain(mNativeContext, mEffectChainHandles, 0);
+                    for (CompiledEffect stage : mEffects) {
+                        destroyEffectStage(mNativeContext, stage.mHandle);
+                    }
+                    mEffects.clear();
+                    mNativeRenderer.closeContext(mNativeContext);
+                    mNativeContext = 0;
+                    mIsShutdown = true;
+                }
+                releaseEngineIfNeeded();
+            });
+        } catch (RejectedExecutionException e) {
+            // Renderer already shutting down. Ignore.
+        }
+    }
+
+    @WorkerThread
+    private void releaseEngineIfNeeded() {
+        if (mIsShutdown && mNumOutstandingSurfaces == 0 && !mDetached) {
+            mDetached = true;
+            mFrameEventBus.unsubscribeAll();
+            mEngine.detach();
+        }
+    }
+
+    @WorkerThread
+    @NonNull
+    private SurfaceTexture resetPreviewTexture(@NonNull Size size) {
+        if (DEBUG) {
+            Log.e(TAG, "    resetPreviewTexture, size: " + size.getWidth() + " | "
+                    + size.getHeight());
+        }
+        if (mPreviewTexture != null) {
+            mPreviewTexture.detachFromGLContext();
+        }
+        mPreviewTexture = new SurfaceTexture(getTexName(mNativeContext));
+        mPreviewTexture.setDefaultBufferSize(size.getWidth(), size.getHeight());
+        mPreviewTexture.setOnFrameAvailableListener(surfaceTexture -> {
+            if (surfaceTexture == mPreviewTexture) {
+                onInputFrameAvailable();
+            }
+        }, mExecutor.getHandler());
+        setInputFrames(new TextureFrames(mPreviewTexture), size.getWidth(), size.getHeight());
+        return mPreviewTexture;
+    }
+
+    /**
+     * Draws the frames of the given source from now on, in place of the preview texture, for
+     * tests running the render loop without a camera. The source calls
+     * {@link #onInputFrameAvailable()} on the GL thread for each new frame.
+     */
+    @VisibleForTesting
+    void attachInputFrames(@NonNull InputFrames frames, int width, int height) {
+        mExecutor.execute(() -> setInputFrames(frames, width, height));
+    }
+
+    @WorkerThread
+    private void setInputFrames(@NonNull InputFrames frames, int width, int height) {
+        // Frames pending for the previous source can no longer be latched.
+        mFrameCoalescer.clear();
+        markFrameDiscontinuity();
+        mInputFrames = frames;
+        for (RenderOutput output : mOutputs) {
+            output.getTransform().setPreviewSize(width, height);
+        }
+        mCaptureOutput.getTransform().setPreviewSize(width, height);
+        mTensorOutput.getTransform().setPreviewSize(width, height);
+        // Whether the crop rect covers the whole frame depends on the preview size.
+        mAppliedRenderConfig = null;
+        updatePreviewBufferSize();
+    }
+
+    /**
+     * Called on the GL thread when the input has a new frame available.
+     */
+    @VisibleForTesting
+    @WorkerThread
+    void onInputFrameAvailable() {
+        if (mIsShutdown) {
+            return;
+        }
+        if (mStartupTracer != null && mStartupTracerSurfaceProvided
+                && !mStartupTracerFrameAvailable) {
+            mStartupTracer.mark(StartupTrace.MILESTONE_FIRST_FRAME_AVAILABLE);
+            mStartupTracerFrameAvailable = true;
+        }
+        mFrameCoalescer.onFrameAvailable();
+    }
+
+    /**
+     * Latches the next frame of the preview texture. The frame is latched as soon as the GL
+     * thread gets to it, so the camera gets the previous buffer back even if drawing is deferred
+     * to the next vsync.
+     *
+     * @return The timestamp of the latched frame.
+     */
+    @WorkerThread
+    private long latchPreviewFrame() {
+        if (mInputFrames == null) {
+            return 0;
+        }
+        long latchStartNs = System.nanoTime();
+        mInputFrames.updateTexImage();
+        mRenderStageRecorder.record(RenderStageStats.STAGE_LATCH,
+                System.nanoTime() - latchStartNs);
+        return mInputFrames.getTimestamp();
+    }
+
+    /**
+     * Draws the latest latched frame to every attached output that is due for a frame.
+     *
+     * @param presentationTimeNs Time at which the output surfaces should present the frame.
+     * @return true if the frame was drawn to at least one output.
+     */
+    @WorkerThread
+    private boolean renderLatest(long presentationTimeNs) {
+        if (mInputFrames == null || mIsShutdown) {
+            return false;
+        }
+        long renderStartNs = System.nanoTime();
+        applyRenderConfig();
+        // Get the timestamp so it can be delivered to the frame update listener.
+        long timestampNs = mInputFrames.getTimestamp();
+
+        // Get texture transform from surface texture (transform to natural orientation).
+        // This will be used to transform texture coordinates in the fragment shader.
+        mInputFrames.getTransformMatrix(mTextureTransform);
+        copyMatrix(mTextureTransform, mTextureTransformBuffer);
+        if (mPendingCaptureCount > 0 || !mCaptureRequests.isEmpty() || mTensorConsumer != null) {
+            processCaptures(timestampNs);
+        }
+        int outputMask = 0;
+        int mvpDirtyMask = 0;
+        boolean redundant = false;
+        RenderTransform firstTransform = null;
+        for (int i = 0; i < MAX_OUTPUT_SURFACES; i++) {
+            RenderOutput output = mOutputs[i];
+            if (!output.isAttached() || !output.isFrameDue(timestampNs)) {
+                continue;
+            }
+            RenderTransform transform = output.getTransform();
+            System.arraycopy(mTextureTransform, 0, transform.getTextureTransform(), 0, 16);
+            // Check whether the texture's rotation has changed so we can update the MVP matrix.
+            transform.updateTextureRotation();
+            if (transform.isMvpDirty()) {
+                transform.updateMvpTransform();
+                if (DEBUG) {
+                    printMatrix("ModelTransform", transform.getModelTransform(), 0);
+                    printMatrix("ViewTransform", transform.getViewTransform(), 0);
+                    printMatrix("ProjectionTransform", transform.getProjectionTransform(), 0);
+                    printMatrix("MVPTransform", transform.getMvpTransform(), 0);
+                }
+                copyMatrix(transform.getMvpTransform(), output.getMvpTransformBuffer());
+                mvpDirtyMask |= 1 << i;
+            }
+            if (output.isRedundantRedraw(timestampNs)) {
+                // Swapping the same image again would only cost a draw and a buffer.
+                redundant = true;
+                continue;
+            }
+            outputMask |= 1 << i;
+            if (firstTransform == null) {
+                firstTransform = transform;
+            }
+        }
+        if (firstTransform == null) {
+            if (redundant) {
+                mFramePacer.onRedrawSkipped();
+            }
+            return false;
+        }
+        if (!mEffects.isEmpty()) {
+            updateEffectTargetSize(firstTransform);
+        }
+
+        long nativeStartNs = System.nanoTime();
+        int drawnMask = mNativeRenderer.renderTexture(mNativeContext, outputMask, mvpDirtyMask,
+                presentationTimeNs);
+        long renderEndNs = System.nanoTime();
+        for (int i = 0; i < MAX_OUTPUT_SURFACES; i++) {
+            if ((outputMask & (1 << i)) != 0) {
+                mOutputs[i].getTransform().clearMvpDirty();
+            }
+            if ((drawnMask & (1 << i)) != 0) {
+                mOutputs[i].onFrameDrawn(timestampNs);
+            }
+        }
+        if (drawnMask == 0) {
+            return false;
+        }
+        recordStageTimings(nativeStartNs - renderStartNs, renderEndNs - nativeStartNs);
+        if (mFirstFrameNs < 0) {
+            mFirstFrameNs = renderEndNs - mCreatedNs;
+        }
+        if (mStartupTracer != null && mStartupTracerFrameAvailable) {
+            mStartupTracer.mark(StartupTrace.MILESTONE_FIRST_FRAME_DRAWN, renderEndNs);
+            mStartupTracer = null;
+        }
+        long renderDurationNs = renderEndNs - renderStartNs;
+        mFrameIntervalRecorder.recordFrame(renderStartNs, renderDurationNs);
+        if (mRenderScaleGovernorEnabled && mRenderScaleGovernor.onFrame(renderStartNs,
+                renderDurationNs, mFrameIntervalRecorder.getExpectedIntervalNs())) {
+            applyRenderScaleLevel();
+        }
+        mFrameEventBus.publish(timestampNs, mFrameNumber++, renderDurationNs);
+        return true;
+    }
+
+    /**
+     * Applies the latest published {@link RenderConfig} to the transforms, if it changed since
+     * the last frame. Only the transforms whose state changed get their MVP rebuilt.
+     */
+    @WorkerThread
+    private void applyRenderConfig() {
+        RenderConfig config = mRenderConfig.get();
+        RenderConfig applied = mAppliedRenderConfig;
+        if (applied != null && applied.getVersion() == config.getVersion()) {
+            return;
+        }
+        RenderOutput preview = mOutputs[PREVIEW_OUTPUT];
+        RenderTransform transform = preview.getTransform();
+        if (preview.isAttached() && mPreviewSurface != null
+                && config.getSurface() == mPreviewSurface) {
+            boolean resized = transform.getSurfaceWidth() != config.getSurfaceWidth()
+                    || transform.getSurfaceHeight() != config.getSurfaceHeight();
+            transform.setSurface(config.getSurfaceWidth(), config.getSurfaceHeight(),
+                    config.getSurfaceRotationDegrees());
+            if (resized) {
+                updatePreviewBufferSize();
+            }
+        } else {
+            // The size is for a surface that is not attached yet.
+            transform.setSurfaceRotationDegrees(config.getSurfaceRotationDegrees());
+        }
+        if (applied == null || !config.hasSameCropRect(applied)) {
+            for (RenderOutput output : mOutputs) {
+                applyCropRect(output.getTransform(), config);
+            }
+            applyCropRect(mCaptureOutput.getTransform(), config);
+            applyCropRect(mTensorOutput.getTransform(), config);
+        }
+        mAppliedRenderConfig = config;
+    }
+
+    /**
+     * Delivers the captures the native renderer has read back, then captures the current frame
+     * for the requests waiting for one and, if due, packs it into a tensor, as far as there are
+     * free slots.
+     */
+    @WorkerThread
+    private void processCaptures(long timestampNs) {
+        if (mPendingCaptureCount > 0) {
+            int doneMask = pollCaptures(mNativeContext);
+            for (int slot = 0; slot < CAPTURE_SLOTS; slot++) {
+                if ((doneMask & (1 << slot)) != 0) {
+                    PendingCapture capture = mPendingCaptures[slot];
+                    mPendingCaptures[slot] = null;
+                    mPendingCaptureCount--;
+                    deliverCapture(capture);
+                }
+            }
+        }
+
+        while (!mCaptureRequests.isEmpty() && mPendingCaptureCount < CAPTURE_SLOTS) {
+            CallbackToFutureAdapter.Completer<CapturedFrame> completer = mCaptureRequests.poll();
+            RenderTransform transform = mCaptureOutput.getTransform();
+            System.arraycopy(mTextureTransform, 0, transform.getTextureTransform(), 0, 16);
+            transform.updateTextureRotation();
+            // Capture at the full resolution of the preview, upright.
+            int rotationDegrees = transform.getTextureRotationDegrees();
+            boolean swapSides = rotationDegrees == 90 || rotationDegrees == 270;
+            int width = swapSides ? transform.getPreviewHeight() : transform.getPreviewWidth();
+            int height = swapSides ? transform.getPreviewWidth() : transform.getPreviewHeight();
+            ByteBuffer pixels = mCaptureBufferPool.acquire(width * height * 4);
+            if (pixels == null) {
+                completer.setException(new IllegalStateException("Unable to capture more than "
+                        + MAX_CAPTURE_BUFFERS + " frames without closing them."));
+                continue;
+            }
+            if (!mCaptureOutput.isAttached()
+                    || transform.getSurfaceWidth() != width
+                    || transform.getSurfaceHeight() != height) {
+                mCaptureOutput.attach(null, width, height, 0, 0);
+            }
+            if (transform.isMvpDirty()) {
+                transform.updateMvpTransform();
+                float[] mvp = transform.getMvpTransform();
+                FloatBuffer mvpBuffer = mCaptureOutput.getMvpTransformBuffer();
+                // Rows are read back from the bottom of the framebuffer, so flip the frame
+                // vertically to get them from the top of the image.
+                for (int i = 0; i < 16; i++) {
+                    mvpBuffer.put(i, i % 4 == 1 ? -mvp[i] : mvp[i]);
+                }
+                transform.clearMvpDirty();
+            }
+            int slot = captureTexture(mNativeContext, mCaptureOutput.getMvpTransformBuffer(),
+                    pixels, width, height);
+            if (slot < 0) {
+                mCaptureBufferPool.release(pixels);
+                completer.setException(new IllegalStateException("Unable to capture frame."));
+                continue;
+            }
+            mPendingCaptures[slot] = new PendingCapture(completer, null, pixels, width, height,
+                    timestampNs);
+            mPendingCaptureCount++;
+        }
+
+        TensorConsumer consumer = mTensorConsumer;
+        if (consumer != null && mPendingCaptureCount < CAPTURE_SLOTS && consumer.isFrameDue()) {
+            startTensor(consumer, timestampNs);
+        }
+    }
+
+    /**
+     * Packs the current frame into a tensor for the consumer. If no buffer is free, the
+     * consumer is still busy and the tensor is tried again on the next frame.
+     */
+    @WorkerThread
+    private void startTensor(@NonNull TensorConsumer consumer, long timestampNs) {
+        ByteBuffer tensor = consumer.acquireBuffer();
+        if (tensor == null) {
+            return;
+        }
+        RenderTransform transform = mTensorOutput.getTransform();
+        System.arraycopy(mTextureTransform, 0, transform.getTextureTransform(), 0, 16);
+        transform.updateTextureRotation();
+        if (transform.isMvpDirty()) {
+            transform.updateMvpTransform();
+            transform.clearMvpDirty();
+        }
+        TensorFormat format = consumer.getFormat();
+        int slot = -1;
+        if (consumer.updateSampleTransform(mTextureTransform, transform.getMvpTransform())) {
+            slot = captureTensor(mNativeContext, consumer.getParams(), tensor, format.getWidth(),
+                    format.getHeight(), format.getDataType());
+        }
+        if (slot < 0) {
+            consumer.releaseBuffer(tensor);
+            return;
+        }
+        mPendingCaptures[slot] = new PendingCapture(null, consumer, tensor, format.getWidth(),
+                format.getHeight(), timestampNs);
+        mPendingCaptureCount++;
+        consumer.onTensorStarted();
+    }
+
+    @WorkerThread
+    private void deliverCapture(@NonNull PendingCapture capture) {
+        TensorConsumer consumer = capture.mConsumer;
+        if (consumer == null) {
+            capture.mCompleter.set(new CapturedFrame(mCaptureBufferPool, capture.mPixels,
+                    capture.mWidth, capture.mHeight, capture.mTimestampNs));
+        } else if (consumer == mTensorConsumer) {
+            consumer.deliver(capture.mPixels, capture.mTimestampNs);
+        } else {
+            // The listener was removed while the tensor was read back.
+            consumer.releaseBuffer(capture.mPixels);
+        }
+    }
+
+    /**
+     * Fails the captures waiting for a frame or being read back.
+     */
+    @WorkerThread
+    private void cancelCaptures() {
+        IllegalStateException exception = new IllegalStateException("Renderer is shut down.");
+        CallbackToFutureAdapter.Completer<CapturedFrame> completer;
+        while ((completer = mCaptureRequests.poll()) != null) {
+            completer.setException(exception);
+        }
+        for (int slot = 0; slot < CAPTURE_SLOTS; slot++) {
+            PendingCapture capture = mPendingCaptures[slot];
+            if (capture == null) {
+                continue;
+            }
+            mPendingCaptures[slot] = null;
+            if (capture.mConsumer != null) {
+                capture.mConsumer.releaseBuffer(capture.mPixels);
+            } else {
+                mCaptureBufferPool.release(capture.mPixels);
+                capture.mCompleter.setException(exception);
+            }
+        }
+        mPendingCaptureCount = 0;
+        mCaptureBufferPool.trim();
+        mTensorConsumer = null;
+    }
+
+    /**
+     * Records the stages of a drawn frame. The native renderer times the draw and the swap
+     * itself, whatever else the native call took is the cost of crossing JNI.
+     */
+    @WorkerThread
+    private void recordStageTimings(long transformDurationNs, long nativeDurationNs) {
+        long drawNs = mStageTimingsBuffer.get(TIMING_DRAW_CPU_NS);
+        long swapNs = mStageTimingsBuffer.get(TIMING_SWAP_CPU_NS);
+        long gpuDrawNs = mStageTimingsBuffer.get(TIMING_GPU_DRAW_NS);
+        RenderStageRecorder recorder = mRenderStageRecorder;
+        recorder.record(RenderStageStats.STAGE_TRANSFORM, transformDurationNs);
+        recorder.record(RenderStageStats.STAGE_JNI, nativeDurationNs - drawNs - swapNs);
+        recorder.record(RenderStageStats.STAGE_DRAW, drawNs);
+        recorder.record(RenderStageStats.STAGE_SWAP, swapNs);
+        if (gpuDrawNs >= 0) {
+            // Belongs to a frame drawn a few frames ago, whose query has just completed.
+            recorder.record(RenderStageStats.STAGE_GPU_DRAW, gpuDrawNs);
+        }
+        if (!mEffects.isEmpty()) {
+            for (int stage = 0; stage < MAX_EFFECT_STAGES; stage++) {
+                long effectNs = mStageTimingsBuffer.get(TIMING_EFFECT_GPU_NS + stage);
+                if (effectNs >= 0) {
+                    mEffectStageRecorder.record(stage, effectNs);
+                }
+            }
+        }
+    }
+
+    @NonNull
+    private static String[] createEffectStageNames() {
+        String[] names = new String[MAX_EFFECT_STAGES];
+        for (int i = 0; i < MAX_EFFECT_STAGES; i++) {
+            names[i] = "effect" + i;
+        }
+        return names;
+    }
+
+    @NonNull
+    private static RenderOutput[] createOutputs() {
+        RenderOutput[] outputs = new RenderOutput[MAX_OUTPUT_SURFACES];
+        for (int i = 0; i < MAX_OUTPUT_SURFACES; i++) {
+            outputs[i] = new RenderOutput();
+        }
+        return outputs;
+    }
+
+    @NonNull
+    private static FloatBuffer allocateMatrixBuffer() {
+        return ByteBuffer.allocateDirect(16 * FLOAT_SIZE_BYTES)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+    }
+
+    private static void copyMatrix(@NonNull float[] matrix, @NonNull FloatBuffer buffer) {
+        // Absolute puts leave the buffer position untouched and do not allocate.
+        for (int i = 0; i < 16; i++) {
+            buffer.put(i, matrix[i]);
         }
     }
 
@@ -663,23 +1806,278 @@ final class OpenGLRenderer {
                 matrix[offset + 3], matrix[offset + 7], matrix[offset + 11], matrix[offset + 15]));
     }
 
+    // The natives setting up the context and drawing the outputs are called through the
+    // engine's NativeRenderer, the others directly.
+
+    /**
+     * Creates the native context of the renderer in the shared context of its engine: its
+     * camera texture, timer queries and capture state.
+     */
+    @WorkerThread
+    static native long initContext(long sharedContext,
+            @NonNull FloatBuffer textureTransform, @NonNull LongBuffer stageTimings,
+            @NonNull IntBuffer detachGenerations);
+
+    /**
+     * Draws the given output to a surface, using the MVP in the given buffer. A null surface
+     * stops drawing the output.
+     *
+     * @param detachGeneration Detach generation of the output when the surface was attached.
+     *                         The surface is not used if a detach was signaled since, and this
+     *                         returns false.
+     */
     @WorkerThread
-    private static native long initContext();
+    static native boolean setOutputSurface(long nativeContext, int output,
+            @Nullable Surface surface, @Nullable FloatBuffer mvpTransform, int detachGeneration);
 
+    /**
+     * Sets the size of the buffers of an output, which the compositor scales to the surface, or
+     * back to the size of the surface if width and height are 0. Registered in JNI_OnLoad.
+     */
     @WorkerThread
-    private static native boolean setWindowSurface(long nativeContext, @Nullable Surface surface);
+    static native void setOutputBufferSize(long nativeContext, int output, int width,
+            int height);
 
+    // getTexName(), renderTexture() and getLastFrameGlCallCount() only take primitives and are
+    // registered in JNI_OnLoad.
     @WorkerThread
     private static native int getTexName(long nativeContext);
 
+    /**
+     * Draws the latest texture to the outputs in outputMask in a single pass, using the texture
+     * transform passed to {@link #initContext(long, FloatBuffer, LongBuffer, IntBuffer)} and the
+     * MVP of each output, and writes the stage timings to the stage timings buffer. Bit i of a
+     * mask stands for output i. An output detached since it was attached is let go of instead of
+     * drawn.
+     *
+     * @param mvpDirtyMask The outputs whose MVP changed since they were last drawn.
+     * @return The mask of the outputs that were drawn and presented.
+     */
     @WorkerThread
-    private static native boolean renderTexture(
+    static native int renderTexture(
             long nativeContext,
-            long timestampNs,
-            @NonNull float[] mvpTransform,
-            boolean mvpDirty,
-            @NonNull float[] textureTransform);
+            int outputMask,
+            int mvpDirtyMask,
+            long presentationTimeNs);
+
+    @WorkerThread
+    private static native int getLastFrameGlCallCount(long nativeContext);
 
+    /**
+     * Draws the latest texture offscreen with the given MVP and starts reading it back into the
+     * given direct buffer, using the texture transform passed to
+     * {@link #initContext(long, FloatBuffer, LongBuffer, IntBuffer)}. The buffer must stay alive
+     * until {@link #pollCaptures(long)} reports the capture done.
+     *
+     * @return The slot the capture is read back in, or -1 if it could not be started.
+     */
     @WorkerThread
-    private static native void closeContext(long nativeContext);
+    private static native int captureTexture(long nativeContext,
+            @NonNull FloatBuffer mvpTransform, @NonNull ByteBuffer destination, int width,
+            int height);
+
+    /**
+     * Counts a drawn frame and finishes reading back the captures the GPU is done with. Never
+     * waits for the GPU. Registered in JNI_OnLoad.
+     *
+     * @return The mask of the capture slots whose pixels are now in their buffers.
+     */
+    @WorkerThread
+    private static native int pollCaptures(long nativeContext);
+
+    /**
+     * Packs the latest texture into a tensor and starts reading it back like
+     * {@link #captureTexture(long, FloatBuffer, ByteBuffer, int, int)}.
+     *
+     * @param params The parameters laid out as described by {@code TensorConsumer.PARAM_*}.
+     * @return The slot the tensor is read back in, or -1 if it could not be started.
+     */
+    @WorkerThread
+    private static native int captureTensor(long nativeContext, @NonNull FloatBuffer params,
+            @NonNull ByteBuffer destination, int width, int height,
+            @TensorFormat.DataType int dataType);
+
+    /**
+     * Returns whether tensors of the given data type can be packed. Registered in JNI_OnLoad.
+     */
+    @WorkerThread
+    private static native boolean isTensorTypeSupported(long nativeContext,
+            @TensorFormat.DataType int dataType);
+
+    /**
+     * Compiles an effect into a stage of the effect chain, reading the uniform values from the
+     * given direct buffer each time it is drawn, at {@code ShaderEffect.MAX_UNIFORM_SIZE} floats
+     * per uniform. The buffer must stay alive until the stage is destroyed.
+     *
+     * @param externalSource  The effect's fragment shader reading the camera texture.
+     * @param texture2dSource The effect's fragment shader reading the previous stage.
+     * @return The stage, or 0 if the effect does not compile.
+     */
+    @WorkerThread
+    private static native long createEffectStage(long nativeContext,
+            @NonNull String externalSource, @NonNull String texture2dSource,
+            @NonNull String[] uniformNames, @NonNull int[] uniformSizes,
+            @NonNull FloatBuffer uniformValues);
+
+    /**
+     * Destroys a stage, removing it from the chain. Registered in JNI_OnLoad.
+     */
+    @WorkerThread
+    private static native void destroyEffectStage(long nativeContext, long stage);
+
+    /**
+     * Sets the first stageCount stages of the given array as those the texture is drawn through
+     * before the outputs, in order.
+     */
+    @WorkerThread
+    private static native void setEffectChain(long nativeContext, @NonNull long[] stages,
+            int stageCount);
+
+    /**
+     * Sets the size of the offscreen targets of the effect chain. Registered in JNI_OnLoad.
+     */
+    @WorkerThread
+    private static native void setEffectTargetSize(long nativeContext, int width, int height);
+
+    @WorkerThread
+    static native void closeContext(long nativeContext);
+
+    // A stage of the effect chain compiled by the native renderer, with the direct buffer it
+    // reads its uniform values from.
+    private static final class CompiledEffect {
+        final String mKey;
+        final long mHandle;
+        final FloatBuffer mUniformValues;
+
+        private CompiledEffect(@NonNull String key, long handle,
+                @NonNull FloatBuffer uniformValues) {
+            mKey = key;
+            mHandle = handle;
+            mUniformValues = uniformValues;
+        }
+
+        /**
+         * Compiles the effect, or returns null if it does not compile.
+         */
+        @Nullable
+        static CompiledEffect compile(long nativeContext, @NonNull ShaderEffect effect,
+                @NonNull String key) {
+            int count = effect.getUniformCount();
+            String[] names = new String[count];
+            int[] sizes = new int[count];
+            for (int i = 0; i < count; i++) {
+                names[i] = effect.getUniformName(i);
+                sizes[i] = effect.getUniformValue(i).length;
+            }
+            FloatBuffer values = ByteBuffer.allocateDirect(
+                    Math.max(count, 1) * ShaderEffect.MAX_UNIFORM_SIZE * FLOAT_SIZE_BYTES)
+                    .order(ByteOrder.nativeOrder())
+                    .asFloatBuffer();
+            long handle = createEffectStage(nativeContext, EffectShaders.externalSource(effect),
+                    EffectShaders.texture2dSource(effect), names, sizes, values);
+            return handle != 0 ? new CompiledEffect(key, handle, values) : null;
+        }
+
+        /**
+         * Copies the uniform values of an effect with the same program key into the buffer.
+         */
+        void setUniformValues(@NonNull ShaderEffect effect) {
+            for (int i = 0; i < effect.getUniformCount(); i++) {
+                float[] value = effect.getUniformValue(i);
+                for (int component = 0; component < value.length; component++) {
+                    mUniformValues.put(i * ShaderEffect.MAX_UNIFORM_SIZE + component,
+                            value[component]);
+                }
+            }
+        }
+    }
+
+    // Listens to the thermal status of the device, on the API levels that report it.
+    @RequiresApi(Build.VERSION_CODES.Q)
+    private static final class ThermalMonitor {
+        private final PowerManager mPowerManager;
+        private final PowerManager.OnThermalStatusChangedListener mListener;
+
+        ThermalMonitor(@NonNull PowerManager powerManager, @NonNull Executor executor,
+                @NonNull PowerManager.OnThermalStatusChangedListener listener) {
+            mPowerManager = powerManager;
+            mListener = listener;
+            powerManager.addThermalStatusListener(executor, listener);
+        }
+
+        int getCurrentStatus() {
+            return mPowerManager.getCurrentThermalStatus();
+        }
+
+        void stop() {
+            mPowerManager.removeThermalStatusListener(mListener);
+        }
+    }
+
+    // Preview texture and the surface the camera draws to, with the number of surface requests
+    // it was provided to that the camera has not released yet.
+    private static final class PreviewInput {
+        final SurfaceTexture mTexture;
+        final Surface mSurface;
+        final Size mSize;
+        // Sessions the surface is provided to, and the request waiting for them to be done.
+        int mUses = 0;
+        @Nullable
+        SurfaceRequest mWaitingRequest;
+
+        PreviewInput(@NonNull SurfaceTexture texture, @NonNull Surface surface,
+                @NonNull Size size) {
+            mTexture = texture;
+            mSurface = surface;
+            mSize = size;
+        }
+    }
+
+    // Frames of the preview texture.
+    private static final class TextureFrames implements InputFrames {
+        private final SurfaceTexture mTexture;
+
+        TextureFrames(@NonNull SurfaceTexture texture) {
+            mTexture = texture;
+        }
+
+        @Override
+        public void updateTexImage() {
+            mTexture.updateTexImage();
+        }
+
+        @Override
+        public long getTimestamp() {
+            return mTexture.getTimestamp();
+        }
+
+        @Override
+        public void getTransformMatrix(@NonNull float[] matrix) {
+            mTexture.getTransformMatrix(matrix);
+        }
+    }
+
+    // A capture being read back by the native renderer, either a frame requested through a
+    // completer or a tensor for a consumer.
+    private static final class PendingCapture {
+        @Nullable
+        final CallbackToFutureAdapter.Completer<CapturedFrame> mCompleter;
+        @Nullable
+        final TensorConsumer mConsumer;
+        final ByteBuffer mPixels;
+        final int mWidth;
+        final int mHeight;
+        final long mTimestampNs;
+
+        PendingCapture(@Nullable CallbackToFutureAdapter.Completer<CapturedFrame> completer,
+                @Nullable TensorConsumer consumer, @NonNull ByteBuffer pixels, int width,
+                int height, long timestampNs) {
+            mCompleter = completer;
+            mConsumer = consumer;
+            mPixels = pixels;
+            mWidth = width;
+            mHeight = height;
+            mTimestampNs = timestampNs;
+        }
+    }
 }
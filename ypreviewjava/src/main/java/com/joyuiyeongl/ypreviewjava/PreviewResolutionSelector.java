@@ -0,0 +1,148 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joyuiyeongl.ypreviewjava;
+
+import android.util.Size;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Picks the preview resolution of a camera for the size of the view showing it: the smallest
+ * output size covering the view's pixel size times a quality factor.
+ *
+ * <p>A stream larger than the view costs bandwidth in the ISP, texture fetches in the renderer
+ * and memory, for pixels that are downscaled away. The sizes, in the sensor's orientation, are
+ * rotated to the frame of the target rotation, which is the display's, before being compared to
+ * the view: the stream is shown upright on the display whatever the shape of the view, so a
+ * landscape view on a portrait display still shows a portrait stream, which must be as wide as
+ * the view. The size picked is returned in that frame, as CameraX expects a target resolution.
+ * If no size covers the view, the largest one is picked. Decisions are cached per camera, view
+ * size and orientation, along with the output sizes of each camera.
+ *
+ * <p>Not thread safe.
+ */
+final class PreviewResolutionSelector {
+    /**
+     * Source of the sizes a camera can stream the preview at, in the sensor's orientation.
+     */
+    interface OutputSizes {
+        @Nullable
+        Size[] get(@NonNull String cameraId);
+    }
+
+    private final OutputSizes mOutputSizes;
+    private float mQualityFactor = 1f;
+    private final Map<String, Size[]> mOutputSizesCache = new HashMap<>();
+    private final Map<String, Size> mDecisions = new HashMap<>();
+
+    PreviewResolutionSelector(@NonNull OutputSizes outputSizes) {
+        mOutputSizes = outputSizes;
+    }
+
+    /**
+     * Sets the factor the view size is multiplied by before picking the size covering it:
+     * above 1 for sharper, oversampled previews, below 1 for cheaper ones.
+     */
+    void setQualityFactor(float qualityFactor) {
+        if (qualityFactor <= 0) {
+            throw new IllegalArgumentException("Quality factor must be positive: "
+                    + qualityFactor);
+        }
+        if (qualityFactor != mQualityFactor) {
+            mQualityFactor = qualityFactor;
+            mDecisions.clear();
+        }
+    }
+
+    /**
+     * Returns the rotation of the camera's images relative to the target rotation, as CameraX's
+     * {@code CameraInfo#getSensorRotationDegrees(int)} does.
+     *
+     * @param sensorOrientationDegrees The camera's {@code SENSOR_ORIENTATION}.
+     * @param targetRotationDegrees    The target rotation, usually the display's, in degrees.
+     * @param isFrontFacing            Whether the camera faces the same way as the display.
+     */
+    static int getSensorRotationDegrees(int sensorOrientationDegrees, int targetRotationDegrees,
+            boolean isFrontFacing) {
+        return isFrontFacing ? (sensorOrientationDegrees + targetRotationDegrees) % 360
+                : (sensorOrientationDegrees - targetRotationDegrees + 360) % 360;
+    }
+
+    /**
+     * Returns the resolution to request for showing the camera in a view of the given size, or
+     * null if the view has not been laid out or the camera's sizes are unknown.
+     *
+     * @param sensorRotationDegrees Rotation of the camera's images relative to the target
+     *                              rotation, from {@link #getSensorRotationDegrees}.
+     */
+    @Nullable
+    Size select(@NonNull String cameraId, int viewWidth, int viewHeight,
+            int sensorRotationDegrees) {
+        if (viewWidth <= 0 || viewHeight <= 0) {
+            return null;
+        }
+        boolean transposed = sensorRotationDegrees % 180 != 0;
+        String key = cameraId + ':' + viewWidth + 'x' + viewHeight + (transposed ? "T" : "");
+        if (mDecisions.containsKey(key)) {
+            return mDecisions.get(key);
+        }
+        Size[] sizes = mOutputSizesCache.get(cameraId);
+        if (sizes == null) {
+            sizes = mOutputSizes.get(cameraId);
+            if (sizes == null) {
+                return null;
+            }
+            mOutputSizesCache.put(cameraId, sizes);
+        }
+        Size size = pick(sizes, transposed, (long) Math.ceil(viewWidth * mQualityFactor),
+                (long) Math.ceil(viewHeight * mQualityFactor));
+        if (size != null && transposed) {
+            size = new Size(size.getHeight(), size.getWidth());
+        }
+        mDecisions.put(key, size);
+        return size;
+    }
+
+    // Returns the smallest size covering the given width and height once transposed if asked
+    // to, in the sensor's orientation.
+    @Nullable
+    private static Size pick(@NonNull Size[] sizes, boolean transposed, long minWidth,
+            long minHeight) {
+        Size smallestCovering = null;
+        Size largest = null;
+        for (Size size : sizes) {
+            long area = getArea(size);
+            if (largest == null || area > getArea(largest)) {
+                largest = size;
+            }
+            int width = transposed ? size.getHeight() : size.getWidth();
+            int height = transposed ? size.getWidth() : size.getHeight();
+            if (width >= minWidth && height >= minHeight
+                    && (smallestCovering == null || area < getArea(smallestCovering))) {
+                smallestCovering = size;
+            }
+        }
+        return smallestCovering != null ? smallestCovering : largest;
+    }
+
+    private static long getArea(@NonNull Size size) {
+        return (long) size.getWidth() * size.getHeight();
+    }
+}
@@ -3,13 +3,18 @@ package com.joyuiyeongl.ypreviewjava;
 import android.content.Context;
 import android.hardware.display.DisplayManager;
 import android.os.Build;
+import android.os.PowerManager;
 import android.util.AttributeSet;
 import android.util.Log;
+import android.util.Size;
 import android.view.Display;
 import android.view.LayoutInflater;
+import android.view.Surface;
 import android.view.ViewStub;
 import android.widget.FrameLayout;
 
+import androidx.annotation.FloatRange;
+import androidx.annotation.IntRange;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.appcompat.app.AppCompatActivity;
@@ -20,7 +25,6 @@ import androidx.camera.core.CameraSelector;
 import androidx.camera.core.Preview;
 import androidx.camera.lifecycle.ProcessCameraProvider;
 import androidx.core.content.ContextCompat;
-import androidx.core.util.Consumer;
 import androidx.lifecycle.Lifecycle;
 import androidx.lifecycle.LifecycleObserver;
 import androidx.lifecycle.LifecycleOwner;
@@ -28,14 +32,20 @@ import androidx.lifecycle.OnLifecycleEvent;
 
 import com.google.common.util.concurrent.ListenableFuture;
 
+import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 
 public class PreviewView extends FrameLayout implements DisplayManager.DisplayListener {
     private static final String TAG = "CustomPreview";
+    private static final long NANOS_IN_SECOND = 1_000_000_000L;
+    private static final float DEFAULT_REFRESH_RATE = 60f;
 
+    // Created on first use, on the render engine if one is set.
+    @Nullable
     private OpenGLRenderer renderer;
     private ViewStub viewFinderStub;
+    private boolean framePacingEnabled = false;
 
 
     public PreviewView(@NonNull Context context) {
@@ -61,11 +71,299 @@ public class PreviewView extends FrameLayout implements DisplayManager.DisplayLi
     private void init(Context context) {
         LayoutInflater.from(context).inflate(R.layout.custom_preview, this, true);
         viewFinderStub = findViewById(R.id.viewFinderStub);
-        renderer = new OpenGLRenderer();
     }
 
-    public void setFrameUpdateListener(Executor executor, Consumer<Long> consumer) {
-        renderer.setFrameUpdateListener(executor, consumer);
+    /**
+     * Renders the preview on the thread and in the EGL context of the given engine, shared with
+     * the other views set up with it, rather than on a thread and context of its own.
+     *
+     * <p>Must be called before any other method of the view is used.
+     *
+     * @throws IllegalStateException if the view's renderer has already been created or the
+     *                               engine has been released.
+     */
+    public void setRenderEngine(@NonNull RenderEngine engine) {
+        if (renderer != null) {
+            throw new IllegalStateException("The render engine must be set before the view is"
+                    + " used.");
+        }
+        renderer = new OpenGLRenderer(engine);
+    }
+
+    @NonNull
+    private OpenGLRenderer getRenderer() {
+        if (renderer == null) {
+            renderer = new OpenGLRenderer(getContext().getCacheDir());
+        }
+        return renderer;
+    }
+
+    /**
+     * Adds a listener which receives the timestamp of the latest drawn frame.
+     *
+     * <p>Each call adds another listener. If a listener's executor falls behind, intermediate
+     * frames are skipped and only the latest timestamp is delivered.
+     *
+     * @return The subscription, which can be used to remove the listener.
+     */
+    @NonNull
+    public FrameSubscription setFrameUpdateListener(@NonNull Executor executor,
+            @NonNull FrameUpdateListener listener) {
+        return getRenderer().subscribeToFrameEvents(executor, BackpressurePolicy.latest(),
+                (timestampNs, frameNumber, renderDurationNs) ->
+                        listener.onFrameUpdate(timestampNs));
+    }
+
+    /**
+     * Subscribes a listener to the records of the drawn frames: timestamp, frame number and
+     * render duration.
+     *
+     * <p>Any number of listeners can be subscribed, each with its own executor and
+     * {@link BackpressurePolicy}. A slow listener never holds up the preview.
+     *
+     * @return The subscription, which can be used to remove the listener.
+     */
+    @NonNull
+    public FrameSubscription subscribeToFrameEvents(@NonNull Executor executor,
+            @NonNull BackpressurePolicy policy, @NonNull FrameEventListener listener) {
+        return getRenderer().subscribeToFrameEvents(executor, policy, listener);
+    }
+
+    /**
+     * Draws the camera frames to another surface along with the preview, such as the input
+     * surface of a video encoder or a streaming pipeline.
+     *
+     * <p>Each camera frame is latched once and drawn to the preview and every added surface in a
+     * single pass, so no second camera stream or renderer is needed. Up to three surfaces can be
+     * added. Adding a surface again updates its size, rotation and frame rate cap.
+     *
+     * @param size            Size of the surface's buffers.
+     * @param rotationDegrees Rotation of the surface's content, in the same sense as the
+     *                        display rotation.
+     * @param maxFrameRate    Maximum rate at which the surface is drawn, or 0 to draw every
+     *                        camera frame.
+     * @return A {@link ListenableFuture} that signals the surface is being drawn to.
+     */
+    @NonNull
+    public ListenableFuture<Void> addOutputSurface(@NonNull Surface surface, @NonNull Size size,
+            @Surfaces.RotationDegrees int rotationDegrees, float maxFrameRate) {
+        return getRenderer().attachSecondaryOutputSurface(surface, size, rotationDegrees,
+                maxFrameRate);
+    }
+
+    /**
+     * Stops drawing to a surface added with
+     * {@link #addOutputSurface(Surface, Size, int, float)}.
+     *
+     * @return A {@link ListenableFuture} that signals the surface is no longer used and can be
+     * released.
+     */
+    @NonNull
+    public ListenableFuture<Void> removeOutputSurface(@NonNull Surface surface) {
+        return getRenderer().detachSecondaryOutputSurface(surface);
+    }
+
+    /**
+     * Captures the next camera frame at the full resolution of the preview, upright, as RGBA
+     * pixels.
+     *
+     * <p>The frame is read back without stalling the preview and delivered a couple of frames
+     * later. Captured frames come from a small pool and must be closed once their pixels are no
+     * longer needed.
+     */
+    @NonNull
+    public ListenableFuture<CapturedFrame> captureFrame() {
+        return getRenderer().captureFrame();
+    }
+
+    /**
+     * Hands every {@code frameInterval}-th camera frame to a listener as a tensor for an ML
+     * model, replacing any previous listener.
+     *
+     * <p>The frame is downscaled, cropped and rotated like the preview, normalized and packed on
+     * the GPU, so the model can be fed without an extra camera stream or CPU color conversion.
+     *
+     * @return A {@link ListenableFuture} that signals the listener is set. It fails if the
+     * format's data type is not supported on this device.
+     */
+    @NonNull
+    public ListenableFuture<Void> setTensorListener(@NonNull TensorFormat format,
+            @IntRange(from = 1) int frameInterval, @NonNull Executor executor,
+            @NonNull TensorListener listener) {
+        return getRenderer().setTensorListener(format, frameInterval, executor, listener);
+    }
+
+    /**
+     * Removes the listener set with
+     * {@link #setTensorListener(TensorFormat, int, Executor, TensorListener)}.
+     */
+    public void clearTensorListener() {
+        getRenderer().clearTensorListener();
+    }
+
+    /**
+     * Runs the preview through a chain of shader effects, such as sharpening or color
+     * correction, replacing any previous chain. An empty list shows the frames as they are.
+     *
+     * <p>The effects run on the GPU, in order, each reading the output of the previous one, so
+     * no second copy of the frame is made on the CPU. Up to 8 effects can be chained. Setting a
+     * chain that differs only in uniform values reuses the compiled shaders.
+     *
+     * @return A {@link ListenableFuture} that signals the chain is set. It fails if an effect
+     * does not compile, in which case the previous chain is kept.
+     */
+    @NonNull
+    public ListenableFuture<Void> setEffects(@NonNull List<ShaderEffect> effects) {
+        return getRenderer().setEffects(effects);
+    }
+
+    /**
+     * Returns the GPU time of each effect set with {@link #setEffects(List)}, by position in the
+     * chain, where the GPU supports timer queries. Can be called from any thread.
+     */
+    @NonNull
+    public RenderStageStats getEffectStageStats() {
+        return getRenderer().getEffectStageStats();
+    }
+
+    /**
+     * Enables or disables drawing the preview in step with the display's vsync.
+     *
+     * <p>When enabled, at most one camera frame is drawn per display refresh, always the newest
+     * one. This avoids drawing frames that are never shown when the camera and display rates
+     * differ, at the cost of waiting for the next vsync. Disabled by default.
+     */
+    public void setFramePacingEnabled(boolean enabled) {
+        framePacingEnabled = enabled;
+        getRenderer().setFramePacingEnabled(enabled, getVsyncPeriodNs());
+    }
+
+    /**
+     * Enables or disables skipping stale camera frames when the render thread falls behind.
+     *
+     * <p>When enabled, frames that pile up while the render thread is busy are collapsed into
+     * a single draw of the newest one. Enabled by default.
+     */
+    public void setFrameCoalescingEnabled(boolean enabled) {
+        getRenderer().setFrameCoalescingEnabled(enabled);
+    }
+
+    /**
+     * Sets the resolution the preview is drawn at relative to the camera's: the preview is
+     * drawn into buffers of the camera resolution times the scale, where that is smaller than
+     * the view, and the display hardware scales them up to the view. With a 1080p camera
+     * stream on a 1440p screen, a scale of 1 saves filling the pixels the camera doesn't have.
+     *
+     * @param scale The scale, or 0, the default, to draw at the size of the view.
+     */
+    public void setRenderScale(@FloatRange(from = 0) float scale) {
+        getRenderer().setOutputRenderScale(scale);
+    }
+
+    /**
+     * Returns the size of the preview's view and of the buffers it is drawn into, as chosen by
+     * {@link #setRenderScale(float)} and {@link #setAdaptiveRenderScaleEnabled(boolean)}.
+     */
+    @NonNull
+    public ListenableFuture<RenderScaleStats> getRenderScaleStats() {
+        return getRenderer().getRenderScaleStats();
+    }
+
+    /**
+     * Enables or disables lowering the preview's render resolution while the render thread
+     * can't keep up or the device is throttling.
+     *
+     * <p>When enabled, sustained slow or late frames, measured against the expected frame rate
+     * set with {@link #setExpectedFrameRate(float)}, or a raised thermal status on API 29 and
+     * above, make the renderer draw into smaller buffers that the compositor scales up, and cap
+     * the effect chain set with {@link #setEffects(List)}. Full quality comes back gradually
+     * once there is headroom again. Disabled by default.
+     */
+    public void setAdaptiveRenderScaleEnabled(boolean enabled) {
+        getRenderer().setRenderScaleGovernorEnabled(enabled,
+                (PowerManager) getContext().getSystemService(Context.POWER_SERVICE));
+    }
+
+    /**
+     * Returns a snapshot of the counters of received, rendered, coalesced, skipped and dropped
+     * frames.
+     */
+    @NonNull
+    public ListenableFuture<FramePacingStats> getFramePacingStats() {
+        return getRenderer().getFramePacingStats();
+    }
+
+    /**
+     * Returns a snapshot of the counters of the commands run on the preview's render thread:
+     * how many ran or were coalesced, how many were waiting and how long they waited.
+     */
+    @NonNull
+    public ListenableFuture<RenderQueueStats> getRenderQueueStats() {
+        return getRenderer().getRenderQueueStats();
+    }
+
+    /**
+     * Returns the distributions of frame intervals and render durations of the preview: mean,
+     * p50, p90, p99 and max, along with the number of frames drawn more than 1.5x and 2x the
+     * expected interval after the previous one. Can be called from any thread.
+     */
+    @NonNull
+    public FrameIntervalStats getFrameIntervalStats() {
+        return getRenderer().getFrameIntervalStats();
+    }
+
+    /**
+     * Sets the frame rate the preview is expected to run at, used to count janky frames in
+     * {@link #getFrameIntervalStats()}. Defaults to 30 fps.
+     */
+    public void setExpectedFrameRate(float fps) {
+        if (fps <= 0) {
+            throw new IllegalArgumentException("Frame rate must be positive.");
+        }
+        getRenderer().setExpectedFrameIntervalNs((long) (NANOS_IN_SECOND / fps));
+    }
+
+    /**
+     * Clears the statistics returned by {@link #getFrameIntervalStats()}.
+     */
+    public void resetFrameIntervalStats() {
+        getRenderer().resetFrameIntervalStats();
+    }
+
+    /**
+     * Returns the time spent in each stage of the render loop: latching the camera frame,
+     * updating the transforms, crossing JNI, issuing the draw, swapping buffers and, where the
+     * GPU supports timer queries, executing the draw on the GPU. Can be called from any thread.
+     */
+    @NonNull
+    public RenderStageStats getRenderStageStats() {
+        return getRenderer().getRenderStageStats();
+    }
+
+    /**
+     * Clears the statistics returned by {@link #getRenderStageStats()}.
+     */
+    public void resetRenderStageStats() {
+        getRenderer().resetRenderStageStats();
+    }
+
+    /**
+     * Returns the time the renderer took to start: setting up its EGL context, loading its
+     * shader program, from cache after the first start where the driver allows it, and drawing
+     * the first frame.
+     */
+    @NonNull
+    public ListenableFuture<RendererStartupStats> getRendererStartupStats() {
+        return getRenderer().getStartupStats();
+    }
+
+    private long getVsyncPeriodNs() {
+        Display display = getDisplay();
+        float refreshRate = display != null ? display.getRefreshRate() : DEFAULT_REFRESH_RATE;
+        if (refreshRate <= 0) {
+            refreshRate = DEFAULT_REFRESH_RATE;
+        }
+        return (long) (NANOS_IN_SECOND / refreshRate);
     }
 
     public int getDisplayRotation() {
@@ -78,20 +376,26 @@ public class PreviewView extends FrameLayout implements DisplayManager.DisplayLi
 
     void inflate(boolean isTextureView) {
         if (isTextureView) {
-            TextureViewRenderSurface.inflateWith(viewFinderStub, renderer);
+            TextureViewRenderSurface.inflateWith(viewFinderStub, getRenderer());
         } else if (Build.MODEL.contains("Cuttlefish")) {
-            SurfaceViewRenderSurface.inflateWith(viewFinderStub, renderer);
+            SurfaceViewRenderSurface.inflateWith(viewFinderStub, getRenderer());
         } else {
-            SurfaceViewRenderSurface.inflateNonBlockingWith(viewFinderStub, renderer);
+            SurfaceViewRenderSurface.inflateNonBlockingWith(viewFinderStub, getRenderer());
         }
     }
 
+    void setStartupTracer(@NonNull StartupTracer tracer) {
+        getRenderer().setStartupTracer(tracer);
+    }
+
     void setPreviewUseCase(Preview preview) {
-        renderer.attachInputPreview(preview);
+        getRenderer().attachInputPreview(preview);
     }
 
     void shutdown() {
-        renderer.shutdown();
+        if (renderer != null) {
+            renderer.shutdown();
+        }
     }
 
 
@@ -107,7 +411,11 @@ public class PreviewView extends FrameLayout implements DisplayManager.DisplayLi
     @Override
     public void onDisplayChanged(int displayId) {
         if (getDisplay() != null && getDisplay().getDisplayId() == displayId) {
-            renderer.invalidateSurface(Surfaces.toSurfaceRotationDegrees(getDisplay().getRotation()));
+            getRenderer().invalidateSurface(Surfaces.toSurfaceRotationDegrees(getDisplay().getRotation()));
+            if (framePacingEnabled) {
+                // The refresh rate may have changed along with the display mode.
+                getRenderer().setFramePacingEnabled(true, getVsyncPeriodNs());
+            }
         }
     }
     // *********************** End Overriding Display.DisplayListener ************************
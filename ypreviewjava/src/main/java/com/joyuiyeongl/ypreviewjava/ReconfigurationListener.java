@@ -0,0 +1,32 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joyuiyeongl.ypreviewjava;
+
+/**
+ * Listener which receives how the {@link Binder} reconfigured the camera and how long it took.
+ */
+public interface ReconfigurationListener {
+    /**
+     * Called after each reconfiguration.
+     *
+     * @param reconfiguration The most expensive path the reconfiguration took.
+     * @param durationNs      Time spent reconfiguring the bound use cases, on the main thread.
+     *                        The camera goes on reconfiguring in the background; see
+     *                        {@link Binder#setReconfigurationTraceListener} for the time until
+     *                        the reconfigured stream delivers a frame.
+     */
+    void onReconfigured(@Binder.Reconfiguration int reconfiguration, long durationNs);
+}
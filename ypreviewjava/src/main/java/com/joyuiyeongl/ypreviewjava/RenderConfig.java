@@ -0,0 +1,177 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joyuiyeongl.ypreviewjava;
+
+import android.view.Surface;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Immutable snapshot of the render state set from outside the render thread: the output surface
+ * of the preview with its size and rotation, and the crop rect of the camera frames.
+ *
+ * <p>Any thread publishes a new version through a {@link Publisher}, without waiting for the
+ * render thread's queue. The render thread picks up the latest version before drawing a frame,
+ * and only rebuilds the transforms of what changed, so a rotation or resize is drawn by the next
+ * frame even when tasks are queued before it.
+ */
+final class RenderConfig {
+    private static final RenderConfig INITIAL = new RenderConfig(0, null, 0, 0, 0, false, 0, 0,
+            0, 0);
+
+    private final long mVersion;
+    // Surface the size is for. The size is only applied while this surface is attached.
+    @Nullable
+    private final Surface mSurface;
+    private final int mSurfaceWidth;
+    private final int mSurfaceHeight;
+    private final int mSurfaceRotationDegrees;
+    private final boolean mHasCropRect;
+    private final int mCropLeft;
+    private final int mCropTop;
+    private final int mCropRight;
+    private final int mCropBottom;
+
+    private RenderConfig(long version, @Nullable Surface surface, int surfaceWidth,
+            int surfaceHeight, int surfaceRotationDegrees, boolean hasCropRect, int cropLeft,
+            int cropTop, int cropRight, int cropBottom) {
+        mVersion = version;
+        mSurface = surface;
+        mSurfaceWidth = surfaceWidth;
+        mSurfaceHeight = surfaceHeight;
+        mSurfaceRotationDegrees = surfaceRotationDegrees;
+        mHasCropRect = hasCropRect;
+        mCropLeft = cropLeft;
+        mCropTop = cropTop;
+        mCropRight = cropRight;
+        mCropBottom = cropBottom;
+    }
+
+    /** Returns the version, incremented by every publish. */
+    long getVersion() {
+        return mVersion;
+    }
+
+    @Nullable
+    Surface getSurface() {
+        return mSurface;
+    }
+
+    int getSurfaceWidth() {
+        return mSurfaceWidth;
+    }
+
+    int getSurfaceHeight() {
+        return mSurfaceHeight;
+    }
+
+    int getSurfaceRotationDegrees() {
+        return mSurfaceRotationDegrees;
+    }
+
+    /** Returns whether a crop rect was published, as opposed to none yet. */
+    boolean hasCropRect() {
+        return mHasCropRect;
+    }
+
+    int getCropLeft() {
+        return mCropLeft;
+    }
+
+    int getCropTop() {
+        return mCropTop;
+    }
+
+    int getCropRight() {
+        return mCropRight;
+    }
+
+    int getCropBottom() {
+        return mCropBottom;
+    }
+
+    boolean hasSameCropRect(@NonNull RenderConfig other) {
+        return mHasCropRect == other.mHasCropRect && mCropLeft == other.mCropLeft
+                && mCropTop == other.mCropTop && mCropRight == other.mCropRight
+                && mCropBottom == other.mCropBottom;
+    }
+
+    /**
+     * Holds the latest {@link RenderConfig}. Publishing from several threads at once loses none
+     * of the changes: each publish derives its version from the latest one and retries if
+     * another thread published meanwhile.
+     */
+    static final class Publisher {
+        private final AtomicReference<RenderConfig> mLatest = new AtomicReference<>(INITIAL);
+
+        /** Returns the latest version. Can be called from any thread. */
+        @NonNull
+        RenderConfig get() {
+            return mLatest.get();
+        }
+
+        /**
+         * Publishes the size and rotation of the output surface.
+         */
+        void publishSurface(@Nullable Surface surface, int width, int height,
+                int rotationDegrees) {
+            RenderConfig current;
+            RenderConfig next;
+            do {
+                current = mLatest.get();
+                next = new RenderConfig(current.mVersion + 1, surface, width, height,
+                        rotationDegrees, current.mHasCropRect, current.mCropLeft,
+                        current.mCropTop, current.mCropRight, current.mCropBottom);
+            } while (!mLatest.compareAndSet(current, next));
+        }
+
+        /**
+         * Publishes the rotation of the output surface, keeping its size.
+         */
+        void publishSurfaceRotation(int rotationDegrees) {
+            RenderConfig current;
+            RenderConfig next;
+            do {
+                current = mLatest.get();
+                if (current.mSurfaceRotationDegrees == rotationDegrees) {
+                    return;
+                }
+                next = new RenderConfig(current.mVersion + 1, current.mSurface,
+                        current.mSurfaceWidth, current.mSurfaceHeight, rotationDegrees,
+                        current.mHasCropRect, current.mCropLeft, current.mCropTop,
+                        current.mCropRight, current.mCropBottom);
+            } while (!mLatest.compareAndSet(current, next));
+        }
+
+        /**
+         * Publishes the crop rect of the camera frames, in the coordinates of the camera
+         * texture.
+         */
+        void publishCropRect(int left, int top, int right, int bottom) {
+            RenderConfig current;
+            RenderConfig next;
+            do {
+                current = mLatest.get();
+                next = new RenderConfig(current.mVersion + 1, current.mSurface,
+                        current.mSurfaceWidth, current.mSurfaceHeight,
+                        current.mSurfaceRotationDegrees, true, left, top, right, bottom);
+            } while (!mLatest.compareAndSet(current, next));
+        }
+    }
+}
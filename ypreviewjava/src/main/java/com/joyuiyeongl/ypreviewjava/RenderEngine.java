@@ -0,0 +1,312 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joyuiyeongl.ypreviewjava;
+
+import android.content.Context;
+import android.os.Process;
+
+import androidx.annotation.GuardedBy;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import androidx.annotation.WorkerThread;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A render thread and EGL context shared by the previews of a screen.
+ *
+ * <p>By default every {@link PreviewView} renders on a thread of its own, in an EGL context of
+ * its own, with its own copy of the shader program. A screen showing several camera previews
+ * can instead create one engine and set it on each of its views with
+ * {@link PreviewView#setRenderEngine(RenderEngine)}: their renderers then all run on the engine's
+ * thread, in its context, and share its program and quad, so only the first one pays for setting
+ * them up. Each renderer keeps its own camera texture, output surfaces and matrices.
+ *
+ * <p>Camera frames of all previews are drawn in the order they arrive. With frame pacing, the
+ * previews due in the same vsync are drawn from a single callback and take turns at being drawn
+ * first, so that none of them is consistently the one missing the vsync.
+ *
+ * <p>The engine is kept while renderers use it. Call {@link #release()} once no more views will
+ * be set up with it: its thread and context end with the last renderer using it.
+ *
+ * <p>{@link #prewarm(Context)} sets up the thread, context and program of the first preview's
+ * own renderer ahead of time, for instance in {@code Application.onCreate}.
+ */
+public final class RenderEngine {
+    // Subdirectory of the cache directory an engine is given that holds its compiled programs.
+    // The program cache deletes files there, so it never gets a directory shared with others.
+    static final String PROGRAM_CACHE_DIR = "ypreview_programs";
+
+    // Layout of the startup timings written by the native renderer, followed by whether the
+    // context was set up ahead of time, written by the engine.
+    static final int STARTUP_EGL_NS = 0;
+    static final int STARTUP_PROGRAM_NS = 1;
+    static final int STARTUP_PROGRAM_CACHE = 2;
+    static final int STARTUP_PREWARMED = 3;
+    static final int STARTUP_COUNT = 4;
+    private static final int LONG_SIZE_BYTES = 8;
+    // Whether the render thread runs its tasks from a lock-free command queue, which coalesces
+    // superseded commands, rather than from a Handler message each.
+    private static final boolean USE_COMMAND_QUEUE = true;
+
+    private static final AtomicInteger RENDERER_COUNT = new AtomicInteger(0);
+    private static final AtomicInteger ENGINE_COUNT = new AtomicInteger(0);
+
+    private static final Object PREWARM_LOCK = new Object();
+    // Engine set up by prewarm() and not yet taken by a renderer.
+    @GuardedBy("PREWARM_LOCK")
+    @Nullable
+    private static RenderEngine sPrewarmedEngine;
+
+    private final RenderExecutor mExecutor;
+    @Nullable
+    private final File mProgramCacheDir;
+    // Runs the vsync callbacks of the renderers. Only used on the GL thread.
+    private final RoundRobinFrameScheduler mFrameScheduler;
+    private final NativeRenderer mNativeRenderer;
+
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private int mRendererCount = 0;
+    @GuardedBy("mLock")
+    private boolean mReleased = false;
+
+    // Native context shared by the renderers, created by the first one or by prewarm(), and the
+    // time it took. Only used on the GL thread.
+    private long mSharedContext = 0;
+    private final LongBuffer mStartupTimingsBuffer = ByteBuffer.allocateDirect(
+            STARTUP_COUNT * LONG_SIZE_BYTES).order(ByteOrder.nativeOrder()).asLongBuffer();
+    private boolean mPrewarmed = false;
+    // Whether a renderer has been handed the startup timings of the context.
+    private boolean mStartupReported = false;
+
+    private RenderEngine(@NonNull String threadName, @Nullable File cacheDir) {
+        this(createExecutor(threadName), new RoundRobinFrameScheduler.ChoreographerSource(),
+                new JniRenderer(), cacheDir);
+    }
+
+    /**
+     * Creates an engine running its renderers on the given executor and vsync source, calling
+     * the given native renderer, for tests running the render loop without a looper or a GPU.
+     */
+    @VisibleForTesting
+    RenderEngine(@NonNull RenderExecutor executor,
+            @NonNull VsyncFramePacer.VsyncSource vsyncSource,
+            @NonNull NativeRenderer nativeRenderer) {
+        this(executor, vsyncSource, nativeRenderer, null);
+    }
+
+    private RenderEngine(@NonNull RenderExecutor executor,
+            @NonNull VsyncFramePacer.VsyncSource vsyncSource,
+            @NonNull NativeRenderer nativeRenderer, @Nullable File cacheDir) {
+        mExecutor = executor;
+        mFrameScheduler = new RoundRobinFrameScheduler(vsyncSource);
+        mNativeRenderer = nativeRenderer;
+        mProgramCacheDir = cacheDir != null ? new File(cacheDir, PROGRAM_CACHE_DIR) : null;
+    }
+
+    /**
+     * Creates an engine for the previews set up with it, caching its compiled programs in the
+     * app's cache directory.
+     */
+    @NonNull
+    public static RenderEngine create(@NonNull Context context) {
+        return new RenderEngine(
+                String.format(Locale.US, "GLRenderEngine-%03d", ENGINE_COUNT.incrementAndGet()),
+                context.getCacheDir());
+    }
+
+    /**
+     * Loads the native library and sets up a render thread, EGL context and program on a
+     * background thread, ready for the next {@link PreviewView} rendering on a thread of its
+     * own. The view then starts without paying for them on the main thread or on its way to
+     * the first frame. Does nothing if a prewarmed engine is still waiting for a view.
+     *
+     * <p>The engine is kept until a view takes it, so only prewarm when a preview is about to
+     * be shown.
+     */
+    public static void prewarm(@NonNull Context context) {
+        synchronized (PREWARM_LOCK) {
+            if (sPrewarmedEngine != null) {
+                return;
+            }
+            RenderEngine engine = createDedicated(context.getCacheDir());
+            engine.mExecutor.execute(() -> {
+                engine.mPrewarmed = true;
+                engine.ensureSharedContext();
+            });
+            sPrewarmedEngine = engine;
+        }
+    }
+
+    /**
+     * Returns the engine set up by {@link #prewarm(Context)} if there is one, or a new one,
+     * for a single renderer, which releases it once attached.
+     */
+    @NonNull
+    static RenderEngine obtainDedicated(@Nullable File cacheDir) {
+        synchronized (PREWARM_LOCK) {
+            RenderEngine engine = sPrewarmedEngine;
+            if (engine != null) {
+                sPrewarmedEngine = null;
+                return engine;
+            }
+        }
+        return createDedicated(cacheDir);
+    }
+
+    @NonNull
+    private static RenderExecutor createExecutor(@NonNull String threadName) {
+        // Use UI thread priority (DEFAULT)
+        return USE_COMMAND_QUEUE
+                ? new CommandQueueExecutor(threadName, Process.THREAD_PRIORITY_DEFAULT)
+                : new SingleThreadHandlerExecutor(threadName, Process.THREAD_PRIORITY_DEFAULT);
+    }
+
+    @NonNull
+    private static RenderEngine createDedicated(@Nullable File cacheDir) {
+        return new RenderEngine(
+                String.format(Locale.US, "GLRenderer-%03d", RENDERER_COUNT.incrementAndGet()),
+                cacheDir);
+    }
+
+    /**
+     * Lets the engine end once the renderers using it are shut down. Views can no longer be
+     * set up with it.
+     */
+    public void release() {
+        synchronized (mLock) {
+            if (mReleased) {
+                return;
+            }
+            mReleased = true;
+            if (mRendererCount == 0) {
+                mExecutor.execute(this::destroy);
+            }
+        }
+    }
+
+    @NonNull
+    RenderExecutor getExecutor() {
+        return mExecutor;
+    }
+
+    @NonNull
+    RoundRobinFrameScheduler getFrameScheduler() {
+        return mFrameScheduler;
+    }
+
+    @NonNull
+    NativeRenderer getNativeRenderer() {
+        return mNativeRenderer;
+    }
+
+    /**
+     * Counts a renderer using the engine, until it calls {@link #detach()}.
+     *
+     * @throws IllegalStateException if the engine has been released.
+     */
+    void attach() {
+        synchronized (mLock) {
+            if (mReleased) {
+                throw new IllegalStateException("Render engine is released.");
+            }
+            mRendererCount++;
+        }
+    }
+
+    /**
+     * Stops counting a renderer, which no longer uses the engine's thread or context. The
+     * engine ends with the last renderer once released.
+     */
+    @WorkerThread
+    void detach() {
+        synchronized (mLock) {
+            mRendererCount--;
+            if (mReleased && mRendererCount == 0) {
+                destroy();
+            }
+        }
+    }
+
+    /**
+     * Returns the shared native context, setting it up for the first renderer unless it was
+     * prewarmed, and writes its startup timings to startupTimings. The first renderer is handed
+     * the time the context took to set up, the later ones, which spend nothing on it, are
+     * reported {@link RendererStartupStats#PROGRAM_CACHE_SHARED}.
+     */
+    @WorkerThread
+    long acquireSharedContext(@NonNull LongBuffer startupTimings) {
+        ensureSharedContext();
+        if (mStartupReported) {
+            startupTimings.put(STARTUP_EGL_NS, 0);
+            startupTimings.put(STARTUP_PROGRAM_NS, 0);
+            startupTimings.put(STARTUP_PROGRAM_CACHE, RendererStartupStats.PROGRAM_CACHE_SHARED);
+            startupTimings.put(STARTUP_PREWARMED, 0);
+        } else {
+            for (int i = 0; i < STARTUP_COUNT; i++) {
+                startupTimings.put(i, mStartupTimingsBuffer.get(i));
+            }
+            startupTimings.put(STARTUP_PREWARMED, mPrewarmed ? 1 : 0);
+            mStartupReported = true;
+        }
+        return mSharedContext;
+    }
+
+    @WorkerThread
+    private void ensureSharedContext() {
+        if (mSharedContext != 0) {
+            return;
+        }
+        String cacheDirPath = null;
+        if (mProgramCacheDir != null
+                && (mProgramCacheDir.isDirectory() || mProgramCacheDir.mkdirs())) {
+            cacheDirPath = mProgramCacheDir.getPath();
+        }
+        mSharedContext = mNativeRenderer.createSharedContext(mStartupTimingsBuffer, cacheDirPath);
+    }
+
+    @WorkerThread
+    private void destroy() {
+        if (mSharedContext != 0) {
+            mNativeRenderer.destroySharedContext(mSharedContext);
+            mSharedContext = 0;
+        }
+        mExecutor.shutdown();
+    }
+
+    /**
+     * Sets up EGL, the context and the output program, writing the time spent on each and how
+     * the program was loaded to startupTimings, and makes the context current.
+     *
+     * @param programCacheDir Existing directory to cache program binaries in, or null.
+     */
+    @WorkerThread
+    static native long createSharedContext(@NonNull LongBuffer startupTimings,
+            @Nullable String programCacheDir);
+
+    /**
+     * Destroys the shared context once all renderers created in it are closed.
+     */
+    @WorkerThread
+    static native void destroySharedContext(long sharedContext);
+}
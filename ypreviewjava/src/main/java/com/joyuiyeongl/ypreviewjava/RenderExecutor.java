@@ -0,0 +1,58 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joyuiyeongl.ypreviewjava;
+
+import android.os.Handler;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs the tasks of the renderers on a render thread with a looper.
+ */
+interface RenderExecutor extends Executor {
+
+    /**
+     * Returns the handler of the render thread's looper, for the callbacks that need one.
+     */
+    @NonNull
+    Handler getHandler();
+
+    /**
+     * Runs the task on the render thread, unless a later task with the same key supersedes it
+     * before it runs.
+     *
+     * @throws RejectedExecutionException if the executor is shut down.
+     */
+    void execute(@NonNull MpscCommandQueue.CoalescingKey key, @NonNull Runnable task);
+
+    /**
+     * Returns a snapshot of the counters of the task queue taken on the render thread, or null
+     * if the executor does not keep any.
+     */
+    @Nullable
+    RenderQueueStats getQueueStats();
+
+    /**
+     * Ends the render thread once the tasks queued so far have run.
+     *
+     * @return false if the executor was already shut down.
+     */
+    boolean shutdown();
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joyuiyeongl.ypreviewjava;
+
+import android.view.Surface;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * One of the surfaces an {@link OpenGLRenderer} draws the camera texture to.
+ *
+ * <p>Each output has its own {@link RenderTransform}, so its size and rotation give it its own
+ * MVP, and its own direct buffer the MVP is handed to the native renderer in. An output can cap
+ * the rate it is drawn at, for instance to feed an encoder at a lower rate than the preview.
+ *
+ * <p>This class is not thread safe. It is meant to be used from the renderer's GL thread.
+ */
+final class RenderOutput {
+    private static final int FLOAT_SIZE_BYTES = 4;
+    private static final double NANOS_IN_SECOND = 1_000_000_000;
+
+    private final RenderTransform mTransform = new RenderTransform();
+    private final FloatBuffer mMvpTransformBuffer =
+            ByteBuffer.allocateDirect(16 * FLOAT_SIZE_BYTES)
+                    .order(ByteOrder.nativeOrder())
+                    .asFloatBuffer();
+
+    // Identifies a secondary output. Null for the preview output and unused slots.
+    @Nullable
+    private Surface mSurface;
+    private long mMinFrameIntervalNs;
+    // Timestamp of the camera frame from which the next frame is due, or -1 for the next one.
+    private long mNextFrameDueNs = -1;
+    private long mLastFrameTimestampNs = -1;
+    // Incremented when the surface or what is drawn into it changes other than through the MVP.
+    private int mGeneration = 0;
+    // Render key of the last frame drawn, along with mLastFrameTimestampNs.
+    private long mDrawnMvpGeneration = -1;
+    private int mDrawnGeneration = -1;
+    private boolean mRedrawForced = false;
+
+    @NonNull
+    RenderTransform getTransform() {
+        return mTransform;
+    }
+
+    @NonNull
+    FloatBuffer getMvpTransformBuffer() {
+        return mMvpTransformBuffer;
+    }
+
+    @Nullable
+    Surface getSurface() {
+        return mSurface;
+    }
+
+    boolean isAttached() {
+        return mTransform.hasSurface();
+    }
+
+    /**
+     * Starts drawing to the output.
+     *
+     * @param surface      The surface identifying a secondary output, or null for the preview.
+     * @param maxFrameRate The maximum rate at which the output is drawn, or 0 for no limit.
+     */
+    void attach(@Nullable Surface surface, int width, int height, int surfaceRotationDegrees,
+            float maxFrameRate) {
+        mSurface = surface;
+        mMinFrameIntervalNs = maxFrameRate > 0 ? (long) (NANOS_IN_SECOND / maxFrameRate) : 0;
+        mNextFrameDueNs = -1;
+        mLastFrameTimestampNs = -1;
+        mGeneration++;
+        mTransform.setSurface(width, height, surfaceRotationDegrees);
+    }
+
+    void detach() {
+        mSurface = null;
+        mGeneration++;
+        mTransform.clearSurface();
+    }
+
+    /**
+     * Signals that the next frame drawn to the output differs from the last one even if the
+     * camera frame and the MVP are the same, for instance because the buffer size or the
+     * effects changed.
+     */
+    void invalidate() {
+        mGeneration++;
+    }
+
+    /**
+     * Makes the next redraw draw the current frame again even if nothing changed, for when the
+     * buffers it was presented in were lost.
+     */
+    void forceRedraw() {
+        mRedrawForced = true;
+    }
+
+    /**
+     * Returns whether drawing the camera frame with the given timestamp with the current MVP
+     * would present the same image as the last frame drawn. Must be called once the MVP of the
+     * frame is up to date.
+     */
+    boolean isRedundantRedraw(long timestampNs) {
+        return !mRedrawForced && timestampNs == mLastFrameTimestampNs
+                && mTransform.getMvpGeneration() == mDrawnMvpGeneration
+                && mGeneration == mDrawnGeneration;
+    }
+
+    /**
+     * Returns whether the camera frame with the given timestamp should be drawn to the output.
+     *
+     * <p>The preview redraws a frame when its surface changes, but a secondary output is only
+     * drawn new frames, so an encoder never receives the same timestamp twice.
+     *
+     * <p>Camera timestamps jitter by a fraction of a frame, so a frame arriving up to an eighth of
+     * the capped interval early is still drawn. Otherwise a 30 fps camera capped to 15 fps would
+     * often miss every other frame and fall to 10 fps.
+     */
+    boolean isFrameDue(long timestampNs) {
+        if (mSurface != null && timestampNs <= mLastFrameTimestampNs) {
+            return false;
+        }
+        return mNextFrameDueNs < 0 || timestampNs >= mNextFrameDueNs - mMinFrameIntervalNs / 8;
+    }
+
+    /**
+     * Records that the camera frame with the given timestamp was drawn to the output.
+     */
+    void onFrameDrawn(long timestampNs) {
+        mLastFrameTimestampNs = timestampNs;
+        mDrawnMvpGeneration = mTransform.getMvpGeneration();
+        mDrawnGeneration = mGeneration;
+        mRedrawForced = false;
+        if (mMinFrameIntervalNs == 0) {
+            return;
+        }
+        // Advance from the due time rather than the timestamp, so early frames do not push the
+        // schedule forward and the average rate stays at the cap.
+        long nextFrameDueNs = mNextFrameDueNs + mMinFrameIntervalNs;
+        if (mNextFrameDueNs < 0 || nextFrameDueNs <= timestampNs) {
+            // First frame, or a gap in the camera frames. Do not try to catch up.
+            nextFrameDueNs = timestampNs + mMinFrameIntervalNs;
+        }
+        mNextFrameDueNs = nextFrameDueNs;
+    }
+}
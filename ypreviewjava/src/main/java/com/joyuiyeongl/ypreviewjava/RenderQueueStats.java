@@ -0,0 +1,103 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joyuiyeongl.ypreviewjava;
+
+import androidx.annotation.NonNull;
+
+import java.util.Locale;
+
+/**
+ * Snapshot of the counters of the queue of commands run on a render thread.
+ *
+ * <p>Commands are queued by the preview's calls that change the renderer, and run on the render
+ * thread in batches. A command superseded by a later one of the same kind, like a resize or a
+ * rotation, is coalesced: it is dropped without running. With a {@link RenderEngine} shared by
+ * several previews, the counters cover the commands of all of them.
+ */
+public final class RenderQueueStats {
+    private final long mCommandsRun;
+    private final long mCommandsCoalesced;
+    private final long mCommandsOverflowed;
+    private final long mDrains;
+    private final int mQueueDepth;
+    private final long mMaxQueueDepth;
+    private final long mMeanWaitNs;
+    private final long mMaxWaitNs;
+
+    RenderQueueStats(long commandsRun, long commandsCoalesced, long commandsOverflowed,
+            long drains, int queueDepth, long maxQueueDepth, long meanWaitNs, long maxWaitNs) {
+        mCommandsRun = commandsRun;
+        mCommandsCoalesced = commandsCoalesced;
+        mCommandsOverflowed = commandsOverflowed;
+        mDrains = drains;
+        mQueueDepth = queueDepth;
+        mMaxQueueDepth = maxQueueDepth;
+        mMeanWaitNs = meanWaitNs;
+        mMaxWaitNs = maxWaitNs;
+    }
+
+    /** Returns the number of commands run on the render thread. */
+    public long getCommandsRun() {
+        return mCommandsRun;
+    }
+
+    /** Returns the number of commands dropped because a later one superseded them. */
+    public long getCommandsCoalesced() {
+        return mCommandsCoalesced;
+    }
+
+    /**
+     * Returns the number of commands queued while all the preallocated slots of the queue were
+     * taken, which cost an allocation and a lock.
+     */
+    public long getCommandsOverflowed() {
+        return mCommandsOverflowed;
+    }
+
+    /** Returns the number of batches the commands were run in. */
+    public long getDrains() {
+        return mDrains;
+    }
+
+    /** Returns the number of commands waiting when the snapshot was taken. */
+    public int getQueueDepth() {
+        return mQueueDepth;
+    }
+
+    /** Returns the largest number of commands waiting when a command started running. */
+    public long getMaxQueueDepth() {
+        return mMaxQueueDepth;
+    }
+
+    /** Returns the mean time from queuing a command to running it, in nanoseconds. */
+    public long getMeanWaitNs() {
+        return mMeanWaitNs;
+    }
+
+    /** Returns the longest time from queuing a command to running it, in nanoseconds. */
+    public long getMaxWaitNs() {
+        return mMaxWaitNs;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "RenderQueueStats{run=%d, coalesced=%d, overflowed=%d, "
+                        + "drains=%d, depth=%d, maxDepth=%d, meanWait=%.3fms, maxWait=%.3fms}",
+                mCommandsRun, mCommandsCoalesced, mCommandsOverflowed, mDrains, mQueueDepth,
+                mMaxQueueDepth, mMeanWaitNs / 1e6, mMaxWaitNs / 1e6);
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joyuiyeongl.ypreviewjava;
+
+import android.os.PowerManager;
+
+/**
+ * Decides how much the renderer sheds load when it falls behind: the scale of the preview's
+ * buffers, which the compositor scales back up to the view, and how many stages of the effect
+ * chain run.
+ *
+ * <p>Frames are judged over windows of {@value #WINDOW_FRAMES} frames. A frame is under
+ * pressure if it took more than {@value #BUSY_PERCENT}% of the expected frame interval to render,
+ * or if it came more than 1.5 intervals after the previous one. A window with more than
+ * {@value #DEGRADE_PERCENT}% of its frames under pressure lowers quality by one level right away.
+ * Quality is restored one level at a time, and only after {@value #RESTORE_WINDOWS} windows in a
+ * row with at most {@value #RESTORE_PERCENT}% of their frames under pressure and renders taking
+ * less than {@value #HEADROOM_PERCENT}% of the interval on average, so that it does not bounce
+ * between levels. The thermal status sets a floor under the level: a device that is throttling
+ * does not get back to full quality until it has cooled down.
+ *
+ * <p>Pure policy without side effects, so that it can be driven by simulated timings. Not
+ * thread safe.
+ */
+final class RenderScaleGovernor {
+    // Buffer scale and number of effect stages kept at each level, from full quality down.
+    private static final float[] LEVEL_SCALES = {1f, 0.85f, 0.7f, 0.5f};
+    private static final int[] LEVEL_MAX_EFFECT_STAGES = {Integer.MAX_VALUE, Integer.MAX_VALUE, 2,
+            1};
+    static final int LEVEL_COUNT = LEVEL_SCALES.length;
+
+    static final int WINDOW_FRAMES = 30;
+    static final int BUSY_PERCENT = 80;
+    static final int DEGRADE_PERCENT = 20;
+    static final int RESTORE_PERCENT = 5;
+    static final int HEADROOM_PERCENT = 50;
+    static final int RESTORE_WINDOWS = 3;
+
+    private int mLevel = 0;
+    private int mThermalFloor = 0;
+
+    private long mLastFrameTimeNs = -1;
+    private int mWindowFrames = 0;
+    private int mWindowPressuredFrames = 0;
+    private long mWindowRenderDurationSumNs = 0;
+    private long mWindowExpectedIntervalSumNs = 0;
+    private int mCalmWindows = 0;
+
+    /**
+     * Records a drawn frame.
+     *
+     * @param frameTimeNs        Time the frame started rendering.
+     * @param renderDurationNs   Time spent drawing and presenting the frame.
+     * @param expectedIntervalNs Interval at which frames are expected.
+     * @return true if the level changed.
+     */
+    boolean onFrame(long frameTimeNs, long renderDurationNs, long expectedIntervalNs) {
+        long lastFrameTimeNs = mLastFrameTimeNs;
+        mLastFrameTimeNs = frameTimeNs;
+        boolean missedDeadline = lastFrameTimeNs >= 0
+                && (frameTimeNs - lastFrameTimeNs) * 2 > expectedIntervalNs * 3;
+        boolean busy = renderDurationNs * 100 > expectedIntervalNs * BUSY_PERCENT;
+        mWindowFrames++;
+        if (missedDeadline || busy) {
+            mWindowPressuredFrames++;
+        }
+        mWindowRenderDurationSumNs += renderDurationNs;
+        mWindowExpectedIntervalSumNs += expectedIntervalNs;
+
+        if (mWindowPressuredFrames * 100 > WINDOW_FRAMES * DEGRADE_PERCENT) {
+            // Bad enough already, whatever the rest of the window brings.
+            startWindow();
+            mCalmWindows = 0;
+            return setLevel(mLevel + 1);
+        }
+        if (mWindowFrames < WINDOW_FRAMES) {
+            return false;
+        }
+        boolean calm = mWindowPressuredFrames * 100 <= mWindowFrames * RESTORE_PERCENT
+                && mWindowRenderDurationSumNs * 100
+                < mWindowExpectedIntervalSumNs * HEADROOM_PERCENT;
+        startWindow();
+        if (!calm) {
+            mCalmWindows = 0;
+            return false;
+        }
+        if (++mCalmWindows < RESTORE_WINDOWS) {
+            return false;
+        }
+        mCalmWindows = 0;
+        return setLevel(mLevel - 1);
+    }
+
+    /**
+     * Makes the next frame start a new sequence of intervals, for instance after the output was
+     * detached, so the gap is not taken for a missed deadline.
+     */
+    void markDiscontinuity() {
+        mLastFrameTimeNs = -1;
+    }
+
+    /**
+     * Records the thermal status of the device, one of the {@link PowerManager} thermal
+     * statuses.
+     *
+     * @return true if the level changed.
+     */
+    boolean onThermalStatus(int status) {
+        if (status >= PowerManager.THERMAL_STATUS_SEVERE) {
+            mThermalFloor = LEVEL_COUNT - 1;
+        } else if (status >= PowerManager.THERMAL_STATUS_MODERATE) {
+            mThermalFloor = 1;
+        } else {
+            mThermalFloor = 0;
+        }
+        return setLevel(mLevel);
+    }
+
+    /** Goes back to full quality, forgetting the frames seen so far. */
+    void reset() {
+        mLastFrameTimeNs = -1;
+        mCalmWindows = 0;
+        mThermalFloor = 0;
+        mLevel = 0;
+        startWindow();
+    }
+
+    /** Returns the current level, 0 being full quality. */
+    int getLevel() {
+        return mLevel;
+    }
+
+    /** Returns the scale of the output buffers relative to the surfaces, at most 1. */
+    float getRenderScale() {
+        return LEVEL_SCALES[mLevel];
+    }
+
+    /** Returns the number of effect stages to run, which may exceed the length of the chain. */
+    int getMaxEffectStages() {
+        return LEVEL_MAX_EFFECT_STAGES[mLevel];
+    }
+
+    private boolean setLevel(int level) {
+        int clamped = Math.max(mThermalFloor, Math.min(LEVEL_COUNT - 1, Math.max(0, level)));
+        if (clamped == mLevel) {
+            return false;
+        }
+        mLevel = clamped;
+        return true;
+    }
+
+    private void startWindow() {
+        mWindowFrames = 0;
+        mWindowPressuredFrames = 0;
+        mWindowRenderDurationSumNs = 0;
+        mWindowExpectedIntervalSumNs = 0;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joyuiyeongl.ypreviewjava;
+
+import androidx.annotation.NonNull;
+
+import java.util.Locale;
+
+/**
+ * Size the preview is drawn at: that of the view showing it and that of the buffers the renderer
+ * draws into, which the display hardware scales to the view.
+ *
+ * <p>The buffers are smaller than the view when a render scale is set with
+ * {@link PreviewView#setRenderScale(float)} and the camera resolution times the scale is below
+ * the view's, and when the adaptive render scale lowers quality under load.
+ */
+public final class RenderScaleStats {
+    private final int mSurfaceWidth;
+    private final int mSurfaceHeight;
+    private final int mBufferWidth;
+    private final int mBufferHeight;
+    private final float mRenderScale;
+    private final int mAdaptiveLevel;
+    private final int mEffectStages;
+
+    RenderScaleStats(int surfaceWidth, int surfaceHeight, int bufferWidth, int bufferHeight,
+            float renderScale, int adaptiveLevel, int effectStages) {
+        mSurfaceWidth = surfaceWidth;
+        mSurfaceHeight = surfaceHeight;
+        mBufferWidth = bufferWidth;
+        mBufferHeight = bufferHeight;
+        mRenderScale = renderScale;
+        mAdaptiveLevel = adaptiveLevel;
+        mEffectStages = effectStages;
+    }
+
+    /** Returns the width of the view, or 0 if no surface is attached. */
+    public int getSurfaceWidth() {
+        return mSurfaceWidth;
+    }
+
+    /** Returns the height of the view, or 0 if no surface is attached. */
+    public int getSurfaceHeight() {
+        return mSurfaceHeight;
+    }
+
+    /** Returns the width of the buffers drawn into, or 0 if no surface is attached. */
+    public int getBufferWidth() {
+        return mBufferWidth;
+    }
+
+    /** Returns the height of the buffers drawn into, or 0 if no surface is attached. */
+    public int getBufferHeight() {
+        return mBufferHeight;
+    }
+
+    /** Returns the render scale relative to the camera resolution, or 0 if not set. */
+    public float getRenderScale() {
+        return mRenderScale;
+    }
+
+    /**
+     * Returns how far the adaptive render scale has lowered quality, 0 being full quality or
+     * the adaptive render scale being disabled.
+     */
+    public int getAdaptiveLevel() {
+        return mAdaptiveLevel;
+    }
+
+    /** Returns the number of stages of the effect chain being run. */
+    public int getEffectStages() {
+        return mEffectStages;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "RenderScaleStats{surface=%dx%d, buffer=%dx%d, renderScale=%.2f,"
+                        + " adaptiveLevel=%d, effectStages=%d}",
+                mSurfaceWidth, mSurfaceHeight, mBufferWidth, mBufferHeight, mRenderScale,
+                mAdaptiveLevel, mEffectStages);
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joyuiyeongl.ypreviewjava;
+
+import static com.joyuiyeongl.ypreviewjava.FrameIntervalRecorder.BUCKET_COUNT;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records histograms of the time spent in each {@link RenderStageStats.Stage stage} of the
+ * render loop.
+ *
+ * <p>Uses the buckets of {@link FrameIntervalRecorder} and the same scheme: stages are recorded
+ * by a single writer, the render thread, without allocating or locking, and any thread can take
+ * a consistent snapshot by retrying until it read the counters within a single even version.
+ * Recording a stage costs a few volatile writes, so timing every stage of every frame stays well
+ * below a microsecond.
+ *
+ * <p>The stages default to those of the render loop, but any fixed set of named stages can be
+ * recorded, such as the effects of an effect chain.
+ */
+final class RenderStageRecorder {
+    // Layout of the scalar counters of a stage.
+    private static final int SAMPLES = 0;
+    private static final int SUM = 1;
+    private static final int MAX = 2;
+    private static final int COUNTERS_PER_STAGE = 3;
+
+    private final String[] mStageNames;
+    private final int mStageCount;
+    private final AtomicLong mVersion = new AtomicLong(0);
+    private final AtomicLongArray mBuckets;
+    private final AtomicLongArray mCounters;
+    private volatile boolean mGpuTimingSupported = false;
+
+    RenderStageRecorder() {
+        this(RenderStageStats.STAGE_NAMES);
+    }
+
+    RenderStageRecorder(@NonNull String[] stageNames) {
+        mStageNames = stageNames;
+        mStageCount = stageNames.length;
+        mBuckets = new AtomicLongArray(mStageCount * BUCKET_COUNT);
+        mCounters = new AtomicLongArray(mStageCount * COUNTERS_PER_STAGE);
+    }
+
+    /**
+     * Sets whether the GPU draw stage can be measured. Can be called from any thread.
+     */
+    void setGpuTimingSupported(boolean supported) {
+        mGpuTimingSupported = supported;
+    }
+
+    /**
+     * Records the time spent in a stage. Writer thread only.
+     */
+    void record(int stage, long durationNs) {
+        // Durations derived by subtraction, like the JNI crossing, can come out slightly negative.
+        durationNs = Math.max(durationNs, 0);
+        int counters = stage * COUNTERS_PER_STAGE;
+        mVersion.incrementAndGet();
+        FrameIntervalRecorder.increment(mBuckets,
+                stage * BUCKET_COUNT + FrameIntervalRecorder.bucketIndex(durationNs), 1);
+        FrameIntervalRecorder.increment(mCounters, counters + SAMPLES, 1);
+        FrameIntervalRecorder.increment(mCounters, counters + SUM, durationNs);
+        FrameIntervalRecorder.updateMax(mCounters, counters + MAX, durationNs);
+        mVersion.incrementAndGet();
+    }
+
+    /**
+     * Clears all recorded stages. Writer thread only.
+     */
+    void reset() {
+        mVersion.incrementAndGet();
+        for (int i = 0; i < mBuckets.length(); i++) {
+            mBuckets.set(i, 0);
+        }
+        for (int i = 0; i < mCounters.length(); i++) {
+            mCounters.set(i, 0);
+        }
+        mVersion.incrementAndGet();
+    }
+
+    /**
+     * Returns a consistent snapshot of the recorded stages. Can be called from any thread and
+     * never blocks the writer.
+     */
+    @NonNull
+    RenderStageStats getSnapshot() {
+        long[] buckets = new long[mBuckets.length()];
+        long[] counters = new long[mCounters.length()];
+        while (true) {
+            long version = mVersion.get();
+            if ((version & 1) != 0) {
+                // The writer is in the middle of an update, which only takes a moment.
+                Thread.yield();
+                continue;
+            }
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = mBuckets.get(i);
+            }
+            for (int i = 0; i < counters.length; i++) {
+                counters[i] = mCounters.get(i);
+            }
+            if (mVersion.get() == version) {
+                break;
+            }
+        }
+
+        long[] sampleCounts = new long[mStageCount];
+        long[] meanNs = new long[mStageCount];
+        long[] p50Ns = new long[mStageCount];
+        long[] p90Ns = new long[mStageCount];
+        long[] p99Ns = new long[mStageCount];
+        long[] maxNs = new long[mStageCount];
+        long[] stageBuckets = new long[BUCKET_COUNT];
+        for (int stage = 0; stage < mStageCount; stage++) {
+            int offset = stage * COUNTERS_PER_STAGE;
+            long samples = counters[offset + SAMPLES];
+            long max = counters[offset + MAX];
+            System.arraycopy(buckets, stage * BUCKET_COUNT, stageBuckets, 0, BUCKET_COUNT);
+            sampleCounts[stage] = samples;
+            meanNs[stage] = samples == 0 ? 0 : counters[offset + SUM] / samples;
+            p50Ns[stage] = FrameIntervalRecorder.percentileNs(stageBuckets, samples, 50, max);
+            p90Ns[stage] = FrameIntervalRecorder.percentileNs(stageBuckets, samples, 90, max);
+            p99Ns[stage] = FrameIntervalRecorder.percentileNs(stageBuckets, samples, 99, max);
+            maxNs[stage] = max;
+        }
+        return new RenderStageStats(mStageNames, mGpuTimingSupported, sampleCounts, meanNs,
+                p50Ns, p90Ns, p99Ns, maxNs);
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joyuiyeongl.ypreviewjava;
+
+import static java.lang.annotation.RetentionPolicy.SOURCE;
+
+import androidx.annotation.IntDef;
+import androidx.annotation.NonNull;
+
+import java.lang.annotation.Retention;
+import java.util.Locale;
+
+/**
+ * Snapshot of the time spent in each stage of the render loop of a preview renderer, indexed by
+ * {@link Stage}, or of the GPU time of each stage of its effect chain, indexed by position in the
+ * chain.
+ *
+ * <p>The CPU stages are measured on the render thread for every frame. The GPU draw stage is
+ * measured with timer queries where the driver supports them and is reported a few frames after
+ * the draw. Percentiles are the upper bounds of histogram buckets, which are within about 6% of
+ * the exact values or within 1 microsecond for short stages.
+ */
+public final class RenderStageStats {
+    /** Latching the camera frame with {@code SurfaceTexture.updateTexImage()}. */
+    public static final int STAGE_LATCH = 0;
+    /** Reading the texture transform and rebuilding the MVP matrix when it changed. */
+    public static final int STAGE_TRANSFORM = 1;
+    /** Crossing from Java to the native renderer and back. */
+    public static final int STAGE_JNI = 2;
+    /** Issuing the GL calls of the draw, on the CPU. */
+    public static final int STAGE_DRAW = 3;
+    /** Presenting the frame with {@code eglSwapBuffers()}, which blocks when the queue is full. */
+    public static final int STAGE_SWAP = 4;
+    /** Executing the draw on the GPU. */
+    public static final int STAGE_GPU_DRAW = 5;
+
+    static final int STAGE_COUNT = 6;
+
+    @Retention(SOURCE)
+    @IntDef({STAGE_LATCH, STAGE_TRANSFORM, STAGE_JNI, STAGE_DRAW, STAGE_SWAP, STAGE_GPU_DRAW})
+    public @interface Stage {}
+
+    static final String[] STAGE_NAMES =
+            {"latch", "transform", "jni", "draw", "swap", "gpuDraw"};
+
+    private final String[] mStageNames;
+    private final boolean mGpuTimingSupported;
+    // Indexed by stage.
+    private final long[] mSampleCounts;
+    private final long[] mMeanNs;
+    private final long[] mP50Ns;
+    private final long[] mP90Ns;
+    private final long[] mP99Ns;
+    private final long[] mMaxNs;
+
+    RenderStageStats(@NonNull String[] stageNames, boolean gpuTimingSupported,
+            @NonNull long[] sampleCounts, @NonNull long[] meanNs, @NonNull long[] p50Ns,
+            @NonNull long[] p90Ns, @NonNull long[] p99Ns, @NonNull long[] maxNs) {
+        mStageNames = stageNames;
+        mGpuTimingSupported = gpuTimingSupported;
+        mSampleCounts = sampleCounts;
+        mMeanNs = meanNs;
+        mP50Ns = p50Ns;
+        mP90Ns = p90Ns;
+        mP99Ns = p99Ns;
+        mMaxNs = maxNs;
+    }
+
+    /**
+     * Returns whether the driver supports GPU timer queries. If not, {@link #STAGE_GPU_DRAW}
+     * has no samples.
+     */
+    public boolean isGpuTimingSupported() {
+        return mGpuTimingSupported;
+    }
+
+    /**
+     * Returns the number of stages. For the render loop this is the number of {@link Stage}s,
+     * for an effect chain the maximum number of effects.
+     */
+    public int getStageCount() {
+        return mStageNames.length;
+    }
+
+    @NonNull
+    public String getStageName(int stage) {
+        return mStageNames[stage];
+    }
+
+    /** Returns the number of times the stage was measured. */
+    public long getSampleCount(int stage) {
+        return mSampleCounts[stage];
+    }
+
+    public long getMeanNs(int stage) {
+        return mMeanNs[stage];
+    }
+
+    public long getP50Ns(int stage) {
+        return mP50Ns[stage];
+    }
+
+    public long getP90Ns(int stage) {
+        return mP90Ns[stage];
+    }
+
+    public long getP99Ns(int stage) {
+        return mP99Ns[stage];
+    }
+
+    public long getMaxNs(int stage) {
+        return mMaxNs[stage];
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("RenderStageStats{");
+        for (int stage = 0; stage < mStageNames.length; stage++) {
+            if (stage > 0) {
+                builder.append(", ");
+            }
+            builder.append(String.format(Locale.US,
+                    "%s(n=%d, mean=%.3fms, p50=%.3fms, p99=%.3fms, max=%.3fms)",
+                    mStageNames[stage], mSampleCounts[stage], toMillis(mMeanNs[stage]),
+                    toMillis(mP50Ns[stage]), toMillis(mP99Ns[stage]), toMillis(mMaxNs[stage])));
+        }
+        if (!mGpuTimingSupported) {
+            builder.append(", gpu timing unsupported");
+        }
+        return builder.append('}').toString();
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+}
@@ -0,0 +1,531 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joyuiyeongl.ypreviewjava;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Holds the transform state of an {@link OpenGLRenderer} and derives the matrices uploaded to
+ * the shader every frame.
+ *
+ * <p>All of the state is kept in preallocated primitive fields so that the per-frame path
+ * (texture rotation detection and MVP rebuild) never allocates. The class only depends on
+ * {@link Matrices}, which makes it usable on a plain JVM.
+ *
+ * <p>This class is not thread safe. It is meant to be used from the renderer's GL thread.
+ */
+final class RenderTransform {
+
+    // Vectors defining the 'up' direction for the 4 angles we're interested in. These are based
+    // off our world-space coordinate system (sensor coordinates), where the origin (0, 0) is in
+    // the upper left of the image, and rotations are clockwise (left-handed coordinates).
+    private static final float[] DIRECTION_UP_ROT_0 = {0f, -1f, 0f, 0f};
+    private static final float[] DIRECTION_UP_ROT_90 = {1f, 0f, 0f, 0f};
+    private static final float[] DIRECTION_UP_ROT_180 = {0f, 1f, 0f, 0f};
+    private static final float[] DIRECTION_UP_ROT_270 = {-1f, 0f, 0f, 0f};
+
+    // Transform retrieved by SurfaceTexture.getTransformMatrix
+    private final float[] mTextureTransform = new float[16];
+
+    // The Model represent the surface we are drawing on. In 3D, it is a flat rectangle.
+    private final float[] mModelTransform = new float[16];
+
+    private final float[] mViewTransform = new float[16];
+
+    private final float[] mProjectionTransform = new float[16];
+
+    // A combination of the model, view and projection transform matrices.
+    private final float[] mMvpTransform = new float[16];
+    private boolean mMvpDirty = true;
+    // Incremented every time the MVP is rebuilt, so that a frame drawn with it can be told apart
+    // from one drawn with an earlier MVP.
+    private long mMvpGeneration = 0;
+
+    private final float[] mTempVec = new float[4];
+    private final float[] mTempMatrix = new float[32]; // 2 concatenated matrices for calculations
+
+    private int mTextureRotationDegrees;
+
+    private int mPreviewWidth;
+    private int mPreviewHeight;
+
+    // The crop rect either comes from the transformation info or is derived from the preview
+    // and surface dimensions every time the MVP is rebuilt.
+    private boolean mHasCropRect;
+    private float mCropLeft;
+    private float mCropTop;
+    private float mCropRight;
+    private float mCropBottom;
+
+    private boolean mHasSurface;
+    private int mSurfaceWidth;
+    private int mSurfaceHeight;
+    private int mSurfaceRotationDegrees;
+
+    /**
+     * Returns the array the texture transform should be written into, typically by
+     * {@link android.graphics.SurfaceTexture#getTransformMatrix(float[])}.
+     */
+    @NonNull
+    float[] getTextureTransform() {
+        return mTextureTransform;
+    }
+
+    @NonNull
+    float[] getMvpTransform() {
+        return mMvpTransform;
+    }
+
+    @NonNull
+    float[] getModelTransform() {
+        return mModelTransform;
+    }
+
+    @NonNull
+    float[] getViewTransform() {
+        return mViewTransform;
+    }
+
+    @NonNull
+    float[] getProjectionTransform() {
+        return mProjectionTransform;
+    }
+
+    boolean isMvpDirty() {
+        return mMvpDirty;
+    }
+
+    long getMvpGeneration() {
+        return mMvpGeneration;
+    }
+
+    void markMvpDirty() {
+        mMvpDirty = true;
+    }
+
+    /**
+     * Signals that the current MVP has been uploaded to the GPU.
+     */
+    void clearMvpDirty() {
+        mMvpDirty = false;
+    }
+
+    boolean hasPreviewSize() {
+        return mPreviewWidth > 0 && mPreviewHeight > 0;
+    }
+
+    int getPreviewWidth() {
+        return mPreviewWidth;
+    }
+
+    int getPreviewHeight() {
+        return mPreviewHeight;
+    }
+
+    void setPreviewSize(int width, int height) {
+        if (width != mPreviewWidth || height != mPreviewHeight) {
+            mMvpDirty = true;
+        }
+        mPreviewWidth = width;
+        mPreviewHeight = height;
+    }
+
+    boolean hasSurface() {
+        return mHasSurface;
+    }
+
+    int getSurfaceWidth() {
+        return mSurfaceWidth;
+    }
+
+    int getSurfaceHeight() {
+        return mSurfaceHeight;
+    }
+
+    int getSurfaceRotationDegrees() {
+        return mSurfaceRotationDegrees;
+    }
+
+    void setSurface(int width, int height, int surfaceRotationDegrees) {
+        if (!mHasSurface || width != mSurfaceWidth || height != mSurfaceHeight
+                || surfaceRotationDegrees != mSurfaceRotationDegrees) {
+            mMvpDirty = true;
+        }
+        mHasSurface = true;
+        mSurfaceWidth = width;
+        mSurfaceHeight = height;
+        mSurfaceRotationDegrees = surfaceRotationDegrees;
+    }
+
+    void clearSurface() {
+        mHasSurface = false;
+    }
+
+    void setSurfaceRotationDegrees(int surfaceRotationDegrees) {
+        if (surfaceRotationDegrees != mSurfaceRotationDegrees) {
+            mMvpDirty = true;
+        }
+        mSurfaceRotationDegrees = surfaceRotationDegrees;
+    }
+
+    /**
+     * Returns true if the crop rect dimensions match the entire texture dimensions.
+     */
+    boolean isCropRectFullTexture(int left, int top, int right, int bottom) {
+        return left == 0 && top == 0
+                && right - left == mPreviewWidth
+                && bottom - top == mPreviewHeight;
+    }
+
+    /**
+     * Uses a crop rect that is pre-calculated by the transformation info.
+     */
+    void setCropRect(float left, float top, float right, float bottom) {
+        mMvpDirty = true;
+        mHasCropRect = true;
+        mCropLeft = left;
+        mCropTop = top;
+        mCropRight = right;
+        mCropBottom = bottom;
+    }
+
+    /**
+     * Drops the current crop rect so it is calculated before drawing.
+     */
+    void clearCropRect() {
+        mMvpDirty = true;
+        mHasCropRect = false;
+    }
+
+    /**
+     * Re-detects the texture rotation from the current texture transform and marks the MVP dirty
+     * if it changed.
+     */
+    void updateTextureRotation() {
+        // Check whether the texture's rotation has changed so we can update the MVP matrix.
+        int textureRotationDegrees = getTextureRotationDegrees();
+        if (textureRotationDegrees != mTextureRotationDegrees) {
+            mMvpDirty = true;
+        }
+        mTextureRotationDegrees = textureRotationDegrees;
+    }
+
+    /**
+     * Calculates the rotation of the source texture between the sensor coordinate space and
+     * the device's 'natural' orientation.
+     *
+     * <p>A required transform matrix is passed along with each texture update and is retrieved by
+     * {@link android.graphics.SurfaceTexture#getTransformMatrix(float[])}.
+     *
+     * <pre>{@code
+     *        TEXTURE FROM SENSOR:
+     * ^
+     * |                  +-----------+
+     * |          .#######|###        |
+     * |           *******|***        |
+     * |   ....###########|## ####. / |         Sensor may be rotated relative
+     * |  ################|## #( )#.  |         to the device's 'natural'
+     * |       ###########|## ######  |         orientation.
+     * |  ################|## #( )#*  |
+     * |   ****###########|## ####* \ |
+     * |           .......|...        |
+     * |          *#######|###        |
+     * |                  +-----------+
+     * +-------------------------------->
+     *                                               TRANSFORMED IMAGE:
+     *                 | |                   ^
+     *                 | |                   |         .            .
+     *                 | |                   |         \\ ........ //
+     *   Transform matrix from               |         ##############
+     *   SurfaceTexture#getTransformMatrix() |       ###(  )####(  )###
+     *   performs scale/crop/rotate on       |      ####################
+     *   image from sensor to produce        |     ######################
+     *   image in 'natural' orientation.     | ..  ......................  ..
+     *                 | |                   |#### ###################### ####
+     *                 | +-------\           |#### ###################### ####
+     *                 +---------/           |#### ###################### ####
+     *                                       +-------------------------------->
+     * }</pre>
+     *
+     * <p>The transform matrix is a 4x4 affine transform matrix that operates on standard normalized
+     * texture coordinates which are in the range of [0,1] for both s and t dimensions. Before
+     * the transform is applied, the texture may have dimensions that are larger than the
+     * dimensions of the SurfaceTexture we provided in order to accommodate hardware limitations.
+     *
+     * <p>For this method we are only interested in the rotation component of the transform
+     * matrix, so the calculations avoid the scaling and translation components.
+     */
+    int getTextureRotationDegrees() {
+        // The final output image should have the requested dimensions AFTER applying the
+        // transform matrix, but width and height may be swapped. We know that the transform
+        // matrix from SurfaceTexture#getTransformMatrix() is an affine transform matrix that
+        // will only rotate in 90 degree increments, so we only need to worry about the rotation
+        // component.
+        //
+        // We can test this by using an test vector of [s, t, p, q] = [0, 1, 0, 0]. Using 'q = 0'
+        // will ignore the translation component of the matrix. We will only need to check if the
+        // 's' component becomes a scaled version of the 't' component and the 't' component
+        // becomes 0.
+        Matrices.multiplyMV(mTempVec, 0, mTextureTransform, 0, DIRECTION_UP_ROT_0, 0);
+
+        // Calculate the normalized vector and round to integers so we can do integer comparison.
+        // Normalizing the vector removes the effects of the scaling component of the
+        // transform matrix. Once normalized, we can round and do integer comparison.
+        float length = Matrices.length(mTempVec[0], mTempVec[1], 0);
+        int s = Math.round(mTempVec[0] / length);
+        int t = Math.round(mTempVec[1] / length);
+        if (s == 0 && t == 1) {
+            //       (0,1)                               (0,1)
+            //    +----^----+          0 deg          +----^----+
+            //    |    |    |        Rotation         |    |    |
+            //    |    +    |         +----->         |    +    |
+            //    |  (0,0)  |                         |  (0,0)  |
+            //    +---------+                         +---------+
+            return 0;
+        } else if (s == 1 && t == 0) {
+            //       (0,1)
+            //    +----^----+         90 deg          +---------+
+            //    |    |    |        Rotation         |         |
+            //    |    +    |         +----->         |    +---->(1,0)
+            //    |  (0,0)  |                         |  (0,0)  |
+            //    +---------+                         +---------+
+            return 90;
+        } else if (s == 0 && t == -1) {
+            //       (0,1)
+            //    +----^----+         180 deg         +---------+
+            //    |    |    |        Rotation         |  (0,0)  |
+            //    |    +    |         +----->         |    +    |
+            //    |  (0,0)  |                         |    |    |
+            //    +---------+                         +----v----+
+            //                                           (0,-1)
+            return 180;
+        } else if (s == -1 && t == 0) {
+            //       (0,1)
+            //    +----^----+         270 deg         +---------+
+            //    |    |    |        Rotation         |         |
+            //    |    +    |         +----->   (-1,0)<----+    |
+            //    |  (0,0)  |                         |  (0,0)  |
+            //    +---------+                         +---------+
+            return 270;
+        }
+
+        throw new RuntimeException(String.format("Unexpected texture transform matrix. Expected "
+                + "test vector [0, 1] to rotate to [0,1], [1, 0], [0, -1] or [-1, 0], but instead "
+                + "was [%d, %d].", s, t));
+    }
+
+    /**
+     * Derives the model crop rect from the texture and output surface dimensions, applying a
+     * 'center-crop' transform.
+     *
+     * <p>Because the camera sensor (or crop of the camera sensor) may have a different
+     * aspect ratio than the ViewPort that is meant to display it, we want to fit the image
+     * from the camera so the entire ViewPort is filled. This generally requires scaling the input
+     * texture and cropping pixels from either the width or height. We call this transform
+     * 'center-crop' and is equivalent to {@link android.widget.ImageView.ScaleType#CENTER_CROP}.
+     *
+     * <p>This performs the same calculation as {@link android.graphics.Matrix#setRectToRect}
+     * with {@link android.graphics.Matrix.ScaleToFit#CENTER} followed by
+     * {@link android.graphics.Matrix#mapRect}, without allocating the matrix or the rects.
+     */
+    private void extractPreviewCropFromPreviewSizeAndSurface() {
+        // Swap the dimensions of the surface we are drawing the texture onto if rotating the
+        // texture to the surface orientation requires a 90 degree or 270 degree rotation.
+        float srcWidth;
+        float srcHeight;
+        int viewPortRotation = getViewPortRotation();
+        if (viewPortRotation == 90 || viewPortRotation == 270) {
+            // Width and height swapped
+            srcWidth = mSurfaceHeight;
+            srcHeight = mSurfaceWidth;
+        } else {
+            srcWidth = mSurfaceWidth;
+            srcHeight = mSurfaceHeight;
+        }
+
+        float dstWidth = mPreviewWidth;
+        float dstHeight = mPreviewHeight;
+        float sx = dstWidth / srcWidth;
+        float sy = dstHeight / srcHeight;
+        float tx = 0;
+        float ty = 0;
+        if (sx > sy) {
+            sx = sy;
+            tx = (dstWidth - srcWidth * sy) / 2;
+        } else {
+            sy = sx;
+            ty = (dstHeight - srcHeight * sy) / 2;
+        }
+
+        mCropLeft = tx;
+        mCropTop = ty;
+        mCropRight = srcWidth * sx + tx;
+        mCropBottom = srcHeight * sy + ty;
+    }
+
+    /**
+     * Returns the relative rotation between the sensor coordinates and the ViewPort in
+     * world-space coordinates.
+     *
+     * <p>This is the angle the sensor needs to be rotated, clockwise, in order to be upright in
+     * the viewport coordinates.
+     */
+    private int getViewPortRotation() {
+        // Note that since the rotation defined by Surface#ROTATION_*** are positive when the
+        // device is rotated in a counter-clockwise direction and our world-space coordinates
+        // define positive angles in the clockwise direction, we add the two together to get the
+        // total angle required.
+        return (mTextureRotationDegrees + mSurfaceRotationDegrees) % 360;
+    }
+
+    /**
+     * Updates the matrix used to transform the model into the correct dimensions within the
+     * world-space.
+     *
+     * <p>In order to draw the camera frames to screen, we use a flat rectangle in our
+     * world-coordinate space. The world coordinates match the preview buffer coordinates with
+     * the origin (0,0) in the upper left corner of the image. Defining the world space in this
+     * way allows subsequent models to be positioned according to buffer coordinates.
+     * Note this different than standard OpenGL coordinates; this is a left-handed coordinate
+     * system, and requires using glFrontFace(GL_CW) before drawing.
+     * <pre>{@code
+     *             Standard coordinates:                   Our coordinate system:
+     *
+     *                      | +y                                  ________+x
+     *                      |                                   /|
+     *                      |                                  / |
+     *                      |________+x                     +z/  |
+     *                     /                                     | +y
+     *                    /
+     *                   /+z
+     * }</pre>
+     * <p>Our model is initially a square with vertices in the range (-1,-1 - 1,1). It is
+     * rotated, scaled and translated to match the dimensions of preview with the origin in the
+     * upper left corner.
+     *
+     * <p>Example for a preview with dimensions 1920x1080:
+     * <pre>{@code
+     *                (-1,-1)    (1,-1)
+     *                   +---------+        Model
+     *                   |         |        Transform          (0,0)         (1920,0)
+     * Unscaled Model -> |    +    |         ---\                +----------------+
+     *                   |         |         ---/                |                |      Scaled/
+     *                   +---------+                             |                | <-- Translated
+     *                (-1,1)     (1,1)                           |                |       Model
+     *                                                           +----------------+
+     *                                                         (0,1080)      (1920,1080)
+     * }</pre>
+     */
+    private void updateModelTransform() {
+        // Remove the rotation to the device 'natural' orientation so our world space will be in
+        // sensor coordinates.
+        Matrices.setRotateM(mTempMatrix, 0, -mTextureRotationDegrees, 0.0f, 0.0f, 1.0f);
+
+        Matrices.setIdentityM(mTempMatrix, 16);
+        // Translate to the upper left corner of the quad so we are in buffer space
+        Matrices.translateM(mTempMatrix, 16, mPreviewWidth / 2f, mPreviewHeight / 2f, 0);
+        // Scale the vertices so that our world space units are pixels equal in size to the
+        // pixels of the buffer sent from the camera.
+        Matrices.scaleM(mTempMatrix, 16, mPreviewWidth / 2f, mPreviewHeight / 2f, 1f);
+        Matrices.multiplyMM(mModelTransform, 0, mTempMatrix, 16, mTempMatrix, 0);
+    }
+
+    /**
+     * The view transform defines the position and orientation of the camera within our world-space.
+     *
+     * <p>This brings us from world-space coordinates to view (camera) space.
+     *
+     * <p>This matrix is defined by a camera position, a gaze point, and a vector that represents
+     * the "up" direction. Because we are using an orthogonal projection, we always place the
+     * camera directly in front of the gaze point and 1 unit away on the z-axis for convenience.
+     * We have defined our world coordinates in a way where we will be looking at the front of
+     * the model rectangle if our camera is placed on the positive z-axis and we gaze towards
+     * the negative z-axis.
+     */
+    private void updateViewTransform() {
+        // Apply the rotation of the ViewPort and look at the center of the image
+        float[] upVec = DIRECTION_UP_ROT_0;
+        switch (getViewPortRotation()) {
+            case 0:
+                upVec = DIRECTION_UP_ROT_0;
+                break;
+            case 90:
+                upVec = DIRECTION_UP_ROT_90;
+                break;
+            case 180:
+                upVec = DIRECTION_UP_ROT_180;
+                break;
+            case 270:
+                upVec = DIRECTION_UP_ROT_270;
+                break;
+        }
+        float centerX = (mCropLeft + mCropRight) * 0.5f;
+        float centerY = (mCropTop + mCropBottom) * 0.5f;
+        Matrices.setLookAtM(mViewTransform, 0,
+                centerX, centerY, 1, // Camera position
+                centerX, centerY, 0, // Point to look at
+                upVec[0], upVec[1], upVec[2] // Up direction
+        );
+    }
+
+    /**
+     * The projection matrix will map from the view space to normalized device coordinates (NDC)
+     * which OpenGL is expecting.
+     *
+     * <p>Our view is meant to only show the pixels defined by the model crop rect, so our
+     * orthogonal projection matrix will depend on the preview crop rect dimensions.
+     *
+     * <p>The projection matrix can be thought of as a cube which has sides that align with the
+     * edges of the ViewPort and the near/far sides can be adjusted as needed. In our case, we
+     * set the near side to match the camera position and the far side to match the model's
+     * position on the z-axis, 1 unit away.
+     */
+    private void updateProjectionTransform() {
+        float viewPortWidth = mCropRight - mCropLeft;
+        float viewPortHeight = mCropBottom - mCropTop;
+        // Since projection occurs after rotation of the camera, in order to map directly to model
+        // coordinates we need to take into account the surface rotation.
+        int viewPortRotation = getViewPortRotation();
+        if (viewPortRotation == 90 || viewPortRotation == 270) {
+            viewPortWidth = mCropBottom - mCropTop;
+            viewPortHeight = mCropRight - mCropLeft;
+        }
+
+        Matrices.orthoM(mProjectionTransform, 0,
+                /*left=*/-viewPortWidth / 2f, /*right=*/viewPortWidth / 2f,
+                /*bottom=*/viewPortHeight / 2f, /*top=*/-viewPortHeight / 2f,
+                /*near=*/0, /*far=*/1);
+    }
+
+    /**
+     * The MVP is the combination of model, view and projection transforms that take us from the
+     * world space to normalized device coordinates (NDC) which OpenGL uses to display images
+     * with the correct dimensions on an EGL surface.
+     */
+    void updateMvpTransform() {
+        if (!mHasCropRect) {
+            extractPreviewCropFromPreviewSizeAndSurface();
+        }
+
+        updateModelTransform();
+        updateViewTransform();
+        updateProjectionTransform();
+
+        Matrices.multiplyMM(mTempMatrix, 0, mViewTransform, 0, mModelTransform, 0);
+        Matrices.multiplyMM(mMvpTransform, 0, mProjectionTransform, 0, mTempMatrix, 0);
+        mMvpGeneration++;
+    }
+}
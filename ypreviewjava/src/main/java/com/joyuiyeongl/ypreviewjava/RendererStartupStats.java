@@ -0,0 +1,121 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joyuiyeongl.ypreviewjava;
+
+import static java.lang.annotation.RetentionPolicy.SOURCE;
+
+import android.content.Context;
+
+import androidx.annotation.IntDef;
+import androidx.annotation.NonNull;
+
+import java.lang.annotation.Retention;
+import java.util.Locale;
+
+/**
+ * Time a preview renderer took to start up: setting up its EGL context, getting its shader
+ * program ready and drawing its first frame.
+ *
+ * <p>The program is loaded from a cache of program binaries where the driver supports it, which
+ * skips compiling and linking the shaders after the first start on a device. Renderers sharing a
+ * {@link RenderEngine} only pay for EGL and the program once: the ones started after the first
+ * report no time for either. A renderer whose context was set up ahead of time by
+ * {@link RenderEngine#prewarm(Context)} reports the time the prewarm took, off the critical
+ * path, which is not part of its context init time.
+ */
+public final class RendererStartupStats {
+    /** The driver can't retrieve program binaries, so the program was built from source. */
+    public static final int PROGRAM_CACHE_UNSUPPORTED = 0;
+    /** The program was loaded from a cached binary. */
+    public static final int PROGRAM_CACHE_HIT = 1;
+    /** No valid binary was cached, so the program was built from source and cached. */
+    public static final int PROGRAM_CACHE_MISS = 2;
+    /** The context and program of the render engine had been set up by another renderer. */
+    public static final int PROGRAM_CACHE_SHARED = 3;
+
+    @Retention(SOURCE)
+    @IntDef({PROGRAM_CACHE_UNSUPPORTED, PROGRAM_CACHE_HIT, PROGRAM_CACHE_MISS,
+            PROGRAM_CACHE_SHARED})
+    public @interface ProgramCacheResult {}
+
+    private final long mContextInitNs;
+    private final long mEglSetupNs;
+    private final long mProgramLoadNs;
+    @ProgramCacheResult
+    private final int mProgramCacheResult;
+    private final boolean mPrewarmed;
+    private final long mFirstFrameNs;
+
+    RendererStartupStats(long contextInitNs, long eglSetupNs, long programLoadNs,
+            @ProgramCacheResult int programCacheResult, boolean prewarmed, long firstFrameNs) {
+        mContextInitNs = contextInitNs;
+        mEglSetupNs = eglSetupNs;
+        mProgramLoadNs = programLoadNs;
+        mProgramCacheResult = programCacheResult;
+        mPrewarmed = prewarmed;
+        mFirstFrameNs = firstFrameNs;
+    }
+
+    /** Returns the time spent setting up the native renderer, including the stages below. */
+    public long getContextInitNs() {
+        return mContextInitNs;
+    }
+
+    /** Returns the time spent initializing EGL and creating and binding the context. */
+    public long getEglSetupNs() {
+        return mEglSetupNs;
+    }
+
+    /** Returns the time spent loading or building the program drawing the preview. */
+    public long getProgramLoadNs() {
+        return mProgramLoadNs;
+    }
+
+    @ProgramCacheResult
+    public int getProgramCacheResult() {
+        return mProgramCacheResult;
+    }
+
+    /**
+     * Returns whether EGL and the program were set up ahead of time by
+     * {@link RenderEngine#prewarm(Context)}.
+     */
+    public boolean isPrewarmed() {
+        return mPrewarmed;
+    }
+
+    /**
+     * Returns the time from the creation of the renderer to the end of its first draw, or -1
+     * if no frame has been drawn yet.
+     */
+    public long getFirstFrameNs() {
+        return mFirstFrameNs;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        String cache = mProgramCacheResult == PROGRAM_CACHE_HIT ? "hit"
+                : mProgramCacheResult == PROGRAM_CACHE_MISS ? "miss"
+                : mProgramCacheResult == PROGRAM_CACHE_SHARED ? "shared" : "unsupported";
+        return String.format(Locale.US,
+                "RendererStartupStats{contextInit=%.3fms, eglSetup=%.3fms, programLoad=%.3fms"
+                        + " (cache %s), prewarmed=%b, firstFrame=%s}",
+                mContextInitNs / 1e6, mEglSetupNs / 1e6, mProgramLoadNs / 1e6, cache, mPrewarmed,
+                mFirstFrameNs < 0 ? "none"
+                        : String.format(Locale.US, "%.3fms", mFirstFrameNs / 1e6));
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joyuiyeongl.ypreviewjava;
+
+import android.view.Choreographer;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import java.util.ArrayList;
+
+/**
+ * Runs the vsync callbacks of the renderers sharing a render thread from a single vsync
+ * callback, taking turns at going first.
+ *
+ * <p>The draws of a vsync run one after the other on the shared thread, so the last ones are
+ * the most likely to miss it. The callbacks due in a vsync run in a rotating order: the one that
+ * went first goes to the back for the next vsync, so with N renderers drawing every vsync each
+ * of them goes first once every N vsyncs. Callbacks posted while the others run wait for the
+ * next vsync.
+ *
+ * <p>Not thread safe. All methods must be called on the render thread.
+ */
+@WorkerThread
+final class RoundRobinFrameScheduler implements VsyncFramePacer.VsyncSource,
+        Choreographer.FrameCallback {
+
+    private final VsyncFramePacer.VsyncSource mVsyncSource;
+    // Callbacks posted since they were last removed, in the order they take their turns.
+    private final ArrayList<Choreographer.FrameCallback> mOrder = new ArrayList<>();
+    private final ArrayList<Choreographer.FrameCallback> mWaiting = new ArrayList<>();
+    // Callbacks run in the current vsync, reused so that scheduling does not allocate. Entries
+    // removed while the others run are set to null.
+    private final ArrayList<Choreographer.FrameCallback> mRunning = new ArrayList<>();
+    private boolean mPosted = false;
+
+    RoundRobinFrameScheduler(@NonNull VsyncFramePacer.VsyncSource vsyncSource) {
+        mVsyncSource = vsyncSource;
+    }
+
+    @Override
+    public void postFrameCallback(@NonNull Choreographer.FrameCallback callback) {
+        if (mWaiting.contains(callback)) {
+            return;
+        }
+        if (!mOrder.contains(callback)) {
+            mOrder.add(callback);
+        }
+        mWaiting.add(callback);
+        if (!mPosted) {
+            mVsyncSource.postFrameCallback(this);
+            mPosted = true;
+        }
+    }
+
+    @Override
+    public void removeFrameCallback(@NonNull Choreographer.FrameCallback callback) {
+        mWaiting.remove(callback);
+        mOrder.remove(callback);
+        int running = mRunning.indexOf(callback);
+        if (running >= 0) {
+            mRunning.set(running, null);
+        }
+        if (mPosted && mWaiting.isEmpty()) {
+            mVsyncSource.removeFrameCallback(this);
+            mPosted = false;
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        mPosted = false;
+        for (int i = 0; i < mOrder.size(); i++) {
+            Choreographer.FrameCallback callback = mOrder.get(i);
+            if (mWaiting.contains(callback)) {
+                mRunning.add(callback);
+            }
+        }
+        mWaiting.clear();
+        if (!mRunning.isEmpty()) {
+            Choreographer.FrameCallback first = mRunning.get(0);
+            mOrder.remove(first);
+            mOrder.add(first);
+        }
+        for (int i = 0; i < mRunning.size(); i++) {
+            Choreographer.FrameCallback callback = mRunning.get(i);
+            if (callback != null) {
+                callback.doFrame(frameTimeNanos);
+            }
+        }
+        mRunning.clear();
+    }
+
+    /**
+     * Posts the callbacks to the {@link Choreographer} of the render thread.
+     */
+    static final class ChoreographerSource implements VsyncFramePacer.VsyncSource {
+        // Obtained on first use, since the instance is tied to the calling thread's looper.
+        @Nullable
+        private Choreographer mChoreographer;
+
+        @Override
+        public void postFrameCallback(@NonNull Choreographer.FrameCallback callback) {
+            if (mChoreographer == null) {
+                mChoreographer = Choreographer.getInstance();
+            }
+            mChoreographer.postFrameCallback(callback);
+        }
+
+        @Override
+        public void removeFrameCallback(@NonNull Choreographer.FrameCallback callback) {
+            if (mChoreographer != null) {
+                mChoreographer.removeFrameCallback(callback);
+            }
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joyuiyeongl.ypreviewjava;
+
+import androidx.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+/**
+ * A stage of the effect chain the renderer runs camera frames through before drawing them.
+ *
+ * <p>The source is a GLSL ES 1.00 fragment shader body defining
+ * {@code vec4 applyEffect(vec2 texCoord)}, which returns the color of the pixel at the given
+ * texture coordinates, with (0, 0) at the top left of the frame. It can read the output of the
+ * previous stage, or the camera frame for the first stage, with {@code vec4 sampleInput(vec2)},
+ * and the size of an input pixel in texture coordinates from {@code vec2 inputTexelSize}. For
+ * example, an effect inverting the colors:
+ *
+ * <pre>
+ * vec4 applyEffect(vec2 texCoord) {
+ *   vec4 color = sampleInput(texCoord);
+ *   return vec4(1.0 - color.rgb, color.a);
+ * }
+ * </pre>
+ *
+ * <p>Float uniforms of 1 to 4 components declared by the source are set with
+ * {@link #withUniform(String, float...)}. Effects are immutable. Setting an effect chain again
+ * with only the uniform values changed reuses the compiled shaders.
+ */
+public final class ShaderEffect {
+    /** Maximum number of uniforms an effect can set. */
+    public static final int MAX_UNIFORMS = 8;
+    // Components of a vec4, the largest uniform an effect can set.
+    static final int MAX_UNIFORM_SIZE = 4;
+
+    private static final Pattern IDENTIFIER = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+
+    private final String mSource;
+    private final String[] mUniformNames;
+    private final float[][] mUniformValues;
+
+    private ShaderEffect(@NonNull String source, @NonNull String[] uniformNames,
+            @NonNull float[][] uniformValues) {
+        mSource = source;
+        mUniformNames = uniformNames;
+        mUniformValues = uniformValues;
+    }
+
+    /**
+     * Returns an effect with the given fragment shader source and no uniforms.
+     */
+    @NonNull
+    public static ShaderEffect create(@NonNull String source) {
+        if (!source.contains("applyEffect")) {
+            throw new IllegalArgumentException("Effect source must define applyEffect().");
+        }
+        return new ShaderEffect(source, new String[0], new float[0][]);
+    }
+
+    /**
+     * Returns a copy of this effect setting the float, vec2, vec3 or vec4 uniform of the given
+     * name to the given value, replacing any value set before.
+     */
+    @NonNull
+    public ShaderEffect withUniform(@NonNull String name, @NonNull float... value) {
+        if (!IDENTIFIER.matcher(name).matches() || name.startsWith("gl_")
+                || EffectShaders.isReservedName(name)) {
+            throw new IllegalArgumentException("Invalid uniform name: " + name);
+        }
+        if (value.length < 1 || value.length > MAX_UNIFORM_SIZE) {
+            throw new IllegalArgumentException("Uniform " + name + " must have 1 to "
+                    + MAX_UNIFORM_SIZE + " components.");
+        }
+        int index = Arrays.asList(mUniformNames).indexOf(name);
+        int count = mUniformNames.length;
+        if (index < 0) {
+            if (count == MAX_UNIFORMS) {
+                throw new IllegalArgumentException("Unable to set more than " + MAX_UNIFORMS
+                        + " uniforms.");
+            }
+            index = count++;
+        }
+        String[] names = Arrays.copyOf(mUniformNames, count);
+        float[][] values = Arrays.copyOf(mUniformValues, count);
+        names[index] = name;
+        values[index] = value.clone();
+        return new ShaderEffect(mSource, names, values);
+    }
+
+    @NonNull
+    public String getSource() {
+        return mSource;
+    }
+
+    int getUniformCount() {
+        return mUniformNames.length;
+    }
+
+    @NonNull
+    String getUniformName(int index) {
+        return mUniformNames[index];
+    }
+
+    @NonNull
+    float[] getUniformValue(int index) {
+        return mUniformValues[index];
+    }
+
+    /**
+     * Returns a key identifying the compiled shaders of this effect: effects with the same key
+     * only differ in their uniform values.
+     */
+    @NonNull
+    String getProgramKey() {
+        StringBuilder key = new StringBuilder();
+        for (int i = 0; i < mUniformNames.length; i++) {
+            key.append(mUniformNames[i]).append(':').append(mUniformValues[i].length).append(';');
+        }
+        return key.append('\n').append(mSource).toString();
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "ShaderEffect{uniforms=" + Arrays.toString(mUniformNames) + "}";
+    }
+}
@@ -19,11 +19,16 @@ import android.os.Handler;
 import android.os.HandlerThread;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
-import java.util.concurrent.Executor;
 import java.util.concurrent.RejectedExecutionException;
 
-final class SingleThreadHandlerExecutor implements Executor {
+/**
+ * Runs every task as a message of its own on a {@link HandlerThread}.
+ *
+ * @see CommandQueueExecutor
+ */
+final class SingleThreadHandlerExecutor implements RenderExecutor {
 
     private final String mThreadName;
     private final HandlerThread mHandlerThread;
@@ -37,7 +42,8 @@ final class SingleThreadHandlerExecutor implements Executor {
     }
 
     @NonNull
-    Handler getHandler() {
+    @Override
+    public Handler getHandler() {
         return mHandler;
     }
 
@@ -48,7 +54,23 @@ final class SingleThreadHandlerExecutor implements Executor {
         }
     }
 
-    boolean shutdown() {
+    /**
+     * Runs the task. Tasks are never superseded.
+     */
+    @Override
+    public void execute(@NonNull MpscCommandQueue.CoalescingKey key,
+            @NonNull Runnable command) {
+        execute(command);
+    }
+
+    @Nullable
+    @Override
+    public RenderQueueStats getQueueStats() {
+        return null;
+    }
+
+    @Override
+    public boolean shutdown() {
         return mHandlerThread.quitSafely();
     }
 }
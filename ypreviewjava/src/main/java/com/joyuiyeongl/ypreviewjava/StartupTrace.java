@@ -0,0 +1,129 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joyuiyeongl.ypreviewjava;
+
+import static java.lang.annotation.RetentionPolicy.SOURCE;
+
+import androidx.annotation.IntDef;
+import androidx.annotation.NonNull;
+
+import java.lang.annotation.Retention;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Time a preview took to open, from {@link Binder#setUpCamera()} to its first frame on screen,
+ * broken down into the milestones it went through.
+ *
+ * <p>Timestamps are taken from {@link System#nanoTime()}. The milestones are listed in the order
+ * they usually happen in, each one ending the phase started by the one it follows from, except
+ * for the output surface, which is attached by the view independently of the camera, possibly
+ * even before the camera is set up: its phase starts with the trace.
+ */
+public final class StartupTrace {
+    /** {@link Binder#setUpCamera()} was called. The trace starts here. */
+    public static final int MILESTONE_SET_UP_CAMERA = 0;
+    /** The {@code ProcessCameraProvider} is ready. */
+    public static final int MILESTONE_CAMERA_PROVIDER_READY = 1;
+    /** The preview use case is bound to the lifecycle. */
+    public static final int MILESTONE_CAMERA_BOUND = 2;
+    /** The camera asked the renderer for the surface to draw the preview on. */
+    public static final int MILESTONE_SURFACE_REQUESTED = 3;
+    /** The view's output surface is attached to the renderer. */
+    public static final int MILESTONE_OUTPUT_SURFACE_ATTACHED = 4;
+    /** The camera sent its first frame. */
+    public static final int MILESTONE_FIRST_FRAME_AVAILABLE = 5;
+    /** The first frame was drawn and swapped to the output. The trace ends here. */
+    public static final int MILESTONE_FIRST_FRAME_DRAWN = 6;
+    static final int MILESTONE_COUNT = 7;
+
+    @Retention(SOURCE)
+    @IntDef({MILESTONE_SET_UP_CAMERA, MILESTONE_CAMERA_PROVIDER_READY, MILESTONE_CAMERA_BOUND,
+            MILESTONE_SURFACE_REQUESTED, MILESTONE_OUTPUT_SURFACE_ATTACHED,
+            MILESTONE_FIRST_FRAME_AVAILABLE, MILESTONE_FIRST_FRAME_DRAWN})
+    public @interface Milestone {}
+
+    // Names of the milestones, also used as the names of their phases' trace sections.
+    private static final String[] MILESTONE_NAMES = {"setUpCamera", "cameraProviderReady",
+            "cameraBound", "surfaceRequested", "outputSurfaceAttached", "firstFrameAvailable",
+            "firstFrameDrawn"};
+    // Milestone starting the phase each milestone ends.
+    private static final int[] PHASE_STARTS = {MILESTONE_SET_UP_CAMERA,
+            MILESTONE_SET_UP_CAMERA, MILESTONE_CAMERA_PROVIDER_READY, MILESTONE_CAMERA_BOUND,
+            MILESTONE_SET_UP_CAMERA, MILESTONE_SURFACE_REQUESTED, MILESTONE_FIRST_FRAME_AVAILABLE};
+
+    private final long[] mTimestampsNs;
+
+    StartupTrace(@NonNull long[] timestampsNs) {
+        mTimestampsNs = Arrays.copyOf(timestampsNs, MILESTONE_COUNT);
+    }
+
+    /** Returns when the milestone was reached, or -1 if it wasn't. */
+    public long getTimestampNs(@Milestone int milestone) {
+        return mTimestampsNs[milestone];
+    }
+
+    /**
+     * Returns the time from the start of the trace to the milestone, or -1 if it wasn't reached.
+     * The output surface may have been attached before the trace started, in which case this is
+     * negative.
+     */
+    public long getElapsedNs(@Milestone int milestone) {
+        long timestampNs = mTimestampsNs[milestone];
+        return timestampNs < 0 ? -1 : timestampNs - mTimestampsNs[MILESTONE_SET_UP_CAMERA];
+    }
+
+    /**
+     * Returns the duration of the phase ended by the milestone, from the milestone it follows
+     * from, or -1 if either wasn't reached.
+     */
+    public long getPhaseNs(@Milestone int milestone) {
+        long startNs = mTimestampsNs[getPhaseStart(milestone)];
+        long endNs = mTimestampsNs[milestone];
+        return startNs < 0 || endNs < 0 ? -1 : endNs - startNs;
+    }
+
+    /** Returns the time from the start of the trace to the first frame drawn. */
+    public long getTotalNs() {
+        return getElapsedNs(MILESTONE_FIRST_FRAME_DRAWN);
+    }
+
+    @Milestone
+    static int getPhaseStart(@Milestone int milestone) {
+        return PHASE_STARTS[milestone];
+    }
+
+    @NonNull
+    static String getMilestoneName(@Milestone int milestone) {
+        return MILESTONE_NAMES[milestone];
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("StartupTrace{");
+        for (int i = 0; i < MILESTONE_COUNT; i++) {
+            if (i > 0) {
+                builder.append(", ");
+            }
+            long elapsedNs = getElapsedNs(i);
+            builder.append(MILESTONE_NAMES[i]).append('=')
+                    .append(mTimestampsNs[i] < 0 ? "none"
+                            : String.format(Locale.US, "%.3fms", elapsedNs / 1e6));
+        }
+        return builder.append('}').toString();
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joyuiyeongl.ypreviewjava;
+
+import android.os.Build;
+import android.os.Trace;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.RequiresApi;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records the milestones of a {@link StartupTrace} as the binder and the renderer reach them, and
+ * delivers the trace once the first frame is drawn.
+ *
+ * <p>Milestones are reached on the main thread and on the GL thread. Only the first time each
+ * one is reached counts. Optionally, each phase is also traced as an asynchronous
+ * {@link Trace} section, named after the milestone ending it, on API levels that support them.
+ *
+ * <p>Thread safe.
+ */
+final class StartupTracer {
+    private static final String SECTION_PREFIX = "YPreview:";
+    private static final AtomicInteger TRACE_COUNT = new AtomicInteger(0);
+    // Timestamps of the milestones not reached yet, and of those given up on.
+    private static final long NOT_REACHED = -1;
+    private static final long ABANDONED = Long.MIN_VALUE;
+
+    private final Executor mExecutor;
+    private final StartupTraceListener mListener;
+    private final boolean mTraceSections;
+    // Identifies the sections of this trace among those of others.
+    private final int mCookie = TRACE_COUNT.incrementAndGet();
+    private final AtomicLongArray mTimestampsNs = new AtomicLongArray(StartupTrace.MILESTONE_COUNT);
+
+    /**
+     * Starts a trace, reaching {@link StartupTrace#MILESTONE_SET_UP_CAMERA}.
+     *
+     * @param traceSections Whether to trace the phases as {@link Trace} sections too.
+     */
+    StartupTracer(@NonNull Executor executor, @NonNull StartupTraceListener listener,
+            boolean traceSections) {
+        this(executor, listener, traceSections, System.nanoTime());
+    }
+
+    /**
+     * Starts a trace that reached {@link StartupTrace#MILESTONE_SET_UP_CAMERA} at the given time,
+     * such as when a bound camera is reconfigured.
+     *
+     * @param traceSections Whether to trace the phases as {@link Trace} sections too.
+     */
+    StartupTracer(@NonNull Executor executor, @NonNull StartupTraceListener listener,
+            boolean traceSections, long startNs) {
+        mExecutor = executor;
+        mListener = listener;
+        mTraceSections = traceSections && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q;
+        for (int i = 0; i < StartupTrace.MILESTONE_COUNT; i++) {
+            mTimestampsNs.set(i, NOT_REACHED);
+        }
+        mark(StartupTrace.MILESTONE_SET_UP_CAMERA, startNs);
+    }
+
+    /** Reaches the milestone now. */
+    void mark(@StartupTrace.Milestone int milestone) {
+        mark(milestone, System.nanoTime());
+    }
+
+    /**
+     * Reaches the milestone at the given time, unless it has been reached before. The trace is
+     * delivered with the first frame drawn.
+     */
+    void mark(@StartupTrace.Milestone int milestone, long timestampNs) {
+        if (!mTimestampsNs.compareAndSet(milestone, NOT_REACHED, timestampNs)) {
+            return;
+        }
+        boolean abandoned = timestampNs == ABANDONED;
+        if (mTraceSections) {
+            traceSections(milestone, abandoned);
+        }
+        if (milestone == StartupTrace.MILESTONE_FIRST_FRAME_DRAWN && !abandoned) {
+            long[] timestampsNs = new long[StartupTrace.MILESTONE_COUNT];
+            for (int i = 0; i < timestampsNs.length; i++) {
+                timestampsNs[i] = mTimestampsNs.get(i);
+            }
+            StartupTrace trace = new StartupTrace(timestampsNs);
+            mExecutor.execute(() -> mListener.onStartupTrace(trace));
+        }
+    }
+
+    /**
+     * Gives up on a trace that will not complete, such as when the camera is set up again,
+     * ending the sections still open without delivering it.
+     */
+    void abandon() {
+        for (int i = 1; i < StartupTrace.MILESTONE_COUNT; i++) {
+            mark(i, ABANDONED);
+        }
+    }
+
+    // Ends the phase the milestone ends and begins those it starts.
+    @RequiresApi(Build.VERSION_CODES.Q)
+    private void traceSections(@StartupTrace.Milestone int milestone, boolean abandoned) {
+        if (milestone != StartupTrace.MILESTONE_SET_UP_CAMERA
+                && mTimestampsNs.get(StartupTrace.getPhaseStart(milestone)) >= 0) {
+            Trace.endAsyncSection(getSectionName(milestone), mCookie);
+        }
+        if (abandoned) {
+            return;
+        }
+        for (int i = 1; i < StartupTrace.MILESTONE_COUNT; i++) {
+            if (StartupTrace.getPhaseStart(i) == milestone && mTimestampsNs.get(i) == NOT_REACHED) {
+                Trace.beginAsyncSection(getSectionName(i), mCookie);
+            }
+        }
+    }
+
+    @NonNull
+    private static String getSectionName(@StartupTrace.Milestone int milestone) {
+        return SECTION_PREFIX + StartupTrace.getMilestoneName(milestone);
+    }
+}
@@ -29,22 +29,27 @@ import androidx.annotation.NonNull;
 import com.google.common.util.concurrent.ListenableFuture;
 
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Utilities for instantiating a {@link SurfaceView} and attaching to an {@link OpenGLRenderer}.
  */
 public final class SurfaceViewRenderSurface {
     private static final String TAG = "SurfaceViewRndrSrfc";
+    // Longest time the main thread waits for the renderer to let go of a destroyed surface in
+    // blocking mode, well within the time after which the app is reported not responding.
+    private static final long DETACH_TIMEOUT_MS = 1000;
 
     /**
      * Inflates a non-blocking {@link SurfaceView} into the provided {@link ViewStub} and attaches
      * it to the provided {@link OpenGLRenderer}.
      *
-     * <p>WARNING: This type of render surface should only be used on specific devices. A
-     * non-blocking {@link SurfaceView} will not block the main thread when destroying its
-     * internal {@link Surface}, which is known to cause race conditions between the main thread
-     * and the rendering thread. Some OpenGL/EGL drivers do not support this usage and may crash
-     * on the rendering thread.
+     * <p>A non-blocking {@link SurfaceView} does not block the main thread when destroying its
+     * internal {@link Surface}. The renderer starts no draw to the surface once it is destroyed,
+     * but it still destroys its EGL surface afterwards. Some OpenGL/EGL drivers do not support
+     * this usage and may crash on the rendering thread, use
+     * {@link #inflateWith(ViewStub, OpenGLRenderer)} on those.
      *
      * @param viewStub Stub which will be replaced by SurfaceView.
      * @param renderer Renderer which will be used to update the SurfaceView.
@@ -60,6 +65,9 @@ public final class SurfaceViewRenderSurface {
      * Inflates a {@link SurfaceView} into the provided {@link ViewStub} and attaches it to the
      * provided {@link OpenGLRenderer}.
      *
+     * <p>Destroying the internal {@link Surface} blocks the main thread until the renderer has
+     * let go of it, for up to a second.
+     *
      * @param viewStub Stub which will be replaced by SurfaceView.
      * @param renderer Renderer which will be used to update the SurfaceView.
      * @return The inflated SurfaceView.
@@ -80,13 +88,26 @@ public final class SurfaceViewRenderSurface {
         viewStub.setLayoutResource(R.layout.surface_view_render_surface);
 
         SurfaceView surfaceView = (SurfaceView) viewStub.inflate();
+        // A SurfaceView only scales buffers of another size than its own to its frame when the
+        // size is requested through its holder.
+        OpenGLRenderer.BufferSizeSetter bufferSizeSetter = (width, height) -> surfaceView.post(
+                () -> {
+                    if (width > 0 && height > 0) {
+                        surfaceView.getHolder().setFixedSize(width, height);
+                    } else {
+                        surfaceView.getHolder().setSizeFromLayout();
+                    }
+                });
         surfaceView.getHolder().addCallback(new SurfaceHolder.Callback2() {
             @Override
             public void surfaceRedrawNeeded(SurfaceHolder holder) {
                 Display surfaceViewDisplay = surfaceView.getDisplay();
                 if (surfaceViewDisplay != null) {
+                    // The surface's content may have been lost, such as when the window was
+                    // hidden, so the last frame is drawn again even if nothing changed.
                     renderer.invalidateSurface(
-                            Surfaces.toSurfaceRotationDegrees(surfaceViewDisplay.getRotation()));
+                            Surfaces.toSurfaceRotationDegrees(surfaceViewDisplay.getRotation()),
+                            /*forceRedraw=*/true);
                 }
             }
 
@@ -97,30 +118,37 @@ public final class SurfaceViewRenderSurface {
 
             @Override
             public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
-                renderer.attachOutputSurface(holder.getSurface(), new Size(width, height),
-                        Surfaces.toSurfaceRotationDegrees(surfaceView.getDisplay().getRotation()));
+                // With a fixed size, the surface is the size of the buffers rather than of the
+                // view they are scaled to.
+                Size viewSize = surfaceView.getWidth() > 0 && surfaceView.getHeight() > 0
+                        ? new Size(surfaceView.getWidth(), surfaceView.getHeight())
+                        : new Size(width, height);
+                renderer.attachOutputSurface(holder.getSurface(), viewSize,
+                        Surfaces.toSurfaceRotationDegrees(surfaceView.getDisplay().getRotation()),
+                        bufferSizeSetter);
             }
 
             @Override
             public void surfaceDestroyed(SurfaceHolder holder) {
                 // SurfaceView's documentation states that the Surface should only be touched
-                // between surfaceCreated() and surfaceDestroyed(). However, many EGL
-                // implementations will allow it to be touched but may return errors during
-                // drawing operations. Other implementations may crash when those drawing
-                // operations are called. In normal operation, we block the main thread until
-                // the surface has been detached from the renderer. This is safe, but can cause
-                // jank and/or ANRs. In non-blocking mode, we signal to the renderer to detach
-                // but do not wait for a signal that the surface has been detached. This will
-                // work on some devices with more robust EGL implementations. For devices with
-                // crashing EGL implementations TextureView is an alternative which provides
+                // between surfaceCreated() and surfaceDestroyed(). The detach stops the render
+                // thread from starting any draw to the surface before it returns, without
+                // waiting for it. The render thread still destroys its EGL surface when it gets
+                // to the detach, after the Surface is gone. Conforming EGL implementations only
+                // return errors for that, but some crash. In blocking mode, we block the main
+                // thread until the surface has been detached from the renderer, for a bounded
+                // time. This is safe on those implementations, but can cause jank. For devices
+                // with crashing EGL implementations TextureView is an alternative which provides
                 // stable non-blocking behavior between the main thread and render thread.
                 ListenableFuture<Void> detachFuture = renderer.detachOutputSurface();
                 if (!nonBlocking) {
                     try {
-                        detachFuture.get();
+                        detachFuture.get(DETACH_TIMEOUT_MS, TimeUnit.MILLISECONDS);
                     } catch (ExecutionException e) {
                         Log.e(TAG, "An error occurred while waiting for surface to detach from "
                                 + "the renderer", e.getCause());
+                    } catch (TimeoutException e) {
+                        Log.e(TAG, "Timed out waiting for surface to detach from the renderer.");
                     } catch (InterruptedException e) {
                         Log.e(TAG, "Interrupted while waiting for surface to detach from the "
                                 + "renderer.");
@@ -128,8 +156,6 @@ public final class SurfaceViewRenderSurface {
                     }
                 }
             }
-
-
         });
 
         return surfaceView;
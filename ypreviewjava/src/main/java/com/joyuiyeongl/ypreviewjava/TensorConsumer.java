@@ -0,0 +1,182 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joyuiyeongl.ypreviewjava;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * A {@link TensorListener} attached to an {@link OpenGLRenderer}, with the state the renderer
+ * needs to pack every n-th frame into a tensor for it.
+ *
+ * <p>The tensors are read back into a few reusable direct buffers. A buffer returns to the pool
+ * once the listener is done with it, so a slow listener makes the renderer skip tensors rather
+ * than queue them.
+ *
+ * <p>This class is not thread safe. Apart from the listener calls, it is meant to be used from
+ * the renderer's GL thread.
+ */
+final class TensorConsumer {
+    // Layout of the parameters shared with the native renderer through a direct buffer.
+    static final int PARAM_SAMPLE_TRANSFORM = 0;
+    static final int PARAM_MEAN = 16;
+    static final int PARAM_INV_STD = 19;
+    static final int PARAM_SWAP_RED_BLUE = 22;
+    static final int PARAM_COUNT = 23;
+
+    // Tensors being read back or held by the listener at once.
+    private static final int MAX_BUFFERS = 3;
+    private static final int FLOAT_SIZE_BYTES = 4;
+
+    // Maps the quad's positions to its texture coordinates, see QUAD_VERTICES in the native
+    // renderer: s = (x + 1) / 2 and t = (1 - y) / 2.
+    private static final float[] QUAD_TEX_COORDS_TRANSFORM = {
+            0.5f, 0f, 0f, 0f,
+            0f, -0.5f, 0f, 0f,
+            0f, 0f, 1f, 0f,
+            0.5f, 0.5f, 0f, 1f
+    };
+
+    private final TensorFormat mFormat;
+    private final int mFrameInterval;
+    private final Executor mExecutor;
+    private final TensorListener mListener;
+    private final CaptureBufferPool mBufferPool = new CaptureBufferPool(MAX_BUFFERS);
+    private final FloatBuffer mParams = ByteBuffer.allocateDirect(PARAM_COUNT * FLOAT_SIZE_BYTES)
+            .order(ByteOrder.nativeOrder())
+            .asFloatBuffer();
+    private final float[] mSampleTransform = new float[16];
+    private final float[] mTempMatrix = new float[32];
+    private int mFramesUntilDue = 0;
+
+    TensorConsumer(@NonNull TensorFormat format, int frameInterval, @NonNull Executor executor,
+            @NonNull TensorListener listener) {
+        if (frameInterval < 1) {
+            throw new IllegalArgumentException("Invalid interval. Must be at least 1.");
+        }
+        mFormat = format;
+        mFrameInterval = frameInterval;
+        mExecutor = executor;
+        mListener = listener;
+        for (int channel = 0; channel < 3; channel++) {
+            mParams.put(PARAM_MEAN + channel, format.getMean(channel));
+            mParams.put(PARAM_INV_STD + channel, 1f / format.getStd(channel));
+        }
+        mParams.put(PARAM_SWAP_RED_BLUE,
+                format.getChannelOrder() == TensorFormat.CHANNEL_ORDER_BGR ? 1f : 0f);
+    }
+
+    @NonNull
+    TensorFormat getFormat() {
+        return mFormat;
+    }
+
+    @NonNull
+    FloatBuffer getParams() {
+        return mParams;
+    }
+
+    /**
+     * Returns whether a tensor is due for the current frame, counting the frame if it is not.
+     */
+    boolean isFrameDue() {
+        if (mFramesUntilDue > 0) {
+            mFramesUntilDue--;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Records that a tensor was started for the current frame.
+     */
+    void onTensorStarted() {
+        mFramesUntilDue = mFrameInterval - 1;
+    }
+
+    /**
+     * Returns a buffer for the next tensor, or null if all of them are in use.
+     */
+    @Nullable
+    ByteBuffer acquireBuffer() {
+        return mBufferPool.acquire(mFormat.getByteCount());
+    }
+
+    void releaseBuffer(@NonNull ByteBuffer buffer) {
+        mBufferPool.release(buffer);
+    }
+
+    /**
+     * Hands a tensor to the listener on its executor, then returns the buffer to the pool.
+     */
+    void deliver(@NonNull ByteBuffer tensor, long timestampNs) {
+        try {
+            mExecutor.execute(() -> {
+                try {
+                    mListener.onTensor(tensor, timestampNs);
+                } finally {
+                    releaseBuffer(tensor);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            releaseBuffer(tensor);
+        }
+    }
+
+    /**
+     * Updates the sample transform in the parameters for the given texture transform and the
+     * MVP drawing the frame to a surface the size of the tensor.
+     *
+     * @return false if the MVP cannot be inverted.
+     */
+    boolean updateSampleTransform(@NonNull float[] textureTransform,
+            @NonNull float[] mvpTransform) {
+        if (!computeSampleTransform(mSampleTransform, textureTransform, mvpTransform,
+                mTempMatrix)) {
+            return false;
+        }
+        for (int i = 0; i < 16; i++) {
+            mParams.put(PARAM_SAMPLE_TRANSFORM + i, mSampleTransform[i]);
+        }
+        return true;
+    }
+
+    /**
+     * Computes the transform from a position in clip space of the tensor to the coordinates the
+     * camera texture is sampled at: the inverse MVP back to the quad, the quad's texture
+     * coordinates, then the texture transform. A pixel of the tensor then samples the texture
+     * where the preview shader would draw it.
+     *
+     * @param temp At least 32 floats of scratch space.
+     * @return false if the MVP cannot be inverted.
+     */
+    static boolean computeSampleTransform(@NonNull float[] result,
+            @NonNull float[] textureTransform, @NonNull float[] mvpTransform,
+            @NonNull float[] temp) {
+        if (!Matrices.invertM(temp, 0, mvpTransform, 0)) {
+            return false;
+        }
+        Matrices.multiplyMM(temp, 16, QUAD_TEX_COORDS_TRANSFORM, 0, temp, 0);
+        Matrices.multiplyMM(result, 0, textureTransform, 0, temp, 16);
+        return true;
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joyuiyeongl.ypreviewjava;
+
+import androidx.annotation.IntDef;
+import androidx.annotation.NonNull;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.Arrays;
+
+/**
+ * Layout of the tensors the renderer packs camera frames into for a model.
+ *
+ * <p>A tensor holds {@code height} rows of {@code width} pixels from the top left of the image,
+ * each pixel being 3 channel values in the given channel order, with no padding. Channel values
+ * start out in the range [0, 1] and are normalized as {@code (value - mean) / std} per channel
+ * before being stored.
+ */
+public final class TensorFormat {
+    /** Red, green and blue. */
+    public static final int CHANNEL_ORDER_RGB = 0;
+    /** Blue, green and red. */
+    public static final int CHANNEL_ORDER_BGR = 1;
+
+    /** One unsigned byte per channel value, the normalized value scaled to [0, 255]. */
+    public static final int DATA_TYPE_UINT8 = 0;
+    /** One little-endian IEEE half precision float per channel value. */
+    public static final int DATA_TYPE_FLOAT16 = 1;
+
+    @IntDef({CHANNEL_ORDER_RGB, CHANNEL_ORDER_BGR})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface ChannelOrder {
+    }
+
+    @IntDef({DATA_TYPE_UINT8, DATA_TYPE_FLOAT16})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface DataType {
+    }
+
+    private static final float[] NO_MEAN = {0f, 0f, 0f};
+    private static final float[] NO_STD = {1f, 1f, 1f};
+
+    private final int mWidth;
+    private final int mHeight;
+    @ChannelOrder
+    private final int mChannelOrder;
+    @DataType
+    private final int mDataType;
+    private final float[] mMean;
+    private final float[] mStd;
+
+    private TensorFormat(int width, int height, @ChannelOrder int channelOrder,
+            @DataType int dataType, @NonNull float[] mean, @NonNull float[] std) {
+        mWidth = width;
+        mHeight = height;
+        mChannelOrder = channelOrder;
+        mDataType = dataType;
+        mMean = mean;
+        mStd = std;
+    }
+
+    /**
+     * Returns a uint8 format storing the channel values as they are, scaled to [0, 255].
+     *
+     * @param width Width of the tensor, a multiple of 4.
+     */
+    @NonNull
+    public static TensorFormat uint8(int width, int height, @ChannelOrder int channelOrder) {
+        checkSize(width, height, 4);
+        return new TensorFormat(width, height, channelOrder, DATA_TYPE_UINT8, NO_MEAN, NO_STD);
+    }
+
+    /**
+     * Returns an fp16 format normalizing the channel values with the given mean and standard
+     * deviation, given in RGB order whatever the channel order.
+     *
+     * <p>fp16 tensors require OpenGL ES 3 and are not supported on every device.
+     *
+     * @param width Width of the tensor, a multiple of 2.
+     */
+    @NonNull
+    public static TensorFormat float16(int width, int height, @ChannelOrder int channelOrder,
+            @NonNull float[] mean, @NonNull float[] std) {
+        checkSize(width, height, 2);
+        if (mean.length != 3 || std.length != 3) {
+            throw new IllegalArgumentException("Mean and std must have 3 channels.");
+        }
+        for (float channelStd : std) {
+            if (!(channelStd > 0)) {
+                throw new IllegalArgumentException("Std must be positive.");
+            }
+        }
+        return new TensorFormat(width, height, channelOrder, DATA_TYPE_FLOAT16, mean.clone(),
+                std.clone());
+    }
+
+    private static void checkSize(int width, int height, int widthMultiple) {
+        if (width <= 0 || height <= 0 || width % widthMultiple != 0) {
+            throw new IllegalArgumentException("Invalid tensor size " + width + "x" + height
+                    + ". Width must be a positive multiple of " + widthMultiple + ".");
+        }
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    @ChannelOrder
+    public int getChannelOrder() {
+        return mChannelOrder;
+    }
+
+    @DataType
+    public int getDataType() {
+        return mDataType;
+    }
+
+    /**
+     * Returns the size of a tensor in bytes.
+     */
+    public int getByteCount() {
+        return mWidth * mHeight * 3 * (mDataType == DATA_TYPE_FLOAT16 ? 2 : 1);
+    }
+
+    float getMean(int channel) {
+        return mMean[channel];
+    }
+
+    float getStd(int channel) {
+        return mStd[channel];
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "TensorFormat{" + mWidth + "x" + mHeight
+                + (mChannelOrder == CHANNEL_ORDER_BGR ? " BGR" : " RGB")
+                + (mDataType == DATA_TYPE_FLOAT16 ? " fp16" : " uint8")
+                + " mean=" + Arrays.toString(mMean) + " std=" + Arrays.toString(mStd) + "}";
+    }
+}
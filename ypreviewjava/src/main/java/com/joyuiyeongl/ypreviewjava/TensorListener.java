@@ -0,0 +1,38 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joyuiyeongl.ypreviewjava;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Listener which receives camera frames packed into tensors by the renderer.
+ */
+public interface TensorListener {
+    /**
+     * Called with each tensor, in the order the frames were drawn.
+     *
+     * <p>The buffer is reused for later tensors once this method returns, so it must not be
+     * kept. While the listener is busy, the renderer keeps drawing and drops the tensors it has
+     * no free buffer for.
+     *
+     * @param tensor      The tensor, laid out as described by {@link TensorFormat}, in native
+     *                    byte order.
+     * @param timestampNs Camera timestamp of the frame, in nanoseconds.
+     */
+    void onTensor(@NonNull ByteBuffer tensor, long timestampNs);
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.joyuiyeongl.ypreviewjava;
+
+import android.view.Choreographer;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+
+/**
+ * Decides when camera frames are drawn.
+ *
+ * <p>Without pacing, every camera frame is drawn as soon as it is available and presented at
+ * its camera timestamp. With pacing, frames are drawn from {@link Choreographer} vsync callbacks
+ * on the render thread: at most one frame is drawn per vsync, always the newest one, and frames
+ * that arrive while another is waiting replace it. Paced frames are presented at the vsync after
+ * the one they are drawn in. The vsync callbacks are posted through a {@link VsyncSource}, which
+ * lets renderers sharing a render thread take turns within a vsync.
+ *
+ * <p>All methods must be called on the render thread, which must have a looper.
+ */
+@WorkerThread
+final class VsyncFramePacer implements Choreographer.FrameCallback,
+        LatestFrameCoalescer.FrameSink {
+
+    interface FrameRenderer {
+        /**
+         * Draws the latest camera frame.
+         *
+         * @param presentationTimeNs Time at which the frame should be presented, in the
+         *                           {@link System#nanoTime()} time base.
+         * @return true if the frame was drawn.
+         */
+        boolean renderFrame(long presentationTimeNs);
+    }
+
+    /**
+     * Runs frame callbacks at the next vsync, like {@link Choreographer}.
+     */
+    interface VsyncSource {
+        void postFrameCallback(@NonNull Choreographer.FrameCallback callback);
+
+        void removeFrameCallback(@NonNull Choreographer.FrameCallback callback);
+    }
+
+    private final FrameRenderer mRenderer;
+    private final VsyncSource mVsyncSource;
+
+    private boolean mPacingEnabled = false;
+    private long mVsyncPeriodNs = 0;
+    private boolean mCallbackPosted = false;
+    private boolean mFramePending = false;
+    // Whether the pending frame is a camera frame, as opposed to a redraw of the current one.
+    private boolean mPendingFrameIsNew = false;
+    private long mPendingSinceNs = 0;
+
+    private long mFramesReceived = 0;
+    private long mFramesRendered = 0;
+    private long mFramesCoalesced = 0;
+    private long mFramesSkipped = 0;
+    private long mFramesDropped = 0;
+    private long mMissedVsyncs = 0;
+    private long mRedundantRedraws = 0;
+
+    VsyncFramePacer(@NonNull FrameRenderer renderer, @NonNull VsyncSource vsyncSource) {
+        mRenderer = renderer;
+        mVsyncSource = vsyncSource;
+    }
+
+    /**
+     * Enables or disables vsync pacing.
+     *
+     * @param vsyncPeriodNs Display refresh period, used to derive presentation times and missed
+     *                      vsyncs. Ignored when pacing is disabled.
+     */
+    void setPacingEnabled(boolean enabled, long vsyncPeriodNs) {
+        mVsyncPeriodNs = enabled ? vsyncPeriodNs : 0;
+        if (mPacingEnabled == enabled) {
+            return;
+        }
+        mPacingEnabled = enabled;
+        if (!enabled) {
+            removeFrameCallback();
+            if (mFramePending) {
+                // Don't leave the waiting frame behind, present it as soon as possible.
+                mFramePending = false;
+                render(mPendingFrameIsNew, System.nanoTime());
+            }
+        }
+    }
+
+    /**
+     * Called when a new camera frame has been latched.
+     *
+     * @param timestampNs Camera timestamp of the frame.
+     * @param staleFrames Number of older frames latched along with it, which are skipped.
+     */
+    @Override
+    public void onFrameLatched(long timestampNs, int staleFrames) {
+        mFramesReceived += 1 + staleFrames;
+        mFramesSkipped += staleFrames;
+        if (!mPacingEnabled) {
+            render(/*isNewFrame=*/true, timestampNs);
+            return;
+        }
+        if (mFramePending && mPendingFrameIsNew) {
+            mFramesCoalesced++;
+        } else {
+            mPendingSinceNs = System.nanoTime();
+        }
+        mFramePending = true;
+        mPendingFrameIsNew = true;
+        postFrameCallback();
+    }
+
+    /**
+     * Requests a redraw of the current frame, for instance because the output changed.
+     *
+     * @param timestampNs Camera timestamp of the current frame.
+     */
+    void requestRedraw(long timestampNs) {
+        if (!mPacingEnabled) {
+            render(/*isNewFrame=*/false, timestampNs);
+            return;
+        }
+        if (!mFramePending) {
+            mFramePending = true;
+            mPendingFrameIsNew = false;
+            mPendingSinceNs = System.nanoTime();
+        }
+        postFrameCallback();
+    }
+
+    /**
+     * Records that a redraw was not drawn because it would have presented the same image as
+     * the last frame drawn.
+     */
+    void onRedrawSkipped() {
+        mRedundantRedraws++;
+    }
+
+    /**
+     * Cancels any pending vsync callback and waiting frame.
+     */
+    void stop() {
+        removeFrameCallback();
+        if (mFramePending && mPendingFrameIsNew) {
+            mFramesDropped++;
+        }
+        mFramePending = false;
+    }
+
+    @NonNull
+    FramePacingStats getStats() {
+        return new FramePacingStats(mFramesReceived, mFramesRendered, mFramesCoalesced,
+                mFramesSkipped, mFramesDropped, mMissedVsyncs, mRedundantRedraws);
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        mCallbackPosted = false;
+        if (!mFramePending) {
+            return;
+        }
+        mFramePending = false;
+        long presentationTimeNs = frameTimeNanos;
+        if (mVsyncPeriodNs > 0) {
+            // A frame that arrived before the previous vsync should have been drawn then.
+            long waitedNs = frameTimeNanos - mPendingSinceNs;
+            if (mPendingFrameIsNew && waitedNs > mVsyncPeriodNs) {
+                mMissedVsyncs += waitedNs / mVsyncPeriodNs;
+            }
+            // Buffers swapped during this vsync are latched by the compositor at the next one.
+            presentationTimeNs += mVsyncPeriodNs;
+        }
+        render(mPendingFrameIsNew, presentationTimeNs);
+    }
+
+    private void render(boolean isNewFrame, long presentationTimeNs) {
+        boolean rendered = mRenderer.renderFrame(presentationTimeNs);
+        if (!isNewFrame) {
+            return;
+        }
+        if (rendered) {
+            mFramesRendered++;
+        } else {
+            mFramesDropped++;
+        }
+    }
+
+    private void postFrameCallback() {
+        if (mCallbackPosted) {
+            return;
+        }
+        mVsyncSource.postFrameCallback(this);
+        mCallbackPosted = true;
+    }
+
+    private void removeFrameCallback() {
+        if (mCallbackPosted) {
+            mVsyncSource.removeFrameCallback(this);
+        }
+        mCallbackPosted = false;
+    }
+}
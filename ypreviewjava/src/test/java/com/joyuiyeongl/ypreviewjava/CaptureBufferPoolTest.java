@@ -0,0 +1,104 @@
+package com.joyuiyeongl.ypreviewjava;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Local unit tests for {@link CaptureBufferPool} and the buffers of {@link CapturedFrame}.
+ */
+public class CaptureBufferPoolTest {
+    private static final int FRAME_BYTES = 64 * 48 * 4;
+
+    @Test
+    public void handsOutAtMostMaxBuffers() {
+        CaptureBufferPool pool = new CaptureBufferPool(2);
+        ByteBuffer first = pool.acquire(FRAME_BYTES);
+        ByteBuffer second = pool.acquire(FRAME_BYTES);
+
+        assertNotNull(first);
+        assertNotNull(second);
+        assertNull(pool.acquire(FRAME_BYTES));
+
+        pool.release(first);
+        assertNotNull(pool.acquire(FRAME_BYTES));
+    }
+
+    @Test
+    public void reusesReleasedBuffers() {
+        CaptureBufferPool pool = new CaptureBufferPool(1);
+        ByteBuffer buffer = pool.acquire(FRAME_BYTES);
+        pool.release(buffer);
+
+        ByteBuffer smaller = pool.acquire(FRAME_BYTES / 4);
+        assertSame(buffer, smaller);
+        assertEquals(0, smaller.position());
+        assertEquals(FRAME_BYTES / 4, smaller.limit());
+        assertTrue(smaller.isDirect());
+    }
+
+    @Test
+    public void replacesBuffersTooSmallForTheCapture() {
+        CaptureBufferPool pool = new CaptureBufferPool(1);
+        ByteBuffer buffer = pool.acquire(FRAME_BYTES);
+        pool.release(buffer);
+
+        ByteBuffer larger = pool.acquire(2 * FRAME_BYTES);
+        assertEquals(2 * FRAME_BYTES, larger.capacity());
+        assertEquals(1, pool.getAcquiredCount());
+    }
+
+    @Test
+    public void closingFrameReturnsBufferOnce() {
+        CaptureBufferPool pool = new CaptureBufferPool(1);
+        CapturedFrame frame = new CapturedFrame(pool, pool.acquire(FRAME_BYTES), 64, 48, 1000);
+        assertEquals(FRAME_BYTES, frame.getPixels().remaining());
+        assertEquals(64 * 4, frame.getRowStride());
+
+        frame.close();
+        frame.close();
+
+        assertEquals(0, pool.getAcquiredCount());
+        assertNotNull(pool.acquire(FRAME_BYTES));
+        assertNull(pool.acquire(FRAME_BYTES));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void closedFrameHasNoPixels() {
+        CaptureBufferPool pool = new CaptureBufferPool(1);
+        CapturedFrame frame = new CapturedFrame(pool, pool.acquire(FRAME_BYTES), 64, 48, 1000);
+        frame.close();
+
+        frame.getPixels();
+    }
+
+    @Test
+    public void concurrentReleasesKeepTheBound() throws InterruptedException {
+        int maxBuffers = 4;
+        CaptureBufferPool pool = new CaptureBufferPool(maxBuffers);
+        for (int round = 0; round < 200; round++) {
+            ByteBuffer[] buffers = new ByteBuffer[maxBuffers];
+            for (int i = 0; i < maxBuffers; i++) {
+                buffers[i] = pool.acquire(FRAME_BYTES);
+                assertNotNull(buffers[i]);
+            }
+            assertNull(pool.acquire(FRAME_BYTES));
+            Thread[] threads = new Thread[maxBuffers];
+            for (int i = 0; i < maxBuffers; i++) {
+                ByteBuffer buffer = buffers[i];
+                threads[i] = new Thread(() -> pool.release(buffer));
+                threads[i].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertEquals(0, pool.getAcquiredCount());
+        }
+    }
+}
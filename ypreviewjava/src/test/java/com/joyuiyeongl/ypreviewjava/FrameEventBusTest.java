@@ -0,0 +1,208 @@
+package com.joyuiyeongl.ypreviewjava;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Local unit tests for {@link FrameEventBus} and {@link FrameSubscription}.
+ */
+public class FrameEventBusTest {
+
+    @Test
+    public void everySubscriberReceivesEveryFrame() {
+        FrameEventBus bus = new FrameEventBus();
+        Executor directExecutor = Runnable::run;
+        RecordingListener first = new RecordingListener();
+        RecordingListener second = new RecordingListener();
+        bus.subscribe(directExecutor, BackpressurePolicy.dropOldest(8), first);
+        bus.subscribe(directExecutor, BackpressurePolicy.dropOldest(8), second);
+
+        for (int i = 0; i < 10; i++) {
+            bus.publish(1000 + i, i, 5);
+        }
+
+        assertEquals(10, first.mFrameNumbers.size());
+        assertEquals(10, second.mFrameNumbers.size());
+        assertEquals(1009, (long) first.mTimestamps.get(9));
+        assertEquals(5, (long) first.mRenderDurations.get(9));
+    }
+
+    @Test
+    public void dropOldestKeepsNewestFramesOfBacklog() {
+        FrameEventBus bus = new FrameEventBus();
+        ManualExecutor executor = new ManualExecutor();
+        RecordingListener listener = new RecordingListener();
+        FrameSubscription subscription =
+                bus.subscribe(executor, BackpressurePolicy.dropOldest(3), listener);
+
+        for (int i = 0; i < 10; i++) {
+            bus.publish(i, i, 0);
+        }
+        // A single drain task was posted for the whole burst.
+        assertEquals(1, executor.size());
+        executor.runAll();
+
+        assertEquals(listOf(7, 8, 9), listener.mFrameNumbers);
+        assertEquals(7, subscription.getDroppedFrameCount());
+    }
+
+    @Test
+    public void latestOnlyDeliversNewestFrame() {
+        FrameEventBus bus = new FrameEventBus();
+        ManualExecutor executor = new ManualExecutor();
+        RecordingListener listener = new RecordingListener();
+        bus.subscribe(executor, BackpressurePolicy.latest(), listener);
+
+        for (int i = 0; i < 5; i++) {
+            bus.publish(i, i, 0);
+        }
+        executor.runAll();
+
+        assertEquals(listOf(4), listener.mFrameNumbers);
+    }
+
+    @Test
+    public void sampleEveryNthOnlyDeliversSampledFrames() {
+        FrameEventBus bus = new FrameEventBus();
+        ManualExecutor executor = new ManualExecutor();
+        RecordingListener listener = new RecordingListener();
+        FrameSubscription subscription =
+                bus.subscribe(executor, BackpressurePolicy.sampleEveryNth(3), listener);
+
+        for (int i = 0; i < 10; i++) {
+            bus.publish(i, i, 0);
+            executor.runAll();
+        }
+
+        assertEquals(listOf(0, 3, 6, 9), listener.mFrameNumbers);
+        assertEquals(0, subscription.getDroppedFrameCount());
+    }
+
+    @Test
+    public void subscriberFallingBehindRingLosesOldestFrames() {
+        FrameEventBus bus = new FrameEventBus(8);
+        ManualExecutor executor = new ManualExecutor();
+        RecordingListener listener = new RecordingListener();
+        FrameSubscription subscription =
+                bus.subscribe(executor, BackpressurePolicy.dropOldest(100), listener);
+
+        for (int i = 0; i < 20; i++) {
+            bus.publish(i, i, 0);
+        }
+        executor.runAll();
+
+        assertEquals(8, listener.mFrameNumbers.size());
+        assertEquals(12, (long) listener.mFrameNumbers.get(0));
+        assertEquals(12, subscription.getDroppedFrameCount());
+    }
+
+    @Test
+    public void unsubscribedListenerIsNotCalled() {
+        FrameEventBus bus = new FrameEventBus();
+        ManualExecutor executor = new ManualExecutor();
+        RecordingListener listener = new RecordingListener();
+        FrameSubscription subscription =
+                bus.subscribe(executor, BackpressurePolicy.dropOldest(8), listener);
+
+        bus.publish(0, 0, 0);
+        subscription.unsubscribe();
+        bus.publish(1, 1, 0);
+        executor.runAll();
+
+        assertTrue(listener.mFrameNumbers.isEmpty());
+    }
+
+    @Test
+    public void slowSubscribersSeeOrderedFramesWhileProducerRuns() throws Exception {
+        FrameEventBus bus = new FrameEventBus(16);
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        int frames = 200_000;
+        int subscribers = 3;
+        AtomicBoolean failed = new AtomicBoolean(false);
+        long[] lastFrame = new long[subscribers];
+        CountDownLatch done = new CountDownLatch(subscribers);
+        try {
+            for (int s = 0; s < subscribers; s++) {
+                int index = s;
+                lastFrame[index] = -1;
+                bus.subscribe(pool, BackpressurePolicy.dropOldest(4),
+                        (timestampNs, frameNumber, renderDurationNs) -> {
+                            // Records must be consistent and delivered in order, exactly once.
+                            if (timestampNs != frameNumber * 10
+                                    || renderDurationNs != frameNumber + 1
+                                    || frameNumber <= lastFrame[index]) {
+                                failed.set(true);
+                            }
+                            lastFrame[index] = frameNumber;
+                            if (frameNumber == frames - 1) {
+                                done.countDown();
+                            }
+                        });
+            }
+
+            for (long i = 0; i < frames; i++) {
+                bus.publish(i * 10, i, i + 1);
+            }
+
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            assertTrue("Subscriber saw a torn or out of order record", !failed.get());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @NonNull
+    private static List<Long> listOf(long... values) {
+        List<Long> list = new ArrayList<>();
+        for (long value : values) {
+            list.add(value);
+        }
+        return list;
+    }
+
+    private static final class RecordingListener implements FrameEventListener {
+        final List<Long> mTimestamps = new ArrayList<>();
+        final List<Long> mFrameNumbers = new ArrayList<>();
+        final List<Long> mRenderDurations = new ArrayList<>();
+
+        @Override
+        public void onFrameEvent(long timestampNs, long frameNumber, long renderDurationNs) {
+            mTimestamps.add(timestampNs);
+            mFrameNumbers.add(frameNumber);
+            mRenderDurations.add(renderDurationNs);
+        }
+    }
+
+    private static final class ManualExecutor implements Executor {
+        private final ArrayDeque<Runnable> mQueue = new ArrayDeque<>();
+
+        @Override
+        public void execute(@NonNull Runnable command) {
+            mQueue.add(command);
+        }
+
+        void runAll() {
+            while (!mQueue.isEmpty()) {
+                mQueue.remove().run();
+            }
+        }
+
+        int size() {
+            return mQueue.size();
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.joyuiyeongl.ypreviewjava;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Local unit tests for {@link FrameIntervalRecorder}.
+ */
+public class FrameIntervalRecorderTest {
+    private static final long MS = 1_000_000;
+    private static final long FRAME_30_FPS_NS = 1_000_000_000L / 30;
+
+    @Test
+    public void bucketsCoverValuesWithBoundedError() {
+        int lastIndex = -1;
+        for (long valueNs = 0; valueNs < 20_000 * MS; valueNs += valueNs / 7 + 1000) {
+            int index = FrameIntervalRecorder.bucketIndex(valueNs);
+            assertTrue(index >= lastIndex);
+            lastIndex = index;
+            long upperNs = FrameIntervalRecorder.bucketUpperBoundNs(index);
+            if (index < FrameIntervalRecorder.BUCKET_COUNT - 1) {
+                assertTrue(valueNs < upperNs);
+                // The upper bound overestimates by at most a bucket width.
+                assertTrue(upperNs - valueNs <= Math.max(1000,
+                        valueNs / FrameIntervalRecorder.SUB_BUCKETS + 1000));
+            }
+        }
+        assertEquals(FrameIntervalRecorder.BUCKET_COUNT - 1,
+                FrameIntervalRecorder.bucketIndex(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void reportsPercentilesOfSteadyStream() {
+        FrameIntervalRecorder recorder = new FrameIntervalRecorder();
+        long timeNs = 0;
+        for (int i = 0; i < 1000; i++) {
+            recorder.recordFrame(timeNs, 2 * MS);
+            timeNs += FRAME_30_FPS_NS;
+        }
+
+        FrameIntervalStats stats = recorder.getSnapshot();
+        assertEquals(1000, stats.getFrameCount());
+        assertEquals(30.0, stats.getAverageFps(), 0.01);
+        assertEquals(FRAME_30_FPS_NS, stats.getMaxIntervalNs());
+        assertWithinBucket(FRAME_30_FPS_NS, stats.getP50IntervalNs());
+        assertWithinBucket(FRAME_30_FPS_NS, stats.getP99IntervalNs());
+        assertWithinBucket(2 * MS, stats.getP90RenderDurationNs());
+        assertEquals(0, stats.getJankFrameCount());
+        assertEquals(0, stats.getSevereJankFrameCount());
+    }
+
+    @Test
+    public void separatesSmoothFromStutteringStreamWithSameAverage() {
+        FrameIntervalRecorder smooth = new FrameIntervalRecorder();
+        FrameIntervalRecorder stuttering = new FrameIntervalRecorder();
+        long smoothTimeNs = 0;
+        long stutteringTimeNs = 0;
+        for (int i = 0; i < 100; i++) {
+            smooth.recordFrame(smoothTimeNs, MS);
+            stuttering.recordFrame(stutteringTimeNs, MS);
+            smoothTimeNs += FRAME_30_FPS_NS;
+            // Alternate short and long frames with the same average interval.
+            stutteringTimeNs += (i % 2 == 0) ? FRAME_30_FPS_NS / 2 : FRAME_30_FPS_NS * 3 / 2;
+        }
+
+        FrameIntervalStats smoothStats = smooth.getSnapshot();
+        FrameIntervalStats stutteringStats = stuttering.getSnapshot();
+        assertEquals(smoothStats.getAverageFps(), stutteringStats.getAverageFps(), 0.5);
+        assertEquals(0, smoothStats.getJankFrameCount());
+        assertTrue(stutteringStats.getP90IntervalNs() > FRAME_30_FPS_NS * 14 / 10);
+        // 1.5x intervals are at the threshold, which is not janky.
+        assertEquals(0, stutteringStats.getJankFrameCount());
+    }
+
+    @Test
+    public void countsJankAgainstExpectedInterval() {
+        FrameIntervalRecorder recorder = new FrameIntervalRecorder();
+        recorder.setExpectedIntervalNs(16 * MS);
+        long timeNs = 0;
+        long[] intervalsNs = {16 * MS, 20 * MS, 25 * MS, 30 * MS, 33 * MS, 50 * MS};
+        recorder.recordFrame(timeNs, MS);
+        for (long intervalNs : intervalsNs) {
+            timeNs += intervalNs;
+            recorder.recordFrame(timeNs, MS);
+        }
+
+        FrameIntervalStats stats = recorder.getSnapshot();
+        assertEquals(4, stats.getJankFrameCount());
+        assertEquals(2, stats.getSevereJankFrameCount());
+        assertEquals(50 * MS, stats.getMaxIntervalNs());
+    }
+
+    @Test
+    public void discontinuityIsNotCountedAsInterval() {
+        FrameIntervalRecorder recorder = new FrameIntervalRecorder();
+        recorder.recordFrame(0, MS);
+        recorder.recordFrame(FRAME_30_FPS_NS, MS);
+        recorder.markDiscontinuity();
+        recorder.recordFrame(10_000 * MS, MS);
+        recorder.recordFrame(10_000 * MS + FRAME_30_FPS_NS, MS);
+
+        FrameIntervalStats stats = recorder.getSnapshot();
+        assertEquals(4, stats.getFrameCount());
+        assertEquals(FRAME_30_FPS_NS, stats.getMaxIntervalNs());
+        assertEquals(0, stats.getSevereJankFrameCount());
+    }
+
+    @Test
+    public void resetClearsEverything() {
+        FrameIntervalRecorder recorder = new FrameIntervalRecorder();
+        recorder.recordFrame(0, MS);
+        recorder.recordFrame(100 * MS, MS);
+        recorder.reset();
+
+        FrameIntervalStats stats = recorder.getSnapshot();
+        assertEquals(0, stats.getFrameCount());
+        assertEquals(0, stats.getMaxIntervalNs());
+        assertTrue(Double.isNaN(stats.getAverageFps()));
+    }
+
+    @Test
+    public void snapshotsAreConsistentWhileWriterRuns() throws Exception {
+        FrameIntervalRecorder recorder = new FrameIntervalRecorder();
+        AtomicBoolean stop = new AtomicBoolean(false);
+        Thread writer = new Thread(() -> {
+            long timeNs = 0;
+            while (!stop.get()) {
+                // Every interval is janky, so the counters must always agree.
+                timeNs += 100 * MS;
+                recorder.recordFrame(timeNs, MS);
+            }
+        });
+        writer.start();
+        try {
+            for (int i = 0; i < 2000; i++) {
+                FrameIntervalStats stats = recorder.getSnapshot();
+                long intervals = Math.max(0, stats.getFrameCount() - 1);
+                assertEquals(intervals, stats.getJankFrameCount());
+                assertEquals(intervals, stats.getSevereJankFrameCount());
+            }
+        } finally {
+            stop.set(true);
+            writer.join();
+        }
+    }
+
+    @Test
+    public void recordingDoesNotAllocate() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+
+        FrameIntervalRecorder recorder = new FrameIntervalRecorder();
+        int frames = 10_000;
+        for (int i = 0; i < 2 * frames; i++) {
+            recorder.recordFrame(i * FRAME_30_FPS_NS, MS);
+        }
+
+        long threadId = Thread.currentThread().getId();
+        long calibrationStart = threadBean.getThreadAllocatedBytes(threadId);
+        long overhead = threadBean.getThreadAllocatedBytes(threadId) - calibrationStart;
+        long start = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < frames; i++) {
+            recorder.recordFrame(i * FRAME_30_FPS_NS, MS);
+        }
+        long allocated = threadBean.getThreadAllocatedBytes(threadId) - start - overhead;
+
+        assertTrue("Recording allocated " + allocated + " bytes over " + frames + " frames",
+                allocated < frames);
+    }
+
+    private static void assertWithinBucket(long expectedNs, long actualNs) {
+        assertTrue("Expected about " + expectedNs + " but was " + actualNs,
+                actualNs >= expectedNs
+                        && actualNs - expectedNs <= expectedNs / FrameIntervalRecorder.SUB_BUCKETS);
+    }
+}
@@ -0,0 +1,197 @@
+package com.joyuiyeongl.ypreviewjava;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Local unit tests for {@link LatestFrameCoalescer}, driven by a fake frame source and a
+ * manually pumped render thread.
+ */
+public class LatestFrameCoalescerTest {
+
+    @Test
+    public void backlogIsDrawnOnceWithNewestFrame() {
+        RenderThread thread = new RenderThread();
+        FakeFrameSource source = new FakeFrameSource();
+        RecordingSink sink = new RecordingSink();
+        LatestFrameCoalescer coalescer = new LatestFrameCoalescer(thread, source, sink);
+
+        // The render thread is busy while five frames arrive.
+        for (int i = 0; i < 5; i++) {
+            source.produceFrame(thread, coalescer);
+        }
+        thread.runAll();
+
+        assertEquals(5, source.mLatched);
+        assertEquals(1, sink.mTimestamps.size());
+        assertEquals(source.mProduced, (long) sink.mTimestamps.get(0));
+        assertEquals(4, sink.mStaleFrames);
+        assertEquals(4, coalescer.getFramesSkipped());
+    }
+
+    @Test
+    public void drawsEveryFrameWhenKeepingUp() {
+        RenderThread thread = new RenderThread();
+        FakeFrameSource source = new FakeFrameSource();
+        RecordingSink sink = new RecordingSink();
+        LatestFrameCoalescer coalescer = new LatestFrameCoalescer(thread, source, sink);
+
+        for (int i = 0; i < 10; i++) {
+            source.produceFrame(thread, coalescer);
+            thread.runAll();
+        }
+
+        assertEquals(10, sink.mTimestamps.size());
+        assertEquals(0, coalescer.getFramesSkipped());
+    }
+
+    @Test
+    public void disabledDrawsEveryFrame() {
+        RenderThread thread = new RenderThread();
+        FakeFrameSource source = new FakeFrameSource();
+        RecordingSink sink = new RecordingSink();
+        LatestFrameCoalescer coalescer = new LatestFrameCoalescer(thread, source, sink);
+        coalescer.setEnabled(false);
+
+        for (int i = 0; i < 5; i++) {
+            source.produceFrame(thread, coalescer);
+        }
+        thread.runAll();
+
+        assertEquals(5, sink.mTimestamps.size());
+        assertEquals(0, sink.mStaleFrames);
+    }
+
+    @Test
+    public void disablingFlushesPendingFrames() {
+        RenderThread thread = new RenderThread();
+        FakeFrameSource source = new FakeFrameSource();
+        RecordingSink sink = new RecordingSink();
+        LatestFrameCoalescer coalescer = new LatestFrameCoalescer(thread, source, sink);
+
+        source.produceFrame(thread, coalescer);
+        source.produceFrame(thread, coalescer);
+        // Deliver the frame callbacks, but not the posted coalescer run.
+        thread.runOne();
+        thread.runOne();
+        coalescer.setEnabled(false);
+
+        assertEquals(1, sink.mTimestamps.size());
+        assertEquals(2, source.mLatched);
+        thread.runAll();
+        assertEquals(1, sink.mTimestamps.size());
+    }
+
+    @Test
+    public void clearedFramesAreNotLatched() {
+        RenderThread thread = new RenderThread();
+        FakeFrameSource source = new FakeFrameSource();
+        RecordingSink sink = new RecordingSink();
+        LatestFrameCoalescer coalescer = new LatestFrameCoalescer(thread, source, sink);
+
+        source.produceFrame(thread, coalescer);
+        thread.runOne();
+        coalescer.clear();
+        thread.runAll();
+
+        assertEquals(0, source.mLatched);
+        assertEquals(0, sink.mTimestamps.size());
+    }
+
+    @Test
+    public void renderThreadQueueStaysBoundedUnderLoad() {
+        RenderThread thread = new RenderThread();
+        FakeFrameSource source = new FakeFrameSource();
+        RecordingSink sink = new RecordingSink();
+        LatestFrameCoalescer coalescer = new LatestFrameCoalescer(thread, source, sink);
+
+        // Each draw takes as long as three camera frames, so three frames arrive per draw.
+        int framesPerDraw = 3;
+        int draws = 100;
+        int maxQueued = 0;
+        for (int i = 0; i < draws; i++) {
+            for (int j = 0; j < framesPerDraw; j++) {
+                source.produceFrame(thread, coalescer);
+            }
+            while (!thread.isIdle()) {
+                maxQueued = Math.max(maxQueued, thread.size());
+                thread.runOne();
+            }
+        }
+
+        assertEquals(draws, sink.mTimestamps.size());
+        assertEquals(draws * (framesPerDraw - 1), coalescer.getFramesSkipped());
+        // The frame callbacks of one draw plus a single coalescer run.
+        assertTrue("Render thread queued " + maxQueued + " tasks",
+                maxQueued <= framesPerDraw + 1);
+    }
+
+    /** Executor standing in for the render thread's handler, pumped by the test. */
+    private static final class RenderThread implements Executor {
+        private final ArrayDeque<Runnable> mQueue = new ArrayDeque<>();
+
+        @Override
+        public void execute(@NonNull Runnable command) {
+            mQueue.add(command);
+        }
+
+        void runOne() {
+            mQueue.remove().run();
+        }
+
+        void runAll() {
+            while (!mQueue.isEmpty()) {
+                runOne();
+            }
+        }
+
+        boolean isIdle() {
+            return mQueue.isEmpty();
+        }
+
+        int size() {
+            return mQueue.size();
+        }
+    }
+
+    /**
+     * Produces frames with increasing timestamps, like a SurfaceTexture's buffer queue, and
+     * posts their frame available callbacks to the render thread.
+     */
+    private static final class FakeFrameSource implements LatestFrameCoalescer.FrameSource {
+        long mProduced = 0;
+        int mLatched = 0;
+
+        void produceFrame(RenderThread thread, LatestFrameCoalescer coalescer) {
+            mProduced++;
+            thread.execute(coalescer::onFrameAvailable);
+        }
+
+        @Override
+        public long latchFrame() {
+            assertTrue("Latched a frame that was never produced", mLatched < mProduced);
+            mLatched++;
+            return mLatched;
+        }
+    }
+
+    private static final class RecordingSink implements LatestFrameCoalescer.FrameSink {
+        final List<Long> mTimestamps = new ArrayList<>();
+        int mStaleFrames = 0;
+
+        @Override
+        public void onFrameLatched(long timestampNs, int staleFrames) {
+            mTimestamps.add(timestampNs);
+            mStaleFrames += staleFrames;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.joyuiyeongl.ypreviewjava;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+/**
+ * Stresses {@link MpscCommandQueue} with several producer threads and a consumer thread,
+ * checking that every command runs once and in the order of its producer, and that superseded
+ * commands leave the state of the last one, both with producers queuing as fast as they can,
+ * which overflows the ring, and with producers queuing in bursts. Throughput is measured by
+ * {@code MpscCommandQueueBenchmark} in the benchmark module.
+ */
+public class MpscCommandQueueStressTest {
+    private static final int PRODUCERS = 4;
+    private static final int COMMANDS_PER_PRODUCER = 5_000;
+    // One command in this many supersedes the previous one of its producer.
+    private static final int COALESCED_EVERY = 4;
+    private static final int MAX_COMMANDS_PER_DRAIN = 32;
+    private static final int CAPACITY = 256;
+    // Commands a producer queues at once in the bursty runs, before waiting for the queue to
+    // be at most half full. The saturated runs queue without waiting.
+    private static final int BURST = 16;
+    private static final long TIMEOUT_S = 30;
+
+    @Test
+    public void saturatedProducers() throws Exception {
+        runCommandQueue(COMMANDS_PER_PRODUCER, 0);
+    }
+
+    @Test
+    public void burstyProducers() throws Exception {
+        runCommandQueue(COMMANDS_PER_PRODUCER, BURST);
+    }
+
+    private static void runCommandQueue(int commandsPerProducer, int burst) throws Exception {
+        MpscCommandQueue queue = new MpscCommandQueue(CAPACITY);
+        Semaphore wakeups = new Semaphore(0);
+        ConsumerState state = new ConsumerState();
+        MpscCommandQueue.CoalescingKey[] keys = new MpscCommandQueue.CoalescingKey[PRODUCERS];
+        for (int p = 0; p < PRODUCERS; p++) {
+            keys[p] = new MpscCommandQueue.CoalescingKey();
+        }
+        long expectedCommands = (long) PRODUCERS * commandsPerProducer;
+        CountDownLatch producersDone = new CountDownLatch(PRODUCERS);
+
+        Thread consumer = new Thread(() -> {
+            try {
+                while (true) {
+                    wakeups.acquire();
+                    while (queue.drain(MAX_COMMANDS_PER_DRAIN)) {
+                        // Keep draining while commands are left.
+                    }
+                    if (state.mDone) {
+                        return;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "consumer");
+        consumer.start();
+
+        for (int p = 0; p < PRODUCERS; p++) {
+            int producer = p;
+            new Thread(() -> {
+                for (int i = 0; i < commandsPerProducer; i++) {
+                    int sequence = i;
+                    boolean wakeup;
+                    if (i % COALESCED_EVERY == 0) {
+                        wakeup = queue.offer(keys[producer],
+                                () -> state.onCoalescedCommand(producer, sequence));
+                    } else {
+                        wakeup = queue.offer(null, () -> state.onCommand(producer, sequence));
+                    }
+                    if (wakeup) {
+                        wakeups.release();
+                    }
+                    if (burst > 0 && i % burst == burst - 1) {
+                        awaitBelowHalfFull(queue::size);
+                    }
+                }
+                producersDone.countDown();
+            }, "producer-" + p).start();
+        }
+        assertTrue(producersDone.await(TIMEOUT_S, TimeUnit.SECONDS));
+        // Wake up the consumer even if it is draining, since it checks for the end afterwards.
+        queue.offer(null, () -> state.mDone = true);
+        wakeups.release();
+        consumer.join(TimeUnit.SECONDS.toMillis(TIMEOUT_S));
+
+        assertTrue(state.mDone);
+        state.assertComplete(commandsPerProducer);
+        RenderQueueStats stats = queue.getStats();
+        assertEquals(expectedCommands + 1, stats.getCommandsRun() + stats.getCommandsCoalesced());
+        assertEquals(0, stats.getQueueDepth());
+    }
+
+    private static void awaitBelowHalfFull(@NonNull IntSupplier size) {
+        while (size.getAsInt() > CAPACITY / 2) {
+            Thread.yield();
+        }
+    }
+
+    // Only touched by the consumer thread, and read once it has ended.
+    private static final class ConsumerState {
+        final int[] mLastSequence = new int[PRODUCERS];
+        final int[] mState = new int[PRODUCERS];
+        final int[] mUncoalescedRuns = new int[PRODUCERS];
+        volatile boolean mDone = false;
+
+        ConsumerState() {
+            for (int p = 0; p < PRODUCERS; p++) {
+                mLastSequence[p] = -1;
+                mState[p] = -1;
+            }
+        }
+
+        void onCommand(int producer, int sequence) {
+            checkOrder(producer, sequence);
+            mUncoalescedRuns[producer]++;
+        }
+
+        void onCoalescedCommand(int producer, int sequence) {
+            checkOrder(producer, sequence);
+            mState[producer] = sequence;
+        }
+
+        private void checkOrder(int producer, int sequence) {
+            if (sequence <= mLastSequence[producer]) {
+                throw new AssertionError("Producer " + producer + " command " + sequence
+                        + " ran after " + mLastSequence[producer]);
+            }
+            mLastSequence[producer] = sequence;
+        }
+
+        void assertComplete(int commandsPerProducer) {
+            int lastCoalesced = (commandsPerProducer - 1) / COALESCED_EVERY * COALESCED_EVERY;
+            int uncoalesced = commandsPerProducer - (lastCoalesced / COALESCED_EVERY + 1);
+            int[] expectedState = new int[PRODUCERS];
+            int[] expectedRuns = new int[PRODUCERS];
+            for (int p = 0; p < PRODUCERS; p++) {
+                expectedState[p] = lastCoalesced;
+                expectedRuns[p] = uncoalesced;
+            }
+            assertArrayEquals(expectedState, mState);
+            assertArrayEquals(expectedRuns, mUncoalescedRuns);
+        }
+    }
+}
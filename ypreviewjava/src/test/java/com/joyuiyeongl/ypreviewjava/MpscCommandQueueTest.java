@@ -0,0 +1,153 @@
+package com.joyuiyeongl.ypreviewjava;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Local unit tests for {@link MpscCommandQueue}, run on a single thread.
+ */
+public class MpscCommandQueueTest {
+
+    @Test
+    public void runsCommandsInOrder() {
+        MpscCommandQueue queue = new MpscCommandQueue(8);
+        List<Integer> runs = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            int value = i;
+            queue.offer(null, () -> runs.add(value));
+        }
+
+        assertFalse(queue.drain(100));
+
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4), runs);
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void wakesUpConsumerOncePerBurst() {
+        MpscCommandQueue queue = new MpscCommandQueue(8);
+
+        assertTrue(queue.offer(null, () -> { }));
+        assertFalse(queue.offer(null, () -> { }));
+        assertFalse(queue.drain(100));
+
+        assertTrue(queue.offer(null, () -> { }));
+    }
+
+    @Test
+    public void commandQueuedWhileDrainingRunsInSameDrain() {
+        MpscCommandQueue queue = new MpscCommandQueue(8);
+        List<String> runs = new ArrayList<>();
+        queue.offer(null, () -> {
+            runs.add("a");
+            assertFalse(queue.offer(null, () -> runs.add("b")));
+        });
+
+        assertFalse(queue.drain(100));
+
+        assertEquals(Arrays.asList("a", "b"), runs);
+    }
+
+    @Test
+    public void laterCommandSupersedesEarlierWithSameKey() {
+        MpscCommandQueue queue = new MpscCommandQueue(8);
+        MpscCommandQueue.CoalescingKey resize = new MpscCommandQueue.CoalescingKey();
+        List<String> runs = new ArrayList<>();
+        queue.offer(resize, () -> runs.add("resize 1"));
+        queue.offer(null, () -> runs.add("detach"));
+        queue.offer(resize, () -> runs.add("resize 2"));
+        queue.offer(resize, () -> runs.add("resize 3"));
+
+        queue.drain(100);
+
+        // The last resize runs at its own place, after the detach queued before it.
+        assertEquals(Arrays.asList("detach", "resize 3"), runs);
+        RenderQueueStats stats = queue.getStats();
+        assertEquals(2, stats.getCommandsRun());
+        assertEquals(2, stats.getCommandsCoalesced());
+    }
+
+    @Test
+    public void keysDoNotSupersedeEachOther() {
+        MpscCommandQueue queue = new MpscCommandQueue(8);
+        MpscCommandQueue.CoalescingKey first = new MpscCommandQueue.CoalescingKey();
+        MpscCommandQueue.CoalescingKey second = new MpscCommandQueue.CoalescingKey();
+        List<String> runs = new ArrayList<>();
+        queue.offer(first, () -> runs.add("first"));
+        queue.offer(second, () -> runs.add("second"));
+
+        queue.drain(100);
+
+        assertEquals(Arrays.asList("first", "second"), runs);
+    }
+
+    @Test
+    public void overflowKeepsOrder() {
+        MpscCommandQueue queue = new MpscCommandQueue(4);
+        List<Integer> runs = new ArrayList<>();
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            int value = i;
+            queue.offer(null, () -> runs.add(value));
+            expected.add(i);
+        }
+        assertEquals(10, queue.size());
+
+        // Drain in small batches, queuing more in between, which must wait for the overflow.
+        assertTrue(queue.drain(3));
+        for (int i = 10; i < 12; i++) {
+            int value = i;
+            queue.offer(null, () -> runs.add(value));
+            expected.add(i);
+        }
+        while (queue.drain(3)) {
+            // Keep draining.
+        }
+
+        assertEquals(expected, runs);
+        assertEquals(8, queue.getStats().getCommandsOverflowed());
+    }
+
+    @Test
+    public void drainStopsAfterMaxCommands() {
+        MpscCommandQueue queue = new MpscCommandQueue(8);
+        int[] runs = new int[1];
+        for (int i = 0; i < 5; i++) {
+            queue.offer(null, () -> runs[0]++);
+        }
+
+        assertTrue(queue.drain(2));
+        assertEquals(2, runs[0]);
+        assertEquals(3, queue.size());
+        // Still scheduled: offering does not wake up the consumer again.
+        assertFalse(queue.offer(null, () -> runs[0]++));
+
+        assertFalse(queue.drain(100));
+        assertEquals(6, runs[0]);
+    }
+
+    @Test
+    public void recordsDepthAndWait() {
+        MpscCommandQueue queue = new MpscCommandQueue(8);
+        for (int i = 0; i < 3; i++) {
+            queue.offer(null, () -> { });
+        }
+
+        queue.drain(100);
+
+        RenderQueueStats stats = queue.getStats();
+        assertEquals(3, stats.getCommandsRun());
+        assertEquals(3, stats.getMaxQueueDepth());
+        assertEquals(0, stats.getQueueDepth());
+        assertEquals(1, stats.getDrains());
+        assertTrue(stats.getMaxWaitNs() >= stats.getMeanWaitNs());
+        assertTrue(stats.getMeanWaitNs() >= 0);
+    }
+}
@@ -0,0 +1,256 @@
+package com.joyuiyeongl.ypreviewjava;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import android.graphics.SurfaceTexture;
+import android.os.Handler;
+import android.view.Choreographer;
+import android.view.Surface;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.concurrent.Executor;
+
+/**
+ * Local unit tests for the per-frame path of {@link OpenGLRenderer}, run on a render thread
+ * pumped by the test, with a fake camera, a fake vsync and a stubbed native renderer.
+ */
+public class OpenGLRendererTest {
+    private static final int WARM_UP_FRAMES = 20_000;
+    private static final int MEASURED_FRAMES = 10_000;
+    private static final long FRAME_INTERVAL_NS = 33_333_333;
+    private static final long VSYNC_PERIOD_NS = 16_666_667;
+
+    // SurfaceTexture transforms flip the t axis, since buffers are stored top-down.
+    private static final float[] TEXTURE_TRANSFORM_ROT_0 = {
+            1f, 0f, 0f, 0f,
+            0f, -1f, 0f, 0f,
+            0f, 0f, 1f, 0f,
+            0f, 1f, 0f, 1f};
+
+    private static final float[] TEXTURE_TRANSFORM_ROT_90 = {
+            0f, -1f, 0f, 0f,
+            -1f, 0f, 0f, 0f,
+            0f, 0f, 1f, 0f,
+            1f, 1f, 0f, 1f};
+
+    @Test
+    public void perFramePathDoesNotAllocate() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+
+        RenderThread thread = new RenderThread();
+        FakeVsync vsync = new FakeVsync();
+        StubNativeRenderer nativeRenderer = new StubNativeRenderer();
+        OpenGLRenderer renderer =
+                new OpenGLRenderer(new RenderEngine(thread, vsync, nativeRenderer));
+        FakeCamera camera = new FakeCamera(thread, renderer);
+        Executor directExecutor = Runnable::run;
+        long[] lastTimestamp = new long[1];
+        renderer.subscribeToFrameEvents(directExecutor, BackpressurePolicy.latest(),
+                (timestampNs, frameNumber, renderDurationNs) -> lastTimestamp[0] = timestampNs);
+        renderer.subscribeToFrameEvents(directExecutor, BackpressurePolicy.sampleEveryNth(4),
+                (timestampNs, frameNumber, renderDurationNs) -> { });
+        renderer.attachInputFrames(camera, 1920, 1080);
+        // The constructors of the local tests' android.jar do nothing, so this is only a handle.
+        renderer.attachOutputSurface(new Surface(new SurfaceTexture(0)), 1080, 2340, 0, null);
+        renderer.setFramePacingEnabled(true, VSYNC_PERIOD_NS);
+        thread.runAll();
+
+        for (int i = 0; i < WARM_UP_FRAMES; i++) {
+            drawFrame(camera, thread, vsync);
+        }
+
+        long threadId = Thread.currentThread().getId();
+        // Measure the cost of the measurement itself so it can be discounted.
+        long calibrationStart = threadBean.getThreadAllocatedBytes(threadId);
+        long calibrationEnd = threadBean.getThreadAllocatedBytes(threadId);
+        long overhead = calibrationEnd - calibrationStart;
+
+        long start = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < MEASURED_FRAMES; i++) {
+            drawFrame(camera, thread, vsync);
+        }
+        long allocated = threadBean.getThreadAllocatedBytes(threadId) - start - overhead;
+
+        assertEquals(WARM_UP_FRAMES + MEASURED_FRAMES, nativeRenderer.mFramesDrawn);
+        assertEquals(camera.mTimestampNs, lastTimestamp[0]);
+        // Any allocation is at least 16 bytes, so less than a byte per frame means none of the
+        // frames allocated.
+        assertTrue("Per-frame path allocated " + allocated + " bytes over " + MEASURED_FRAMES
+                + " frames", allocated < MEASURED_FRAMES);
+    }
+
+    // A camera frame arrives, the render thread latches it, and the next vsync draws it.
+    private static void drawFrame(FakeCamera camera, RenderThread thread, FakeVsync vsync) {
+        camera.produceFrame();
+        thread.runAll();
+        vsync.fire(camera.mTimestampNs + VSYNC_PERIOD_NS);
+        thread.runAll();
+    }
+
+    /**
+     * Stands in for the render thread's executor, running the tasks queued meanwhile from its
+     * command queue when the test pumps it, as the thread's looper would.
+     */
+    private static final class RenderThread implements RenderExecutor {
+        private static final int MAX_TASKS_PER_DRAIN = 32;
+
+        private final MpscCommandQueue mQueue = new MpscCommandQueue(256);
+
+        @NonNull
+        @Override
+        public Handler getHandler() {
+            throw new UnsupportedOperationException("No looper in local tests.");
+        }
+
+        @Override
+        public void execute(@NonNull Runnable command) {
+            mQueue.offer(null, command);
+        }
+
+        @Override
+        public void execute(@NonNull MpscCommandQueue.CoalescingKey key,
+                @NonNull Runnable task) {
+            mQueue.offer(key, task);
+        }
+
+        @Nullable
+        @Override
+        public RenderQueueStats getQueueStats() {
+            return mQueue.getStats();
+        }
+
+        @Override
+        public boolean shutdown() {
+            return true;
+        }
+
+        void runAll() {
+            while (mQueue.drain(MAX_TASKS_PER_DRAIN)) {
+                // Keep draining until the queue is empty.
+            }
+        }
+    }
+
+    /** Runs the frame callback posted since the last vsync when the test fires one. */
+    private static final class FakeVsync implements VsyncFramePacer.VsyncSource {
+        @Nullable
+        private Choreographer.FrameCallback mCallback;
+
+        @Override
+        public void postFrameCallback(@NonNull Choreographer.FrameCallback callback) {
+            mCallback = callback;
+        }
+
+        @Override
+        public void removeFrameCallback(@NonNull Choreographer.FrameCallback callback) {
+            if (mCallback == callback) {
+                mCallback = null;
+            }
+        }
+
+        void fire(long frameTimeNanos) {
+            Choreographer.FrameCallback callback = mCallback;
+            mCallback = null;
+            if (callback != null) {
+                callback.doFrame(frameTimeNanos);
+            }
+        }
+    }
+
+    /**
+     * Produces frames like a camera feeding the preview texture, with the frame available
+     * callback posted to the render thread. The texture rotation alternates between frames, so
+     * that most of them rebuild the MVP.
+     */
+    private static final class FakeCamera implements OpenGLRenderer.InputFrames {
+        private final RenderThread mThread;
+        private final Runnable mFrameAvailable;
+        long mTimestampNs = 0;
+        private long mLatchedTimestampNs = 0;
+
+        FakeCamera(@NonNull RenderThread thread, @NonNull OpenGLRenderer renderer) {
+            mThread = thread;
+            mFrameAvailable = renderer::onInputFrameAvailable;
+        }
+
+        void produceFrame() {
+            mTimestampNs += FRAME_INTERVAL_NS;
+            mThread.execute(mFrameAvailable);
+        }
+
+        @Override
+        public void updateTexImage() {
+            mLatchedTimestampNs = mTimestampNs;
+        }
+
+        @Override
+        public long getTimestamp() {
+            return mLatchedTimestampNs;
+        }
+
+        @Override
+        public void getTransformMatrix(@NonNull float[] matrix) {
+            float[] transform = (mLatchedTimestampNs / FRAME_INTERVAL_NS) % 2 == 0
+                    ? TEXTURE_TRANSFORM_ROT_0 : TEXTURE_TRANSFORM_ROT_90;
+            System.arraycopy(transform, 0, matrix, 0, 16);
+        }
+    }
+
+    /** Draws every output it is asked to, without a GPU. */
+    private static final class StubNativeRenderer implements NativeRenderer {
+        int mFramesDrawn = 0;
+
+        @Override
+        public long createSharedContext(@NonNull LongBuffer startupTimings,
+                @Nullable String programCacheDir) {
+            return 1;
+        }
+
+        @Override
+        public void destroySharedContext(long sharedContext) {
+        }
+
+        @Override
+        public long initContext(long sharedContext, @NonNull FloatBuffer textureTransform,
+                @NonNull LongBuffer stageTimings, @NonNull IntBuffer detachGenerations) {
+            return 2;
+        }
+
+        @Override
+        public boolean setOutputSurface(long nativeContext, int output,
+                @Nullable Surface surface, @Nullable FloatBuffer mvpTransform,
+                int detachGeneration) {
+            return true;
+        }
+
+        @Override
+        public void setOutputBufferSize(long nativeContext, int output, int width,
+                int height) {
+        }
+
+        @Override
+        public int renderTexture(long nativeContext, int outputMask, int mvpDirtyMask,
+                long presentationTimeNs) {
+            mFramesDrawn++;
+            return outputMask;
+        }
+
+        @Override
+        public void closeContext(long nativeContext) {
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.joyuiyeongl.ypreviewjava;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Publishes {@link RenderConfig} changes from several threads while a render thread picks them
+ * up, checking that no change is lost and that every snapshot read is consistent.
+ */
+public class RenderConfigStressTest {
+    private static final int PUBLISHES_PER_THREAD = 100_000;
+    private static final long TIMEOUT_S = 30;
+
+    @Test
+    public void concurrentPublishesAreNotLost() throws Exception {
+        RenderConfig.Publisher publisher = new RenderConfig.Publisher();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch published = new CountDownLatch(3);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        // Sizes are published twice as wide as high, with a rotation of 0 or 180.
+        Thread resizes = publisherThread(start, published, failure, i ->
+                publisher.publishSurface(null, 2 * (i + 1), i + 1, (i % 2) * 180));
+        // Crop rects are twice as wide as high too.
+        Thread crops = publisherThread(start, published, failure, i ->
+                publisher.publishCropRect(i, i, i + 2 * (i + 1), i + i + 1));
+        // Rotations of 90 or 270 always differ from the current one, so none is dropped.
+        Thread rotations = publisherThread(start, published, failure, i ->
+                publisher.publishSurfaceRotation(i % 2 == 0 ? 90 : 270));
+
+        // Picks up the latest version as the render thread does once per frame.
+        long[] versionsApplied = new long[1];
+        Thread renderer = new Thread(() -> {
+            try {
+                long lastVersion = -1;
+                while (published.getCount() > 0) {
+                    RenderConfig config = publisher.get();
+                    assertTrue("Version went back", config.getVersion() >= lastVersion);
+                    if (config.getVersion() != lastVersion) {
+                        assertConsistent(config);
+                        lastVersion = config.getVersion();
+                        versionsApplied[0]++;
+                    }
+                }
+            } catch (Throwable t) {
+                failure.compareAndSet(null, t);
+            }
+        }, "renderer");
+
+        renderer.start();
+        resizes.start();
+        crops.start();
+        rotations.start();
+        start.countDown();
+        assertTrue(published.await(TIMEOUT_S, TimeUnit.SECONDS));
+        renderer.join(TimeUnit.SECONDS.toMillis(TIMEOUT_S));
+        assertNull(failure.get());
+
+        RenderConfig latest = publisher.get();
+        assertEquals(3L * PUBLISHES_PER_THREAD, latest.getVersion());
+        int last = PUBLISHES_PER_THREAD - 1;
+        assertEquals(2 * (last + 1), latest.getSurfaceWidth());
+        assertEquals(last + 1, latest.getSurfaceHeight());
+        assertEquals(last, latest.getCropLeft());
+        assertEquals(last + 2 * (last + 1), latest.getCropRight());
+        assertConsistent(latest);
+        assertTrue(versionsApplied[0] > 0);
+    }
+
+    @Test
+    public void unchangedRotationIsNotPublished() {
+        RenderConfig.Publisher publisher = new RenderConfig.Publisher();
+        publisher.publishSurfaceRotation(90);
+        long version = publisher.get().getVersion();
+
+        publisher.publishSurfaceRotation(90);
+
+        assertEquals(version, publisher.get().getVersion());
+    }
+
+    private static void assertConsistent(RenderConfig config) {
+        assertEquals(2 * config.getSurfaceHeight(), config.getSurfaceWidth());
+        if (config.hasCropRect()) {
+            assertEquals(2 * (config.getCropBottom() - config.getCropTop()),
+                    config.getCropRight() - config.getCropLeft());
+        }
+        assertEquals(0, config.getSurfaceRotationDegrees() % 90);
+    }
+
+    private interface Publish {
+        void publish(int i);
+    }
+
+    private static Thread publisherThread(CountDownLatch start, CountDownLatch published,
+            AtomicReference<Throwable> failure, Publish publish) {
+        return new Thread(() -> {
+            try {
+                start.await();
+                for (int i = 0; i < PUBLISHES_PER_THREAD; i++) {
+                    publish.publish(i);
+                }
+            } catch (Throwable t) {
+                failure.compareAndSet(null, t);
+            } finally {
+                published.countDown();
+            }
+        });
+    }
+}
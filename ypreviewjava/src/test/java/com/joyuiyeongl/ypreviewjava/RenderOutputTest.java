@@ -0,0 +1,144 @@
+package com.joyuiyeongl.ypreviewjava;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * Local unit tests for the frame rate cap and the redraw skipping of {@link RenderOutput}.
+ */
+public class RenderOutputTest {
+    private static final long MS = 1_000_000;
+
+    @Test
+    public void uncappedOutputDrawsEveryFrame() {
+        RenderOutput output = attachedOutput(0);
+
+        assertEquals(100, countDrawnFrames(output, 30, 100, 0));
+    }
+
+    @Test
+    public void halvesFrameRateDespiteTimestampJitter() {
+        RenderOutput output = attachedOutput(15);
+
+        // With +-1ms of jitter, a 30 fps camera must still give exactly every other frame.
+        assertEquals(150, countDrawnFrames(output, 30, 300, MS));
+    }
+
+    @Test
+    public void keepsAverageRateAtCapForUnevenRatio() {
+        RenderOutput output = attachedOutput(24);
+
+        // 10 seconds of a 60 fps camera.
+        int drawn = countDrawnFrames(output, 60, 600, 0);
+        assertEquals(240, drawn, 2);
+    }
+
+    @Test
+    public void doesNotCatchUpAfterGap() {
+        RenderOutput output = attachedOutput(15);
+        long intervalNs = 1_000_000_000L / 30;
+        output.onFrameDrawn(0);
+
+        // The camera stalls for a second.
+        long timestampNs = 1000 * MS;
+        assertTrue(output.isFrameDue(timestampNs));
+        output.onFrameDrawn(timestampNs);
+        assertFalse(output.isFrameDue(timestampNs + intervalNs));
+        assertTrue(output.isFrameDue(timestampNs + 2 * intervalNs));
+    }
+
+    @Test
+    public void detachedOutputIsNotAttached() {
+        RenderOutput output = attachedOutput(0);
+        assertTrue(output.isAttached());
+
+        output.detach();
+
+        assertFalse(output.isAttached());
+    }
+
+    @Test
+    public void redrawOfUnchangedFrameIsRedundant() {
+        RenderOutput output = attachedOutput(0);
+        output.getTransform().setPreviewSize(640, 480);
+        draw(output, 100);
+
+        assertTrue(output.isRedundantRedraw(100));
+        assertFalse(output.isRedundantRedraw(200));
+    }
+
+    @Test
+    public void redrawAfterChangeIsNotRedundant() {
+        RenderOutput output = attachedOutput(0);
+        output.getTransform().setPreviewSize(640, 480);
+        draw(output, 100);
+
+        // The display rotated: the MVP is rebuilt before the redundancy check.
+        output.getTransform().setSurfaceRotationDegrees(90);
+        updateMvp(output);
+        assertFalse(output.isRedundantRedraw(100));
+        draw(output, 100);
+        assertTrue(output.isRedundantRedraw(100));
+
+        output.invalidate();
+        assertFalse(output.isRedundantRedraw(100));
+        draw(output, 100);
+
+        output.attach(null, 1280, 720, 90, 0);
+        updateMvp(output);
+        assertFalse(output.isRedundantRedraw(100));
+    }
+
+    @Test
+    public void forcedRedrawIsNotRedundantOnce() {
+        RenderOutput output = attachedOutput(0);
+        output.getTransform().setPreviewSize(640, 480);
+        draw(output, 100);
+
+        output.forceRedraw();
+        assertFalse(output.isRedundantRedraw(100));
+        draw(output, 100);
+
+        assertTrue(output.isRedundantRedraw(100));
+    }
+
+    private static void updateMvp(RenderOutput output) {
+        RenderTransform transform = output.getTransform();
+        if (transform.isMvpDirty()) {
+            transform.updateMvpTransform();
+            transform.clearMvpDirty();
+        }
+    }
+
+    private static void draw(RenderOutput output, long timestampNs) {
+        updateMvp(output);
+        output.onFrameDrawn(timestampNs);
+    }
+
+    private static RenderOutput attachedOutput(float maxFrameRate) {
+        RenderOutput output = new RenderOutput();
+        output.attach(null, 1280, 720, 0, maxFrameRate);
+        return output;
+    }
+
+    private static int countDrawnFrames(RenderOutput output, int cameraFps, int frames,
+            long jitterNs) {
+        Random random = new Random(42);
+        long intervalNs = 1_000_000_000L / cameraFps;
+        int drawn = 0;
+        for (int i = 0; i < frames; i++) {
+            long jitter = jitterNs == 0 ? 0 : (long) ((random.nextDouble() * 2 - 1) * jitterNs);
+            long timestampNs = 1000 * MS + i * intervalNs + jitter;
+            if (output.isFrameDue(timestampNs)) {
+                output.onFrameDrawn(timestampNs);
+                drawn++;
+            }
+        }
+        return drawn;
+    }
+}
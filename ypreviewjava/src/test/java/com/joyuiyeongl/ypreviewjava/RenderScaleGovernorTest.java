@@ -0,0 +1,162 @@
+package com.joyuiyeongl.ypreviewjava;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.os.PowerManager;
+
+import org.junit.Test;
+
+/**
+ * Local unit tests for {@link RenderScaleGovernor}, driven by simulated frame timings.
+ */
+public class RenderScaleGovernorTest {
+    private static final long INTERVAL_NS = 33_333_333L;
+
+    private long mFrameTimeNs = 0;
+
+    @Test
+    public void startsAtFullQuality() {
+        RenderScaleGovernor governor = new RenderScaleGovernor();
+
+        assertEquals(0, governor.getLevel());
+        assertEquals(1f, governor.getRenderScale(), 0f);
+        assertEquals(Integer.MAX_VALUE, governor.getMaxEffectStages());
+    }
+
+    @Test
+    public void slowRendersLowerQuality() {
+        RenderScaleGovernor governor = new RenderScaleGovernor();
+
+        int changes = run(governor, RenderScaleGovernor.WINDOW_FRAMES, INTERVAL_NS,
+                INTERVAL_NS * 9 / 10);
+
+        assertTrue(changes > 0);
+        assertTrue(governor.getLevel() > 0);
+        assertTrue(governor.getRenderScale() < 1f);
+    }
+
+    @Test
+    public void missedDeadlinesLowerQuality() {
+        RenderScaleGovernor governor = new RenderScaleGovernor();
+
+        // Fast renders, but frames arrive at 20 fps.
+        run(governor, RenderScaleGovernor.WINDOW_FRAMES, INTERVAL_NS * 5 / 3, INTERVAL_NS / 10);
+
+        assertTrue(governor.getLevel() > 0);
+    }
+
+    @Test
+    public void sustainedPressureReachesLowestLevelAndCapsEffects() {
+        RenderScaleGovernor governor = new RenderScaleGovernor();
+
+        run(governor, RenderScaleGovernor.WINDOW_FRAMES * 10, INTERVAL_NS, INTERVAL_NS);
+
+        assertEquals(RenderScaleGovernor.LEVEL_COUNT - 1, governor.getLevel());
+        assertEquals(1, governor.getMaxEffectStages());
+        assertEquals(0.5f, governor.getRenderScale(), 0f);
+    }
+
+    @Test
+    public void occasionalSlowFrameKeepsQuality() {
+        RenderScaleGovernor governor = new RenderScaleGovernor();
+
+        for (int i = 0; i < RenderScaleGovernor.WINDOW_FRAMES * 4; i++) {
+            long renderNs = i % 15 == 0 ? INTERVAL_NS : INTERVAL_NS / 4;
+            assertFalse(governor.onFrame(nextFrame(INTERVAL_NS), renderNs, INTERVAL_NS));
+        }
+
+        assertEquals(0, governor.getLevel());
+    }
+
+    @Test
+    public void qualityIsRestoredWithHysteresis() {
+        RenderScaleGovernor governor = new RenderScaleGovernor();
+        while (!governor.onFrame(nextFrame(INTERVAL_NS), INTERVAL_NS, INTERVAL_NS)) {
+            // Busy until quality is lowered once.
+        }
+        int degraded = governor.getLevel();
+        assertEquals(1, degraded);
+
+        // Headroom for less than the restore delay keeps the level.
+        run(governor, RenderScaleGovernor.WINDOW_FRAMES * (RenderScaleGovernor.RESTORE_WINDOWS
+                - 1), INTERVAL_NS, INTERVAL_NS / 4);
+        assertEquals(degraded, governor.getLevel());
+
+        // Then quality comes back one level at a time.
+        run(governor, RenderScaleGovernor.WINDOW_FRAMES, INTERVAL_NS, INTERVAL_NS / 4);
+        assertEquals(degraded - 1, governor.getLevel());
+    }
+
+    @Test
+    public void moderateHeadroomDoesNotRestoreQuality() {
+        RenderScaleGovernor governor = new RenderScaleGovernor();
+        run(governor, RenderScaleGovernor.WINDOW_FRAMES, INTERVAL_NS, INTERVAL_NS);
+        int degraded = governor.getLevel();
+
+        // Renders at 60% of the interval are not under pressure, but leave too little headroom
+        // to go back to a more expensive level.
+        run(governor, RenderScaleGovernor.WINDOW_FRAMES * 10, INTERVAL_NS, INTERVAL_NS * 6 / 10);
+
+        assertEquals(degraded, governor.getLevel());
+    }
+
+    @Test
+    public void thermalStatusSetsFloor() {
+        RenderScaleGovernor governor = new RenderScaleGovernor();
+
+        assertTrue(governor.onThermalStatus(PowerManager.THERMAL_STATUS_SEVERE));
+        assertEquals(RenderScaleGovernor.LEVEL_COUNT - 1, governor.getLevel());
+
+        // Headroom alone doesn't restore quality while the device is hot.
+        run(governor, RenderScaleGovernor.WINDOW_FRAMES * 10, INTERVAL_NS, INTERVAL_NS / 4);
+        assertEquals(RenderScaleGovernor.LEVEL_COUNT - 1, governor.getLevel());
+
+        assertFalse(governor.onThermalStatus(PowerManager.THERMAL_STATUS_NONE));
+        run(governor, RenderScaleGovernor.WINDOW_FRAMES * RenderScaleGovernor.RESTORE_WINDOWS,
+                INTERVAL_NS, INTERVAL_NS / 4);
+        assertEquals(RenderScaleGovernor.LEVEL_COUNT - 2, governor.getLevel());
+    }
+
+    @Test
+    public void discontinuityIsNotMissedDeadline() {
+        RenderScaleGovernor governor = new RenderScaleGovernor();
+
+        for (int i = 0; i < RenderScaleGovernor.WINDOW_FRAMES; i++) {
+            governor.markDiscontinuity();
+            governor.onFrame(nextFrame(INTERVAL_NS * 10), INTERVAL_NS / 4, INTERVAL_NS);
+        }
+
+        assertEquals(0, governor.getLevel());
+    }
+
+    @Test
+    public void resetRestoresFullQuality() {
+        RenderScaleGovernor governor = new RenderScaleGovernor();
+        governor.onThermalStatus(PowerManager.THERMAL_STATUS_CRITICAL);
+        run(governor, RenderScaleGovernor.WINDOW_FRAMES, INTERVAL_NS, INTERVAL_NS);
+
+        governor.reset();
+
+        assertEquals(0, governor.getLevel());
+        assertEquals(1f, governor.getRenderScale(), 0f);
+    }
+
+    // Feeds frames at a steady interval and render duration and returns the number of level
+    // changes.
+    private int run(RenderScaleGovernor governor, int frames, long intervalNs, long renderNs) {
+        int changes = 0;
+        for (int i = 0; i < frames; i++) {
+            if (governor.onFrame(nextFrame(intervalNs), renderNs, INTERVAL_NS)) {
+                changes++;
+            }
+        }
+        return changes;
+    }
+
+    private long nextFrame(long intervalNs) {
+        mFrameTimeNs += intervalNs;
+        return mFrameTimeNs;
+    }
+}
@@ -0,0 +1,124 @@
+package com.joyuiyeongl.ypreviewjava;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Local unit tests for {@link RenderStageRecorder}.
+ */
+public class RenderStageRecorderTest {
+    private static final long US = 1000;
+
+    @Test
+    public void keepsStagesApart() {
+        RenderStageRecorder recorder = new RenderStageRecorder();
+        for (int i = 0; i < 100; i++) {
+            recorder.record(RenderStageStats.STAGE_DRAW, 200 * US);
+            recorder.record(RenderStageStats.STAGE_SWAP, (i < 95 ? 1000 : 16_000) * US);
+        }
+
+        RenderStageStats stats = recorder.getSnapshot();
+        assertEquals(100, stats.getSampleCount(RenderStageStats.STAGE_DRAW));
+        assertEquals(100, stats.getSampleCount(RenderStageStats.STAGE_SWAP));
+        assertEquals(0, stats.getSampleCount(RenderStageStats.STAGE_LATCH));
+        assertEquals(200 * US, stats.getMeanNs(RenderStageStats.STAGE_DRAW));
+        assertEquals(200 * US, stats.getMaxNs(RenderStageStats.STAGE_DRAW));
+        // A few blocking swaps show up in the tail, not in the median.
+        assertTrue(stats.getP50Ns(RenderStageStats.STAGE_SWAP) <= 1000 * US * 17 / 16);
+        assertEquals(16_000 * US, stats.getP99Ns(RenderStageStats.STAGE_SWAP));
+        assertEquals(16_000 * US, stats.getMaxNs(RenderStageStats.STAGE_SWAP));
+    }
+
+    @Test
+    public void resolvesShortStagesToAMicrosecond() {
+        RenderStageRecorder recorder = new RenderStageRecorder();
+        recorder.record(RenderStageStats.STAGE_JNI, 300);
+        recorder.record(RenderStageStats.STAGE_JNI, 2500);
+
+        RenderStageStats stats = recorder.getSnapshot();
+        assertEquals(1400, stats.getMeanNs(RenderStageStats.STAGE_JNI));
+        assertEquals(1 * US, stats.getP50Ns(RenderStageStats.STAGE_JNI));
+        assertEquals(2500, stats.getP99Ns(RenderStageStats.STAGE_JNI));
+    }
+
+    @Test
+    public void recordsNamedStages() {
+        RenderStageRecorder recorder = new RenderStageRecorder(
+                new String[]{"effect0", "effect1", "effect2"});
+        recorder.record(2, 400 * US);
+
+        RenderStageStats stats = recorder.getSnapshot();
+        assertEquals(3, stats.getStageCount());
+        assertEquals("effect2", stats.getStageName(2));
+        assertEquals(1, stats.getSampleCount(2));
+        assertEquals(0, stats.getSampleCount(0));
+        assertTrue(stats.toString().contains("effect2(n=1"));
+    }
+
+    @Test
+    public void clampsNegativeDurations() {
+        RenderStageRecorder recorder = new RenderStageRecorder();
+        recorder.record(RenderStageStats.STAGE_JNI, -50);
+
+        RenderStageStats stats = recorder.getSnapshot();
+        assertEquals(1, stats.getSampleCount(RenderStageStats.STAGE_JNI));
+        assertEquals(0, stats.getMaxNs(RenderStageStats.STAGE_JNI));
+    }
+
+    @Test
+    public void resetClearsAllStages() {
+        RenderStageRecorder recorder = new RenderStageRecorder();
+        recorder.setGpuTimingSupported(true);
+        for (int stage = 0; stage < RenderStageStats.STAGE_COUNT; stage++) {
+            recorder.record(stage, 10 * US);
+        }
+        recorder.reset();
+
+        RenderStageStats stats = recorder.getSnapshot();
+        for (int stage = 0; stage < RenderStageStats.STAGE_COUNT; stage++) {
+            assertEquals(0, stats.getSampleCount(stage));
+            assertEquals(0, stats.getMaxNs(stage));
+        }
+        assertTrue(stats.isGpuTimingSupported());
+        assertFalse(new RenderStageRecorder().getSnapshot().isGpuTimingSupported());
+    }
+
+    @Test
+    public void recordingDoesNotAllocate() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+
+        RenderStageRecorder recorder = new RenderStageRecorder();
+        int frames = 10_000;
+        for (int i = 0; i < 2 * frames; i++) {
+            recordFrame(recorder, i);
+        }
+
+        long threadId = Thread.currentThread().getId();
+        long calibrationStart = threadBean.getThreadAllocatedBytes(threadId);
+        long overhead = threadBean.getThreadAllocatedBytes(threadId) - calibrationStart;
+        long start = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < frames; i++) {
+            recordFrame(recorder, i);
+        }
+        long allocated = threadBean.getThreadAllocatedBytes(threadId) - start - overhead;
+
+        assertTrue("Recording allocated " + allocated + " bytes over " + frames + " frames",
+                allocated < frames);
+    }
+
+    private static void recordFrame(RenderStageRecorder recorder, int frame) {
+        for (int stage = 0; stage < RenderStageStats.STAGE_COUNT; stage++) {
+            recorder.record(stage, (frame % 100 + stage) * US);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.joyuiyeongl.ypreviewjava;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Local unit tests for {@link RenderTransform}.
+ */
+public class RenderTransformTest {
+    // SurfaceTexture transforms flip the t axis, since buffers are stored top-down.
+    private static final float[] TEXTURE_TRANSFORM_ROT_0 = {
+            1f, 0f, 0f, 0f,
+            0f, -1f, 0f, 0f,
+            0f, 0f, 1f, 0f,
+            0f, 1f, 0f, 1f};
+
+    private static final float[] TEXTURE_TRANSFORM_ROT_90 = {
+            0f, -1f, 0f, 0f,
+            -1f, 0f, 0f, 0f,
+            0f, 0f, 1f, 0f,
+            1f, 1f, 0f, 1f};
+
+    @Test
+    public void detectsTextureRotation() {
+        RenderTransform transform = new RenderTransform();
+        System.arraycopy(TEXTURE_TRANSFORM_ROT_0, 0, transform.getTextureTransform(), 0, 16);
+        assertEquals(0, transform.getTextureRotationDegrees());
+        System.arraycopy(TEXTURE_TRANSFORM_ROT_90, 0, transform.getTextureTransform(), 0, 16);
+        assertEquals(90, transform.getTextureRotationDegrees());
+    }
+
+    @Test
+    public void mvpMapsCenterCropToNormalizedDeviceCoordinates() {
+        RenderTransform transform = new RenderTransform();
+        transform.setPreviewSize(1920, 1080);
+        transform.setSurface(1080, 1080, 0);
+        System.arraycopy(TEXTURE_TRANSFORM_ROT_0, 0, transform.getTextureTransform(), 0, 16);
+        transform.updateTextureRotation();
+        transform.updateMvpTransform();
+
+        // The square surface shows the center 1080x1080 of the buffer, so the model's horizontal
+        // extent [-1, 1] maps to [-1920/1080, 1920/1080] and the vertical extent is unchanged.
+        float[] result = new float[4];
+        Matrices.multiplyMV(result, 0, transform.getMvpTransform(), 0,
+                new float[]{1f, 1f, 0f, 1f}, 0);
+        assertEquals(1920f / 1080f, Math.abs(result[0]), 1e-4f);
+        assertEquals(1f, Math.abs(result[1]), 1e-4f);
+    }
+}
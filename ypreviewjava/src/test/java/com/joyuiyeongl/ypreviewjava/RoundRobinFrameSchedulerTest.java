@@ -0,0 +1,161 @@
+package com.joyuiyeongl.ypreviewjava;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.view.Choreographer;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Local unit tests for {@link RoundRobinFrameScheduler}, driven by a fake vsync source.
+ */
+public class RoundRobinFrameSchedulerTest {
+
+    @Test
+    public void runsWaitingCallbacksFromOneVsyncCallback() {
+        FakeVsync vsync = new FakeVsync();
+        RoundRobinFrameScheduler scheduler = new RoundRobinFrameScheduler(vsync);
+        List<String> runs = new ArrayList<>();
+        scheduler.postFrameCallback(new Renderer("a", runs));
+        scheduler.postFrameCallback(new Renderer("b", runs));
+
+        assertEquals(1, vsync.mCallbacks.size());
+        vsync.fire(100);
+
+        assertEquals(Arrays.asList("a@100", "b@100"), runs);
+        assertTrue(vsync.mCallbacks.isEmpty());
+    }
+
+    @Test
+    public void renderersTakeTurnsAtGoingFirst() {
+        FakeVsync vsync = new FakeVsync();
+        RoundRobinFrameScheduler scheduler = new RoundRobinFrameScheduler(vsync);
+        List<String> runs = new ArrayList<>();
+        Renderer[] renderers = {new Renderer("a", runs), new Renderer("b", runs),
+                new Renderer("c", runs)};
+
+        List<String> firsts = new ArrayList<>();
+        for (int frame = 0; frame < 6; frame++) {
+            for (Renderer renderer : renderers) {
+                scheduler.postFrameCallback(renderer);
+            }
+            runs.clear();
+            vsync.fire(frame);
+            assertEquals(3, runs.size());
+            firsts.add(runs.get(0).substring(0, 1));
+        }
+
+        assertEquals(Arrays.asList("a", "b", "c", "a", "b", "c"), firsts);
+    }
+
+    @Test
+    public void callbackPostedWhileRunningWaitsForNextVsync() {
+        FakeVsync vsync = new FakeVsync();
+        RoundRobinFrameScheduler scheduler = new RoundRobinFrameScheduler(vsync);
+        List<String> runs = new ArrayList<>();
+        Renderer b = new Renderer("b", runs);
+        Renderer a = new Renderer("a", runs) {
+            @Override
+            public void doFrame(long frameTimeNanos) {
+                super.doFrame(frameTimeNanos);
+                scheduler.postFrameCallback(this);
+                scheduler.postFrameCallback(b);
+            }
+        };
+        scheduler.postFrameCallback(a);
+
+        vsync.fire(1);
+        assertEquals(Arrays.asList("a@1"), runs);
+        assertEquals(1, vsync.mCallbacks.size());
+
+        runs.clear();
+        vsync.fire(2);
+        assertEquals(2, runs.size());
+        assertTrue(runs.contains("a@2"));
+        assertTrue(runs.contains("b@2"));
+    }
+
+    @Test
+    public void removedCallbackDoesNotRun() {
+        FakeVsync vsync = new FakeVsync();
+        RoundRobinFrameScheduler scheduler = new RoundRobinFrameScheduler(vsync);
+        List<String> runs = new ArrayList<>();
+        Renderer b = new Renderer("b", runs);
+        Renderer a = new Renderer("a", runs) {
+            @Override
+            public void doFrame(long frameTimeNanos) {
+                super.doFrame(frameTimeNanos);
+                scheduler.removeFrameCallback(b);
+            }
+        };
+        scheduler.postFrameCallback(a);
+        scheduler.postFrameCallback(b);
+
+        vsync.fire(1);
+
+        assertEquals(Arrays.asList("a@1"), runs);
+    }
+
+    @Test
+    public void removingLastCallbackCancelsVsync() {
+        FakeVsync vsync = new FakeVsync();
+        RoundRobinFrameScheduler scheduler = new RoundRobinFrameScheduler(vsync);
+        List<String> runs = new ArrayList<>();
+        Renderer a = new Renderer("a", runs);
+        Renderer b = new Renderer("b", runs);
+        scheduler.postFrameCallback(a);
+        scheduler.postFrameCallback(b);
+
+        scheduler.removeFrameCallback(a);
+        assertFalse(vsync.mCallbacks.isEmpty());
+        scheduler.removeFrameCallback(b);
+
+        assertTrue(vsync.mCallbacks.isEmpty());
+        assertTrue(runs.isEmpty());
+    }
+
+    private static class Renderer implements Choreographer.FrameCallback {
+        private final String mName;
+        private final List<String> mRuns;
+
+        Renderer(@NonNull String name, @NonNull List<String> runs) {
+            mName = name;
+            mRuns = runs;
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mRuns.add(mName + "@" + frameTimeNanos);
+        }
+    }
+
+    private static final class FakeVsync implements VsyncFramePacer.VsyncSource {
+        final List<Choreographer.FrameCallback> mCallbacks = new ArrayList<>();
+
+        @Override
+        public void postFrameCallback(@NonNull Choreographer.FrameCallback callback) {
+            mCallbacks.add(callback);
+        }
+
+        @Override
+        public void removeFrameCallback(@NonNull Choreographer.FrameCallback callback) {
+            mCallbacks.remove(callback);
+        }
+
+        void fire(long frameTimeNanos) {
+            List<Choreographer.FrameCallback> callbacks = new ArrayList<>(mCallbacks);
+            mCallbacks.clear();
+            for (Choreographer.FrameCallback callback : callbacks) {
+                callback.doFrame(frameTimeNanos);
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.joyuiyeongl.ypreviewjava;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Local unit tests for {@link ShaderEffect} and {@link EffectShaders}.
+ */
+public class ShaderEffectTest {
+    private static final String INVERT = "vec4 applyEffect(vec2 texCoord) {\n"
+            + "  vec4 color = sampleInput(texCoord);\n"
+            + "  return vec4(1.0 - color.rgb, color.a);\n"
+            + "}\n";
+
+    private static final String TINT = "uniform vec3 tint;\n"
+            + "uniform float amount;\n"
+            + "vec4 applyEffect(vec2 texCoord) {\n"
+            + "  vec4 color = sampleInput(texCoord);\n"
+            + "  return vec4(mix(color.rgb, tint, amount), color.a);\n"
+            + "}\n";
+
+    @Test
+    public void wrapsSourceForBothInputs() {
+        ShaderEffect effect = ShaderEffect.create(INVERT);
+
+        String external = EffectShaders.externalSource(effect);
+        String texture2d = EffectShaders.texture2dSource(effect);
+
+        // Extensions must come before anything else in the shader.
+        assertTrue(external.startsWith("#extension GL_OES_EGL_image_external : require\n"));
+        assertTrue(external.contains("uniform samplerExternalOES inputSampler;"));
+        assertFalse(texture2d.contains("#extension"));
+        assertTrue(texture2d.contains("uniform sampler2D inputSampler;"));
+        for (String source : new String[]{external, texture2d}) {
+            assertTrue(source.contains("#line 1\n" + INVERT));
+            assertTrue(source.trim().endsWith("gl_FragColor = applyEffect(texCoord);\n}"));
+        }
+    }
+
+    @Test
+    public void withUniformLeavesOriginalUnchanged() {
+        ShaderEffect effect = ShaderEffect.create(TINT);
+        ShaderEffect tinted = effect.withUniform("tint", 1f, 0.5f, 0f).withUniform("amount", 0.3f);
+
+        assertEquals(0, effect.getUniformCount());
+        assertEquals(2, tinted.getUniformCount());
+        assertEquals("amount", tinted.getUniformName(1));
+        assertArrayEquals(new float[]{1f, 0.5f, 0f}, tinted.getUniformValue(0), 0f);
+    }
+
+    @Test
+    public void replacesUniformValueInPlace() {
+        ShaderEffect effect = ShaderEffect.create(TINT).withUniform("amount", 0.3f)
+                .withUniform("tint", 1f, 0f, 0f);
+        ShaderEffect updated = effect.withUniform("amount", 0.8f);
+
+        assertEquals(2, updated.getUniformCount());
+        assertEquals("amount", updated.getUniformName(0));
+        assertArrayEquals(new float[]{0.8f}, updated.getUniformValue(0), 0f);
+        assertArrayEquals(new float[]{0.3f}, effect.getUniformValue(0), 0f);
+    }
+
+    @Test
+    public void programKeyIgnoresUniformValues() {
+        ShaderEffect effect = ShaderEffect.create(TINT).withUniform("amount", 0.3f);
+
+        assertEquals(effect.getProgramKey(), effect.withUniform("amount", 0.9f).getProgramKey());
+        assertNotEquals(effect.getProgramKey(),
+                effect.withUniform("amount", 0.3f, 0.3f).getProgramKey());
+        assertNotEquals(effect.getProgramKey(), ShaderEffect.create(INVERT).getProgramKey());
+    }
+
+    @Test
+    public void copiesUniformValues() {
+        float[] tint = {1f, 0f, 0f};
+        ShaderEffect effect = ShaderEffect.create(TINT).withUniform("tint", tint);
+        tint[0] = 0f;
+
+        assertEquals(1f, effect.getUniformValue(0)[0], 0f);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void sourceMustDefineApplyEffect() {
+        ShaderEffect.create("void main() {}");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void uniformNameMustNotShadowWrapper() {
+        ShaderEffect.create(INVERT).withUniform("inputTexelSize", 1f, 1f);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void uniformNameMustBeIdentifier() {
+        ShaderEffect.create(INVERT).withUniform("tint[0]", 1f);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void uniformMustFitInVec4() {
+        ShaderEffect.create(INVERT).withUniform("weights", 1f, 2f, 3f, 4f, 5f);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void uniformCountIsBounded() {
+        ShaderEffect effect = ShaderEffect.create(INVERT);
+        for (int i = 0; i <= ShaderEffect.MAX_UNIFORMS; i++) {
+            effect = effect.withUniform("u" + i, i);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.joyuiyeongl.ypreviewjava;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Local unit tests for {@link StartupTracer} and the {@link StartupTrace} it delivers.
+ */
+public class StartupTracerTest {
+
+    @Test
+    public void deliversTraceOnceFirstFrameIsDrawn() {
+        List<StartupTrace> traces = new ArrayList<>();
+        StartupTracer tracer = new StartupTracer(Runnable::run, traces::add, false);
+        long startNs = System.nanoTime();
+        tracer.mark(StartupTrace.MILESTONE_CAMERA_PROVIDER_READY, startNs + 10);
+        tracer.mark(StartupTrace.MILESTONE_CAMERA_BOUND, startNs + 30);
+        tracer.mark(StartupTrace.MILESTONE_SURFACE_REQUESTED, startNs + 40);
+        tracer.mark(StartupTrace.MILESTONE_FIRST_FRAME_AVAILABLE, startNs + 100);
+        assertTrue(traces.isEmpty());
+
+        tracer.mark(StartupTrace.MILESTONE_FIRST_FRAME_DRAWN, startNs + 120);
+        tracer.mark(StartupTrace.MILESTONE_FIRST_FRAME_DRAWN, startNs + 200);
+
+        assertEquals(1, traces.size());
+        StartupTrace trace = traces.get(0);
+        assertEquals(startNs + 120, trace.getTimestampNs(StartupTrace.MILESTONE_FIRST_FRAME_DRAWN));
+        assertEquals(20, trace.getPhaseNs(StartupTrace.MILESTONE_CAMERA_BOUND));
+        assertEquals(60, trace.getPhaseNs(StartupTrace.MILESTONE_FIRST_FRAME_AVAILABLE));
+        assertEquals(20, trace.getPhaseNs(StartupTrace.MILESTONE_FIRST_FRAME_DRAWN));
+        assertEquals(trace.getTotalNs(),
+                trace.getElapsedNs(StartupTrace.MILESTONE_FIRST_FRAME_DRAWN));
+    }
+
+    @Test
+    public void onlyFirstTimeMilestoneIsReachedCounts() {
+        List<StartupTrace> traces = new ArrayList<>();
+        StartupTracer tracer = new StartupTracer(Runnable::run, traces::add, false);
+        long startNs = System.nanoTime();
+        tracer.mark(StartupTrace.MILESTONE_CAMERA_PROVIDER_READY, startNs + 10);
+        tracer.mark(StartupTrace.MILESTONE_CAMERA_PROVIDER_READY, startNs + 50);
+        tracer.mark(StartupTrace.MILESTONE_FIRST_FRAME_DRAWN, startNs + 100);
+
+        StartupTrace trace = traces.get(0);
+        assertEquals(startNs + 10,
+                trace.getTimestampNs(StartupTrace.MILESTONE_CAMERA_PROVIDER_READY));
+    }
+
+    @Test
+    public void missingMilestonesAreReportedAsNotReached() {
+        List<StartupTrace> traces = new ArrayList<>();
+        StartupTracer tracer = new StartupTracer(Runnable::run, traces::add, false);
+        tracer.mark(StartupTrace.MILESTONE_FIRST_FRAME_DRAWN);
+
+        StartupTrace trace = traces.get(0);
+        assertEquals(-1, trace.getTimestampNs(StartupTrace.MILESTONE_CAMERA_BOUND));
+        assertEquals(-1, trace.getElapsedNs(StartupTrace.MILESTONE_CAMERA_BOUND));
+        assertEquals(-1, trace.getPhaseNs(StartupTrace.MILESTONE_SURFACE_REQUESTED));
+        assertTrue(trace.toString().contains("cameraBound=none"));
+    }
+
+    @Test
+    public void outputSurfaceAttachedBeforeSetUpHasNegativeElapsedTime() {
+        List<StartupTrace> traces = new ArrayList<>();
+        long attachedNs = System.nanoTime();
+        StartupTracer tracer = new StartupTracer(Runnable::run, traces::add, false);
+        tracer.mark(StartupTrace.MILESTONE_OUTPUT_SURFACE_ATTACHED, attachedNs - 1000);
+        tracer.mark(StartupTrace.MILESTONE_FIRST_FRAME_DRAWN);
+
+        assertTrue(traces.get(0).getElapsedNs(StartupTrace.MILESTONE_OUTPUT_SURFACE_ATTACHED)
+                < 0);
+    }
+
+    @Test
+    public void reconfigurationTraceStartsAtGivenTime() {
+        List<StartupTrace> traces = new ArrayList<>();
+        long startNs = System.nanoTime() - 1000;
+        StartupTracer tracer = new StartupTracer(Runnable::run, traces::add, false, startNs);
+        tracer.mark(StartupTrace.MILESTONE_CAMERA_PROVIDER_READY, startNs);
+        tracer.mark(StartupTrace.MILESTONE_FIRST_FRAME_DRAWN, startNs + 500);
+
+        StartupTrace trace = traces.get(0);
+        assertEquals(startNs, trace.getTimestampNs(StartupTrace.MILESTONE_SET_UP_CAMERA));
+        assertEquals(0, trace.getPhaseNs(StartupTrace.MILESTONE_CAMERA_PROVIDER_READY));
+        assertEquals(500, trace.getTotalNs());
+    }
+
+    @Test
+    public void abandonedTraceIsNotDelivered() {
+        List<StartupTrace> traces = new ArrayList<>();
+        StartupTracer tracer = new StartupTracer(Runnable::run, traces::add, false);
+        tracer.mark(StartupTrace.MILESTONE_CAMERA_PROVIDER_READY);
+        tracer.abandon();
+        tracer.mark(StartupTrace.MILESTONE_FIRST_FRAME_DRAWN);
+
+        assertTrue(traces.isEmpty());
+    }
+}
@@ -0,0 +1,211 @@
+package com.joyuiyeongl.ypreviewjava;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Local unit tests for {@link TensorConsumer} and {@link TensorFormat}.
+ */
+public class TensorConsumerTest {
+    // SurfaceTexture transforms flip the t axis, since buffers are stored top-down.
+    private static final float[] TEXTURE_TRANSFORM_ROT_0 = {
+            1f, 0f, 0f, 0f,
+            0f, -1f, 0f, 0f,
+            0f, 0f, 1f, 0f,
+            0f, 1f, 0f, 1f};
+
+    private static final float[] TEXTURE_TRANSFORM_ROT_90 = {
+            0f, -1f, 0f, 0f,
+            -1f, 0f, 0f, 0f,
+            0f, 0f, 1f, 0f,
+            1f, 1f, 0f, 1f};
+
+    private static final TensorListener NO_OP_LISTENER = (tensor, timestampNs) -> {
+    };
+
+    @Test
+    public void invertsMvp() {
+        float[] mvp = mvpTransform(1920, 1080, 224, 224, TEXTURE_TRANSFORM_ROT_90);
+        float[] inverse = new float[16];
+        float[] product = new float[16];
+
+        assertTrue(Matrices.invertM(inverse, 0, mvp, 0));
+        Matrices.multiplyMM(product, 0, mvp, 0, inverse, 0);
+
+        for (int i = 0; i < 16; i++) {
+            assertEquals(i % 5 == 0 ? 1f : 0f, product[i], 1e-5f);
+        }
+    }
+
+    @Test
+    public void samplesWhereThePreviewShaderDraws() {
+        float[] mvp = mvpTransform(1920, 1080, 320, 320, TEXTURE_TRANSFORM_ROT_90);
+        float[] sampleTransform = new float[16];
+        assertTrue(TensorConsumer.computeSampleTransform(sampleTransform,
+                TEXTURE_TRANSFORM_ROT_90, mvp, new float[32]));
+
+        // Quad positions with their texture coordinates, as in the native renderer.
+        float[][] vertices = {{-1f, 1f, 0f, 0f}, {1f, 1f, 1f, 0f}, {-1f, -1f, 0f, 1f},
+                {1f, -1f, 1f, 1f}, {0f, 0f, 0.5f, 0.5f}};
+        float[] clip = new float[4];
+        float[] sampled = new float[4];
+        float[] expected = new float[4];
+        for (float[] vertex : vertices) {
+            Matrices.multiplyMV(clip, 0, mvp, 0, new float[]{vertex[0], vertex[1], 0f, 1f}, 0);
+            Matrices.multiplyMV(sampled, 0, sampleTransform, 0,
+                    new float[]{clip[0], clip[1], 0f, 1f}, 0);
+            Matrices.multiplyMV(expected, 0, TEXTURE_TRANSFORM_ROT_90, 0,
+                    new float[]{vertex[2], vertex[3], 0f, 1f}, 0);
+            assertEquals(expected[0], sampled[0], 1e-4f);
+            assertEquals(expected[1], sampled[1], 1e-4f);
+        }
+    }
+
+    @Test
+    public void squareTensorSamplesCenterCropOfWidePreview() {
+        float[] mvp = mvpTransform(1920, 1080, 224, 224, TEXTURE_TRANSFORM_ROT_0);
+        float[] sampleTransform = new float[16];
+        assertTrue(TensorConsumer.computeSampleTransform(sampleTransform,
+                TEXTURE_TRANSFORM_ROT_0, mvp, new float[32]));
+
+        float[] left = new float[4];
+        float[] right = new float[4];
+        Matrices.multiplyMV(left, 0, sampleTransform, 0, new float[]{-1f, 0f, 0f, 1f}, 0);
+        Matrices.multiplyMV(right, 0, sampleTransform, 0, new float[]{1f, 0f, 0f, 1f}, 0);
+
+        // Only the center 1080 of the 1920 columns are sampled.
+        float cropWidth = 1080f / 1920f;
+        assertEquals(0.5f - cropWidth / 2, Math.min(left[0], right[0]), 1e-4f);
+        assertEquals(0.5f + cropWidth / 2, Math.max(left[0], right[0]), 1e-4f);
+    }
+
+    @Test
+    public void singularMvpIsRejected() {
+        TensorConsumer consumer = new TensorConsumer(TensorFormat.uint8(224, 224,
+                TensorFormat.CHANNEL_ORDER_RGB), 1, Runnable::run, NO_OP_LISTENER);
+
+        assertFalse(consumer.updateSampleTransform(TEXTURE_TRANSFORM_ROT_0, new float[16]));
+    }
+
+    @Test
+    public void packsEveryNthFrame() {
+        TensorConsumer consumer = new TensorConsumer(TensorFormat.uint8(224, 224,
+                TensorFormat.CHANNEL_ORDER_RGB), 3, Runnable::run, NO_OP_LISTENER);
+        StringBuilder due = new StringBuilder();
+        for (int frame = 0; frame < 9; frame++) {
+            if (consumer.isFrameDue()) {
+                consumer.onTensorStarted();
+                due.append('x');
+            } else {
+                due.append('.');
+            }
+        }
+
+        assertEquals("x..x..x..", due.toString());
+    }
+
+    @Test
+    public void retriesUntilATensorIsStarted() {
+        TensorConsumer consumer = new TensorConsumer(TensorFormat.uint8(224, 224,
+                TensorFormat.CHANNEL_ORDER_RGB), 3, Runnable::run, NO_OP_LISTENER);
+
+        assertTrue(consumer.isFrameDue());
+        // No tensor was started, for instance because no buffer was free.
+        assertTrue(consumer.isFrameDue());
+    }
+
+    @Test
+    public void writesNormalizationParameters() {
+        TensorFormat format = TensorFormat.float16(320, 320, TensorFormat.CHANNEL_ORDER_BGR,
+                new float[]{0.485f, 0.456f, 0.406f}, new float[]{0.229f, 0.224f, 0.225f});
+        TensorConsumer consumer = new TensorConsumer(format, 1, Runnable::run, NO_OP_LISTENER);
+        FloatBuffer params = consumer.getParams();
+
+        assertEquals(TensorConsumer.PARAM_COUNT, params.capacity());
+        assertEquals(0.456f, params.get(TensorConsumer.PARAM_MEAN + 1), 0f);
+        assertEquals(1f / 0.225f, params.get(TensorConsumer.PARAM_INV_STD + 2), 1e-6f);
+        assertEquals(1f, params.get(TensorConsumer.PARAM_SWAP_RED_BLUE), 0f);
+    }
+
+    @Test
+    public void deliversThroughReusableBuffers() {
+        ByteBuffer[] received = new ByteBuffer[1];
+        TensorConsumer consumer = new TensorConsumer(TensorFormat.uint8(224, 224,
+                TensorFormat.CHANNEL_ORDER_RGB), 1, Runnable::run,
+                (tensor, timestampNs) -> received[0] = tensor);
+        ByteBuffer tensor = consumer.acquireBuffer();
+        assertNotNull(tensor);
+        assertEquals(224 * 224 * 3, tensor.remaining());
+
+        consumer.deliver(tensor, 1000);
+
+        assertSame(tensor, received[0]);
+        assertSame(tensor, consumer.acquireBuffer());
+    }
+
+    @Test
+    public void skipsTensorsWhileTheListenerHoldsAllBuffers() {
+        TensorConsumer consumer = new TensorConsumer(TensorFormat.uint8(224, 224,
+                TensorFormat.CHANNEL_ORDER_RGB), 1, command -> {
+                }, NO_OP_LISTENER);
+        for (int i = 0; i < 3; i++) {
+            consumer.deliver(consumer.acquireBuffer(), i);
+        }
+
+        assertNull(consumer.acquireBuffer());
+    }
+
+    @Test
+    public void releasesBufferWhenExecutorRejects() {
+        TensorConsumer consumer = new TensorConsumer(TensorFormat.uint8(224, 224,
+                TensorFormat.CHANNEL_ORDER_RGB), 1, command -> {
+                    throw new RejectedExecutionException();
+                }, NO_OP_LISTENER);
+        for (int i = 0; i < 5; i++) {
+            ByteBuffer tensor = consumer.acquireBuffer();
+            assertNotNull(tensor);
+            consumer.deliver(tensor, i);
+        }
+    }
+
+    @Test
+    public void formatSizes() {
+        assertEquals(224 * 224 * 3,
+                TensorFormat.uint8(224, 224, TensorFormat.CHANNEL_ORDER_RGB).getByteCount());
+        assertEquals(320 * 320 * 3 * 2, TensorFormat.float16(320, 320,
+                TensorFormat.CHANNEL_ORDER_RGB, new float[3], new float[]{1f, 1f, 1f})
+                .getByteCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void uint8WidthMustPackIntoTexels() {
+        TensorFormat.uint8(222, 224, TensorFormat.CHANNEL_ORDER_RGB);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void stdMustBePositive() {
+        TensorFormat.float16(224, 224, TensorFormat.CHANNEL_ORDER_RGB, new float[3],
+                new float[]{1f, 0f, 1f});
+    }
+
+    private static float[] mvpTransform(int previewWidth, int previewHeight, int tensorWidth,
+            int tensorHeight, float[] textureTransform) {
+        RenderTransform transform = new RenderTransform();
+        transform.setPreviewSize(previewWidth, previewHeight);
+        transform.setSurface(tensorWidth, tensorHeight, 0);
+        System.arraycopy(textureTransform, 0, transform.getTextureTransform(), 0, 16);
+        transform.updateTextureRotation();
+        transform.updateMvpTransform();
+        return transform.getMvpTransform();
+    }
+}